@@ -0,0 +1,432 @@
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.charset.Charset;
+import java.nio.charset.StandardCharsets;
+import java.util.Base64;
+
+/**
+ * BinaryFrame - Versioned length-prefixed binary framing for the chat protocol
+ * Media chunks carry raw payload bytes instead of Base64 text, and chat/control lines
+ * travel as TEXT frames so a binary connection uses a single framing in both directions
+ *
+ * A binary client opens the connection with the preamble MAGIC, VERSION. The first
+ * byte can never start a text line, so the server sniffs it to tell both protocols apart.
+ * Version 2 clients also accept frames addressed by user id (FLAG_IDS); version 1 clients
+ * only ever receive frames addressed by username.
+ *
+ * Frame layout (big-endian):
+ *   int    frame length (bytes after this field)
+ *   byte   type (TEXT, IMAGE, FILE, VOICE, ACK), FLAG_IDS set when users are addressed by id
+ *   long   session id
+ *   int    chunk index
+ *   int    total chunks
+ *   short  sender length, UTF-8 sender            or, with FLAG_IDS:  int sender id
+ *   short  recipient length, UTF-8 recipient          int recipient id
+ *          (empty / UserIds.NONE for broadcast)
+ *   short  name length, UTF-8 name (file name for FILE frames)
+ *   int    payload length, payload bytes
+ *
+ * Legacy text chunk lines can be parsed into a frame from their raw bytes as well; only
+ * the routing header is decoded, and the original line is kept for legacy recipients.
+ */
+public class BinaryFrame {
+    public static final byte MAGIC = (byte) 0xB1;
+    public static final byte VERSION = 2; // Highest framing version this side speaks
+    public static final byte MIN_VERSION = 1;
+    public static final int MAX_FRAME_LENGTH = 16 * 1024 * 1024;
+
+    public static final byte TYPE_TEXT = 1;
+    public static final byte TYPE_IMAGE = 2;
+    public static final byte TYPE_FILE = 3;
+    public static final byte TYPE_VOICE = 4;
+    public static final byte TYPE_ACK = 5; // Flow control: chunk index = cumulative ACK, payload = selective bitmap
+    public static final byte FLAG_IDS = 0x40; // Type bit: sender and recipient are interned user ids (version 2)
+
+    // Payload bytes per media chunk; a multiple of 3 so each chunk Base64-encodes
+    // without padding and legacy receivers can concatenate the encoded chunks
+    public static final int CHUNK_SIZE = 12 * 1024;
+
+    public static final Charset LEGACY_CHARSET = Charset.defaultCharset(); // Charset of text protocol lines
+
+    public byte type;
+    public long sessionId;
+    public int chunkIndex;
+    public int totalChunks;
+    public String sender;
+    public String recipient;
+    public int senderId; // UserIds.NONE until known
+    public int recipientId;
+    public boolean ids; // data addresses users by id rather than by name
+    public String name;
+    public byte[] data; // Complete frame bytes, including the length prefix; built lazily for text chunks
+    public int payloadOffset;
+    public int payloadLength;
+    private byte[] readdressed; // data with the other addressing, shared by all recipients that need it
+    private String legacyLine; // Computed once per relayed frame, shared by all legacy recipients
+    private byte[] legacyBytes; // Text chunk line plus newline, shared by all legacy recipients
+    private int legacyDataOffset; // Start of the Base64 payload in legacyBytes
+
+    /**
+     * Write the connection preamble sent once by binary clients
+     */
+    public static void writePreamble(OutputStream out) throws IOException {
+        out.write(MAGIC);
+        out.write(VERSION);
+    }
+
+    /**
+     * Check whether a preamble version is one this side can read
+     */
+    public static boolean isSupported(int version) {
+        return version >= MIN_VERSION && version <= VERSION;
+    }
+
+    /**
+     * Encode a frame, returning its bytes including the length prefix
+     */
+    public static byte[] encode(byte type, long sessionId, int chunkIndex, int totalChunks,
+                                String sender, String recipient, String name,
+                                byte[] payload, int offset, int length) {
+        return encode(type, sessionId, chunkIndex, totalChunks, utf8(sender), utf8(recipient), 0, 0,
+                name, payload, offset, length);
+    }
+
+    /**
+     * Encode a frame addressed by user id (version 2 peers only)
+     * @param recipientId UserIds.NONE for broadcast
+     */
+    public static byte[] encode(byte type, long sessionId, int chunkIndex, int totalChunks,
+                                int senderId, int recipientId, String name,
+                                byte[] payload, int offset, int length) {
+        return encode((byte) (type | FLAG_IDS), sessionId, chunkIndex, totalChunks, null, null, senderId, recipientId,
+                name, payload, offset, length);
+    }
+
+    /**
+     * @param senderBytes UTF-8 sender, or null to write the ids instead
+     */
+    private static byte[] encode(byte type, long sessionId, int chunkIndex, int totalChunks,
+                                 byte[] senderBytes, byte[] recipientBytes, int senderId, int recipientId,
+                                 String name, byte[] payload, int offset, int length) {
+        byte[] nameBytes = utf8(name);
+        int addressLength = senderBytes != null ? 2 + senderBytes.length + 2 + recipientBytes.length : 4 + 4;
+        int frameLength = 1 + 8 + 4 + 4 + addressLength + 2 + nameBytes.length + 4 + length;
+
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream(4 + frameLength);
+        try (DataOutputStream out = new DataOutputStream(bytes)) {
+            out.writeInt(frameLength);
+            out.writeByte(type);
+            out.writeLong(sessionId);
+            out.writeInt(chunkIndex);
+            out.writeInt(totalChunks);
+            if (senderBytes != null) {
+                out.writeShort(senderBytes.length);
+                out.write(senderBytes);
+                out.writeShort(recipientBytes.length);
+                out.write(recipientBytes);
+            } else {
+                out.writeInt(senderId);
+                out.writeInt(recipientId);
+            }
+            out.writeShort(nameBytes.length);
+            out.write(nameBytes);
+            out.writeInt(length);
+            out.write(payload, offset, length);
+        } catch (IOException e) {
+            throw new UncheckedIOException(e); // Cannot happen with an in-memory stream
+        }
+        return bytes.toByteArray();
+    }
+
+    /**
+     * Encode a flow-control ACK for a media transfer
+     * @param cumulative every chunk below this index has been received
+     * @param selective bit i set when chunk cumulative + 1 + i has been received (may be empty)
+     */
+    public static byte[] encodeAck(long sessionId, int cumulative, byte[] selective) {
+        return encode(TYPE_ACK, sessionId, cumulative, 0, null, null, null, selective, 0, selective.length);
+    }
+
+    /**
+     * Encode a chat/control line as a TEXT frame
+     */
+    public static byte[] encodeText(String line) {
+        byte[] payload = line.getBytes(StandardCharsets.UTF_8);
+        return encode(TYPE_TEXT, 0, 0, 1, null, null, null, payload, 0, payload.length);
+    }
+
+    /**
+     * Read one complete frame (including its length prefix) from a stream
+     * @return the frame bytes, or null at end of stream
+     */
+    public static byte[] readFrame(DataInputStream in) throws IOException {
+        int frameLength;
+        try {
+            frameLength = in.readInt();
+        } catch (EOFException e) {
+            return null;
+        }
+        if (frameLength <= 0 || frameLength > MAX_FRAME_LENGTH) {
+            throw new IOException("Invalid frame length: " + frameLength);
+        }
+        byte[] frame = new byte[4 + frameLength];
+        frame[0] = (byte) (frameLength >>> 24);
+        frame[1] = (byte) (frameLength >>> 16);
+        frame[2] = (byte) (frameLength >>> 8);
+        frame[3] = (byte) frameLength;
+        in.readFully(frame, 4, frameLength);
+        return frame;
+    }
+
+    /**
+     * Parse the header of a frame; the payload is referenced in place, not copied or decoded
+     */
+    public static BinaryFrame parse(byte[] data, int offset) throws IOException {
+        try {
+            DataInputStream in = new DataInputStream(new ByteArrayInputStream(data, offset, data.length - offset));
+            BinaryFrame frame = new BinaryFrame();
+            frame.data = data;
+            in.readInt(); // Frame length, already validated by the reader
+            byte type = in.readByte();
+            frame.type = (byte) (type & ~FLAG_IDS);
+            frame.ids = (type & FLAG_IDS) != 0;
+            frame.sessionId = in.readLong();
+            frame.chunkIndex = in.readInt();
+            frame.totalChunks = in.readInt();
+            if (frame.ids) {
+                frame.senderId = in.readInt();
+                frame.recipientId = in.readInt();
+            } else {
+                frame.sender = readString(in);
+                frame.recipient = readString(in);
+            }
+            frame.name = readString(in);
+            frame.payloadLength = in.readInt();
+            frame.payloadOffset = data.length - in.available();
+            if (frame.payloadLength < 0 || frame.payloadLength > in.available()) {
+                throw new IOException("Truncated frame payload");
+            }
+            return frame;
+        } catch (EOFException e) {
+            throw new IOException("Truncated frame header");
+        }
+    }
+
+    /**
+     * Parse the routing header of a text chunk line without touching its Base64 payload
+     * @param line the raw line bytes, terminated by a single newline
+     * @return the frame, or null when a required header field is missing or invalid
+     */
+    public static BinaryFrame parseLegacyChunk(byte[] line) {
+        ProtocolLine parsed = new ProtocolLine();
+        parsed.parse(line, 0, line.length - 1, LEGACY_CHARSET);
+        return parseLegacyChunk(parsed);
+    }
+
+    /**
+     * Build the routing header of an already parsed text chunk line; only the names are decoded
+     * @return the frame, or null when it is not a chunk line or a required field is missing or invalid
+     */
+    public static BinaryFrame parseLegacyChunk(ProtocolLine line) {
+        BinaryFrame frame = new BinaryFrame();
+        switch (line.getType()) {
+            case IMGCHUNK:
+                frame.type = TYPE_IMAGE;
+                break;
+            case FILECHUNK:
+                frame.type = TYPE_FILE;
+                break;
+            case VOICECHUNK:
+                frame.type = TYPE_VOICE;
+                break;
+            default:
+                return null;
+        }
+        try {
+            frame.sessionId = line.getSessionId();
+            frame.chunkIndex = line.has(ProtocolLine.Field.CHUNK) ? line.getInt(ProtocolLine.Field.CHUNK) : 0;
+            frame.totalChunks = line.has(ProtocolLine.Field.TOTAL) ? line.getInt(ProtocolLine.Field.TOTAL) : 0;
+        } catch (NumberFormatException e) {
+            return null;
+        }
+        frame.name = line.get(ProtocolLine.Field.FILENAME);
+        frame.recipient = line.get(ProtocolLine.Field.TO);
+        frame.sender = line.get(ProtocolLine.Field.FROM);
+        if (frame.sender == null || !line.has(ProtocolLine.Field.DATA) || (frame.type == TYPE_FILE && frame.name == null)) {
+            return null;
+        }
+
+        // Legacy recipients get the original line; one that arrived inside a TEXT frame is copied out
+        // first, and re-encoded when its charset differs
+        byte[] bytes = line.getData();
+        if (!line.getCharset().equals(LEGACY_CHARSET)) {
+            bytes = (line + "\n").getBytes(LEGACY_CHARSET);
+        } else if (line.getOffset() != 0 || bytes.length != line.getLength() + 1) {
+            bytes = new byte[line.getLength() + 1];
+            System.arraycopy(line.getData(), line.getOffset(), bytes, 0, line.getLength());
+            bytes[line.getLength()] = '\n';
+        }
+        // DATA is Base64 and runs to the end of the line, so its length is the same in any charset
+        int dataLength = line.getOffset() + line.getLength() - line.getStart(ProtocolLine.Field.DATA);
+        frame.legacyDataOffset = bytes.length - 1 - dataLength;
+        frame.legacyBytes = bytes;
+        return frame;
+    }
+
+    public boolean isText() {
+        return type == TYPE_TEXT;
+    }
+
+    public boolean isMedia() {
+        return type == TYPE_IMAGE || type == TYPE_FILE || type == TYPE_VOICE;
+    }
+
+    public boolean isPrivate() {
+        return recipientId != UserIds.NONE || (recipient != null && !recipient.isEmpty());
+    }
+
+    /**
+     * Fill in the addressing the frame did not carry (names from ids or ids from names), so it
+     * can be relayed to peers using either
+     * @return false when the frame carries a user id the table does not know
+     */
+    public boolean resolve(UserIds users) {
+        if (ids) {
+            sender = users.nameOf(senderId);
+            recipient = recipientId != UserIds.NONE ? users.nameOf(recipientId) : null;
+            return sender != null && (recipientId == UserIds.NONE || recipient != null);
+        }
+        senderId = users.idOf(sender);
+        recipientId = isPrivate() ? users.idOf(recipient) : UserIds.NONE;
+        return true;
+    }
+
+    public String getText() {
+        return new String(data, payloadOffset, payloadLength, StandardCharsets.UTF_8);
+    }
+
+    public byte[] getPayload() {
+        if (data == null) {
+            // Parsed from a text chunk: decode the Base64 range of the original line
+            ByteBuffer base64 = ByteBuffer.wrap(legacyBytes, legacyDataOffset, legacyBytes.length - 1 - legacyDataOffset);
+            ByteBuffer decoded = Base64.getDecoder().decode(base64);
+            byte[] payload = new byte[decoded.remaining()];
+            decoded.get(payload);
+            return payload;
+        }
+        byte[] payload = new byte[payloadLength];
+        System.arraycopy(data, payloadOffset, payload, 0, payloadLength);
+        return payload;
+    }
+
+    /**
+     * Get the binary encoding of this frame, encoding it once for frames parsed from a text chunk
+     */
+    public byte[] getData() throws IOException {
+        if (data == null) {
+            byte[] payload;
+            try {
+                payload = getPayload();
+            } catch (IllegalArgumentException e) {
+                throw new IOException("Invalid Base64 chunk data");
+            }
+            data = encode(type, sessionId, chunkIndex, totalChunks, sender, recipient, name, payload, 0, payload.length);
+            payloadLength = payload.length;
+            payloadOffset = data.length - payload.length;
+        }
+        return data;
+    }
+
+    /**
+     * Get the binary encoding addressed by id (for version 2 recipients) or by name; the other
+     * addressing is encoded at most once per frame, after resolve(). A frame whose users have no
+     * id yet stays addressed by name, which version 2 recipients read as well
+     */
+    public byte[] getData(boolean withIds) throws IOException {
+        byte[] bytes = getData();
+        if (withIds == ids || (withIds && (senderId == UserIds.NONE || (isPrivate() && recipientId == UserIds.NONE)))) {
+            return bytes;
+        }
+        if (readdressed == null) {
+            readdressed = withIds
+                    ? encode(type, sessionId, chunkIndex, totalChunks, senderId, recipientId, name, data, payloadOffset, payloadLength)
+                    : encode(type, sessionId, chunkIndex, totalChunks, sender, recipient, name, data, payloadOffset, payloadLength);
+        }
+        return readdressed;
+    }
+
+    /**
+     * Get the legacy text line plus newline as bytes; text chunks return the line they were parsed from
+     */
+    public byte[] toLegacyBytes() {
+        if (legacyBytes == null) {
+            legacyBytes = (toLegacyLine() + "\n").getBytes(LEGACY_CHARSET);
+        }
+        return legacyBytes;
+    }
+
+    /**
+     * Render this frame in the legacy text protocol for clients that did not negotiate binary framing
+     */
+    public String toLegacyLine() {
+        if (legacyLine != null) {
+            return legacyLine;
+        }
+        if (data == null) {
+            legacyLine = new String(legacyBytes, 0, legacyBytes.length - 1, LEGACY_CHARSET);
+            return legacyLine;
+        }
+        if (isText()) {
+            legacyLine = getText();
+            return legacyLine;
+        }
+
+        StringBuilder line = new StringBuilder();
+        switch (type) {
+            case TYPE_IMAGE:
+                line.append("IMGCHUNK");
+                break;
+            case TYPE_FILE:
+                line.append("FILECHUNK");
+                break;
+            default:
+                line.append("VOICECHUNK");
+                break;
+        }
+        line.append("|SESSION:").append(Long.toHexString(sessionId))
+                .append("|CHUNK:").append(chunkIndex)
+                .append("|TOTAL:").append(totalChunks);
+        if (type == TYPE_FILE) {
+            line.append("|FILENAME:").append(name);
+        }
+        if (isPrivate()) {
+            line.append("|TO:").append(recipient);
+        }
+        line.append("|FROM:").append(sender)
+                .append("|DATA:").append(Base64.getEncoder().encodeToString(getPayload()));
+        legacyLine = line.toString();
+        return legacyLine;
+    }
+
+    /**
+     * Parse a legacy hexadecimal session id, falling back to a hash for non-numeric ids
+     */
+    public static long parseSessionId(String sessionId) {
+        try {
+            return Long.parseUnsignedLong(sessionId, 16);
+        } catch (NumberFormatException e) {
+            return sessionId.hashCode();
+        }
+    }
+
+    private static byte[] utf8(String value) {
+        return value == null ? new byte[0] : value.getBytes(StandardCharsets.UTF_8);
+    }
+
+    private static String readString(DataInputStream in) throws IOException {
+        int length = in.readUnsignedShort();
+        byte[] bytes = new byte[length];
+        in.readFully(bytes);
+        return new String(bytes, StandardCharsets.UTF_8);
+    }
+}
@@ -0,0 +1,118 @@
+/**
+ * BlobOffer - The step before a media upload where the sender names the content by its SHA-256
+ * OFFER|SESSION:id|TYPE:IMAGE|HASH:hex|SIZE:bytes|[FILENAME:name|][TO:recipient|]FROM:sender
+ * is answered with OFFER:HAVE|SESSION:id when the server's BlobStore already holds the content
+ * (the server then delivers it itself and nothing is uploaded) or OFFER:SEND|SESSION:id to ask
+ * for the upload as usual. A server without the step never answers, so senders upload anyway
+ * after TIMEOUT.
+ */
+public class BlobOffer {
+    public static final String PREFIX = "OFFER|";
+    public static final String HAVE = "OFFER:HAVE|SESSION:";
+    public static final String SEND = "OFFER:SEND|SESSION:";
+    public static final long TIMEOUT = 3000; // ms to wait for the answer
+    public static final long MAX_SIZE = FileTransfer.MAX_FILE_SIZE; // Larger transfers are uploaded without offering
+
+    public final BinaryFrame header; // Type, session, file name and addressing of the transfer; no payload
+    public final String hash;
+    public final long size;
+
+    private BlobOffer(BinaryFrame header, String hash, long size) {
+        this.header = header;
+        this.hash = hash;
+        this.size = size;
+    }
+
+    public static String encode(byte type, long sessionId, String hash, long size,
+                                String name, String recipient, String sender) {
+        StringBuilder line = new StringBuilder(PREFIX)
+                .append("SESSION:").append(Long.toHexString(sessionId))
+                .append("|TYPE:").append(typeName(type))
+                .append("|HASH:").append(hash)
+                .append("|SIZE:").append(size);
+        if (name != null) {
+            line.append("|FILENAME:").append(name);
+        }
+        if (recipient != null && !recipient.isEmpty()) {
+            line.append("|TO:").append(recipient);
+        }
+        return line.append("|FROM:").append(sender).toString();
+    }
+
+    /**
+     * @return the offer, or null when a field is missing or invalid (the hash names a file on the
+     *         server, so it must be exactly 64 lowercase hex digits)
+     */
+    public static BlobOffer parse(String message) {
+        if (!message.startsWith(PREFIX)) {
+            return null;
+        }
+        BinaryFrame header = new BinaryFrame();
+        String hash = null;
+        long size = -1;
+        try {
+            for (String field : message.substring(PREFIX.length()).split("\\|")) {
+                if (field.startsWith("SESSION:")) {
+                    header.sessionId = BinaryFrame.parseSessionId(field.substring(8));
+                } else if (field.startsWith("TYPE:")) {
+                    header.type = typeOf(field.substring(5));
+                } else if (field.startsWith("HASH:")) {
+                    hash = field.substring(5);
+                } else if (field.startsWith("SIZE:")) {
+                    size = Long.parseLong(field.substring(5));
+                } else if (field.startsWith("FILENAME:")) {
+                    header.name = field.substring(9);
+                } else if (field.startsWith("TO:")) {
+                    header.recipient = field.substring(3);
+                } else if (field.startsWith("FROM:")) {
+                    header.sender = field.substring(5);
+                }
+            }
+        } catch (NumberFormatException e) {
+            return null;
+        }
+        if (!header.isMedia() || header.sender == null || size < 0 || size > MAX_SIZE
+                || (header.type == BinaryFrame.TYPE_FILE && header.name == null) || !isHash(hash)) {
+            return null;
+        }
+        header.totalChunks = FileTransfer.chunkCount(size, BinaryFrame.CHUNK_SIZE);
+        return new BlobOffer(header, hash, size);
+    }
+
+    /**
+     * Session id an OFFER:HAVE or OFFER:SEND answer refers to
+     */
+    public static long answeredSession(String answer) {
+        return BinaryFrame.parseSessionId(answer.substring(HAVE.length()));
+    }
+
+    public static boolean isHash(String hash) {
+        if (hash == null || hash.length() != 64) {
+            return false;
+        }
+        for (int i = 0; i < hash.length(); i++) {
+            char c = hash.charAt(i);
+            if ((c < '0' || c > '9') && (c < 'a' || c > 'f')) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private static String typeName(byte type) {
+        return type == BinaryFrame.TYPE_IMAGE ? "IMAGE" : type == BinaryFrame.TYPE_FILE ? "FILE" : "VOICE";
+    }
+
+    private static byte typeOf(String name) {
+        switch (name) {
+            case "IMAGE":
+                return BinaryFrame.TYPE_IMAGE;
+            case "FILE":
+                return BinaryFrame.TYPE_FILE;
+            case "VOICE":
+                return BinaryFrame.TYPE_VOICE;
+            default:
+                return 0;
+        }
+    }
+}
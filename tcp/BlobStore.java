@@ -0,0 +1,196 @@
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * BlobStore - Media content the server has relayed, keyed by its SHA-256
+ * A sender that offers a hash the store holds is spared the upload (see BlobOffer). Content is
+ * kept in memory in least-recently-used order up to MEMORY_LIMIT; with a spill directory
+ * (chat.blobSpillDir) evicted content is written there as <hash>.blob instead of being dropped,
+ * up to DISK_LIMIT, and moves back into memory on its next hit. Files are written and read
+ * outside the lock, so a miss on content in the middle of spilling only costs an upload.
+ */
+public class BlobStore {
+    public static final long MEMORY_LIMIT = Long.getLong("chat.blobCacheBytes", 64 * 1024 * 1024);
+    public static final long DISK_LIMIT = Long.getLong("chat.blobSpillBytes", 1024L * 1024 * 1024);
+    public static final long MAX_BLOB_SIZE = MEMORY_LIMIT / 4; // Larger content would flush most of the cache
+    private static final String SUFFIX = ".blob";
+
+    private final File spillDir; // null: evicted content is dropped
+    private final LinkedHashMap<String, byte[]> memory = new LinkedHashMap<>(16, 0.75f, true);
+    private final LinkedHashMap<String, Long> disk = new LinkedHashMap<>(16, 0.75f, true); // Spilled sizes
+    private long memoryBytes = 0; // Guarded by this
+    private long diskBytes = 0; // Guarded by this
+    private final LongAdder hits = new LongAdder();
+    private final LongAdder misses = new LongAdder();
+
+    /**
+     * A store without a spill directory, or with the one named by chat.blobSpillDir
+     */
+    public BlobStore() {
+        this(System.getProperty("chat.blobSpillDir") != null ? new File(System.getProperty("chat.blobSpillDir")) : null);
+    }
+
+    /**
+     * @param spillDir directory for evicted content, created if needed; content spilled there by an
+     *                 earlier run is picked up again. null keeps content in memory only
+     */
+    public BlobStore(File spillDir) {
+        this.spillDir = spillDir != null && (spillDir.isDirectory() || spillDir.mkdirs()) ? spillDir : null;
+        File[] spilled = this.spillDir != null ? this.spillDir.listFiles() : null;
+        if (spilled != null) {
+            for (File file : spilled) {
+                String name = file.getName();
+                if (name.endsWith(SUFFIX) && BlobOffer.isHash(name.substring(0, name.length() - SUFFIX.length()))) {
+                    disk.put(name.substring(0, name.length() - SUFFIX.length()), file.length());
+                    diskBytes += file.length();
+                }
+            }
+        }
+    }
+
+    /**
+     * Content with the given hash, or null if the store does not have it
+     */
+    public byte[] get(String hash) {
+        synchronized (this) {
+            byte[] content = memory.get(hash);
+            if (content != null) {
+                hits.increment();
+                return content;
+            }
+            if (!disk.containsKey(hash)) {
+                misses.increment();
+                return null;
+            }
+        }
+        byte[] content;
+        try {
+            content = Files.readAllBytes(spillFile(hash).toPath());
+        } catch (IOException e) {
+            content = null;
+        }
+        if (content == null || !FileTransfer.sha256(content).equals(hash)) {
+            synchronized (this) {
+                dropSpilled(hash); // Removed or damaged behind our back
+                misses.increment();
+            }
+            return null;
+        }
+        hits.increment();
+        put(hash, content);
+        return content;
+    }
+
+    /**
+     * Keep content under its hash, evicting the least recently used content beyond MEMORY_LIMIT
+     */
+    public void put(String hash, byte[] content) {
+        if (content.length > MAX_BLOB_SIZE) {
+            return;
+        }
+        List<Map.Entry<String, byte[]>> evicted = new ArrayList<>();
+        synchronized (this) {
+            if (memory.containsKey(hash)) {
+                return;
+            }
+            dropSpilled(hash);
+            memory.put(hash, content);
+            memoryBytes += content.length;
+            Iterator<Map.Entry<String, byte[]>> oldest = memory.entrySet().iterator();
+            while (memoryBytes > MEMORY_LIMIT && oldest.hasNext()) {
+                Map.Entry<String, byte[]> entry = oldest.next();
+                oldest.remove();
+                memoryBytes -= entry.getValue().length;
+                evicted.add(entry);
+            }
+        }
+        if (spillDir != null) {
+            for (Map.Entry<String, byte[]> entry : evicted) {
+                spill(entry.getKey(), entry.getValue());
+            }
+        }
+    }
+
+    /**
+     * Forget the content held in memory; spilled content stays for the next run
+     */
+    public synchronized void clear() {
+        memory.clear();
+        memoryBytes = 0;
+    }
+
+    public synchronized int getEntries() {
+        return memory.size();
+    }
+
+    public synchronized long getMemoryBytes() {
+        return memoryBytes;
+    }
+
+    public synchronized int getSpilledEntries() {
+        return disk.size();
+    }
+
+    public synchronized long getSpilledBytes() {
+        return diskBytes;
+    }
+
+    public long getHits() {
+        return hits.sum();
+    }
+
+    public long getMisses() {
+        return misses.sum();
+    }
+
+    /**
+     * Write evicted content to the spill directory (via a temporary file, so a crash never leaves
+     * a partial blob under its hash), then drop the oldest spilled content beyond DISK_LIMIT
+     */
+    private void spill(String hash, byte[] content) {
+        File target = spillFile(hash);
+        try {
+            File temp = new File(spillDir, hash + ".tmp");
+            Files.write(temp.toPath(), content);
+            Files.move(temp.toPath(), target.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        } catch (IOException e) {
+            return; // Full or unwritable disk: the content is simply forgotten
+        }
+        List<String> expired = new ArrayList<>();
+        synchronized (this) {
+            if (disk.put(hash, (long) content.length) == null) {
+                diskBytes += content.length;
+            }
+            Iterator<Map.Entry<String, Long>> oldest = disk.entrySet().iterator();
+            while (diskBytes > DISK_LIMIT && oldest.hasNext()) {
+                Map.Entry<String, Long> entry = oldest.next();
+                oldest.remove();
+                diskBytes -= entry.getValue();
+                expired.add(entry.getKey());
+            }
+        }
+        for (String old : expired) {
+            spillFile(old).delete();
+        }
+    }
+
+    private void dropSpilled(String hash) {
+        Long size = disk.remove(hash);
+        if (size != null) {
+            diskBytes -= size;
+            spillFile(hash).delete();
+        }
+    }
+
+    private File spillFile(String hash) {
+        return new File(spillDir, hash + SUFFIX);
+    }
+}
@@ -0,0 +1,169 @@
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.StandardOpenOption;
+import java.util.Arrays;
+import java.util.BitSet;
+
+/**
+ * ChunkAssembler - Reassembles one incoming media transfer, whatever its type, as chunks arrive
+ * Each decoded chunk is copied straight to its offset in one destination: a byte array for media
+ * shown from memory (images, voice) or a temp file for files, so a transfer allocates about its
+ * own size once instead of a buffer per chunk plus a concatenation. A BitSet and a received count
+ * make duplicate checks and completion O(1). Offsets come from the chunk size, learned from the
+ * first chunk that is not the last; a last chunk that arrives before that is held until then.
+ */
+public class ChunkAssembler {
+    public static final long MAX_IN_MEMORY = 64 * 1024 * 1024; // Larger in-memory transfers are refused
+
+    private final int totalChunks;
+    private final BitSet received = new BitSet();
+    private int receivedCount = 0;
+    private int chunkSize = -1; // Size of every chunk but the last
+    private byte[] pendingLastChunk; // Last chunk, held until its offset is known
+    private long length = 0; // Content bytes placed so far
+    private byte[] buffer; // In-memory destination, allocated once the chunk size is known
+    private final File file; // File destination, or null
+    private final FileChannel channel;
+    private long lastActivity = System.currentTimeMillis(); // When the last chunk arrived
+
+    private ChunkAssembler(int totalChunks, File file) throws IOException {
+        if (totalChunks <= 0) {
+            throw new IOException("Invalid chunk count " + totalChunks);
+        }
+        this.totalChunks = totalChunks;
+        this.file = file;
+        this.channel = file != null ? FileChannel.open(file.toPath(), StandardOpenOption.WRITE) : null;
+    }
+
+    /**
+     * Assemble into a byte array, for content that is used from memory
+     */
+    public static ChunkAssembler inMemory(int totalChunks) throws IOException {
+        return new ChunkAssembler(totalChunks, null);
+    }
+
+    /**
+     * Assemble into a temp file named after the sender's file name
+     */
+    public static ChunkAssembler toTempFile(int totalChunks, String filename) throws IOException {
+        File file = Files.createTempFile("chat_", "_" + filename.replaceAll("[\\\\/:*?\"<>|]", "_")).toFile();
+        file.deleteOnExit();
+        return new ChunkAssembler(totalChunks, file);
+    }
+
+    /**
+     * Place one decoded chunk
+     * @return false if the index is out of range or the chunk was already received
+     */
+    public boolean add(int index, byte[] data, int offset, int count) throws IOException {
+        lastActivity = System.currentTimeMillis();
+        if (index < 0 || index >= totalChunks || received.get(index)) {
+            return false;
+        }
+        if (index < totalChunks - 1) {
+            if (chunkSize < 0) {
+                learnChunkSize(count);
+            } else if (count != chunkSize) {
+                throw new IOException("Inconsistent chunk size " + count + ", expected " + chunkSize);
+            }
+            write(index, data, offset, count);
+        } else if (chunkSize < 0 && totalChunks > 1) {
+            pendingLastChunk = Arrays.copyOfRange(data, offset, offset + count);
+        } else {
+            if (chunkSize >= 0 && count > chunkSize) {
+                throw new IOException("Last chunk larger than the chunk size " + chunkSize);
+            }
+            write(index, data, offset, count);
+        }
+        received.set(index);
+        receivedCount++;
+        return true;
+    }
+
+    public boolean isComplete() {
+        return receivedCount == totalChunks;
+    }
+
+    public int getReceivedCount() {
+        return receivedCount;
+    }
+
+    public int getTotalChunks() {
+        return totalChunks;
+    }
+
+    /**
+     * Check whether no chunk arrived for idleTimeout ms, so the transfer can be given up
+     */
+    public boolean isIdle(long now, long idleTimeout) {
+        return now - lastActivity > idleTimeout;
+    }
+
+    /**
+     * The assembled content of a complete in-memory transfer; only copied when the last chunk was short
+     */
+    public byte[] getData() {
+        return buffer.length == length ? buffer : Arrays.copyOf(buffer, (int) length);
+    }
+
+    /**
+     * Close the temp file of a complete file transfer
+     */
+    public File finish() throws IOException {
+        channel.close();
+        return file;
+    }
+
+    /**
+     * Give up on an incomplete transfer, deleting its temp file
+     */
+    public void discard() {
+        buffer = null;
+        if (channel != null) {
+            try {
+                channel.close();
+            } catch (IOException e) {
+                // Already closed
+            }
+            file.delete();
+        }
+    }
+
+    private void learnChunkSize(int size) throws IOException {
+        chunkSize = size;
+        if (channel == null) {
+            long capacity = (long) size * (totalChunks - 1) + (pendingLastChunk != null ? pendingLastChunk.length : size);
+            if (capacity > MAX_IN_MEMORY) {
+                throw new IOException("Transfer of " + capacity + " bytes is too large to hold in memory");
+            }
+            buffer = new byte[(int) capacity];
+        }
+        if (pendingLastChunk != null) {
+            if (pendingLastChunk.length > size) {
+                throw new IOException("Last chunk larger than the chunk size " + size);
+            }
+            byte[] last = pendingLastChunk;
+            pendingLastChunk = null;
+            write(totalChunks - 1, last, 0, last.length);
+        }
+    }
+
+    private void write(int index, byte[] data, int offset, int count) throws IOException {
+        long position = (long) index * Math.max(chunkSize, 0);
+        if (channel != null) {
+            ByteBuffer source = ByteBuffer.wrap(data, offset, count);
+            while (source.hasRemaining()) {
+                position += channel.write(source, position);
+            }
+        } else {
+            if (buffer == null) {
+                buffer = new byte[count]; // A single-chunk transfer
+            }
+            System.arraycopy(data, offset, buffer, (int) position, count);
+        }
+        length += count;
+    }
+}
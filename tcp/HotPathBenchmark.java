@@ -0,0 +1,167 @@
+import java.io.*;
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+import java.util.Base64;
+
+/**
+ * HotPathBenchmark - Microbenchmarks for the TCP server and client parsing hot paths
+ * Each case runs warm-up iterations and then measured iterations of a fixed duration on this
+ * thread, and reports the mean and spread in ns/op and the bytes allocated per op
+ *
+ * Usage: java HotPathBenchmark [iterationMillis] [nameFilter]
+ */
+public class HotPathBenchmark {
+    private static final int WARMUP_ITERATIONS = 5;
+    private static final int MEASURED_ITERATIONS = 10;
+    private static volatile long sink; // Keeps results observable so the JIT cannot drop the work
+
+    private interface Operation {
+        long run() throws IOException;
+    }
+
+    public static void main(String[] args) throws Exception {
+        long iterationMillis = args.length > 0 ? Long.parseLong(args[0]) : 200;
+        String filter = args.length > 1 ? args[1] : "";
+
+        byte[] payload = new byte[BinaryFrame.CHUNK_SIZE];
+        for (int i = 0; i < payload.length; i++) {
+            payload[i] = (byte) i;
+        }
+        byte[] chunkLine = ("IMGCHUNK|SESSION:18c2f3a4b5d|CHUNK:3|TOTAL:10|TO:bob|FROM:alice|DATA:"
+                + Base64.getEncoder().encodeToString(payload) + "\n").getBytes();
+        byte[] frame = BinaryFrame.encode(BinaryFrame.TYPE_IMAGE, 0x18c2f3a4b5dL, 3, 10,
+                "alice", "bob", null, payload, 0, payload.length);
+        String privateMessage = "TO:bob|FROM:alice|MSG:see you at the standup in five minutes";
+        byte[] mixedLines = ("FROM:alice|MSG:hello everyone\nHEARTBEAT:alice\n" + privateMessage + "\n"
+                + new String(chunkLine)).getBytes();
+        LineReader reader = new LineReader(new RepeatingStream(mixedLines));
+        byte[] privateLine = privateMessage.getBytes();
+        ProtocolLine line = new ProtocolLine();
+
+        UserTable<String> users = new UserTable<>(); // Routing table of a busy server
+        for (int i = 0; i < 1000; i++) {
+            users.put("user" + i, "connection " + i);
+        }
+        users.put("alice", "connection alice");
+        users.put("bob", "connection bob");
+        byte[] idFrame = BinaryFrame.encode(BinaryFrame.TYPE_IMAGE, 0x18c2f3a4b5dL, 3, 10,
+                users.idOf("alice"), users.idOf("bob"), null, payload, 0, payload.length);
+
+        System.out.println("=== Hot path microbenchmarks (" + WARMUP_ITERATIONS + " warm-up + " + MEASURED_ITERATIONS
+                + " measured iterations of " + iterationMillis + " ms) ===");
+        System.out.printf("%-44s %12s %10s %16s%n", "Benchmark", "ns/op", "+/-", "alloc bytes/op");
+        Object[][] cases = {
+                {"LineReader.readLine (chat/heartbeat/chunk)", (Operation) () -> reader.readLine().length},
+                {"BinaryFrame.parse (image frame)", (Operation) () -> BinaryFrame.parse(frame, 0).chunkIndex},
+                {"BinaryFrame.parse (id-addressed image frame)", (Operation) () -> BinaryFrame.parse(idFrame, 0).chunkIndex},
+                {"route by name (parse + name lookup)", (Operation) () -> users.get(BinaryFrame.parse(frame, 0).recipient).length()},
+                {"route by id (parse + id lookup)", (Operation) () -> users.get(BinaryFrame.parse(idFrame, 0).recipientId).length()},
+                {"BinaryFrame.parseLegacyChunk (IMGCHUNK line)", (Operation) () -> BinaryFrame.parseLegacyChunk(chunkLine).chunkIndex},
+                {"legacy chunk payload (Base64 decode)", (Operation) () -> BinaryFrame.parseLegacyChunk(chunkLine).getPayload().length},
+                {"binary frame -> legacy line", (Operation) () -> BinaryFrame.parse(frame, 0).toLegacyBytes().length},
+                {"legacy line -> binary frame", (Operation) () -> BinaryFrame.parseLegacyChunk(chunkLine).getData().length},
+                {"text protocol split (TO: line)", (Operation) () -> privateMessage.split("\\|").length},
+                {"ProtocolLine.parse (TO: line)", (Operation) () -> line.parse(privateLine, 0, privateLine.length,
+                        BinaryFrame.LEGACY_CHARSET).ordinal()},
+                {"ProtocolLine.parse + fields (TO: line)", (Operation) () -> {
+                    line.parse(privateLine, 0, privateLine.length, BinaryFrame.LEGACY_CHARSET);
+                    return line.get(ProtocolLine.Field.TO).length() + line.get(ProtocolLine.Field.MSG).length();
+                }},
+                {"ProtocolLine.parse (IMGCHUNK line)", (Operation) () -> line.parse(chunkLine, 0, chunkLine.length - 1,
+                        BinaryFrame.LEGACY_CHARSET).ordinal()},
+                {"BinaryFrame.encode (image chunk)", (Operation) () -> BinaryFrame.encode(BinaryFrame.TYPE_IMAGE,
+                        0x18c2f3a4b5dL, 3, 10, "alice", "bob", null, payload, 0, payload.length).length},
+        };
+        for (Object[] benchmark : cases) {
+            String name = (String) benchmark[0];
+            if (name.toLowerCase().contains(filter.toLowerCase())) {
+                measure(name, (Operation) benchmark[1], iterationMillis);
+            }
+        }
+    }
+
+    private static void measure(String name, Operation operation, long iterationMillis) throws IOException {
+        for (int i = 0; i < WARMUP_ITERATIONS; i++) {
+            iterate(operation, iterationMillis);
+        }
+        double[] nanosPerOp = new double[MEASURED_ITERATIONS];
+        long ops = 0;
+        long allocBefore = allocatedBytes();
+        for (int i = 0; i < MEASURED_ITERATIONS; i++) {
+            long[] result = iterate(operation, iterationMillis);
+            nanosPerOp[i] = (double) result[1] / result[0];
+            ops += result[0];
+        }
+        long allocated = allocatedBytes() - allocBefore;
+
+        double mean = 0;
+        for (double value : nanosPerOp) {
+            mean += value / nanosPerOp.length;
+        }
+        double variance = 0;
+        for (double value : nanosPerOp) {
+            variance += (value - mean) * (value - mean) / nanosPerOp.length;
+        }
+        System.out.printf("%-44s %12.1f %10.1f %16s%n", name, mean, Math.sqrt(variance),
+                allocBefore < 0 ? "n/a" : String.valueOf(allocated / ops));
+    }
+
+    /**
+     * Run the operation for about the given time
+     * @return {operations, elapsed nanoseconds}
+     */
+    private static long[] iterate(Operation operation, long iterationMillis) throws IOException {
+        long deadline = System.nanoTime() + iterationMillis * 1000000;
+        long start = System.nanoTime();
+        long ops = 0;
+        long result = 0;
+        long now;
+        do {
+            for (int i = 0; i < 256; i++) {
+                result += operation.run();
+            }
+            ops += 256;
+            now = System.nanoTime();
+        } while (now < deadline);
+        sink += result;
+        return new long[]{ops, now - start};
+    }
+
+    /**
+     * Bytes allocated by this thread so far, or -1 when the JVM cannot report it
+     */
+    private static long allocatedBytes() {
+        ThreadMXBean threads = ManagementFactory.getThreadMXBean();
+        if (threads instanceof com.sun.management.ThreadMXBean) {
+            return ((com.sun.management.ThreadMXBean) threads).getThreadAllocatedBytes(Thread.currentThread().getId());
+        }
+        return -1;
+    }
+
+    /**
+     * Socket stand-in that returns the same bytes over and over
+     */
+    private static class RepeatingStream extends InputStream {
+        private final byte[] data;
+        private int position;
+
+        RepeatingStream(byte[] data) {
+            this.data = data;
+        }
+
+        @Override
+        public int read() {
+            byte b = data[position];
+            position = (position + 1) % data.length;
+            return b & 0xFF;
+        }
+
+        @Override
+        public int read(byte[] b, int off, int len) {
+            int count = Math.min(len, data.length - position);
+            System.arraycopy(data, position, b, off, count);
+            position = (position + count) % data.length;
+            return count;
+        }
+    }
+}
@@ -0,0 +1,54 @@
+import java.io.IOException;
+import java.net.Socket;
+import java.net.SocketOption;
+
+/**
+ * KeepAlive - TCP keepalive and Nagle settings for chat connections
+ * The kernel probes a connection after IDLE seconds without traffic and drops it after COUNT
+ * unanswered probes, so a peer that vanished without closing (power loss, NAT timeout) is noticed
+ * without application heartbeats. The idle/interval/count options (jdk.net) are looked up by name
+ * and only set where the platform supports them; elsewhere the OS defaults apply.
+ * Both ends coalesce their own output into few large writes, so Nagle's algorithm is off by
+ * default: it would only hold back the last small segment of a burst waiting for an ACK.
+ */
+public class KeepAlive {
+    public static final int IDLE = Integer.getInteger("chat.tcpKeepIdle", 60); // Seconds without traffic before the first probe
+    public static final int INTERVAL = Integer.getInteger("chat.tcpKeepInterval", 10); // Seconds between probes
+    public static final int COUNT = Integer.getInteger("chat.tcpKeepCount", 3); // Unanswered probes before the connection is dropped
+    public static final boolean NO_DELAY = Boolean.parseBoolean(System.getProperty("chat.tcpNoDelay", "true")); // TCP_NODELAY
+
+    /**
+     * Enable keepalive and set TCP_NODELAY on a connected socket (or a SocketChannel's socket());
+     * best effort, a socket that refuses an option keeps the OS default for it
+     */
+    public static void configure(Socket socket) {
+        try {
+            socket.setTcpNoDelay(NO_DELAY);
+            socket.setKeepAlive(true);
+            for (SocketOption<?> option : socket.supportedOptions()) {
+                switch (option.name()) {
+                    case "TCP_KEEPIDLE":
+                        setInt(socket, option, IDLE);
+                        break;
+                    case "TCP_KEEPINTERVAL":
+                        setInt(socket, option, INTERVAL);
+                        break;
+                    case "TCP_KEEPCOUNT":
+                        setInt(socket, option, COUNT);
+                        break;
+                    default:
+                        break;
+                }
+            }
+        } catch (IOException | UnsupportedOperationException e) {
+            // Keep the defaults
+        }
+    }
+
+    @SuppressWarnings("unchecked")
+    private static void setInt(Socket socket, SocketOption<?> option, int value) throws IOException {
+        if (option.type() == Integer.class) {
+            socket.setOption((SocketOption<Integer>) option, value);
+        }
+    }
+}
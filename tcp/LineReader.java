@@ -0,0 +1,68 @@
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.Arrays;
+
+/**
+ * LineReader - Reads text protocol lines as raw bytes from a blocking stream
+ * Lets the server relay media chunk lines without decoding them into Strings
+ */
+public class LineReader {
+    private final InputStream in;
+    private byte[] buffer = new byte[8 * 1024];
+    private int position = 0;
+    private int limit = 0;
+
+    public LineReader(InputStream in) {
+        this.in = in;
+    }
+
+    /**
+     * Read the next line, normalized to end with a single newline
+     * @return the line bytes, or null at end of stream
+     */
+    public byte[] readLine() throws IOException {
+        int scanned = position;
+        while (true) {
+            // Look for the end of the line in the buffered bytes
+            for (int i = scanned; i < limit; i++) {
+                if (buffer[i] == '\n') {
+                    byte[] line = copyLine(i);
+                    position = i + 1;
+                    return line;
+                }
+            }
+            scanned = limit - position;
+
+            // Make room for more bytes: move the partial line to the front, grow if it fills the buffer
+            if (position > 0) {
+                System.arraycopy(buffer, position, buffer, 0, limit - position);
+                limit -= position;
+                position = 0;
+            }
+            if (limit == buffer.length) {
+                buffer = Arrays.copyOf(buffer, buffer.length * 2);
+            }
+
+            int read = in.read(buffer, limit, buffer.length - limit);
+            if (read < 0) {
+                if (limit == position) {
+                    return null;
+                }
+                byte[] line = copyLine(limit); // Last line without a newline
+                position = limit;
+                return line;
+            }
+            limit += read;
+        }
+    }
+
+    private byte[] copyLine(int end) {
+        if (end > position && buffer[end - 1] == '\r') {
+            end--;
+        }
+        byte[] line = new byte[end - position + 1];
+        System.arraycopy(buffer, position, line, 0, end - position);
+        line[line.length - 1] = '\n';
+        return line;
+    }
+}
@@ -0,0 +1,107 @@
+import java.io.IOException;
+import java.security.MessageDigest;
+
+/**
+ * MediaBlob - A completed media upload held by the server, named by the SHA-256 of its bytes
+ * The chunks are the frames the sender uploaded, kept as received: their payloads are the
+ * content, and the frames themselves (with their cached re-encodings) are what recipients get.
+ * A blob served from the BlobStore has no uploaded frames; its chunks are cut from the stored
+ * content when first streamed.
+ */
+public class MediaBlob {
+    private final String hash;
+    private final BinaryFrame[] chunks;
+    private final long size;
+    private final byte[] content; // Stored content the chunks are cut from, or null for an upload
+    private final BinaryFrame header; // Type, session and addressing of the cut chunks
+
+    /**
+     * @param chunks every chunk of the upload in order, already in binary encoding (getData() called)
+     */
+    public MediaBlob(BinaryFrame[] chunks) {
+        MessageDigest digest = FileTransfer.newSha256();
+        long total = 0;
+        for (BinaryFrame chunk : chunks) {
+            digest.update(chunk.data, chunk.payloadOffset, chunk.payloadLength);
+            total += chunk.payloadLength;
+        }
+        this.hash = FileTransfer.toHex(digest.digest());
+        this.chunks = chunks;
+        this.size = total;
+        this.content = null;
+        this.header = null;
+    }
+
+    /**
+     * @param content stored content, known to hash to the given value
+     * @param header a resolved frame giving the type, session, file name and addressing of every chunk
+     */
+    public MediaBlob(String hash, byte[] content, BinaryFrame header) {
+        this.hash = hash;
+        this.chunks = new BinaryFrame[FileTransfer.chunkCount(content.length, BinaryFrame.CHUNK_SIZE)];
+        this.size = content.length;
+        this.content = content;
+        this.header = header;
+    }
+
+    /**
+     * Lowercase hex SHA-256 of the content
+     */
+    public String getHash() {
+        return hash;
+    }
+
+    public int getChunkCount() {
+        return chunks.length;
+    }
+
+    public synchronized BinaryFrame getChunk(int index) throws IOException {
+        if (chunks[index] == null) {
+            chunks[index] = cut(index);
+        }
+        return chunks[index];
+    }
+
+    /**
+     * Content size in bytes (payloads only)
+     */
+    public long getSize() {
+        return size;
+    }
+
+    /**
+     * The content, assembled from the uploaded chunks (for storing it)
+     */
+    public byte[] getContent() {
+        if (content != null) {
+            return content;
+        }
+        byte[] copy = new byte[(int) size];
+        int offset = 0;
+        for (BinaryFrame chunk : chunks) {
+            System.arraycopy(chunk.data, chunk.payloadOffset, copy, offset, chunk.payloadLength);
+            offset += chunk.payloadLength;
+        }
+        return copy;
+    }
+
+    /**
+     * Build one chunk of stored content, addressed by id when both users have one
+     */
+    private BinaryFrame cut(int index) throws IOException {
+        int offset = index * BinaryFrame.CHUNK_SIZE;
+        int length = Math.min(BinaryFrame.CHUNK_SIZE, content.length - offset);
+        boolean withIds = header.senderId != UserIds.NONE && (!header.isPrivate() || header.recipientId != UserIds.NONE);
+        byte[] data = withIds
+                ? BinaryFrame.encode(header.type, header.sessionId, index, chunks.length, header.senderId,
+                        header.recipientId, header.name, content, offset, length)
+                : BinaryFrame.encode(header.type, header.sessionId, index, chunks.length, header.sender,
+                        header.recipient, header.name, content, offset, length);
+        BinaryFrame chunk = BinaryFrame.parse(data, 0);
+        chunk.sender = header.sender;
+        chunk.recipient = header.recipient;
+        chunk.senderId = header.senderId;
+        chunk.recipientId = header.recipientId;
+        return chunk;
+    }
+}
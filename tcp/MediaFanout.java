@@ -0,0 +1,280 @@
+import java.io.IOException;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * MediaFanout - Store-and-forward relay for media sent to many recipients
+ * A broadcast or room upload is collected into a MediaBlob while each chunk is acknowledged on
+ * arrival, so the sender uploads at the server's pace and only once. The finished blob is then
+ * streamed to every recipient with its own cursor: it sends while the recipient's outbound queue
+ * has room and resumes when that queue drains, so a slow recipient only delays itself. Uploads that
+ * would not fit in MEMORY_LIMIT are left to the caller to relay chunk by chunk as before.
+ * Private uploads are only collected when expected (the sender offered the content first, see
+ * BlobOffer), and content the BlobStore already held is streamed the same way.
+ */
+public class MediaFanout {
+    public static final long MEMORY_LIMIT = Long.getLong("chat.fanoutMemoryBytes", 64 * 1024 * 1024);
+    public static final long UPLOAD_TIMEOUT = 60000; // ms without a chunk before an incomplete upload is dropped
+    // Most chunks an upload can have when each may be a full CHUNK_SIZE; uploads with more are relayed directly
+    public static final int MAX_UPLOAD_CHUNKS = (int) Math.min(Integer.MAX_VALUE, MEMORY_LIMIT / BinaryFrame.CHUNK_SIZE);
+
+    /**
+     * A connection the blob is streamed to
+     */
+    public interface Recipient {
+        void sendFrame(BinaryFrame frame) throws IOException;
+
+        /**
+         * Check whether the recipient's outbound queue is backlogged; streaming pauses until it drains
+         */
+        boolean isCongested();
+
+        /**
+         * Run an action once the outbound queue has drained or the connection closed
+         */
+        void whenDrained(Runnable action);
+
+        boolean isClosed();
+    }
+
+    /**
+     * An upload the sender offered, collected from its first chunk on even when addressed to one user
+     */
+    private static final class Offer {
+        private final String sender;
+        private final long offeredAt = System.currentTimeMillis();
+
+        private Offer(String sender) {
+            this.sender = sender;
+        }
+    }
+
+    /**
+     * An upload being collected, one slot per chunk
+     */
+    public static final class Upload {
+        private final String key;
+        private final String sender;
+        private final BinaryFrame[] chunks;
+        private final int maxChunkBytes; // Encoded size of a chunk with a full payload; larger ones drop the upload
+        private final long reserved; // Bytes counted against MEMORY_LIMIT until every stream finished
+        private int received = 0; // Guarded by this
+        private volatile long lastSeen = System.currentTimeMillis();
+
+        private Upload(String key, String sender, int totalChunks, int maxChunkBytes, long reserved) {
+            this.key = key;
+            this.sender = sender;
+            this.chunks = new BinaryFrame[totalChunks];
+            this.maxChunkBytes = maxChunkBytes;
+            this.reserved = reserved;
+        }
+
+        private synchronized void add(BinaryFrame frame) {
+            lastSeen = System.currentTimeMillis();
+            if (chunks[frame.chunkIndex] == null) {
+                chunks[frame.chunkIndex] = frame;
+                received++;
+            }
+        }
+
+        public synchronized boolean isComplete() {
+            return received == chunks.length;
+        }
+    }
+
+    // Inner class for one recipient's position in a blob
+    private final class Stream implements Runnable {
+        private final MediaBlob blob;
+        private final Recipient recipient;
+        private final Runnable onDone;
+        private int next = 0; // Guarded by this
+
+        Stream(MediaBlob blob, Recipient recipient, Runnable onDone) {
+            this.blob = blob;
+            this.recipient = recipient;
+            this.onDone = onDone;
+        }
+
+        /**
+         * Send chunks until the blob is done or the recipient backs up; then continue once it drained
+         */
+        @Override
+        public synchronized void run() {
+            while (next < blob.getChunkCount()) {
+                if (recipient.isClosed()) {
+                    break;
+                }
+                try {
+                    recipient.sendFrame(blob.getChunk(next++));
+                } catch (IOException e) {
+                    break;
+                }
+                if (next < blob.getChunkCount() && recipient.isCongested()) {
+                    recipient.whenDrained(this);
+                    return;
+                }
+            }
+            if (next != Integer.MAX_VALUE) {
+                next = Integer.MAX_VALUE; // Also stops a re-entrant run from finishing twice
+                activeStreams.decrementAndGet();
+                onDone.run();
+            }
+        }
+    }
+
+    private final ConcurrentHashMap<String, Upload> uploads = new ConcurrentHashMap<>();
+    private final ConcurrentHashMap<String, Offer> expected = new ConcurrentHashMap<>(); // Offered uploads, by key
+    private final AtomicLong bufferedBytes = new AtomicLong();
+    private final AtomicInteger activeStreams = new AtomicInteger();
+
+    /**
+     * Collect a chunk of a media upload addressed to many recipients. An upload is only taken on
+     * from its first chunk, so a transfer is never split between the two relay paths.
+     * @return the upload, or null when the caller must relay the chunk itself (no room, or the
+     *         upload started on the direct path)
+     */
+    public Upload collect(BinaryFrame frame) throws IOException {
+        String key = frame.sender + "_" + frame.sessionId;
+        Upload upload = uploads.get(key);
+        if (upload == null) {
+            if (frame.chunkIndex != 0 || frame.totalChunks <= 0) {
+                return null;
+            }
+            expected.remove(key);
+            expireStalled();
+            if (frame.totalChunks > MAX_UPLOAD_CHUNKS) {
+                return null;
+            }
+            // Reserve for full chunks up front: the first one says nothing about the size of the rest
+            int maxChunkBytes = frame.getData().length - frame.payloadLength + BinaryFrame.CHUNK_SIZE;
+            long reserved = (long) maxChunkBytes * frame.totalChunks;
+            if (bufferedBytes.addAndGet(reserved) > MEMORY_LIMIT) {
+                bufferedBytes.addAndGet(-reserved);
+                return null;
+            }
+            upload = new Upload(key, frame.sender, frame.totalChunks, maxChunkBytes, reserved);
+            uploads.put(key, upload);
+        }
+        if (frame.chunkIndex < 0 || frame.chunkIndex >= upload.chunks.length) {
+            throw new IOException("Chunk " + frame.chunkIndex + " out of range for " + upload.chunks.length + " chunks");
+        }
+        byte[] data = frame.getData(); // Frames parsed from text chunks are encoded once, here
+        if (data.length > upload.maxChunkBytes) {
+            if (uploads.remove(upload.key, upload)) {
+                bufferedBytes.addAndGet(-upload.reserved);
+            }
+            throw new IOException("Chunk of " + data.length + " bytes is larger than reserved, dropping the upload");
+        }
+        upload.add(frame);
+        return upload;
+    }
+
+    /**
+     * Note that a sender offered an upload, so it is collected even when addressed to one user
+     * @param header the offer's resolved header
+     */
+    public void expect(BinaryFrame header) {
+        expected.put(header.sender + "_" + header.sessionId, new Offer(header.sender));
+    }
+
+    /**
+     * Check whether a chunk belongs to an offered upload, or one being collected
+     */
+    public boolean isExpected(BinaryFrame frame) {
+        if (expected.isEmpty() && uploads.isEmpty()) {
+            return false;
+        }
+        String key = frame.sender + "_" + frame.sessionId;
+        return expected.containsKey(key) || uploads.containsKey(key);
+    }
+
+    /**
+     * Turn a complete upload into its blob and stream it to every recipient
+     * @return the blob, or null if the upload was already delivered or dropped
+     */
+    public MediaBlob deliver(Upload upload, List<? extends Recipient> recipients) {
+        if (!uploads.remove(upload.key, upload)) {
+            return null;
+        }
+        MediaBlob blob = new MediaBlob(upload.chunks);
+        stream(blob, recipients, upload.reserved);
+        return blob;
+    }
+
+    /**
+     * Stream a stored blob to every recipient; its chunks count against MEMORY_LIMIT while streaming
+     * @return false, sending nothing, when there is no room
+     */
+    public boolean deliver(MediaBlob blob, List<? extends Recipient> recipients) {
+        long reserved = blob.getSize();
+        if (bufferedBytes.addAndGet(reserved) > MEMORY_LIMIT) {
+            bufferedBytes.addAndGet(-reserved);
+            return false;
+        }
+        stream(blob, recipients, reserved);
+        return true;
+    }
+
+    private void stream(MediaBlob blob, List<? extends Recipient> recipients, long reserved) {
+        AtomicInteger remaining = new AtomicInteger(recipients.size() + 1);
+        Runnable release = () -> {
+            if (remaining.decrementAndGet() == 0) {
+                bufferedBytes.addAndGet(-reserved);
+            }
+        };
+        activeStreams.addAndGet(recipients.size());
+        for (Recipient recipient : recipients) {
+            new Stream(blob, recipient, release).run();
+        }
+        release.run();
+    }
+
+    /**
+     * Drop the offered and incomplete uploads of a sender that disconnected
+     */
+    public void cancel(String sender) {
+        expected.values().removeIf(offer -> offer.sender.equals(sender));
+        uploads.values().removeIf(upload -> {
+            if (!upload.sender.equals(sender)) {
+                return false;
+            }
+            bufferedBytes.addAndGet(-upload.reserved);
+            return true;
+        });
+    }
+
+    public void clear() {
+        uploads.clear();
+        expected.clear();
+        bufferedBytes.set(0);
+    }
+
+    public int getUploads() {
+        return uploads.size();
+    }
+
+    /**
+     * Bytes held for uploads in progress and blobs still being streamed
+     */
+    public long getBufferedBytes() {
+        return bufferedBytes.get();
+    }
+
+    public int getActiveStreams() {
+        return activeStreams.get();
+    }
+
+    private void expireStalled() {
+        long cutoff = System.currentTimeMillis() - UPLOAD_TIMEOUT;
+        expected.values().removeIf(offer -> offer.offeredAt < cutoff);
+        uploads.values().removeIf(upload -> {
+            if (upload.lastSeen >= cutoff) {
+                return false;
+            }
+            bufferedBytes.addAndGet(-upload.reserved);
+            return true;
+        });
+    }
+}
@@ -0,0 +1,224 @@
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+
+/**
+ * OutboundQueue - Bounded queue of encoded messages for one client, drained by that client's writer
+ * A slow client only fills its own queue instead of blocking the sender and every recipient after it;
+ * what happens once the queue is full is decided by the OverflowPolicy
+ */
+public class OutboundQueue {
+    public static final long DEFAULT_CAPACITY = Long.getLong("chat.outboundQueueBytes", 4 * 1024 * 1024);
+    public static final long DRAIN_THRESHOLD = 256 * 1024; // Queued bytes at or below which the queue counts as drained
+    private static final long BLOCK_TIMEOUT = 10000; // ms a blocked sender waits before the client is treated as stuck
+
+    /**
+     * What to do with a message that does not fit in a full queue
+     */
+    public enum OverflowPolicy {
+        DROP_MEDIA("Drop media first"), // Drop media chunks (queued ones too, to make room for chat); disconnect if chat still does not fit
+        DISCONNECT("Disconnect slow client"), // Disconnect the client as soon as its queue is full
+        BLOCK("Block sender"); // Make the sending thread wait for room, disconnecting after BLOCK_TIMEOUT
+
+        private final String label;
+
+        OverflowPolicy(String label) {
+            this.label = label;
+        }
+
+        @Override
+        public String toString() {
+            return label;
+        }
+    }
+
+    // Inner class for one queued message
+    private static class Entry {
+        final byte[] bytes;
+        final boolean media;
+
+        Entry(byte[] bytes, boolean media) {
+            this.bytes = bytes;
+            this.media = media;
+        }
+    }
+
+    private final ArrayDeque<Entry> entries = new ArrayDeque<>();
+    private final long capacity;
+    private final OverflowPolicy policy;
+    private long queuedBytes = 0;
+    private long peakBytes = 0;
+    private long droppedMedia = 0;
+    private boolean closed = false;
+    private List<Runnable> drainActions; // Run once queuedBytes falls to DRAIN_THRESHOLD
+
+    public OutboundQueue(long capacity, OverflowPolicy policy) {
+        this.capacity = capacity;
+        this.policy = policy;
+    }
+
+    /**
+     * Queue a message, applying the overflow policy when it does not fit
+     * @param media true for media chunks, which DROP_MEDIA may discard
+     * @return false when the client cannot keep up and must be disconnected
+     */
+    public synchronized boolean offer(byte[] bytes, boolean media) throws InterruptedException {
+        if (closed) {
+            return true; // Writer is gone; the connection is being torn down already
+        }
+        if (queuedBytes + bytes.length > capacity && !makeRoom(bytes.length, media)) {
+            if (media && policy == OverflowPolicy.DROP_MEDIA) {
+                droppedMedia++;
+                return true;
+            }
+            return false;
+        }
+        if (closed) {
+            return true; // Closed while this sender was blocked
+        }
+        entries.addLast(new Entry(bytes, media));
+        queuedBytes += bytes.length;
+        peakBytes = Math.max(peakBytes, queuedBytes);
+        notifyAll();
+        return true;
+    }
+
+    private boolean makeRoom(int length, boolean media) throws InterruptedException {
+        switch (policy) {
+            case DROP_MEDIA:
+                if (media) {
+                    return false;
+                }
+                // Chat and control messages evict queued media chunks, oldest first
+                Iterator<Entry> iterator = entries.iterator();
+                while (queuedBytes + length > capacity && iterator.hasNext()) {
+                    Entry entry = iterator.next();
+                    if (entry.media) {
+                        iterator.remove();
+                        queuedBytes -= entry.bytes.length;
+                        droppedMedia++;
+                    }
+                }
+                return queuedBytes + length <= capacity;
+            case BLOCK:
+                long deadline = System.currentTimeMillis() + BLOCK_TIMEOUT;
+                while (!closed && queuedBytes + length > capacity && queuedBytes > 0) {
+                    long remaining = deadline - System.currentTimeMillis();
+                    if (remaining <= 0) {
+                        return false;
+                    }
+                    wait(remaining);
+                }
+                return true;
+            default:
+                return false;
+        }
+    }
+
+    /**
+     * Take the next message for the writer, blocking while the queue is empty
+     * @return the message bytes, or null once the queue is closed
+     */
+    public byte[] take() throws InterruptedException {
+        byte[] bytes;
+        List<Runnable> actions = null;
+        synchronized (this) {
+            while (entries.isEmpty() && !closed) {
+                wait();
+            }
+            if (closed) {
+                return null;
+            }
+            bytes = entries.removeFirst().bytes;
+            queuedBytes -= bytes.length;
+            notifyAll(); // Wake senders blocked on a full queue
+            if (drainActions != null && queuedBytes <= DRAIN_THRESHOLD) {
+                actions = drainActions;
+                drainActions = null;
+            }
+        }
+        runAll(actions);
+        return bytes;
+    }
+
+    public synchronized boolean isEmpty() {
+        return entries.isEmpty();
+    }
+
+    public synchronized boolean isClosed() {
+        return closed;
+    }
+
+    /**
+     * Check whether the queue holds more than highWatermark bytes, or still has not drained since it did
+     */
+    public synchronized boolean isBacklogged(long highWatermark) {
+        return drainActions != null || queuedBytes > highWatermark;
+    }
+
+    /**
+     * Run an action once the queue has drained to DRAIN_THRESHOLD, or the queue closed;
+     * runs immediately when it already has
+     */
+    public void whenDrained(Runnable action) {
+        synchronized (this) {
+            if (!closed && queuedBytes > DRAIN_THRESHOLD) {
+                if (drainActions == null) {
+                    drainActions = new ArrayList<>();
+                }
+                drainActions.add(action);
+                return;
+            }
+        }
+        action.run();
+    }
+
+    /**
+     * Discard everything still queued and release the writer and any blocked senders
+     */
+    public void close() {
+        List<Runnable> actions;
+        synchronized (this) {
+            closed = true;
+            entries.clear();
+            queuedBytes = 0;
+            actions = drainActions;
+            drainActions = null;
+            notifyAll();
+        }
+        runAll(actions);
+    }
+
+    public synchronized long getQueuedBytes() {
+        return queuedBytes;
+    }
+
+    public synchronized int getQueuedMessages() {
+        return entries.size();
+    }
+
+    public synchronized long getPeakBytes() {
+        return peakBytes;
+    }
+
+    public synchronized long getDroppedMedia() {
+        return droppedMedia;
+    }
+
+    public long getCapacity() {
+        return capacity;
+    }
+
+    public OverflowPolicy getPolicy() {
+        return policy;
+    }
+
+    private static void runAll(List<Runnable> actions) {
+        if (actions != null) {
+            for (Runnable action : actions) {
+                action.run();
+            }
+        }
+    }
+}
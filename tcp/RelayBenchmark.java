@@ -0,0 +1,131 @@
+import java.io.*;
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+import java.util.Base64;
+
+/**
+ * RelayBenchmark - Per-chunk relay cost of the TCPServer media paths at 1, 10 and 100 recipients
+ * Compares the original text relay (decode the line, split it, re-encode it through a PrintWriter
+ * per recipient) with the header-only relay that writes one shared byte array to every recipient
+ *
+ * Usage: java RelayBenchmark [payloadBytes] [iterations]
+ */
+public class RelayBenchmark {
+    private static final int[] RECIPIENTS = {1, 10, 100};
+    private static volatile long sink; // Keeps results observable so the JIT cannot drop the work
+
+    public static void main(String[] args) throws Exception {
+        int payloadBytes = args.length > 0 ? Integer.parseInt(args[0]) : BinaryFrame.CHUNK_SIZE;
+        int iterations = args.length > 1 ? Integer.parseInt(args[1]) : 20000;
+
+        byte[] payload = new byte[payloadBytes];
+        for (int i = 0; i < payload.length; i++) {
+            payload[i] = (byte) i;
+        }
+        byte[] line = ("IMGCHUNK|SESSION:18c2f3a4b5d|CHUNK:3|TOTAL:10|FROM:alice|DATA:"
+                + Base64.getEncoder().encodeToString(payload) + "\n").getBytes();
+        byte[] frame = BinaryFrame.encode(BinaryFrame.TYPE_IMAGE, 0x18c2f3a4b5dL, 3, 10,
+                "alice", null, null, payload, 0, payload.length);
+
+        System.out.println("=== Relay benchmark (" + payloadBytes + " byte chunks, " + iterations + " iterations) ===");
+        System.out.printf("%-34s %10s %14s %16s%n", "Path", "Recipients", "ns/chunk", "alloc bytes/chunk");
+        for (int recipients : RECIPIENTS) {
+            int rounds = Math.max(100, iterations / recipients);
+            report("text line -> PrintWriter (before)", recipients, rounds, () -> relayAsString(line, recipients));
+            report("text line -> shared bytes", recipients, rounds, () -> relayLegacyBytes(line, recipients));
+            report("binary frame -> shared bytes", recipients, rounds, () -> relayFrame(frame, recipients));
+        }
+    }
+
+    private interface Relay {
+        void run() throws IOException;
+    }
+
+    private static void report(String name, int recipients, int rounds, Relay relay) throws IOException {
+        // Warm up, then measure
+        for (int i = 0; i < rounds; i++) {
+            relay.run();
+        }
+        long allocBefore = allocatedBytes();
+        long start = System.nanoTime();
+        for (int i = 0; i < rounds; i++) {
+            relay.run();
+        }
+        long elapsed = System.nanoTime() - start;
+        long allocated = allocatedBytes() - allocBefore;
+        System.out.printf("%-34s %10d %14d %16s%n", name, recipients, elapsed / rounds,
+                allocBefore < 0 ? "n/a" : String.valueOf(allocated / rounds));
+    }
+
+    /**
+     * The original path: readLine decodes the line, the handler splits it and every recipient's
+     * PrintWriter encodes it again
+     */
+    private static void relayAsString(byte[] line, int recipients) {
+        String message = new String(line, 0, line.length - 1);
+        String sender = null;
+        for (String part : message.split("\\|")) {
+            if (part.startsWith("FROM:")) {
+                sender = part.substring(5);
+            }
+        }
+        CountingStream counter = new CountingStream();
+        for (int i = 0; i < recipients; i++) {
+            PrintWriter out = new PrintWriter(counter, true);
+            out.println(message);
+        }
+        sink += counter.count + sender.length();
+    }
+
+    /**
+     * The header-only path for text chunks: legacy recipients get the received line bytes
+     */
+    private static void relayLegacyBytes(byte[] line, int recipients) throws IOException {
+        BinaryFrame frame = BinaryFrame.parseLegacyChunk(line);
+        CountingStream counter = new CountingStream();
+        for (int i = 0; i < recipients; i++) {
+            counter.write(frame.toLegacyBytes());
+        }
+        sink += counter.count + frame.sender.length();
+    }
+
+    /**
+     * The header-only path for binary frames: binary recipients get the received frame bytes
+     */
+    private static void relayFrame(byte[] data, int recipients) throws IOException {
+        BinaryFrame frame = BinaryFrame.parse(data, 0);
+        CountingStream counter = new CountingStream();
+        for (int i = 0; i < recipients; i++) {
+            counter.write(frame.getData());
+        }
+        sink += counter.count + frame.sender.length();
+    }
+
+    /**
+     * Bytes allocated by this thread so far, or -1 when the JVM cannot report it
+     */
+    private static long allocatedBytes() {
+        ThreadMXBean threads = ManagementFactory.getThreadMXBean();
+        if (threads instanceof com.sun.management.ThreadMXBean) {
+            return ((com.sun.management.ThreadMXBean) threads).getThreadAllocatedBytes(Thread.currentThread().getId());
+        }
+        return -1;
+    }
+
+    /**
+     * Socket stand-in that only counts the bytes written to it
+     */
+    private static class CountingStream extends OutputStream {
+        long count;
+
+        @Override
+        public void write(int b) {
+            count++;
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) {
+            count += len;
+        }
+    }
+}
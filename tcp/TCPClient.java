@@ -10,10 +10,27 @@ import java.nio.file.Files;
 import java.text.SimpleDateFormat;
 import java.util.*;
 import java.util.Base64;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicLong;
 
 public class TCPClient extends JFrame {
     private static final String DEFAULT_SERVER = "localhost";
     private static final int DEFAULT_PORT = 9876;
+    // Run receive/heartbeat loops on virtual threads (-Dchat.virtualThreads=false for platform threads)
+    private static final boolean USE_VIRTUAL_THREADS = Boolean.parseBoolean(System.getProperty("chat.virtualThreads", "true"));
+    // Heartbeat interval to ask the server for; it answers with the interval and timeout it granted
+    private static final long HEARTBEAT_INTERVAL = Long.getLong("chat.heartbeatMs", 30000);
+    // Longest a small frame waits in the output buffer for more frames to share one write with
+    private static final long BATCH_LINGER_MILLIS = Long.getLong("chat.batchLingerMillis", 2);
+    private static final long TRANSFER_CHECK_INTERVAL = 5000; // ms between sweeps for stalled incoming transfers
+    private static final int MAX_UNRESOLVED_FRAMES = 256; // Frames held for the user list, about 3MB of chunks
 
     private JTextPane messageArea;
     private JTextField messageField;
@@ -22,15 +39,24 @@ public class TCPClient extends JFrame {
     private JLabel statusLabel;
     private String serverIp = DEFAULT_SERVER;
     private Socket socket;
-    private BufferedReader in;
-    private PrintWriter out;
+    private DataInputStream in;
+    private DataOutputStream out; // Binary framing (BinaryFrame), negotiated by the preamble at connect
+    private boolean flushPending; // Frames are buffered in out but not flushed yet; guarded by out
     private boolean isConnected = false;
-    private Thread receiveThread;
-    private Thread heartbeatThread;
+    private ExecutorService ioExecutor;
+    private Future<?> receiveTask;
+    private Future<?> heartbeatTask;
+    private Future<?> flushTask;
+    private Future<?> transferCheckTask;
+    private volatile long heartbeatInterval = HEARTBEAT_INTERVAL;
+    private volatile long lastSent; // When anything was last written to the server, for idle-only heartbeats
     private String username;
     private DefaultListModel<UserStatus> userListModel;
     private JList<UserStatus> userList;
     private String selectedUser = "All";
+    private volatile long presenceVersion = -1; // Version of the last applied user list state
+    private volatile UserIds userIds = new UserIds(); // Ids the server assigned to usernames, from presence messages
+    private final List<BinaryFrame> unresolvedFrames = new ArrayList<>(); // From users not known yet; receive thread only
 
     // Voice recording
     private VoiceRecorder voiceRecorder;
@@ -56,145 +82,18 @@ public class TCPClient extends JFrame {
     private static final int MAX_IMAGE_HEIGHT = 150;
     private static final int MAX_IMAGE_SIZE = 50000; // 50KB max
 
-    // Image chunk reassembly
-    private Map<String, ImageChunkBuffer> imageChunks = new HashMap<>();
+    // Image chunk reassembly; each map is locked by addChunk and the stalled-transfer sweep
+    private final Map<String, ChunkAssembler> imageChunks = new HashMap<>();
 
     // File chunk reassembly
-    private Map<String, FileChunkBuffer> fileChunks = new HashMap<>();
+    private final Map<String, ChunkAssembler> fileChunks = new HashMap<>();
+    private final Map<Long, SendWindow> sendWindows = new ConcurrentHashMap<>(); // Outgoing transfers by session id
+    private final AtomicLong lastSessionId = new AtomicLong();
+    private final Map<Long, CompletableFuture<Boolean>> offers = new ConcurrentHashMap<>(); // Offers awaiting an answer, by session id
+    private volatile boolean offersAnswered = true; // Cleared when the server ignores an offer (no blob store)
 
     // Voice chunk reassembly
-    private Map<String, VoiceChunkBuffer> voiceChunks = new HashMap<>();
-
-    // Inner class for buffering voice chunks
-    private static class VoiceChunkBuffer {
-        String sender;
-        String recipient;
-        String[] chunks;
-        boolean[] received;
-        long createdTime;
-
-        VoiceChunkBuffer(int totalChunks, String sender, String recipient) {
-            this.sender = sender;
-            this.recipient = recipient;
-            this.chunks = new String[totalChunks];
-            this.received = new boolean[totalChunks];
-            this.createdTime = System.currentTimeMillis();
-        }
-
-        void setChunk(int index, String data) {
-            if (index < chunks.length) {
-                chunks[index] = data;
-                received[index] = true;
-            }
-        }
-
-        boolean isComplete() {
-            for (boolean r : received) {
-                if (!r) return false;
-            }
-            return true;
-        }
-
-        String getCompleteData() {
-            StringBuilder sb = new StringBuilder();
-            for (String chunk : chunks) {
-                sb.append(chunk);
-            }
-            return sb.toString();
-        }
-
-        boolean isExpired() {
-            return System.currentTimeMillis() - createdTime > 120000; // 120 second timeout for voice
-        }
-    }
-
-    // Inner class for buffering file chunks
-    private static class FileChunkBuffer {
-        String sender;
-        String recipient;
-        String filename;
-        String[] chunks;
-        boolean[] received;
-        long createdTime;
-
-        FileChunkBuffer(int totalChunks, String sender, String recipient, String filename) {
-            this.sender = sender;
-            this.recipient = recipient;
-            this.filename = filename;
-            this.chunks = new String[totalChunks];
-            this.received = new boolean[totalChunks];
-            this.createdTime = System.currentTimeMillis();
-        }
-
-        void setChunk(int index, String data) {
-            if (index < chunks.length) {
-                chunks[index] = data;
-                received[index] = true;
-            }
-        }
-
-        boolean isComplete() {
-            for (boolean r : received) {
-                if (!r) return false;
-            }
-            return true;
-        }
-
-        String getCompleteData() {
-            StringBuilder sb = new StringBuilder();
-            for (String chunk : chunks) {
-                sb.append(chunk);
-            }
-            return sb.toString();
-        }
-
-        boolean isExpired() {
-            return System.currentTimeMillis() - createdTime > 60000; // 60 second timeout
-        }
-    }
-
-    // Inner class for buffering image chunks
-    private static class ImageChunkBuffer {
-        String sender;
-        String recipient;
-        String[] chunks;
-        boolean[] received;
-        long createdTime;
-
-        ImageChunkBuffer(int totalChunks, String sender, String recipient) {
-            this.sender = sender;
-            this.recipient = recipient;
-            this.chunks = new String[totalChunks];
-            this.received = new boolean[totalChunks];
-            this.createdTime = System.currentTimeMillis();
-        }
-
-        void setChunk(int index, String data) {
-            if (index < chunks.length) {
-                chunks[index] = data;
-                received[index] = true;
-            }
-        }
-
-        boolean isComplete() {
-            for (boolean r : received) {
-                if (!r) return false;
-            }
-            return true;
-        }
-
-        String getCompleteData() {
-            StringBuilder sb = new StringBuilder();
-            for (String chunk : chunks) {
-                sb.append(chunk);
-            }
-            return sb.toString();
-        }
-
-        boolean isExpired() {
-            return System.currentTimeMillis() - createdTime > 30000; // 30 second timeout
-        }
-    }
+    private final Map<String, ChunkAssembler> voiceChunks = new HashMap<>();
 
     public TCPClient() {
         setTitle("TCP Client");
@@ -370,7 +269,8 @@ public class TCPClient extends JFrame {
         // Send disconnect message to server before closing connection
         if (isConnected && username != null && !username.isEmpty()) {
             try {
-                out.println("DISCONNECT:" + username);
+                sendLine("DISCONNECT:" + username);
+                flushOutput();
             } catch (Exception e) {
                 appendMessage("Error sending disconnect message: " + e.getMessage() + "\n");
             }
@@ -386,21 +286,26 @@ public class TCPClient extends JFrame {
             e.printStackTrace();
         }
 
-        if (receiveThread != null && receiveThread.isAlive()) {
-            try {
-                receiveThread.join(1000);
-            } catch (InterruptedException e) {
-                e.printStackTrace();
-            }
+        if (heartbeatTask != null) {
+            heartbeatTask.cancel(true);
+        }
+        if (flushTask != null) {
+            flushTask.cancel(true);
         }
-        if (heartbeatThread != null && heartbeatThread.isAlive()) {
-            heartbeatThread.interrupt();
+        if (transferCheckTask != null) {
+            transferCheckTask.cancel(true);
+        }
+        if (receiveTask != null && !receiveTask.isDone()) {
             try {
-                heartbeatThread.join(1000);
-            } catch (InterruptedException e) {
+                receiveTask.get(1, TimeUnit.SECONDS);
+            } catch (InterruptedException | ExecutionException | TimeoutException e) {
                 e.printStackTrace();
             }
         }
+        if (ioExecutor != null) {
+            ioExecutor.shutdown();
+            ioExecutor = null;
+        }
 
         messageField.setEnabled(false);
         sendButton.setEnabled(false);
@@ -417,6 +322,18 @@ public class TCPClient extends JFrame {
         appendMessage("\n=== Disconnected ===\n");
     }
 
+    /**
+     * Heartbeat interval from the server's KEEPALIVE:interval|timeout, or the default if it is malformed
+     */
+    private static long grantedInterval(String response) {
+        try {
+            long interval = Long.parseLong(response.substring(10).split("\\|")[0]);
+            return interval > 0 ? interval : HEARTBEAT_INTERVAL;
+        } catch (NumberFormatException e) {
+            return HEARTBEAT_INTERVAL;
+        }
+    }
+
     private void connect() {
         // Get server IP from the text field
         serverIp = serverIpField.getText().trim();
@@ -432,11 +349,18 @@ public class TCPClient extends JFrame {
             return;
         }
         username = username.trim();
+        presenceVersion = -1;
+        userIds = new UserIds();
+        unresolvedFrames.clear();
+        offersAnswered = true;
 
         try {
             socket = new Socket(serverIp, DEFAULT_PORT);
-            in = new BufferedReader(new InputStreamReader(socket.getInputStream()));
-            out = new PrintWriter(socket.getOutputStream(), true);
+            KeepAlive.configure(socket);
+            in = new DataInputStream(new BufferedInputStream(socket.getInputStream()));
+            out = new DataOutputStream(new BufferedOutputStream(socket.getOutputStream()));
+            flushPending = false;
+            BinaryFrame.writePreamble(out);
             isConnected = true;
 
             messageField.setEnabled(true);
@@ -459,16 +383,50 @@ public class TCPClient extends JFrame {
             appendMessage("=== Connected as '" + username + "' to " + serverIp + ":" + DEFAULT_PORT + " ===\n\n");
 
             // Send connection message to server immediately
-            out.println("CONNECT:" + username);
+            heartbeatInterval = HEARTBEAT_INTERVAL;
+            sendLine("CONNECT:" + username + "|KEEPALIVE:" + HEARTBEAT_INTERVAL);
+
+            ioExecutor = VirtualThreads.newPerTaskExecutor("tcp-client-io-", USE_VIRTUAL_THREADS);
+
+            // Flush buffered frames BATCH_LINGER_MILLIS after the first of them was written, so a
+            // burst of small frames (chat, NACKs, offers, the last chunk of a transfer) leaves in
+            // one write and segment; frames larger than the buffer are written through at once
+            DataOutputStream stream = out;
+            flushTask = ioExecutor.submit(() -> {
+                try {
+                    synchronized (stream) {
+                        while (isConnected) {
+                            if (!flushPending) {
+                                stream.wait();
+                                continue;
+                            }
+                            stream.wait(BATCH_LINGER_MILLIS);
+                            flushPending = false;
+                            stream.flush();
+                        }
+                    }
+                } catch (InterruptedException e) {
+                    // Disconnecting; disconnect() flushes what is left
+                } catch (IOException e) {
+                    if (isConnected) {
+                        appendMessage("Error sending: " + e.getMessage() + "\n");
+                    }
+                }
+            });
 
-            // Start heartbeat thread to keep connection alive
-            heartbeatThread = new Thread(() -> {
+            // Start heartbeat thread to keep connection alive; any frame sent counts as a sign of
+            // life, so a heartbeat only goes out after a full negotiated interval without traffic
+            heartbeatTask = ioExecutor.submit(() -> {
                 while (isConnected) {
                     try {
-                        Thread.sleep(30000); // Send heartbeat every 30 seconds
+                        long idle = System.currentTimeMillis() - lastSent;
+                        if (idle < heartbeatInterval) {
+                            Thread.sleep(heartbeatInterval - idle);
+                            continue;
+                        }
 
                         if (isConnected) {
-                            out.println("HEARTBEAT:" + username);
+                            sendLine("HEARTBEAT:" + username);
                         }
                     } catch (InterruptedException e) {
                         if (isConnected) {
@@ -478,13 +436,38 @@ public class TCPClient extends JFrame {
                     }
                 }
             });
-            heartbeatThread.start();
+
+            // Drop incoming transfers that stopped arriving, e.g. chunks the server dropped for a
+            // full outbound queue: TCP has no NACKs, so they would otherwise be held until exit
+            transferCheckTask = ioExecutor.submit(() -> {
+                while (isConnected) {
+                    try {
+                        Thread.sleep(TRANSFER_CHECK_INTERVAL);
+                    } catch (InterruptedException e) {
+                        break;
+                    }
+                    long now = System.currentTimeMillis();
+                    expireIncompleteTransfers(imageChunks, "image", now, 30000); // 30 seconds without a chunk
+                    expireIncompleteTransfers(fileChunks, "file", now, 60000);
+                    expireIncompleteTransfers(voiceChunks, "voice", now, 120000);
+                }
+            });
 
             // Start receive thread
-            receiveThread = new Thread(() -> {
+            Socket connection = socket;
+            receiveTask = ioExecutor.submit(() -> {
                 try {
-                    String response;
-                    while ((response = in.readLine()) != null) {
+                    byte[] data;
+                    while ((data = BinaryFrame.readFrame(in)) != null) {
+                        BinaryFrame frame = BinaryFrame.parse(data, 0);
+
+                        // Media chunks arrive as raw binary frames
+                        if (!frame.isText()) {
+                            handleMediaFrame(frame);
+                            continue;
+                        }
+
+                        String response = frame.getText();
                         // Check if this is a voice chunk
                         if (response.startsWith("VOICECHUNK|")) {
                             handleVoiceChunk(response);
@@ -501,9 +484,36 @@ public class TCPClient extends JFrame {
                         else if (response.startsWith("USERLIST:")) {
                             String userListStr = response.substring(9);
                             updateUserList(userListStr);
+                        }
+                        // Incremental presence updates: USERJOIN:version:user / USERLEAVE:version:user
+                        else if (response.startsWith("USERJOIN:") || response.startsWith("USERLEAVE:")) {
+                            handlePresenceDelta(response);
+                        }
+                        // Heartbeat parameters granted by the server: KEEPALIVE:interval|timeout
+                        else if (response.startsWith("KEEPALIVE:")) {
+                            heartbeatInterval = grantedInterval(response);
+                        }
+                        // Answer to a content offer: OFFER:HAVE|SESSION:id / OFFER:SEND|SESSION:id
+                        else if (response.startsWith("OFFER:")) {
+                            CompletableFuture<Boolean> answer = offers.get(BlobOffer.answeredSession(response));
+                            if (answer != null) {
+                                answer.complete(response.startsWith(BlobOffer.HAVE));
+                            }
+                        }
+                        // Room membership confirmed: ROOMJOINED:#room|member1,member2,... / ROOMLEFT:#room
+                        else if (response.startsWith("ROOMJOINED:") || response.startsWith("ROOMLEFT:")) {
+                            handleRoomMembership(response);
+                        } else if (response.startsWith("ROOM:")) {
+                            // Room message: ROOM:#room|FROM:sender|MSG:message
+                            String[] parts = response.substring(5).split("\\|", 3);
+                            if (parts.length >= 3) {
+                                String timestamp = new SimpleDateFormat("HH:mm:ss").format(new Date());
+                                appendMessage("[" + timestamp + "] [" + parts[0] + "] " + parts[1].substring(5) + ":");
+                                appendMessage(parts[2].substring(4) + "\n\n");
+                            }
                         } else if (response.startsWith("PRIVATE:")) {
                             // Private message: PRIVATE:sender|MSG:message
-                            String[] parts = response.substring(8).split("\\|");
+                            String[] parts = response.substring(8).split("\\|", 2);
                             if (parts.length >= 2) {
                                 String sender = parts[0];
                                 String msgContent = parts[1].substring(4);
@@ -521,22 +531,27 @@ public class TCPClient extends JFrame {
                     // Socket closed, exit gracefully
                     if (isConnected) {
                         appendMessage("Connection lost: Socket closed\n");
-                        // Trigger disconnect on UI thread
-                        SwingUtilities.invokeLater(() -> {
-                            disconnect();
-                            JOptionPane.showMessageDialog(TCPClient.this,
-                                    "Connection lost. Please reconnect.",
-                                    "Connection Error",
-                                    JOptionPane.WARNING_MESSAGE);
-                        });
                     }
-                } catch (IOException e) {
+                } catch (IOException | RuntimeException e) {
                     if (isConnected) {
                         appendMessage("Error receiving: " + e.getMessage() + "\n");
                     }
                 }
+                // However the loop ended (closed, end of stream, bad frame), nothing arrives any more
+                if (isConnected) {
+                    // Trigger disconnect on UI thread, unless the user already reconnected
+                    SwingUtilities.invokeLater(() -> {
+                        if (!isConnected || socket != connection) {
+                            return;
+                        }
+                        disconnect();
+                        JOptionPane.showMessageDialog(TCPClient.this,
+                                "Connection lost. Please reconnect.",
+                                "Connection Error",
+                                JOptionPane.WARNING_MESSAGE);
+                    });
+                }
             });
-            receiveThread.start();
 
         } catch (IOException e) {
             JOptionPane.showMessageDialog(this, "Could not connect: " + e.getMessage(), "Error", JOptionPane.ERROR_MESSAGE);
@@ -557,18 +572,26 @@ public class TCPClient extends JFrame {
         String formattedMessage;
         String timestamp = new SimpleDateFormat("HH:mm:ss").format(new Date());
 
-        // Check if a user is selected for private messaging
+        // Room commands: /join #room, /leave #room
+        String roomCommand = roomCommand(message);
+        if (roomCommand != null) {
+            sendLine(roomCommand);
+            messageField.setText("");
+            return;
+        }
+
+        // Check if a user is selected for private messaging (or a room)
         if (selectedUser != null && !selectedUser.isEmpty() && !selectedUser.equals("All")) {
             // Format for private message: TO:recipient|FROM:sender|MSG:message
             formattedMessage = "TO:" + selectedUser + "|FROM:" + username + "|MSG:" + message;
-            appendMessage("[" + timestamp + "] You (private to " + selectedUser + "):");
+            appendMessage("[" + timestamp + "] You (" + privacy(selectedUser) + "to " + selectedUser + "):");
         } else {
             // Format for broadcast: FROM:sender|MSG:message
             formattedMessage = "FROM:" + username + "|MSG:" + message;
             appendMessage("[" + timestamp + "] You (broadcast to all):");
         }
 
-        out.println(formattedMessage);
+        sendLine(formattedMessage);
         appendMessage(message + "\n\n");
         messageField.setText("");
     }
@@ -613,8 +636,8 @@ public class TCPClient extends JFrame {
                 return;
             }
 
-            // Send image
-            sendImageData(compressedImageData);
+            // Send image from a background thread, the flow-control window may block
+            startTransfer(() -> sendImageData(compressedImageData));
 
         } catch (IOException e) {
             JOptionPane.showMessageDialog(this, "Error reading image: " + e.getMessage(), "Error", JOptionPane.ERROR_MESSAGE);
@@ -656,16 +679,14 @@ public class TCPClient extends JFrame {
         try {
             String timestamp = new SimpleDateFormat("HH:mm:ss").format(new Date());
 
-            // Encode image to base64
-            String imageBase64 = Base64.getEncoder().encodeToString(imageData);
-
-            // Split into chunks (500 bytes per chunk)
-            int chunkSize = 500;
-            int totalChunks = (imageBase64.length() + chunkSize - 1) / chunkSize;
-            String sessionId = Long.toHexString(System.currentTimeMillis()); // Unique ID for this transfer
+            // Split raw bytes into binary frame chunks
+            int chunkSize = BinaryFrame.CHUNK_SIZE;
+            int totalChunks = (imageData.length + chunkSize - 1) / chunkSize;
+            long sessionId = nextSessionId(); // Unique ID for this transfer
+            String recipient = (selectedUser != null && !selectedUser.isEmpty() && !selectedUser.equals("All")) ? selectedUser : null;
 
             if (selectedUser != null && !selectedUser.isEmpty() && !selectedUser.equals("All")) {
-                appendMessage("[" + timestamp + "] You (private image to " + selectedUser + ") [" + imageData.length + " bytes, " + totalChunks + " chunks]:\n");
+                appendMessage("[" + timestamp + "] You (" + privacy(selectedUser) + "image to " + selectedUser + ") [" + imageData.length + " bytes, " + totalChunks + " chunks]:\n");
             } else {
                 appendMessage("[" + timestamp + "] You (broadcast image to all) [" + imageData.length + " bytes, " + totalChunks + " chunks]:\n");
             }
@@ -759,26 +780,29 @@ public class TCPClient extends JFrame {
                 appendMessage("Error displaying sent image: " + e.getMessage() + "\n");
             }
 
-            // Send each chunk
-            for (int i = 0; i < totalChunks; i++) {
-                int start = i * chunkSize;
-                int end = Math.min(start + chunkSize, imageBase64.length());
-                String chunk = imageBase64.substring(start, end);
+            // Offer the content first: nothing is uploaded when the server already has it
+            if (offerContent(BinaryFrame.TYPE_IMAGE, sessionId, FileTransfer.sha256(imageData), imageData.length, recipient, null)) {
+                appendMessage("[Image sent from the server's copy, nothing uploaded]\n\n");
+                return;
+            }
 
-                String formattedMessage;
-                if (selectedUser != null && !selectedUser.isEmpty() && !selectedUser.equals("All")) {
-                    formattedMessage = "IMGCHUNK|SESSION:" + sessionId + "|CHUNK:" + i + "|TOTAL:" + totalChunks + "|TO:" + selectedUser + "|FROM:" + username + "|DATA:" + chunk;
-                } else {
-                    formattedMessage = "IMGCHUNK|SESSION:" + sessionId + "|CHUNK:" + i + "|TOTAL:" + totalChunks + "|FROM:" + username + "|DATA:" + chunk;
+            // Send each chunk as the flow-control window allows
+            SendWindow window = openSendWindow(sessionId, totalChunks);
+            try {
+                for (int i = 0; i < totalChunks; i++) {
+                    int start = i * chunkSize;
+                    int length = Math.min(chunkSize, imageData.length - start);
+                    sendChunk(window, i, encodeChunk(BinaryFrame.TYPE_IMAGE, sessionId, i, totalChunks,
+                            recipient, null, imageData, start, length));
                 }
-
-                out.println(formattedMessage);
-
-                // Small delay between chunks to avoid network flooding
-                Thread.sleep(10);
+                window.awaitComplete();
+            } finally {
+                sendWindows.remove(sessionId);
             }
         } catch (InterruptedException e) {
-            JOptionPane.showMessageDialog(this, "Image transfer interrupted: " + e.getMessage(), "Error", JOptionPane.ERROR_MESSAGE);
+            showTransferError("Image transfer interrupted: " + e.getMessage());
+        } catch (IOException e) {
+            showTransferError("Error sending image: " + e.getMessage());
         }
     }
 
@@ -796,37 +820,34 @@ public class TCPClient extends JFrame {
         }
 
         File selectedFile = fileChooser.getSelectedFile();
-
-        // Read and send file
-        try {
-            byte[] fileData = FileTransfer.readFile(selectedFile);
-            sendFileData(selectedFile.getName(), fileData);
-
-        } catch (IOException e) {
-            JOptionPane.showMessageDialog(this, "Error reading file: " + e.getMessage(), "Error", JOptionPane.ERROR_MESSAGE);
+        if (selectedFile.length() > FileTransfer.MAX_STREAM_SIZE) {
+            JOptionPane.showMessageDialog(this, "File too large! Max size is " + FileTransfer.getFileSizeString(FileTransfer.MAX_STREAM_SIZE),
+                    "Error", JOptionPane.ERROR_MESSAGE);
+            return;
         }
+        String recipient = (selectedUser != null && !selectedUser.isEmpty() && !selectedUser.equals("All")) ? selectedUser : null;
+
+        // Stream the file from a background thread so large transfers do not block the UI
+        startTransfer(() -> sendFileData(selectedFile, recipient));
     }
 
-    private void sendFileData(String filename, byte[] fileData) {
+    /**
+     * Send a file chunk by chunk as it is read from disk; runs off the UI thread
+     */
+    private void sendFileData(File file, String recipient) {
+        String filename = file.getName();
         try {
             String timestamp = new SimpleDateFormat("HH:mm:ss").format(new Date());
+            long sessionId = nextSessionId(); // Unique ID for this transfer
 
-            // Encode file to base64
-            String fileBase64 = FileTransfer.encodeToBase64(fileData);
-
-            // Split into chunks (400 bytes per chunk)
-            int chunkSize = FileTransfer.CHUNK_SIZE;
-            int totalChunks = (fileBase64.length() + chunkSize - 1) / chunkSize;
-            String sessionId = Long.toHexString(System.currentTimeMillis()); // Unique ID for this transfer
-
-            if (selectedUser != null && !selectedUser.isEmpty() && !selectedUser.equals("All")) {
-                appendMessage("[" + timestamp + "] You (private file to " + selectedUser + "): \n");
+            if (recipient != null) {
+                appendMessage("[" + timestamp + "] You (" + privacy(recipient) + "file to " + recipient + "): \n");
             } else {
                 appendMessage("[" + timestamp + "] You (broadcast file to all): \n");
             }
 
             // Create and insert clickable file link for sent file
-            FileLink sentFileLink = new FileLink(filename, fileData);
+            FileLink sentFileLink = new FileLink(filename, file);
 
             SwingUtilities.invokeLater(() -> {
                 try {
@@ -840,30 +861,105 @@ public class TCPClient extends JFrame {
                 }
             });
 
-            // Send each chunk
-            for (int i = 0; i < totalChunks; i++) {
-                int start = i * chunkSize;
-                int end = Math.min(start + chunkSize, fileBase64.length());
-                String chunk = fileBase64.substring(start, end);
-
-                String formattedMessage;
-                if (selectedUser != null && !selectedUser.isEmpty() && !selectedUser.equals("All")) {
-                    formattedMessage = "FILECHUNK|SESSION:" + sessionId + "|CHUNK:" + i + "|TOTAL:" + totalChunks + "|FILENAME:" + filename + "|TO:" + selectedUser + "|FROM:" + username + "|DATA:" + chunk;
-                } else {
-                    formattedMessage = "FILECHUNK|SESSION:" + sessionId + "|CHUNK:" + i + "|TOTAL:" + totalChunks + "|FILENAME:" + filename + "|FROM:" + username + "|DATA:" + chunk;
-                }
-
-                out.println(formattedMessage);
+            // Offer files small enough for the server's blob store first
+            if (file.length() <= BlobOffer.MAX_SIZE && offerContent(BinaryFrame.TYPE_FILE, sessionId,
+                    FileTransfer.sha256(file), file.length(), recipient, filename)) {
+                appendMessage("[File sent from the server's copy, nothing uploaded]\n\n");
+                return;
+            }
 
-                // Small delay between chunks to avoid network flooding
-                Thread.sleep(10);
+            // Read and send one chunk-sized window at a time, as the flow-control window allows
+            SendWindow window = openSendWindow(sessionId, FileTransfer.chunkCount(file.length(), BinaryFrame.CHUNK_SIZE));
+            try {
+                FileTransfer.streamFile(file, BinaryFrame.CHUNK_SIZE, (index, totalChunks, data, length) ->
+                        sendChunk(window, index, encodeChunk(BinaryFrame.TYPE_FILE, sessionId, index, totalChunks,
+                                recipient, filename, data, 0, length)));
+                window.awaitComplete();
+            } finally {
+                sendWindows.remove(sessionId);
             }
 
             appendMessage("[File sent successfully]\n\n");
 
         } catch (InterruptedException e) {
-            JOptionPane.showMessageDialog(this, "File transfer interrupted: " + e.getMessage(), "Error", JOptionPane.ERROR_MESSAGE);
+            showTransferError("File transfer interrupted: " + e.getMessage());
+        } catch (IOException e) {
+            showTransferError("Error sending file: " + e.getMessage());
+        }
+    }
+
+    /**
+     * Encode one chunk of an outgoing transfer, addressed by user id once the server told us the ids
+     * of both ends, by username until then
+     * @param recipient null for broadcast
+     */
+    private byte[] encodeChunk(byte type, long sessionId, int index, int totalChunks, String recipient,
+                               String name, byte[] data, int offset, int length) {
+        UserIds ids = userIds;
+        int senderId = ids.idOf(username);
+        int recipientId = recipient != null ? ids.idOf(recipient) : UserIds.NONE;
+        if (senderId != UserIds.NONE && (recipient == null || recipientId != UserIds.NONE)) {
+            return BinaryFrame.encode(type, sessionId, index, totalChunks, senderId, recipientId, name, data, offset, length);
         }
+        return BinaryFrame.encode(type, sessionId, index, totalChunks, username, recipient, name, data, offset, length);
+    }
+
+    /**
+     * Send one chunk of a transfer, blocking while the flow-control window is full
+     */
+    private void sendChunk(SendWindow window, int index, byte[] frame) throws IOException, InterruptedException {
+        window.awaitSlot(index, frame);
+        sendFrame(frame);
+    }
+
+    /**
+     * Offer content to the server by its SHA-256 before uploading it (see BlobOffer). A server that
+     * leaves an offer unanswered has no blob store, so later transfers are uploaded without asking
+     * @return true when the server already has the content and delivers it itself
+     */
+    private boolean offerContent(byte type, long sessionId, String hash, long size, String recipient, String name)
+            throws IOException, InterruptedException {
+        if (!offersAnswered) {
+            return false;
+        }
+        CompletableFuture<Boolean> answer = new CompletableFuture<>();
+        offers.put(sessionId, answer);
+        try {
+            sendFrame(BinaryFrame.encodeText(BlobOffer.encode(type, sessionId, hash, size, name, recipient, username)));
+            return answer.get(BlobOffer.TIMEOUT, TimeUnit.MILLISECONDS);
+        } catch (TimeoutException e) {
+            offersAnswered = false;
+            return false;
+        } catch (ExecutionException e) {
+            return false; // Never completed exceptionally
+        } finally {
+            offers.remove(sessionId);
+        }
+    }
+
+    private SendWindow openSendWindow(long sessionId, int totalChunks) {
+        SendWindow window = new SendWindow(totalChunks, null); // TCP never loses chunks, nothing to resend
+        sendWindows.put(sessionId, window);
+        return window;
+    }
+
+    /**
+     * Session id for a new transfer, unique even when two transfers start in the same millisecond
+     */
+    private long nextSessionId() {
+        return lastSessionId.updateAndGet(last -> Math.max(last + 1, System.currentTimeMillis()));
+    }
+
+    /**
+     * Run a media transfer off the UI thread
+     */
+    private void startTransfer(Runnable transfer) {
+        ioExecutor.execute(transfer);
+    }
+
+    private void showTransferError(String message) {
+        SwingUtilities.invokeLater(() ->
+                JOptionPane.showMessageDialog(this, message, "Error", JOptionPane.ERROR_MESSAGE));
     }
 
     private void startVoiceRecording() {
@@ -904,7 +1000,7 @@ public class TCPClient extends JFrame {
 
             if (voiceData.length > 0) {
                 appendMessage("[Voice recording complete, sending...]\n");
-                sendVoiceData(voiceData);
+                startTransfer(() -> sendVoiceData(voiceData));
             } else {
                 appendMessage("[No audio recorded]\n");
             }
@@ -917,16 +1013,14 @@ public class TCPClient extends JFrame {
         try {
             String timestamp = new SimpleDateFormat("HH:mm:ss").format(new Date());
 
-            // Encode voice to base64
-            String voiceBase64 = Base64.getEncoder().encodeToString(voiceData);
-
-            // Split into chunks (400 bytes per chunk)
-            int chunkSize = 400;
-            int totalChunks = (voiceBase64.length() + chunkSize - 1) / chunkSize;
-            String sessionId = Long.toHexString(System.currentTimeMillis()); // Unique ID for this transfer
+            // Split raw bytes into binary frame chunks
+            int chunkSize = BinaryFrame.CHUNK_SIZE;
+            int totalChunks = (voiceData.length + chunkSize - 1) / chunkSize;
+            long sessionId = nextSessionId(); // Unique ID for this transfer
+            String recipient = (selectedUser != null && !selectedUser.isEmpty() && !selectedUser.equals("All")) ? selectedUser : null;
 
             if (selectedUser != null && !selectedUser.isEmpty() && !selectedUser.equals("All")) {
-                appendMessage("[" + timestamp + "] You (private voice to " + selectedUser + ") [" + voiceData.length + " bytes, " + totalChunks + " chunks]\n");
+                appendMessage("[" + timestamp + "] You (" + privacy(selectedUser) + "voice to " + selectedUser + ") [" + voiceData.length + " bytes, " + totalChunks + " chunks]\n");
             } else {
                 appendMessage("[" + timestamp + "] You (broadcast voice to all) [" + voiceData.length + " bytes, " + totalChunks + " chunks]\n");
             }
@@ -946,29 +1040,32 @@ public class TCPClient extends JFrame {
                 }
             });
 
-            // Send each chunk
-            for (int i = 0; i < totalChunks; i++) {
-                int start = i * chunkSize;
-                int end = Math.min(start + chunkSize, voiceBase64.length());
-                String chunk = voiceBase64.substring(start, end);
+            // Offer the content first: nothing is uploaded when the server already has it
+            if (offerContent(BinaryFrame.TYPE_VOICE, sessionId, FileTransfer.sha256(voiceData), voiceData.length, recipient, null)) {
+                appendMessage("[Voice sent from the server's copy, nothing uploaded]\n\n");
+                return;
+            }
 
-                String formattedMessage;
-                if (selectedUser != null && !selectedUser.isEmpty() && !selectedUser.equals("All")) {
-                    formattedMessage = "VOICECHUNK|SESSION:" + sessionId + "|CHUNK:" + i + "|TOTAL:" + totalChunks + "|TO:" + selectedUser + "|FROM:" + username + "|DATA:" + chunk;
-                } else {
-                    formattedMessage = "VOICECHUNK|SESSION:" + sessionId + "|CHUNK:" + i + "|TOTAL:" + totalChunks + "|FROM:" + username + "|DATA:" + chunk;
+            // Send each chunk as the flow-control window allows
+            SendWindow window = openSendWindow(sessionId, totalChunks);
+            try {
+                for (int i = 0; i < totalChunks; i++) {
+                    int start = i * chunkSize;
+                    int length = Math.min(chunkSize, voiceData.length - start);
+                    sendChunk(window, i, encodeChunk(BinaryFrame.TYPE_VOICE, sessionId, i, totalChunks,
+                            recipient, null, voiceData, start, length));
                 }
-
-                out.println(formattedMessage);
-
-                // Small delay between chunks to avoid network flooding
-                Thread.sleep(10);
+                window.awaitComplete();
+            } finally {
+                sendWindows.remove(sessionId);
             }
 
             appendMessage("[Voice sent successfully]\n\n");
 
         } catch (InterruptedException e) {
-            JOptionPane.showMessageDialog(this, "Voice transfer interrupted: " + e.getMessage(), "Error", JOptionPane.ERROR_MESSAGE);
+            showTransferError("Voice transfer interrupted: " + e.getMessage());
+        } catch (IOException e) {
+            showTransferError("Error sending voice: " + e.getMessage());
         }
     }
 
@@ -980,6 +1077,38 @@ public class TCPClient extends JFrame {
         }
     }
 
+    /**
+     * Send a chat/control line to the server as a TEXT frame
+     */
+    private void sendLine(String line) {
+        try {
+            sendFrame(BinaryFrame.encodeText(line));
+        } catch (IOException e) {
+            appendMessage("Error sending: " + e.getMessage() + "\n");
+        }
+    }
+
+    private void sendFrame(byte[] frame) throws IOException {
+        synchronized (out) {
+            out.write(frame);
+            if (!flushPending) {
+                flushPending = true;
+                out.notifyAll(); // Start the flush task's linger
+            }
+        }
+        lastSent = System.currentTimeMillis();
+    }
+
+    /**
+     * Write out buffered frames now instead of after the linger
+     */
+    private void flushOutput() throws IOException {
+        synchronized (out) {
+            flushPending = false;
+            out.flush();
+        }
+    }
+
     private void appendMessage(String message) {
         SwingUtilities.invokeLater(() -> {
             try {
@@ -992,11 +1121,20 @@ public class TCPClient extends JFrame {
     }
 
     private void updateUserList(String userListStr) {
+        // Versioned snapshot: version|user1,user2,...
+        int separator = userListStr.indexOf('|');
+        if (separator >= 0) {
+            presenceVersion = Long.parseLong(userListStr.substring(0, separator));
+            userListStr = userListStr.substring(separator + 1);
+        }
+        String userNames = learnUserIds(userListStr);
+        replayUnresolvedFrames(true);
+
         SwingUtilities.invokeLater(() -> {
             // Get list of currently connected users from server
             Set<String> connectedUserNames = new HashSet<>();
-            if (!userListStr.isEmpty()) {
-                String[] users = userListStr.split(",");
+            if (!userNames.isEmpty()) {
+                String[] users = userNames.split(",");
                 for (String user : users) {
                     String trimmedUser = user.trim();
                     // Don't add the current user to the list
@@ -1009,7 +1147,7 @@ public class TCPClient extends JFrame {
             // Update existing users and mark disconnected ones
             for (int i = 0; i < userListModel.getSize(); i++) {
                 UserStatus status = userListModel.getElementAt(i);
-                if (!status.username.equals("All")) {
+                if (!status.username.equals("All") && !Rooms.isRoom(status.username)) {
                     if (!connectedUserNames.contains(status.username)) {
                         // User is no longer in the connected list, mark as disconnected
                         status.isConnected = false;
@@ -1044,6 +1182,198 @@ public class TCPClient extends JFrame {
         });
     }
 
+    private void handlePresenceDelta(String response) {
+        boolean joined = response.startsWith("USERJOIN:");
+        String body = response.substring(joined ? 9 : 10);
+        int separator = body.indexOf(':');
+        if (separator < 0) {
+            return;
+        }
+        long version = Long.parseLong(body.substring(0, separator));
+        String user = learnUserId(body.substring(separator + 1));
+        replayUnresolvedFrames(false);
+
+        // Already reflected in the snapshot we hold
+        if (version <= presenceVersion) {
+            return;
+        }
+        // A delta was missed (e.g. lost datagram), ask the server for a fresh snapshot
+        if (presenceVersion >= 0 && version > presenceVersion + 1) {
+            sendLine("GETUSERS:" + username);
+        }
+        presenceVersion = version;
+
+        if (user.equals(username)) {
+            return;
+        }
+        SwingUtilities.invokeLater(() -> {
+            boolean found = false;
+            for (int i = 0; i < userListModel.getSize(); i++) {
+                UserStatus status = userListModel.getElementAt(i);
+                if (status.username.equals(user)) {
+                    status.isConnected = joined;
+                    found = true;
+                    break;
+                }
+            }
+            if (!found && joined) {
+                userListModel.addElement(new UserStatus(user, true));
+            }
+            userList.repaint();
+        });
+    }
+
+    /**
+     * Remember the ids of comma-separated presence entries ("id=user" from servers that address
+     * users by id) and return the usernames alone
+     */
+    private String learnUserIds(String entries) {
+        if (entries.isEmpty()) {
+            return entries;
+        }
+        StringJoiner names = new StringJoiner(",");
+        for (String entry : entries.split(",")) {
+            names.add(learnUserId(entry.trim()));
+        }
+        return names.toString();
+    }
+
+    private String learnUserId(String entry) {
+        int separator = entry.indexOf('=');
+        if (separator > 0) {
+            try {
+                int id = Integer.parseInt(entry.substring(0, separator));
+                String name = entry.substring(separator + 1);
+                userIds.assign(name, id);
+                return name;
+            } catch (NumberFormatException e) {
+                // A plain username containing '='
+            }
+        }
+        return entry;
+    }
+
+    /**
+     * Turn "/join #room" or "/leave #room" into a JOIN:/LEAVE: message; null for anything else
+     */
+    private String roomCommand(String message) {
+        String[] words = message.split("\\s+");
+        if (words.length != 2 || !(words[0].equals("/join") || words[0].equals("/leave"))) {
+            return null;
+        }
+        String room = words[1].charAt(0) == Rooms.PREFIX ? words[1] : Rooms.PREFIX + words[1];
+        return (words[0].equals("/join") ? "JOIN:" : "LEAVE:") + room + "|FROM:" + username;
+    }
+
+    /**
+     * Show joined rooms in the user list so they can be selected as a recipient like a user
+     */
+    private void handleRoomMembership(String response) {
+        boolean joined = response.startsWith("ROOMJOINED:");
+        String[] parts = response.substring(joined ? 11 : 9).split("\\|", 2);
+        String room = learnUserId(parts[0]);
+        String timestamp = new SimpleDateFormat("HH:mm:ss").format(new Date());
+        if (joined) {
+            String members = parts.length > 1 ? learnUserIds(parts[1]) : "";
+            appendMessage("[" + timestamp + "] *** Joined " + room + " (" + members.replace(",", ", ") + ") ***\n\n");
+        } else {
+            appendMessage("[" + timestamp + "] *** Left " + room + " ***\n\n");
+        }
+        SwingUtilities.invokeLater(() -> {
+            for (int i = 0; i < userListModel.getSize(); i++) {
+                if (userListModel.getElementAt(i).username.equals(room)) {
+                    if (!joined) {
+                        userListModel.remove(i);
+                        if (room.equals(selectedUser)) {
+                            userList.setSelectedIndex(0);
+                            selectedUser = "All";
+                            updateSendButtonLabel();
+                        }
+                    }
+                    return;
+                }
+            }
+            if (joined) {
+                userListModel.addElement(new UserStatus(room, true));
+            }
+        });
+    }
+
+    /**
+     * "private " for a message to one user, nothing for a room (the room name says it)
+     */
+    private static String privacy(String recipient) {
+        return Rooms.isRoom(recipient) ? "" : "private ";
+    }
+
+    /**
+     * Sender of a received message, with the room it was sent to
+     */
+    private static String origin(String sender, String recipient) {
+        return Rooms.isRoom(recipient) ? sender + " in " + recipient : sender;
+    }
+
+    /**
+     * Route a binary media frame to its reassembly buffer; the payload is raw bytes, no Base64
+     */
+    private void handleMediaFrame(BinaryFrame frame) {
+        if (frame.ids && !frame.resolve(userIds)) {
+            // From a user we have not heard of yet: catch up on presence and hold the frame until
+            // then, since TCP never resends a chunk
+            if (unresolvedFrames.isEmpty()) {
+                sendLine("GETUSERS:" + username);
+            }
+            if (unresolvedFrames.size() < MAX_UNRESOLVED_FRAMES) {
+                unresolvedFrames.add(frame);
+            }
+            return;
+        }
+        String sessionId = Long.toHexString(frame.sessionId);
+        String recipient = frame.isPrivate() ? frame.recipient : null;
+        switch (frame.type) {
+            case BinaryFrame.TYPE_ACK:
+                // Flow control: the server acknowledged chunks of one of our transfers
+                SendWindow window = sendWindows.get(frame.sessionId);
+                if (window != null) {
+                    window.onAck(frame.chunkIndex, frame.data, frame.payloadOffset, frame.payloadLength);
+                }
+                break;
+            case BinaryFrame.TYPE_IMAGE:
+                acceptImageChunk(sessionId, frame.chunkIndex, frame.totalChunks, frame.sender, recipient,
+                        frame.data, frame.payloadOffset, frame.payloadLength);
+                break;
+            case BinaryFrame.TYPE_FILE:
+                acceptFileChunk(sessionId, frame.chunkIndex, frame.totalChunks, frame.sender, recipient, frame.name,
+                        frame.data, frame.payloadOffset, frame.payloadLength);
+                break;
+            case BinaryFrame.TYPE_VOICE:
+                acceptVoiceChunk(sessionId, frame.chunkIndex, frame.totalChunks, frame.sender, recipient,
+                        frame.data, frame.payloadOffset, frame.payloadLength);
+                break;
+            default:
+                break;
+        }
+    }
+
+    /**
+     * Handle the held frames whose users are known now. After a full user list the rest are
+     * dropped: their sender already left
+     */
+    private void replayUnresolvedFrames(boolean snapshot) {
+        if (unresolvedFrames.isEmpty()) {
+            return;
+        }
+        List<BinaryFrame> frames = new ArrayList<>(unresolvedFrames);
+        unresolvedFrames.clear();
+        for (BinaryFrame frame : frames) {
+            if (frame.resolve(userIds)) {
+                handleMediaFrame(frame);
+            } else if (!snapshot) {
+                unresolvedFrames.add(frame);
+            }
+        }
+    }
+
     private void handleImageChunk(String response) {
         try {
             String timestamp = new SimpleDateFormat("HH:mm:ss").format(new Date());
@@ -1079,29 +1409,87 @@ public class TCPClient extends JFrame {
                 return;
             }
 
-            // Create buffer key (sender + sessionId)
-            String bufferKey = sender + "_" + sessionId;
+            // Legacy text chunks are Base64; each chunk decodes on its own since senders slice on 4-char boundaries
+            byte[] decoded = Base64.getDecoder().decode(chunkData);
+            acceptImageChunk(sessionId, chunkNum, totalChunks, sender, recipient, decoded, 0, decoded.length);
 
-            // Get or create chunk buffer
-            ImageChunkBuffer buffer = imageChunks.get(bufferKey);
+        } catch (Exception e) {
+            String timestamp = new SimpleDateFormat("HH:mm:ss").format(new Date());
+            appendMessage("[" + timestamp + "] Error processing image chunk: " + e.getMessage() + "\n\n");
+        }
+    }
+
+    /**
+     * Add a chunk to its transfer, which the first chunk to arrive starts
+     * @param filename assemble into a temp file with this name, or null to assemble in memory
+     * @return the transfer once every chunk arrived, no longer in the map; null while chunks are missing
+     */
+    private ChunkAssembler addChunk(Map<String, ChunkAssembler> assemblies, String bufferKey, int chunkNum, int totalChunks,
+                                    String filename, byte[] data, int offset, int length) throws IOException {
+        synchronized (assemblies) {
+            ChunkAssembler buffer = assemblies.get(bufferKey);
             if (buffer == null) {
-                buffer = new ImageChunkBuffer(totalChunks, sender, recipient);
-                imageChunks.put(bufferKey, buffer);
+                buffer = filename != null ? ChunkAssembler.toTempFile(totalChunks, filename) : ChunkAssembler.inMemory(totalChunks);
+                assemblies.put(bufferKey, buffer);
+            }
+            try {
+                buffer.add(chunkNum, data, offset, length);
+            } catch (IOException e) {
+                assemblies.remove(bufferKey);
+                buffer.discard();
+                throw e;
+            }
+            if (!buffer.isComplete()) {
+                return null;
             }
+            assemblies.remove(bufferKey);
+            return buffer;
+        }
+    }
+
+    /**
+     * Discard incoming transfers that received no chunk for idleTimeout ms and tell the user
+     */
+    private void expireIncompleteTransfers(Map<String, ChunkAssembler> assemblies, String kind, long now, long idleTimeout) {
+        synchronized (assemblies) {
+            Iterator<Map.Entry<String, ChunkAssembler>> iterator = assemblies.entrySet().iterator();
+            while (iterator.hasNext()) {
+                Map.Entry<String, ChunkAssembler> entry = iterator.next();
+                ChunkAssembler buffer = entry.getValue();
+                if (!buffer.isIdle(now, idleTimeout)) {
+                    continue;
+                }
+                iterator.remove();
+                buffer.discard();
+                String bufferKey = entry.getKey();
+                String sender = bufferKey.substring(0, bufferKey.lastIndexOf('_')); // Keys are sender_sessionId
+                String timestamp = new SimpleDateFormat("HH:mm:ss").format(new Date());
+                appendMessage("[" + timestamp + "] Incomplete " + kind + " from " + sender + " dropped ("
+                        + buffer.getReceivedCount() + "/" + buffer.getTotalChunks() + " chunks received)\n\n");
+            }
+        }
+    }
 
-            // Add chunk to buffer
-            buffer.setChunk(chunkNum, chunkData);
+    /**
+     * Store one decoded image chunk and display the image once every chunk has arrived
+     */
+    private void acceptImageChunk(String sessionId, int chunkNum, int totalChunks, String sender,
+                                   String recipient, byte[] data, int offset, int length) {
+        try {
+            String timestamp = new SimpleDateFormat("HH:mm:ss").format(new Date());
+
+            // Create buffer key (sender + sessionId)
+            String bufferKey = sender + "_" + sessionId;
+
+            // Copy the chunk to its offset in the image
+            ChunkAssembler buffer = addChunk(imageChunks, bufferKey, chunkNum, totalChunks, null, data, offset, length);
 
             // Check if all chunks received
-            if (buffer.isComplete()) {
-                imageChunks.remove(bufferKey);
+            if (buffer != null) {
 
                 try {
-                    // Reassemble complete base64 data
-                    String completeBase64 = buffer.getCompleteData();
-
-                    // Decode base64 to get image bytes
-                    byte[] imageData = Base64.getDecoder().decode(completeBase64);
+                    // The chunks were assembled in place as they arrived
+                    byte[] imageData = buffer.getData();
 
                     // Convert bytes to BufferedImage
                     ByteArrayInputStream bais = new ByteArrayInputStream(imageData);
@@ -1123,10 +1511,10 @@ public class TCPClient extends JFrame {
                     JLabel imageLabel = new JLabel(scaledIcon);
                     imageLabel.setCursor(new Cursor(Cursor.HAND_CURSOR));
 
-                    if (recipient != null && !recipient.isEmpty()) {
+                    if (recipient != null && !recipient.isEmpty() && !Rooms.isRoom(recipient)) {
                         appendMessage("[" + timestamp + "] (private image from " + sender + ") [" + imageData.length + " bytes]:\n");
                     } else {
-                        appendMessage("[" + timestamp + "] (image from " + sender + ") [" + imageData.length + " bytes]:\n");
+                        appendMessage("[" + timestamp + "] (image from " + origin(sender, recipient) + ") [" + imageData.length + " bytes]:\n");
                     }
 
                     // Add click listener to show Save/Open dialog for image
@@ -1245,55 +1633,55 @@ public class TCPClient extends JFrame {
                 return;
             }
 
+            // Legacy text chunks are Base64; each chunk decodes on its own since senders slice on 4-char boundaries
+            byte[] decoded = Base64.getDecoder().decode(chunkData);
+            acceptFileChunk(sessionId, chunkNum, totalChunks, sender, recipient, filename, decoded, 0, decoded.length);
+
+        } catch (Exception e) {
+            String timestamp = new SimpleDateFormat("HH:mm:ss").format(new Date());
+            appendMessage("[" + timestamp + "] Error processing file chunk: " + e.getMessage() + "\n\n");
+        }
+    }
+
+    /**
+     * Store one decoded file chunk and display the file once every chunk has arrived
+     */
+    private void acceptFileChunk(String sessionId, int chunkNum, int totalChunks, String sender,
+                                   String recipient, String filename, byte[] data, int offset, int length) {
+        try {
+            String timestamp = new SimpleDateFormat("HH:mm:ss").format(new Date());
+
             // Create buffer key (sender + sessionId)
             String bufferKey = sender + "_" + sessionId;
 
-            // Get or create chunk buffer
-            FileChunkBuffer buffer = fileChunks.get(bufferKey);
-            if (buffer == null) {
-                buffer = new FileChunkBuffer(totalChunks, sender, recipient, filename);
-                fileChunks.put(bufferKey, buffer);
-            }
-
-            // Add chunk to buffer
-            buffer.setChunk(chunkNum, chunkData);
+            // Write chunk to the temp file at its offset
+            ChunkAssembler buffer = addChunk(fileChunks, bufferKey, chunkNum, totalChunks, filename, data, offset, length);
 
             // Check if all chunks received
-            if (buffer.isComplete()) {
-                fileChunks.remove(bufferKey);
+            if (buffer != null) {
+                File file = buffer.finish();
 
-                try {
-                    // Reassemble complete base64 data
-                    String completeBase64 = buffer.getCompleteData();
+                if (recipient != null && !recipient.isEmpty() && !Rooms.isRoom(recipient)) {
+                    appendMessage("[" + timestamp + "] (private file from " + sender + "): \n");
+                } else {
+                    appendMessage("[" + timestamp + "] (file from " + origin(sender, recipient) + "): \n");
+                }
 
-                    // Decode base64 to get file bytes
-                    byte[] fileData = FileTransfer.decodeFromBase64(completeBase64);
+                // Create and insert clickable file link
+                FileLink fileLink = new FileLink(filename, file);
 
-                    if (recipient != null && !recipient.isEmpty()) {
-                        appendMessage("[" + timestamp + "] (private file from " + sender + "): \n");
-                    } else {
-                        appendMessage("[" + timestamp + "] (file from " + sender + "): \n");
+                // Insert file link into message area
+                SwingUtilities.invokeLater(() -> {
+                    try {
+                        int pos = messageArea.getDocument().getLength();
+                        messageArea.setCaretPosition(pos);
+                        messageArea.insertComponent(fileLink);
+                        messageArea.getDocument().insertString(messageArea.getDocument().getLength(), "\n\n", null);
+                        messageArea.setCaretPosition(messageArea.getDocument().getLength());
+                    } catch (Exception e) {
+                        appendMessage("Error displaying file link: " + e.getMessage() + "\n\n");
                     }
-
-                    // Create and insert clickable file link
-                    FileLink fileLink = new FileLink(filename, fileData);
-
-                    // Insert file link into message area
-                    SwingUtilities.invokeLater(() -> {
-                        try {
-                            int pos = messageArea.getDocument().getLength();
-                            messageArea.setCaretPosition(pos);
-                            messageArea.insertComponent(fileLink);
-                            messageArea.getDocument().insertString(messageArea.getDocument().getLength(), "\n\n", null);
-                            messageArea.setCaretPosition(messageArea.getDocument().getLength());
-                        } catch (Exception e) {
-                            appendMessage("Error displaying file link: " + e.getMessage() + "\n\n");
-                        }
-                    });
-
-                } catch (IllegalArgumentException e) {
-                    appendMessage("[" + timestamp + "] Error: Could not decode file data - " + e.getMessage() + "\n\n");
-                }
+                });
             }
 
         } catch (Exception e) {
@@ -1337,34 +1725,41 @@ public class TCPClient extends JFrame {
                 return;
             }
 
+            // Legacy text chunks are Base64; each chunk decodes on its own since senders slice on 4-char boundaries
+            byte[] decoded = Base64.getDecoder().decode(chunkData);
+            acceptVoiceChunk(sessionId, chunkNum, totalChunks, sender, recipient, decoded, 0, decoded.length);
+
+        } catch (Exception e) {
+            String timestamp = new SimpleDateFormat("HH:mm:ss").format(new Date());
+            appendMessage("[" + timestamp + "] Error processing voice chunk: " + e.getMessage() + "\n\n");
+        }
+    }
+
+    /**
+     * Store one decoded voice chunk and display the voice once every chunk has arrived
+     */
+    private void acceptVoiceChunk(String sessionId, int chunkNum, int totalChunks, String sender,
+                                   String recipient, byte[] data, int offset, int length) {
+        try {
+            String timestamp = new SimpleDateFormat("HH:mm:ss").format(new Date());
+
             // Create buffer key (sender + sessionId)
             String bufferKey = sender + "_" + sessionId;
 
-            // Get or create chunk buffer
-            VoiceChunkBuffer buffer = voiceChunks.get(bufferKey);
-            if (buffer == null) {
-                buffer = new VoiceChunkBuffer(totalChunks, sender, recipient);
-                voiceChunks.put(bufferKey, buffer);
-            }
-
-            // Add chunk to buffer
-            buffer.setChunk(chunkNum, chunkData);
+            // Copy the chunk to its offset in the recording
+            ChunkAssembler buffer = addChunk(voiceChunks, bufferKey, chunkNum, totalChunks, null, data, offset, length);
 
             // Check if all chunks received
-            if (buffer.isComplete()) {
-                voiceChunks.remove(bufferKey);
+            if (buffer != null) {
 
                 try {
-                    // Reassemble complete base64 data
-                    String completeBase64 = buffer.getCompleteData();
-
-                    // Decode base64 to get voice bytes
-                    byte[] voiceData = Base64.getDecoder().decode(completeBase64);
+                    // The chunks were assembled in place as they arrived
+                    byte[] voiceData = buffer.getData();
 
-                    if (recipient != null && !recipient.isEmpty()) {
+                    if (recipient != null && !recipient.isEmpty() && !Rooms.isRoom(recipient)) {
                         appendMessage("[" + timestamp + "] (private voice from " + sender + ") [" + voiceData.length + " bytes]:\n");
                     } else {
-                        appendMessage("[" + timestamp + "] (voice from " + sender + ") [" + voiceData.length + " bytes]:\n");
+                        appendMessage("[" + timestamp + "] (voice from " + origin(sender, recipient) + ") [" + voiceData.length + " bytes]:\n");
                     }
 
                     // Create and insert clickable voice link
@@ -0,0 +1,595 @@
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.*;
+import java.nio.charset.Charset;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * TCPEventLoop - Non-blocking server transport built on ServerSocketChannel and Selector
+ * Connections are spread over a small fixed pool of I/O loops (one per core by default),
+ * and incoming bytes are framed directly on per-connection ByteBuffers: text lines for
+ * legacy clients, length-prefixed BinaryFrames for clients that sent the binary preamble.
+ * Messages queued for a connection during a selector cycle are written together at the end of
+ * it, up to MAX_GATHER of them in one gathering write, so a burst costs one syscall and leaves in
+ * full segments instead of one write per message.
+ */
+public class TCPEventLoop {
+    private static final int READ_BUFFER_SIZE = 8 * 1024;
+    private static final int MAX_LINE_LENGTH = 1024 * 1024; // Drop text clients sending lines over 1MB
+    private static final int MAX_GATHER = 64; // Queued messages written per gathering write; Linux IOV_MAX is 1024
+    public static final long DRAIN_THRESHOLD = 256 * 1024; // Queued bytes at or below which a connection counts as drained
+    private static final Charset CHARSET = Charset.defaultCharset(); // Same charset as the blocking handlers
+
+    /**
+     * Callbacks invoked on the I/O loop thread that owns the connection
+     */
+    public interface Listener {
+        void onOpen(Connection connection);
+
+        void onLine(Connection connection, byte[] line); // Raw line bytes, ending with a single newline
+
+        void onFrame(Connection connection, byte[] frame);
+
+        void onClose(Connection connection);
+    }
+
+    private final Listener listener;
+    private final IOLoop[] loops;
+    private final AtomicInteger nextLoop = new AtomicInteger();
+    private final LongAdder writeCalls = new LongAdder();
+    private final LongAdder bytesWritten = new LongAdder();
+    private ServerSocketChannel serverChannel;
+    private Thread acceptThread;
+    private volatile boolean isRunning = false;
+
+    public TCPEventLoop(Listener listener) {
+        this(listener, Runtime.getRuntime().availableProcessors());
+    }
+
+    public TCPEventLoop(Listener listener, int loopCount) {
+        this.listener = listener;
+        this.loops = new IOLoop[Math.max(1, loopCount)];
+    }
+
+    /**
+     * Bind the listening channel and start the accept thread and I/O loops
+     */
+    public void start(int port) throws IOException {
+        serverChannel = ServerSocketChannel.open();
+        serverChannel.bind(new InetSocketAddress(port));
+        isRunning = true;
+
+        for (int i = 0; i < loops.length; i++) {
+            loops[i] = new IOLoop(i);
+            loops[i].start();
+        }
+
+        // Accept in blocking mode on a dedicated thread, then hand channels to the loops round-robin
+        acceptThread = new Thread(() -> {
+            while (isRunning) {
+                try {
+                    SocketChannel channel = serverChannel.accept();
+                    channel.configureBlocking(false);
+                    KeepAlive.configure(channel.socket());
+                    IOLoop loop = loops[Math.floorMod(nextLoop.getAndIncrement(), loops.length)];
+                    loop.register(new Connection(channel, loop));
+                } catch (ClosedChannelException e) {
+                    break;
+                } catch (IOException e) {
+                    if (!isRunning) break;
+                }
+            }
+        }, "tcp-accept");
+        acceptThread.start();
+    }
+
+    /**
+     * Port the listening channel is bound to
+     */
+    public int getLocalPort() {
+        return serverChannel.socket().getLocalPort();
+    }
+
+    /**
+     * Socket write calls made so far, for writes per relayed megabyte
+     */
+    public long getWriteCalls() {
+        return writeCalls.sum();
+    }
+
+    /**
+     * Bytes the sockets accepted so far
+     */
+    public long getBytesWritten() {
+        return bytesWritten.sum();
+    }
+
+    /**
+     * Close the listening channel and every connection, then stop the loops
+     */
+    public void stop() {
+        isRunning = false;
+        try {
+            if (serverChannel != null) {
+                serverChannel.close();
+            }
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
+
+        for (IOLoop loop : loops) {
+            if (loop != null) {
+                loop.shutdown();
+            }
+        }
+        for (IOLoop loop : loops) {
+            if (loop != null) {
+                try {
+                    loop.thread.join(1000);
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+            }
+        }
+    }
+
+    /**
+     * One client connection owned by a single I/O loop
+     */
+    public class Connection {
+        private final SocketChannel channel;
+        private final IOLoop loop;
+        private final String remoteAddress;
+        private ByteBuffer readBuffer = ByteBuffer.allocate(READ_BUFFER_SIZE);
+        private final Queue<ByteBuffer> writeQueue = new ArrayDeque<>();
+        private boolean writeScheduled = false;
+        private long queuedBytes = 0; // Bytes accepted by send but not yet written to the socket
+        private List<Runnable> drainActions; // Run once queuedBytes falls to DRAIN_THRESHOLD
+        private volatile boolean closed = false;
+        private volatile int version = 0; // BinaryFrame version from the preamble, 0 for text clients
+        private boolean protocolKnown = false; // Set once the first bytes have been sniffed
+        private boolean opened = false; // Set once onOpen ran, so onClose never sees an unopened connection
+        private Object attachment;
+
+        Connection(SocketChannel channel, IOLoop loop) {
+            this.channel = channel;
+            this.loop = loop;
+            String address;
+            try {
+                InetSocketAddress remote = (InetSocketAddress) channel.getRemoteAddress();
+                address = remote.getAddress().getHostAddress() + ":" + remote.getPort();
+            } catch (IOException e) {
+                address = "unknown";
+            }
+            this.remoteAddress = address;
+        }
+
+        public String getRemoteAddress() {
+            return remoteAddress;
+        }
+
+        public Object getAttachment() {
+            return attachment;
+        }
+
+        public void setAttachment(Object attachment) {
+            this.attachment = attachment;
+        }
+
+        public boolean isClosed() {
+            return closed;
+        }
+
+        public boolean isBinary() {
+            return version > 0;
+        }
+
+        public int getVersion() {
+            return version;
+        }
+
+        /**
+         * Bytes queued for this connection that the socket has not accepted yet
+         */
+        public long getQueuedBytes() {
+            synchronized (writeQueue) {
+                return queuedBytes;
+            }
+        }
+
+        /**
+         * Check whether the outbound queue is above the watermark, or drain actions are still waiting on it
+         */
+        public boolean isBacklogged(long highWatermark) {
+            synchronized (writeQueue) {
+                return drainActions != null || queuedBytes > highWatermark;
+            }
+        }
+
+        /**
+         * Run an action once the outbound queue has drained to DRAIN_THRESHOLD, or the connection closed;
+         * runs immediately when that is already the case, otherwise on the owning I/O loop
+         */
+        public void whenDrained(Runnable action) {
+            synchronized (writeQueue) {
+                if (!closed && queuedBytes > DRAIN_THRESHOLD) {
+                    if (drainActions == null) {
+                        drainActions = new ArrayList<>();
+                    }
+                    drainActions.add(action);
+                    return;
+                }
+            }
+            action.run();
+        }
+
+        /**
+         * Queue a line for writing (as a TEXT frame on binary connections); safe to call from any thread
+         */
+        public void send(String line) {
+            if (version > 0) {
+                sendFrame(BinaryFrame.encodeText(line));
+            } else {
+                enqueue((line + "\n").getBytes(CHARSET));
+            }
+        }
+
+        /**
+         * Queue encoded bytes (a frame, or a newline-terminated line on text connections) for writing
+         * as-is; the array is not copied, so one array can be shared by many connections and must not be modified
+         */
+        public void sendFrame(byte[] frame) {
+            enqueue(frame);
+        }
+
+        private void enqueue(byte[] bytes) {
+            if (closed) {
+                return;
+            }
+            boolean schedule;
+            synchronized (writeQueue) {
+                writeQueue.add(ByteBuffer.wrap(bytes));
+                queuedBytes += bytes.length;
+                schedule = !writeScheduled;
+                writeScheduled = true;
+            }
+            if (schedule) {
+                loop.scheduleWrite(this);
+            }
+        }
+
+        /**
+         * Close the connection; the listener's onClose runs on the owning loop
+         */
+        public void close() {
+            loop.scheduleClose(this);
+        }
+
+        private void handleRead() throws IOException {
+            int read = channel.read(readBuffer);
+            if (read < 0) {
+                closeNow();
+                return;
+            }
+
+            readBuffer.flip();
+
+            // Sniff the protocol from the first bytes of the connection
+            if (!protocolKnown) {
+                if (!readBuffer.hasRemaining()) {
+                    readBuffer.compact();
+                    return;
+                }
+                if (readBuffer.remaining() < 2 && readBuffer.get(0) == BinaryFrame.MAGIC) {
+                    readBuffer.compact();
+                    return; // Wait for the version byte
+                }
+                protocolKnown = true;
+                if (readBuffer.get(0) == BinaryFrame.MAGIC) {
+                    if (!BinaryFrame.isSupported(readBuffer.get(1))) {
+                        closeNow();
+                        return;
+                    }
+                    version = readBuffer.get(1);
+                    readBuffer.position(2);
+                }
+            }
+            if (version > 0) {
+                readFrames();
+                return;
+            }
+
+            // Frame complete lines out of the buffer
+            int lineStart = readBuffer.position();
+            int limit = readBuffer.limit();
+            byte[] array = readBuffer.array();
+            for (int i = lineStart; i < limit && !closed; i++) {
+                if (array[i] == '\n') {
+                    int lineEnd = i;
+                    if (lineEnd > lineStart && array[lineEnd - 1] == '\r') {
+                        lineEnd--;
+                    }
+                    byte[] line = new byte[lineEnd - lineStart + 1];
+                    System.arraycopy(array, lineStart, line, 0, lineEnd - lineStart);
+                    line[line.length - 1] = '\n';
+                    listener.onLine(this, line);
+                    lineStart = i + 1;
+                }
+            }
+            readBuffer.position(lineStart);
+            readBuffer.compact();
+
+            // Grow the buffer for long lines, up to the limit
+            growIfFull();
+        }
+
+        private void readFrames() {
+            // Deliver every complete length-prefixed frame in the buffer
+            while (readBuffer.remaining() >= 4 && !closed) {
+                int frameLength = readBuffer.getInt(readBuffer.position());
+                if (frameLength <= 0 || frameLength > BinaryFrame.MAX_FRAME_LENGTH) {
+                    closeNow();
+                    return;
+                }
+                if (readBuffer.remaining() < 4 + frameLength) {
+                    // Make sure the whole frame fits once it arrives
+                    if (readBuffer.capacity() < 4 + frameLength) {
+                        ByteBuffer larger = ByteBuffer.allocate(4 + frameLength);
+                        larger.put(readBuffer);
+                        readBuffer = larger;
+                        return;
+                    }
+                    break;
+                }
+                byte[] frame = new byte[4 + frameLength];
+                readBuffer.get(frame);
+                listener.onFrame(this, frame);
+            }
+            readBuffer.compact();
+        }
+
+        private void growIfFull() {
+            if (!readBuffer.hasRemaining()) {
+                if (readBuffer.capacity() >= MAX_LINE_LENGTH) {
+                    closeNow();
+                    return;
+                }
+                ByteBuffer larger = ByteBuffer.allocate(Math.min(readBuffer.capacity() * 2, MAX_LINE_LENGTH));
+                readBuffer.flip();
+                larger.put(readBuffer);
+                readBuffer = larger;
+            }
+        }
+
+        private void handleWrite() throws IOException {
+            try {
+                synchronized (writeQueue) {
+                    ByteBuffer[] gather = loop.gather;
+                    while (!writeQueue.isEmpty()) {
+                        int count = 0;
+                        for (ByteBuffer buffer : writeQueue) {
+                            gather[count++] = buffer;
+                            if (count == gather.length) {
+                                break;
+                            }
+                        }
+                        long written;
+                        boolean full;
+                        try {
+                            written = channel.write(gather, 0, count);
+                            full = gather[count - 1].hasRemaining(); // The socket took less than was gathered
+                        } finally {
+                            Arrays.fill(gather, 0, count, null);
+                        }
+                        writeCalls.increment();
+                        bytesWritten.add(written);
+                        queuedBytes -= written;
+                        while (!writeQueue.isEmpty() && !writeQueue.peek().hasRemaining()) {
+                            writeQueue.poll();
+                        }
+                        if (full) {
+                            // Socket buffer is full, wait for OP_WRITE
+                            SelectionKey key = channel.keyFor(loop.selector);
+                            if (key != null && key.isValid()) {
+                                key.interestOps(SelectionKey.OP_READ | SelectionKey.OP_WRITE);
+                            }
+                            return;
+                        }
+                    }
+                    writeScheduled = false;
+                    SelectionKey key = channel.keyFor(loop.selector);
+                    if (key != null && key.isValid()) {
+                        key.interestOps(SelectionKey.OP_READ);
+                    }
+                }
+            } finally {
+                runDrainActions();
+            }
+        }
+
+        private void runDrainActions() {
+            List<Runnable> actions;
+            synchronized (writeQueue) {
+                if (drainActions == null || (!closed && queuedBytes > DRAIN_THRESHOLD)) {
+                    return;
+                }
+                actions = drainActions;
+                drainActions = null;
+            }
+            for (Runnable action : actions) {
+                action.run();
+            }
+        }
+
+        private void closeNow() {
+            if (closed) {
+                return;
+            }
+            closed = true;
+            try {
+                channel.close();
+            } catch (IOException e) {
+                e.printStackTrace();
+            }
+            synchronized (writeQueue) {
+                writeQueue.clear();
+                queuedBytes = 0;
+            }
+            runDrainActions(); // Nothing will be written any more, release whoever was waiting
+            if (opened) {
+                listener.onClose(this);
+            }
+        }
+    }
+
+    /**
+     * Single-threaded selector loop serving a subset of the connections
+     */
+    private class IOLoop implements Runnable {
+        private final Selector selector;
+        private final Thread thread;
+        private final ByteBuffer[] gather = new ByteBuffer[MAX_GATHER]; // Reused by every gathering write on this loop
+        private final Queue<Connection> pendingRegistrations = new ConcurrentLinkedQueue<>();
+        private final Queue<Connection> pendingWrites = new ConcurrentLinkedQueue<>();
+        private final Queue<Connection> pendingCloses = new ConcurrentLinkedQueue<>();
+        private volatile boolean running = true;
+
+        IOLoop(int index) throws IOException {
+            this.selector = Selector.open();
+            this.thread = new Thread(this, "tcp-io-" + index);
+        }
+
+        void start() {
+            thread.start();
+        }
+
+        void register(Connection connection) {
+            pendingRegistrations.add(connection);
+            selector.wakeup();
+        }
+
+        void scheduleWrite(Connection connection) {
+            pendingWrites.add(connection);
+            if (Thread.currentThread() != thread) {
+                selector.wakeup();
+            }
+        }
+
+        void scheduleClose(Connection connection) {
+            pendingCloses.add(connection);
+            if (Thread.currentThread() != thread) {
+                selector.wakeup();
+            }
+        }
+
+        void shutdown() {
+            running = false;
+            selector.wakeup();
+        }
+
+        @Override
+        public void run() {
+            while (running) {
+                try {
+                    selector.select();
+                    processPending();
+
+                    Iterator<SelectionKey> keys = selector.selectedKeys().iterator();
+                    while (keys.hasNext()) {
+                        SelectionKey key = keys.next();
+                        keys.remove();
+                        Connection connection = (Connection) key.attachment();
+                        try {
+                            if (key.isValid() && key.isReadable()) {
+                                connection.handleRead();
+                            }
+                            if (key.isValid() && key.isWritable()) {
+                                connection.handleWrite();
+                            }
+                        } catch (IOException | CancelledKeyException e) {
+                            connection.closeNow();
+                        } catch (RuntimeException e) {
+                            // A failing handler costs only its own connection, not the whole loop
+                            e.printStackTrace();
+                            closeQuietly(connection);
+                        }
+                    }
+                    // Flush anything queued by handlers during this cycle
+                    processPending();
+                } catch (IOException e) {
+                    if (!running) break;
+                }
+            }
+
+            // Close remaining connections owned by this loop
+            for (SelectionKey key : selector.keys()) {
+                closeQuietly((Connection) key.attachment());
+            }
+            try {
+                selector.close();
+            } catch (IOException e) {
+                e.printStackTrace();
+            }
+        }
+
+        private void processPending() {
+            Connection connection;
+            while ((connection = pendingRegistrations.poll()) != null) {
+                try {
+                    connection.channel.register(selector, SelectionKey.OP_READ, connection);
+                    connection.opened = true;
+                    listener.onOpen(connection);
+                } catch (IOException e) {
+                    connection.closeNow();
+                } catch (RuntimeException e) {
+                    e.printStackTrace();
+                    closeQuietly(connection);
+                }
+            }
+            while ((connection = pendingWrites.poll()) != null) {
+                if (connection.closed) continue;
+                try {
+                    connection.handleWrite();
+                } catch (IOException | CancelledKeyException e) {
+                    connection.closeNow();
+                } catch (RuntimeException e) {
+                    e.printStackTrace();
+                    closeQuietly(connection);
+                }
+            }
+            while ((connection = pendingCloses.poll()) != null) {
+                // Flush what is already queued before closing
+                try {
+                    if (!connection.closed) {
+                        connection.handleWrite();
+                    }
+                } catch (IOException | CancelledKeyException e) {
+                    // Closing anyway
+                } catch (RuntimeException e) {
+                    e.printStackTrace();
+                }
+                closeQuietly(connection);
+            }
+        }
+
+        /**
+         * Close a connection after its handler failed; a failing onClose is logged, not rethrown
+         */
+        private void closeQuietly(Connection connection) {
+            try {
+                connection.closeNow();
+            } catch (RuntimeException e) {
+                e.printStackTrace();
+            }
+        }
+    }
+}
@@ -0,0 +1,1362 @@
+import java.net.*;
+import java.io.*;
+import java.nio.charset.StandardCharsets;
+import java.text.SimpleDateFormat;
+import java.time.Duration;
+import java.time.Instant;
+import java.util.*;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * TCPServerCore - Networking engine of the TCP chat server, independent of any UI
+ * Accepts clients in the configured execution mode, tracks presence and relays chat and media;
+ * everything it has to say goes to a ServerLog. TCPServer is an optional Swing window around it,
+ * and main() runs it headless from the command line.
+ */
+public class TCPServerCore {
+    /**
+     * Execution modes: one blocking thread per client (platform or virtual), or non-blocking selector loops
+     */
+    public enum Mode {
+        THREADS("Thread per client"),
+        VIRTUAL("Virtual threads"),
+        NIO("NIO event loop");
+
+        private final String label;
+
+        Mode(String label) {
+            this.label = label;
+        }
+
+        @Override
+        public String toString() {
+            return label;
+        }
+    }
+
+    private final int port;
+    private final Mode mode;
+    private final int maxClients;
+    private final OutboundQueue.OverflowPolicy overflowPolicy; // What to do when a client's outbound queue is full
+    private final ServerLog log;
+    private final ServerMetrics metrics = new ServerMetrics();
+    private int metricsPort = ServerMetrics.DEFAULT_PORT;
+    private ServerSocket serverSocket;
+    private volatile boolean isRunning = false;
+    private Thread serverThread;
+    private volatile TCPEventLoop eventLoop;
+    private ExecutorService clientExecutor;
+    private Semaphore admission; // Bounds the number of concurrently served clients
+
+    // Track connected users: username and interned user id -> ClientHandler
+    private final UserTable<ClientHandler> connectedUsers = new UserTable<>();
+    private final Rooms<ClientHandler> rooms = new Rooms<>(); // Room names share the user id space
+    private final HeartbeatWheel<ClientHandler> heartbeats = new HeartbeatWheel<>(this::heartbeatExpired, this::heartbeatFailed);
+    private final MediaFanout fanout = new MediaFanout(); // Broadcast, room and offered uploads, streamed from the server
+    private final BlobStore blobs = new BlobStore(); // Relayed content by SHA-256, so offered content is uploaded once
+    private static final long OUTBOUND_HIGH_WATERMARK = 1024 * 1024; // Queued bytes per recipient before ACKs are held back or a blob stream pauses
+    // Per-client output buffer of the blocking modes: a burst of queued messages is written to the socket in pieces this large
+    private static final int WRITE_BUFFER_SIZE = Integer.getInteger("chat.tcpWriteBufferBytes", 64 * 1024);
+
+    // Presence is event driven: the version is bumped on every join/leave so clients can
+    // detect a missed delta and ask for a fresh snapshot with GETUSERS
+    private final AtomicLong presenceVersion = new AtomicLong();
+    private final AtomicLong presenceBytesSent = new AtomicLong();
+    private final AtomicLong slowClientsDisconnected = new AtomicLong();
+    private final LongAdder socketWrites = new LongAdder(); // Blocking modes; the event loop counts its own
+    private final LongAdder socketBytesWritten = new LongAdder();
+    private Thread monitorThread;
+
+    public TCPServerCore(int port, Mode mode, int maxClients, OutboundQueue.OverflowPolicy overflowPolicy, ServerLog log) {
+        this.port = port;
+        this.mode = mode;
+        this.maxClients = maxClients;
+        this.overflowPolicy = overflowPolicy;
+        this.log = log;
+
+        metrics.gauge("chat_connected_users", "Users currently connected", connectedUsers::size);
+        metrics.gauge("chat_rooms", "Rooms with at least one member", rooms::size);
+        metrics.gauge("chat_room_members", "Memberships across all rooms", rooms::getMemberCount);
+        metrics.gauge("chat_heartbeat_timers", "Connections tracked by the heartbeat wheel", heartbeats::getScheduled);
+        metrics.gauge("chat_outbound_queued_bytes", "Bytes waiting in all recipients' outbound queues",
+                () -> connectedUsers.values().stream().mapToLong(ClientHandler::getQueuedBytes).sum());
+        metrics.gauge("chat_outbound_queued_bytes_max", "Bytes waiting in the fullest recipient outbound queue",
+                () -> connectedUsers.values().stream().mapToLong(ClientHandler::getQueuedBytes).max().orElse(0));
+        metrics.gauge("chat_congested_recipients", "Recipients whose outbound queue is backlogged",
+                () -> connectedUsers.values().stream().filter(ClientHandler::isCongested).count());
+        metrics.gauge("chat_fanout_uploads", "Broadcast and room uploads being collected", fanout::getUploads);
+        metrics.gauge("chat_fanout_buffered_bytes", "Bytes held for uploads in progress and blobs being streamed",
+                fanout::getBufferedBytes);
+        metrics.gauge("chat_fanout_streams", "Recipients a blob is still being streamed to", fanout::getActiveStreams);
+        metrics.gauge("chat_blob_cache_entries", "Blobs held in memory", blobs::getEntries);
+        metrics.gauge("chat_blob_cache_bytes", "Bytes of blobs held in memory", blobs::getMemoryBytes);
+        metrics.gauge("chat_blob_spilled_bytes", "Bytes of blobs spilled to disk", blobs::getSpilledBytes);
+        metrics.counter("chat_blob_hits_total", "Offers answered from the blob store", blobs::getHits);
+        metrics.counter("chat_blob_misses_total", "Offers whose content had to be uploaded", blobs::getMisses);
+        metrics.counter("chat_slow_clients_disconnected_total", "Clients disconnected for a full outbound queue",
+                slowClientsDisconnected::get);
+        metrics.counter("chat_presence_bytes_total", "Bytes of user list snapshots and join/leave deltas",
+                presenceBytesSent::get);
+        metrics.counter("chat_socket_writes_total", "Write calls to client sockets", this::getSocketWrites);
+        metrics.counter("chat_socket_written_bytes_total", "Bytes written to client sockets", this::getSocketBytesWritten);
+    }
+
+    /**
+     * Serve metrics on http://127.0.0.1:port/metrics from the next start(); 0 disables the endpoint
+     */
+    public void setMetricsPort(int metricsPort) {
+        this.metricsPort = metricsPort;
+    }
+
+    public ServerMetrics getMetrics() {
+        return metrics;
+    }
+
+    /**
+     * Bind the port and start serving clients
+     */
+    public void start() throws IOException {
+        if (mode == Mode.NIO) {
+            eventLoop = new TCPEventLoop(new TCPEventLoop.Listener() {
+                @Override
+                public void onOpen(TCPEventLoop.Connection connection) {
+                    connection.setAttachment(new ClientHandler(connection));
+                }
+
+                @Override
+                public void onLine(TCPEventLoop.Connection connection, byte[] line) {
+                    ClientHandler handler = (ClientHandler) connection.getAttachment();
+                    if (!handler.handleLine(line)) {
+                        connection.close();
+                    }
+                }
+
+                @Override
+                public void onFrame(TCPEventLoop.Connection connection, byte[] frame) {
+                    ClientHandler handler = (ClientHandler) connection.getAttachment();
+                    if (!handler.handleFrame(frame)) {
+                        connection.close();
+                    }
+                }
+
+                @Override
+                public void onClose(TCPEventLoop.Connection connection) {
+                    ClientHandler handler = (ClientHandler) connection.getAttachment();
+                    if (handler != null) {
+                        handler.connectionLost();
+                    }
+                }
+            });
+            eventLoop.start(port);
+        } else {
+            serverSocket = new ServerSocket(port);
+            clientExecutor = VirtualThreads.newPerTaskExecutor("tcp-client-", mode == Mode.VIRTUAL);
+            admission = new Semaphore(maxClients);
+        }
+        isRunning = true;
+
+        appendMessage("=== Server started on port " + getPort() + " (" + mode + ") ===\n");
+        if (mode == Mode.VIRTUAL && !VirtualThreads.isSupported()) {
+            appendMessage("Virtual threads need Java 21+, using pooled platform threads instead\n");
+        }
+        try {
+            metrics.start(metricsPort, log);
+        } catch (IOException e) {
+            log.error("Metrics endpoint not available on port " + metricsPort + ": " + e.getMessage());
+        }
+
+        // Heartbeat expiry runs on the wheel; the monitor thread only reports slow clients
+        heartbeats.start("heartbeat-wheel");
+        monitorThread = new Thread(() -> {
+            while (isRunning) {
+                try {
+                    Thread.sleep(5000); // Check every 5 seconds
+
+                    // Report clients whose outbound queue is backing up
+                    for (ClientHandler handler : connectedUsers.values()) {
+                        if (handler.isCongested()) {
+                            appendMessage("Slow client '" + handler.getUsername() + "': "
+                                    + FileTransfer.getFileSizeString(handler.getQueuedBytes()) + " queued, "
+                                    + handler.getDroppedMedia() + " media chunks dropped\n");
+                        }
+                    }
+                } catch (InterruptedException e) {
+                    if (isRunning) {
+                        log.error("Monitor thread interrupted: " + e.getMessage());
+                    }
+                }
+            }
+        });
+        monitorThread.start();
+
+        if (mode == Mode.NIO) {
+            // Connections are accepted and served by the event loop
+            return;
+        }
+
+        // Server thread to accept new connections
+        serverThread = new Thread(() -> {
+            while (isRunning) {
+                try {
+                    Socket clientSocket = serverSocket.accept();
+                    KeepAlive.configure(clientSocket);
+
+                    // Reject the connection when the admission limit is reached
+                    if (!admission.tryAcquire()) {
+                        rejectConnection(clientSocket);
+                        continue;
+                    }
+
+                    // Run the handler for this client on the executor
+                    ClientHandler handler = new ClientHandler(clientSocket);
+                    try {
+                        clientExecutor.execute(() -> {
+                            try {
+                                handler.run();
+                            } finally {
+                                admission.release();
+                            }
+                        });
+                    } catch (RejectedExecutionException e) {
+                        admission.release();
+                        handler.close();
+                    }
+                } catch (SocketException e) {
+                    if (!isRunning) break;
+                } catch (IOException e) {
+                    if (isRunning) {
+                        log.error("Error accepting connection: " + e.getMessage());
+                    }
+                }
+            }
+        });
+        serverThread.start();
+    }
+
+    public boolean isRunning() {
+        return isRunning;
+    }
+
+    /**
+     * Port the server listens on; the bound port when it was started on port 0
+     */
+    public int getPort() {
+        if (eventLoop != null) {
+            return eventLoop.getLocalPort();
+        }
+        return serverSocket != null ? serverSocket.getLocalPort() : port;
+    }
+
+    public Mode getMode() {
+        return mode;
+    }
+
+    public int getConnectedCount() {
+        return connectedUsers.size();
+    }
+
+    /**
+     * Bytes of user list snapshots and join/leave deltas sent this session
+     */
+    public long getPresenceBytesSent() {
+        return presenceBytesSent.get();
+    }
+
+    /**
+     * Write calls made to client sockets so far; with getSocketBytesWritten, the syscalls per relayed megabyte
+     */
+    public long getSocketWrites() {
+        TCPEventLoop loop = eventLoop;
+        return socketWrites.sum() + (loop != null ? loop.getWriteCalls() : 0);
+    }
+
+    /**
+     * Bytes written to client sockets so far
+     */
+    public long getSocketBytesWritten() {
+        TCPEventLoop loop = eventLoop;
+        return socketBytesWritten.sum() + (loop != null ? loop.getBytesWritten() : 0);
+    }
+
+    private void rejectConnection(Socket clientSocket) {
+        try {
+            PrintWriter rejectOut = new PrintWriter(clientSocket.getOutputStream(), true);
+            rejectOut.println("*** Server is full, please try again later ***");
+            clientSocket.close();
+        } catch (IOException e) {
+            // Client is gone already
+        }
+        appendMessage("Connection from " + clientSocket.getInetAddress().getHostAddress() + " rejected (server full)\n");
+    }
+
+    /**
+     * Disconnect every client and release the port
+     */
+    public void stop() {
+        isRunning = false;
+
+        // Close all client connections
+        for (ClientHandler handler : connectedUsers.values()) {
+            handler.close();
+        }
+        connectedUsers.clear();
+        rooms.clear();
+        fanout.clear();
+        blobs.clear();
+
+        if (eventLoop != null) {
+            eventLoop.stop();
+            socketWrites.add(eventLoop.getWriteCalls()); // Keep the totals once the loop is gone
+            socketBytesWritten.add(eventLoop.getBytesWritten());
+            eventLoop = null;
+        }
+
+        if (serverSocket != null && !serverSocket.isClosed()) {
+            try {
+                serverSocket.close();
+            } catch (IOException e) {
+                e.printStackTrace();
+            }
+        }
+
+        // Wait for client handlers to finish now that their sockets are closed
+        if (clientExecutor != null) {
+            clientExecutor.shutdown();
+            try {
+                if (!clientExecutor.awaitTermination(2, TimeUnit.SECONDS)) {
+                    clientExecutor.shutdownNow();
+                }
+            } catch (InterruptedException e) {
+                clientExecutor.shutdownNow();
+            }
+            clientExecutor = null;
+        }
+
+        // Stop heartbeat expiry and the monitor thread
+        heartbeats.stop();
+        if (monitorThread != null && monitorThread.isAlive()) {
+            try {
+                monitorThread.join(1000);
+            } catch (InterruptedException e) {
+                e.printStackTrace();
+            }
+        }
+
+        metrics.stop();
+        appendMessage("Presence traffic this session: " + presenceBytesSent.getAndSet(0) + " bytes\n");
+        appendMessage("Slow clients disconnected this session: " + slowClientsDisconnected.getAndSet(0) + "\n");
+        appendMessage("=== Server stopped ===\n\n");
+    }
+
+    /**
+     * Drop a user whose heartbeats stopped; runs on the heartbeat wheel thread
+     */
+    private void heartbeatExpired(ClientHandler handler) {
+        String username = handler.getUsername();
+        // Only if the mapping still points to this handler (not a newer reconnection)
+        if (!connectedUsers.remove(username, handler)) {
+            return;
+        }
+        handler.close();
+        leaveAllRooms(handler);
+        metrics.heartbeatTimeout();
+        String timestamp = new SimpleDateFormat("HH:mm:ss").format(new Date());
+        appendMessage("[" + timestamp + "] User '" + username + "' disconnected (timeout)\n");
+
+        // Notify all remaining users about the disconnection
+        String disconnectMsg = "*** " + username + " left the chat ***";
+        broadcastToAllUsers(disconnectMsg);
+
+        // Tell remaining clients to drop the user from their lists
+        broadcastPresence("USERLEAVE", username);
+    }
+
+    private void heartbeatFailed(ClientHandler handler, RuntimeException e) {
+        log.error("Closing '" + handler.getUsername() + "' after a heartbeat timeout failed: " + e);
+    }
+
+    private void broadcastToAllUsers(String message) {
+        broadcastToAllUsers(message, null);
+    }
+
+    /**
+     * @return the number of recipients
+     */
+    private int broadcastToAllUsers(String message, String excludeUser) {
+        return broadcast(connectedUsers.values(), message, excludeUser);
+    }
+
+    /**
+     * Send a text message to a group of users, e.g. everyone or a room's members
+     * @return the number of recipients
+     */
+    private int broadcast(Iterable<ClientHandler> users, String message, String excludeUser) {
+        int recipients = 0;
+        for (ClientHandler handler : users) {
+            // Skip sending to the excluded user (sender)
+            if (excludeUser != null && handler.getUsername().equals(excludeUser)) {
+                continue;
+            }
+
+            try {
+                handler.sendMessage(message);
+                recipients++;
+            } catch (IOException e) {
+                log.error("Error sending to " + handler.getUsername() + ": " + e.getMessage());
+            }
+        }
+        return recipients;
+    }
+
+    /**
+     * Relay a binary media frame to a group of users (everyone or a room) except the sender; binary
+     * clients get the frame bytes in the addressing they understand, legacy text clients get it
+     * converted once to a text chunk line
+     * @param congested receives the recipients whose outbound queue is backlogged
+     * @return the number of recipients
+     */
+    private int broadcastFrame(Iterable<ClientHandler> users, BinaryFrame frame, int excludeId, List<ClientHandler> congested) {
+        int recipients = 0;
+        for (ClientHandler handler : users) {
+            if (handler.userId == excludeId) {
+                continue;
+            }
+
+            try {
+                handler.sendFrame(frame);
+                recipients++;
+                if (handler.isCongested()) {
+                    congested.add(handler);
+                }
+            } catch (IOException e) {
+                log.error("Error sending to " + handler.getUsername() + ": " + e.getMessage());
+            }
+        }
+        return recipients;
+    }
+
+    /**
+     * Send the current user list snapshot to one client: USERLIST:version|user1,user2,...
+     * Clients that address users by id get id=user entries instead, and text clients the
+     * unversioned USERLIST:user1,user2,... they were built for
+     */
+    private void sendUserList(ClientHandler handler) {
+        if (!handler.isBinary()) {
+            sendPresence(handler, legacyUserList());
+            return;
+        }
+        // Read the version before the names: any change racing with this snapshot arrives
+        // afterwards as a delta with a higher version, and deltas are idempotent on the client
+        long version = presenceVersion.get();
+        boolean withIds = handler.addressesById();
+        StringBuilder userListBuilder = new StringBuilder("USERLIST:").append(version).append('|');
+        int prefixLength = userListBuilder.length();
+
+        for (String username : connectedUsers.keySet()) {
+            if (userListBuilder.length() > prefixLength) {
+                userListBuilder.append(",");
+            }
+            if (withIds) {
+                userListBuilder.append(connectedUsers.idOf(username)).append('=');
+            }
+            userListBuilder.append(username);
+        }
+
+        sendPresence(handler, userListBuilder.toString());
+    }
+
+    /**
+     * Unversioned user list for text clients, which know neither versions nor deltas: USERLIST:user1,user2,...
+     */
+    private String legacyUserList() {
+        StringBuilder userListBuilder = new StringBuilder("USERLIST:");
+        for (String username : connectedUsers.keySet()) {
+            if (userListBuilder.length() > 9) {
+                userListBuilder.append(",");
+            }
+            userListBuilder.append(username);
+        }
+        return userListBuilder.toString();
+    }
+
+    /**
+     * Announce a join/leave to every other client: USERJOIN:version:username or USERLEAVE:version:username,
+     * with id=username for clients that address users by id. Text clients get the whole unversioned
+     * list instead, as before deltas existed. Must be called after connectedUsers has been updated
+     */
+    private void broadcastPresence(String event, String username) {
+        String versionedEvent = event + ":" + presenceVersion.incrementAndGet() + ":";
+        String nameMsg = versionedEvent + username;
+        String idMsg = versionedEvent + connectedUsers.idOf(username) + "=" + username;
+        String legacyMsg = null; // Built for the first text client
+
+        for (ClientHandler handler : connectedUsers.values()) {
+            if (username.equals(handler.getUsername())) {
+                continue;
+            }
+            if (!handler.isBinary()) {
+                if (legacyMsg == null) {
+                    legacyMsg = legacyUserList();
+                }
+                sendPresence(handler, legacyMsg);
+            } else {
+                sendPresence(handler, handler.addressesById() ? idMsg : nameMsg);
+            }
+        }
+    }
+
+    private void sendPresence(ClientHandler handler, String message) {
+        try {
+            handler.sendMessage(message);
+            presenceBytesSent.addAndGet(message.length() + 1);
+        } catch (IOException e) {
+            log.error("Error sending presence update to " + handler.getUsername() + ": " + e.getMessage());
+        }
+    }
+
+    /**
+     * Take a user out of every room it joined and tell the remaining members
+     */
+    private void leaveAllRooms(ClientHandler handler) {
+        for (Rooms.Room<ClientHandler> room : rooms.leaveAll(handler)) {
+            broadcast(room.getMembers(), "*** " + handler.getUsername() + " left " + room.getName() + " ***", null);
+        }
+    }
+
+    /**
+     * Room name with its id for clients that address users (and rooms) by id: id=#room
+     */
+    private String roomEntry(ClientHandler handler, Rooms.Room<ClientHandler> room) {
+        return handler.addressesById() ? room.getId() + "=" + room.getName() : room.getName();
+    }
+
+    private void appendMessage(String message) {
+        log.log(message);
+    }
+
+    /**
+     * A client socket's output stream that counts the writes reaching it
+     */
+    private class CountedOutputStream extends FilterOutputStream {
+        CountedOutputStream(OutputStream out) {
+            super(out);
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) throws IOException {
+            out.write(b, off, len);
+            socketWrites.increment();
+            socketBytesWritten.add(len);
+        }
+    }
+
+    // Inner class to handle each client connection
+    private class ClientHandler implements Runnable, MediaFanout.Recipient {
+        private Socket socket;
+        private OutputStream out; // Buffered socket output, carrying text lines or BinaryFrames
+        private OutboundQueue outbound; // Blocking modes: messages waiting for this client's writer task
+        private int version; // BinaryFrame version from the client's preamble, 0 for text clients
+        private TCPEventLoop.Connection connection; // Set instead of socket in NIO mode
+        private final AtomicLong droppedMedia = new AtomicLong(); // NIO mode; the OutboundQueue counts its own
+        private volatile boolean overflowed = false; // Disconnected for falling behind
+        private String username;
+        private volatile int userId = UserIds.NONE; // Interned at CONNECT
+        private volatile HeartbeatWheel.Timeout<ClientHandler> expiry; // Set once the user connected
+        private long receivedAt; // System.nanoTime() when the message being handled was read
+        private final ProtocolLine line = new ProtocolLine(); // Reused for every text line this client sends
+
+        ClientHandler(Socket socket) {
+            this.socket = socket;
+            this.outbound = new OutboundQueue(OutboundQueue.DEFAULT_CAPACITY, overflowPolicy);
+        }
+
+        ClientHandler(TCPEventLoop.Connection connection) {
+            this.connection = connection;
+        }
+
+        String getUsername() {
+            return username;
+        }
+
+        String getRemoteAddress() {
+            if (connection != null) {
+                return connection.getRemoteAddress();
+            }
+            return socket.getInetAddress().getHostAddress() + ":" + socket.getPort();
+        }
+
+        void updateLastSeen() {
+            HeartbeatWheel.Timeout<ClientHandler> current = expiry;
+            if (current != null) {
+                current.touch();
+            }
+        }
+
+        /**
+         * Track this user's heartbeats from now on, with the interval the client asked for
+         * @param requestedInterval the client's KEEPALIVE parameter, or null to use the default without replying
+         */
+        void startHeartbeat(String requestedInterval) {
+            long interval = HeartbeatWheel.negotiateInterval(requestedInterval);
+            stopHeartbeat();
+            expiry = heartbeats.schedule(this, interval * HeartbeatWheel.MISSED_HEARTBEATS);
+            if (requestedInterval != null) {
+                try {
+                    sendMessage("KEEPALIVE:" + interval + "|" + expiry.getTimeout());
+                } catch (IOException e) {
+                    log.error("Error sending heartbeat parameters to " + username + ": " + e.getMessage());
+                }
+            }
+        }
+
+        void stopHeartbeat() {
+            HeartbeatWheel.Timeout<ClientHandler> current = expiry;
+            if (current != null) {
+                current.cancel();
+            }
+        }
+
+        boolean isBinary() {
+            return connection != null ? connection.isBinary() : version > 0;
+        }
+
+        /**
+         * Check whether this client reads frames addressed by user id (BinaryFrame version 2)
+         */
+        boolean addressesById() {
+            return (connection != null ? connection.getVersion() : version) >= 2;
+        }
+
+        /**
+         * Check whether this client's outbound queue is backlogged
+         */
+        @Override
+        public boolean isCongested() {
+            if (connection != null) {
+                return connection.isBacklogged(OUTBOUND_HIGH_WATERMARK);
+            }
+            return outbound.isBacklogged(OUTBOUND_HIGH_WATERMARK);
+        }
+
+        /**
+         * Run an action once this client's outbound queue has drained
+         */
+        @Override
+        public void whenDrained(Runnable action) {
+            if (connection != null) {
+                connection.whenDrained(action);
+            } else {
+                outbound.whenDrained(action);
+            }
+        }
+
+        long getQueuedBytes() {
+            return connection != null ? connection.getQueuedBytes() : outbound.getQueuedBytes();
+        }
+
+        long getDroppedMedia() {
+            return connection != null ? droppedMedia.get() : outbound.getDroppedMedia();
+        }
+
+        void sendMessage(String message) throws IOException {
+            metrics.sent(ServerMetrics.MessageType.ofOutgoing(message), message.length() + 1);
+            if (connection != null) {
+                if (admitToConnection(message.length() + 1, false)) {
+                    connection.send(message);
+                }
+            } else {
+                enqueue(version > 0 ? BinaryFrame.encodeText(message) : (message + "\n").getBytes(), false);
+            }
+        }
+
+        /**
+         * Forward a media frame, as frame bytes to binary clients or as a text chunk line to legacy clients;
+         * each encoding is built at most once per frame and the same array is written to every recipient
+         */
+        @Override
+        public void sendFrame(BinaryFrame frame) throws IOException {
+            byte[] bytes = isBinary() ? frame.getData(addressesById()) : frame.toLegacyBytes();
+            metrics.sent(ServerMetrics.MessageType.ofFrame(frame.type), bytes.length);
+            sendBytes(bytes, true);
+        }
+
+        private void sendBytes(byte[] bytes, boolean media) throws IOException {
+            if (connection != null) {
+                if (admitToConnection(bytes.length, media)) {
+                    connection.sendFrame(bytes);
+                }
+            } else {
+                enqueue(bytes, media);
+            }
+        }
+
+        /**
+         * Hand a message to this client's writer task; never waits on the socket, and only
+         * waits for queue room under the BLOCK policy
+         */
+        private void enqueue(byte[] bytes, boolean media) throws IOException {
+            try {
+                if (!outbound.offer(bytes, media)) {
+                    disconnectSlowClient();
+                }
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new InterruptedIOException("Interrupted waiting for room in " + username + "'s outbound queue");
+            }
+        }
+
+        /**
+         * Apply the overflow policy to the event loop's queue, which can neither block nor evict:
+         * when it is full, media chunks are dropped (BLOCK behaves like DROP_MEDIA, since the event
+         * loop must never wait) and anything else disconnects the client
+         * @return true if the message should be queued
+         */
+        private boolean admitToConnection(int length, boolean media) {
+            if (connection.getQueuedBytes() + length <= OutboundQueue.DEFAULT_CAPACITY) {
+                return true;
+            }
+            if (media && overflowPolicy != OutboundQueue.OverflowPolicy.DISCONNECT) {
+                droppedMedia.incrementAndGet();
+                return false;
+            }
+            disconnectSlowClient();
+            return false;
+        }
+
+        private void disconnectSlowClient() {
+            if (overflowed) {
+                return;
+            }
+            overflowed = true;
+            slowClientsDisconnected.incrementAndGet();
+            appendMessage("Disconnecting slow client '" + username + "': outbound queue full ("
+                    + FileTransfer.getFileSizeString(getQueuedBytes()) + " queued, policy: " + overflowPolicy + ")\n");
+            close();
+        }
+
+        /**
+         * Start the writer task that drains the outbound queue to the socket
+         */
+        private void startWriter() throws IOException {
+            out = new BufferedOutputStream(new CountedOutputStream(socket.getOutputStream()), WRITE_BUFFER_SIZE);
+            try {
+                clientExecutor.execute(this::writeLoop);
+            } catch (RejectedExecutionException e) {
+                throw new IOException("Server is shutting down");
+            }
+        }
+
+        /**
+         * Write queued messages in order, coalesced in the output buffer and flushed once the queue
+         * is empty; the only thread that writes to this client's socket
+         */
+        private void writeLoop() {
+            try {
+                byte[] bytes;
+                while ((bytes = outbound.take()) != null) {
+                    out.write(bytes);
+                    if (outbound.isEmpty()) {
+                        out.flush(); // One flush per burst instead of per message
+                    }
+                }
+            } catch (IOException e) {
+                close(); // The reader sees the closed socket and cleans up
+            } catch (InterruptedException e) {
+                close();
+            }
+        }
+
+        @Override
+        public boolean isClosed() {
+            return connection != null ? connection.isClosed() : outbound.isClosed();
+        }
+
+        void close() {
+            stopHeartbeat();
+            if (username != null) {
+                fanout.cancel(username); // An upload cut off with its connection never completes
+            }
+            if (connection != null) {
+                connection.close();
+                return;
+            }
+            outbound.close();
+            try {
+                if (socket != null && !socket.isClosed()) {
+                    socket.close();
+                }
+            } catch (IOException e) {
+                e.printStackTrace();
+            }
+        }
+
+        @Override
+        public void run() {
+            try {
+                // Sniff the protocol: binary clients open with the BinaryFrame preamble
+                BufferedInputStream input = new BufferedInputStream(socket.getInputStream());
+                input.mark(2);
+                if (input.read() == (BinaryFrame.MAGIC & 0xFF)) {
+                    int preambleVersion = input.read();
+                    if (!BinaryFrame.isSupported(preambleVersion)) {
+                        return; // Unsupported framing version
+                    }
+                    DataInputStream binaryIn = new DataInputStream(input);
+                    version = preambleVersion;
+                    startWriter();
+
+                    byte[] frame;
+                    while ((frame = BinaryFrame.readFrame(binaryIn)) != null) {
+                        if (!handleFrame(frame)) {
+                            break; // Exit the handler loop
+                        }
+                    }
+                    return;
+                }
+                input.reset();
+
+                LineReader in = new LineReader(input);
+                startWriter();
+
+                byte[] line;
+                while ((line = in.readLine()) != null) {
+                    if (!handleLine(line)) {
+                        break; // Exit the handler loop
+                    }
+                }
+            } catch (SocketException e) {
+                // Connection reset or closed
+                connectionLost();
+            } catch (IOException e) {
+                if (isRunning && username != null) {
+                    log.error("Error handling client " + username + ": " + e.getMessage());
+                }
+            } finally {
+                close();
+            }
+        }
+
+        /**
+         * Remove this handler after its connection dropped without a DISCONNECT message
+         */
+        void connectionLost() {
+            stopHeartbeat();
+            // Only remove the mapping if it still points to this handler (not a newer reconnection)
+            if (username != null && connectedUsers.remove(username, this)) {
+                leaveAllRooms(this);
+                String timestamp = new SimpleDateFormat("HH:mm:ss").format(new Date());
+                appendMessage("[" + timestamp + "] User '" + username + "' disconnected (connection lost)\n");
+
+                String leaveMsg = "*** " + username + " left the chat ***";
+                broadcastToAllUsers(leaveMsg);
+                broadcastPresence("USERLEAVE", username);
+            }
+        }
+
+        /**
+         * Process one binary frame; returns false when the client asked to disconnect
+         */
+        boolean handleFrame(byte[] data) {
+            receivedAt = System.nanoTime();
+            updateLastSeen(); // Any traffic proves the client is alive
+            BinaryFrame frame;
+            try {
+                frame = BinaryFrame.parse(data, 0);
+            } catch (IOException e) {
+                log.error("Dropping malformed frame from " + getRemoteAddress() + ": " + e.getMessage());
+                return true;
+            }
+
+            if (frame.isText()) {
+                line.parse(frame.data, frame.payloadOffset, frame.payloadLength, StandardCharsets.UTF_8);
+                return handleMessage(line);
+            }
+            if (frame.isMedia()) {
+                metrics.received(ServerMetrics.MessageType.ofFrame(frame.type), data.length);
+                relayMediaFrame(frame);
+            }
+            return true;
+        }
+
+        /**
+         * Process one raw text line; it is parsed in place, and media chunks are relayed straight
+         * from the line bytes. Returns false when the client asked to disconnect
+         */
+        boolean handleLine(byte[] bytes) {
+            receivedAt = System.nanoTime();
+            updateLastSeen(); // Any traffic proves the client is alive
+            line.parse(bytes, 0, bytes.length - 1, BinaryFrame.LEGACY_CHARSET);
+            return handleMessage(line);
+        }
+
+        /**
+         * Process one parsed protocol line; returns false when the client asked to disconnect
+         */
+        boolean handleMessage(ProtocolLine message) {
+            ServerMetrics.MessageType type = ServerMetrics.MessageType.of(message);
+            if (!type.isMedia()) {
+                metrics.received(type, message.getLength() + 1); // Text chunks are counted once parsed in relayLegacyChunk
+            }
+
+            switch (message.getType()) {
+                // HEARTBEAT:username needs no handling: clients only send it when idle, and
+                // handleLine/handleFrame already refreshed this connection's deadline
+
+                // Handle user list snapshot request: GETUSERS:username
+                case GETUSERS:
+                    sendUserList(this);
+                    break;
+                // Handle connection message: CONNECT:username[|KEEPALIVE:heartbeat interval in ms]
+                case CONNECT:
+                    return handleConnect(message.getArgument(), message.get(ProtocolLine.Field.KEEPALIVE));
+                // Handle disconnection message: DISCONNECT:username
+                case DISCONNECT:
+                    handleDisconnect(message.getArgument());
+                    return false; // Exit the handler loop
+                // Handle image/file/voice chunks sent as text
+                case IMGCHUNK:
+                case FILECHUNK:
+                case VOICECHUNK:
+                    relayLegacyChunk(message);
+                    break;
+                // Handle room membership: JOIN:#room|FROM:username or LEAVE:#room|FROM:username
+                case JOIN:
+                case LEAVE:
+                    String room = message.getArgument();
+                    if (username != null && Rooms.isRoom(room)) {
+                        if (message.getType() == ProtocolLine.Type.JOIN) {
+                            joinRoom(room);
+                        } else {
+                            leaveRoom(room);
+                        }
+                    }
+                    break;
+                // Handle content offer before an upload: OFFER|SESSION:id|TYPE:type|HASH:sha256|SIZE:n|...|FROM:sender
+                case OFFER:
+                    handleOffer(message.toString());
+                    break;
+                // Parse private message format: TO:recipient|FROM:sender|MSG:message (recipient #room for a room)
+                case TO:
+                    if (message.has(ProtocolLine.Field.FROM) && message.has(ProtocolLine.Field.MSG)) {
+                        relayPrivateMessage(message.get(ProtocolLine.Field.TO), message.get(ProtocolLine.Field.FROM),
+                                message.get(ProtocolLine.Field.MSG));
+                    }
+                    break;
+                // Parse message format: FROM:username|MSG:message
+                case FROM:
+                    if (message.has(ProtocolLine.Field.MSG)) {
+                        relayChatMessage(message.get(ProtocolLine.Field.FROM), message.get(ProtocolLine.Field.MSG));
+                    }
+                    break;
+                default:
+                    break;
+            }
+            return true;
+        }
+
+        /**
+         * Register this connection under a username; returns false when the name is refused
+         */
+        private boolean handleConnect(String name, String requestedInterval) {
+            if (Rooms.isRoom(name)) {
+                try {
+                    sendMessage("*** Usernames cannot start with " + Rooms.PREFIX + " ***");
+                } catch (IOException e) {
+                    // Closing anyway
+                }
+                return false;
+            }
+            username = name;
+            userId = connectedUsers.intern(username);
+            ClientHandler existingHandler = connectedUsers.get(username);
+            if (existingHandler == null) {
+                connectedUsers.put(username, this);
+                startHeartbeat(requestedInterval);
+                String timestamp = new SimpleDateFormat("HH:mm:ss").format(new Date());
+                appendMessage("[" + timestamp + "] User '" + username + "' connected from " +
+                        getRemoteAddress() + "\n");
+
+                // Notify all users about the new connection
+                String joinMsg = "*** " + username + " joined the chat ***";
+                broadcastToAllUsers(joinMsg);
+
+                // Snapshot for the new user, delta for everyone else
+                sendUserList(this);
+                broadcastPresence("USERJOIN", username);
+            } else {
+                // Update existing user's connection info (reconnection); rooms are joined again by the client
+                existingHandler.close();
+                leaveAllRooms(existingHandler);
+                connectedUsers.put(username, this);
+                startHeartbeat(requestedInterval);
+
+                String timestamp = new SimpleDateFormat("HH:mm:ss").format(new Date());
+                appendMessage("[" + timestamp + "] User '" + username + "' reconnected\n");
+
+                // Notify about reconnection
+                String reconnectMsg = "*** " + username + " reconnected ***";
+                broadcastToAllUsers(reconnectMsg);
+
+                // The reconnected client starts from a fresh snapshot
+                sendUserList(this);
+                broadcastPresence("USERJOIN", username);
+            }
+            return true;
+        }
+
+        /**
+         * Drop a user that said goodbye and tell everyone else
+         */
+        private void handleDisconnect(String user) {
+            ClientHandler removed = connectedUsers.remove(user);
+            if (removed != null) {
+                leaveAllRooms(removed);
+                String timestamp = new SimpleDateFormat("HH:mm:ss").format(new Date());
+                appendMessage("[" + timestamp + "] User '" + user + "' disconnected\n");
+
+                // Notify all users about the disconnection
+                String leaveMsg = "*** " + user + " left the chat ***";
+                broadcastToAllUsers(leaveMsg);
+
+                // Tell remaining clients to drop the user from their lists
+                broadcastPresence("USERLEAVE", user);
+            }
+        }
+
+        /**
+         * Relay a private message to its recipient, or to a room's members when it names a room
+         */
+        private void relayPrivateMessage(String recipient, String sender, String msgContent) {
+            if (Rooms.isRoom(recipient)) {
+                relayRoomMessage(recipient, sender, msgContent);
+                return;
+            }
+            String timestamp = new SimpleDateFormat("HH:mm:ss").format(new Date());
+            appendMessage("[" + timestamp + "] PRIVATE from " + sender + " to " + recipient + ": " + msgContent + "\n");
+
+            // Send private message only to the recipient
+            ClientHandler recipientHandler = connectedUsers.get(recipient);
+            if (recipientHandler != null) {
+                try {
+                    String privateMsg = "PRIVATE:" + sender + "|MSG:" + msgContent;
+                    recipientHandler.sendMessage(privateMsg);
+                } catch (IOException e) {
+                    log.error("Error sending private message to " + recipient + ": " + e.getMessage());
+                }
+            } else {
+                appendMessage("[" + timestamp + "] Recipient '" + recipient + "' not found or offline\n");
+            }
+            metrics.relayed(recipientHandler != null ? 1 : 0, receivedAt);
+        }
+
+        /**
+         * Broadcast a chat line to every connected user except the sender
+         */
+        private void relayChatMessage(String user, String msgContent) {
+            String timestamp = new SimpleDateFormat("HH:mm:ss").format(new Date());
+            appendMessage("[" + timestamp + "] FROM " + user + ": " + msgContent + "\n");
+
+            // Broadcast message to all connected users except the sender
+            String broadcastMsg = user + ": " + msgContent;
+            metrics.relayed(broadcastToAllUsers(broadcastMsg, user), receivedAt);
+        }
+
+        /**
+         * Join a room: the joiner gets ROOMJOINED:#room|member1,member2,... and the other members a notice
+         */
+        private void joinRoom(String name) {
+            Rooms.Room<ClientHandler> room = rooms.join(name, connectedUsers.intern(name), this);
+            if (room == null) {
+                return; // Already a member
+            }
+            String timestamp = new SimpleDateFormat("HH:mm:ss").format(new Date());
+            appendMessage("[" + timestamp + "] User '" + username + "' joined " + name + "\n");
+
+            StringBuilder joined = new StringBuilder("ROOMJOINED:").append(roomEntry(this, room)).append('|');
+            int prefixLength = joined.length();
+            for (ClientHandler member : room.getMembers()) {
+                if (joined.length() > prefixLength) {
+                    joined.append(',');
+                }
+                if (addressesById()) {
+                    joined.append(member.userId).append('=');
+                }
+                joined.append(member.getUsername());
+            }
+            try {
+                sendMessage(joined.toString());
+            } catch (IOException e) {
+                log.error("Error sending room members to " + username + ": " + e.getMessage());
+            }
+            broadcast(room.getMembers(), "*** " + username + " joined " + name + " ***", username);
+        }
+
+        private void leaveRoom(String name) {
+            Rooms.Room<ClientHandler> room = rooms.leave(name, this);
+            if (room == null) {
+                return; // Not a member
+            }
+            String timestamp = new SimpleDateFormat("HH:mm:ss").format(new Date());
+            appendMessage("[" + timestamp + "] User '" + username + "' left " + name + "\n");
+            try {
+                sendMessage("ROOMLEFT:" + name);
+            } catch (IOException e) {
+                log.error("Error confirming room leave to " + username + ": " + e.getMessage());
+            }
+            broadcast(room.getMembers(), "*** " + username + " left " + name + " ***", null);
+        }
+
+        /**
+         * Relay a chat line to the members of a room as ROOM:#room|FROM:sender|MSG:message;
+         * only members may post, and the line is built once for all of them
+         */
+        private void relayRoomMessage(String name, String sender, String msgContent) {
+            Rooms.Room<ClientHandler> room = rooms.get(name);
+            String timestamp = new SimpleDateFormat("HH:mm:ss").format(new Date());
+            if (room == null || !rooms.isMember(name, this)) {
+                appendMessage("[" + timestamp + "] " + sender + " is not in room '" + name + "'\n");
+                return;
+            }
+            appendMessage("[" + timestamp + "] " + name + " " + sender + ": " + msgContent + "\n");
+            String roomMsg = "ROOM:" + name + "|FROM:" + sender + "|MSG:" + msgContent;
+            metrics.relayed(broadcast(room.getMembers(), roomMsg, sender), receivedAt);
+        }
+
+        /**
+         * Answer a sender's offer: content already in the blob store is streamed from there to the
+         * transfer's audience (OFFER:HAVE); otherwise the upload is asked for (OFFER:SEND) and collected,
+         * so it is stored as well
+         */
+        private void handleOffer(String message) {
+            BlobOffer offer = BlobOffer.parse(message);
+            if (offer == null || username == null) {
+                return;
+            }
+            BinaryFrame header = offer.header;
+            header.resolve(connectedUsers.getIds());
+            byte[] content = blobs.get(offer.hash);
+            boolean have = content != null && content.length == offer.size;
+            if (have) {
+                MediaBlob blob = new MediaBlob(offer.hash, content, header);
+                List<ClientHandler> recipients = recipientsOf(header);
+                have = fanout.deliver(blob, recipients);
+                if (have) {
+                    log.sample("FAN-OUT " + blob.getSize() + " stored bytes from " + header.sender + " to "
+                            + recipients.size() + " recipient(s), sha256 " + offer.hash.substring(0, 12));
+                    metrics.relayed(recipients.size(), receivedAt);
+                }
+            }
+            if (!have) {
+                fanout.expect(header);
+            }
+            try {
+                sendMessage((have ? BlobOffer.HAVE : BlobOffer.SEND) + Long.toHexString(header.sessionId));
+            } catch (IOException e) {
+                log.error("Error answering offer from " + username + ": " + e.getMessage());
+            }
+        }
+
+        /**
+         * Relay a text chunk line: only the routing header is parsed, legacy recipients get the original bytes
+         */
+        private void relayLegacyChunk(ProtocolLine line) {
+            BinaryFrame frame = BinaryFrame.parseLegacyChunk(line);
+            if (frame != null) {
+                metrics.received(ServerMetrics.MessageType.ofFrame(frame.type), line.getLength() + 1);
+                relayMediaFrame(frame);
+            }
+        }
+
+        /**
+         * Route an IMAGE/FILE/VOICE frame by its header only; the payload is only converted
+         * (once) when the sender and a recipient use different framings or addressing
+         */
+        private void relayMediaFrame(BinaryFrame frame) {
+            List<ClientHandler> congested = new ArrayList<>();
+            if (!frame.resolve(connectedUsers.getIds())) {
+                log.error("Dropping chunk from " + getRemoteAddress() + ": unknown user id");
+                acknowledgeChunk(frame, congested); // Keep the sender's window moving
+                return;
+            }
+            String kind = frame.type == BinaryFrame.TYPE_IMAGE ? "IMAGE"
+                    : frame.type == BinaryFrame.TYPE_FILE ? "FILE" : "VOICE";
+            String details = frame.type == BinaryFrame.TYPE_FILE ? " [" + frame.name + "]" : "";
+            boolean room = frame.isPrivate() && Rooms.isRoom(frame.recipient);
+            String scope = room ? "ROOM" : frame.isPrivate() ? "PRIVATE" : "BROADCAST";
+            log.sample(scope + " " + kind + " CHUNK from " + frame.sender
+                    + (frame.isPrivate() ? " to " + frame.recipient : "") + details);
+
+            // Group uploads, and offered private ones, are collected and streamed from the server;
+            // other private chunks are routed straight on by the recipient's id, an array read
+            Iterable<ClientHandler> audience = audienceOf(frame);
+            boolean collect = room || !frame.isPrivate() || fanout.isExpected(frame);
+            if (!collect || !fanOut(frame)) {
+                metrics.relayed(broadcastFrame(audience, frame, frame.senderId, congested), receivedAt);
+            }
+
+            acknowledgeChunk(frame, congested);
+        }
+
+        /**
+         * Users a media transfer reaches: a room's members when the sender is one of them, the one
+         * private recipient, or everyone; may include the sender
+         */
+        private Iterable<ClientHandler> audienceOf(BinaryFrame frame) {
+            if (frame.isPrivate() && Rooms.isRoom(frame.recipient)) {
+                Rooms.Room<ClientHandler> room = rooms.get(frame.recipientId);
+                return room != null && rooms.isMember(room.getName(), this)
+                        ? room.getMembers() : Collections.<ClientHandler>emptyList();
+            }
+            if (frame.isPrivate()) {
+                ClientHandler recipient = connectedUsers.get(frame.recipientId);
+                return recipient != null ? Collections.singletonList(recipient) : Collections.<ClientHandler>emptyList();
+            }
+            return connectedUsers.values();
+        }
+
+        /**
+         * The audience of a transfer without its sender
+         */
+        private List<ClientHandler> recipientsOf(BinaryFrame frame) {
+            List<ClientHandler> recipients = new ArrayList<>();
+            for (ClientHandler handler : audienceOf(frame)) {
+                if (handler.userId != frame.senderId) {
+                    recipients.add(handler);
+                }
+            }
+            return recipients;
+        }
+
+        /**
+         * Collect a chunk into its upload, and once the upload is complete stream the blob to the
+         * transfer's audience and keep it in the blob store; the relay metrics are recorded once per blob
+         * @return false when the chunk must be relayed directly instead (see MediaFanout.collect)
+         */
+        private boolean fanOut(BinaryFrame frame) {
+            MediaFanout.Upload upload;
+            try {
+                upload = fanout.collect(frame);
+            } catch (IOException e) {
+                log.error("Dropping chunk from " + frame.sender + ": " + e.getMessage());
+                return true;
+            }
+            if (upload == null) {
+                return false;
+            }
+            if (upload.isComplete()) {
+                List<ClientHandler> recipients = recipientsOf(frame);
+                MediaBlob blob = fanout.deliver(upload, recipients);
+                if (blob != null) {
+                    log.sample("FAN-OUT " + blob.getSize() + " bytes from " + frame.sender + " to " + recipients.size()
+                            + " recipient(s), sha256 " + blob.getHash().substring(0, 12));
+                    metrics.relayed(recipients.size(), receivedAt);
+                    if (blob.getSize() <= BlobStore.MAX_BLOB_SIZE) {
+                        blobs.put(blob.getHash(), blob.getContent());
+                    }
+                }
+            }
+            return true;
+        }
+
+        /**
+         * Acknowledge a relayed chunk to a binary sender (flow control). While a recipient is backlogged
+         * the ACK is held until it drains, so the sender's window stalls instead of server memory growing
+         */
+        private void acknowledgeChunk(BinaryFrame frame, List<ClientHandler> congested) {
+            if (!isBinary()) {
+                return; // Legacy senders pace themselves
+            }
+            byte[] ack = BinaryFrame.encodeAck(frame.sessionId, frame.chunkIndex + 1, new byte[0]);
+            AtomicInteger pending = new AtomicInteger(congested.size() + 1);
+            Runnable release = () -> {
+                if (pending.decrementAndGet() == 0) {
+                    try {
+                        metrics.sent(ServerMetrics.MessageType.ACK, ack.length);
+                        sendBytes(ack, false);
+                    } catch (IOException e) {
+                        // Sender is gone, nothing to throttle
+                    }
+                }
+            };
+            for (ClientHandler recipient : congested) {
+                recipient.whenDrained(release);
+            }
+            release.run();
+        }
+    }
+
+    /**
+     * Run the server without a window: java TCPServerCore [--port N] [--mode threads|virtual|nio]
+     * [--max-clients N] [--overflow drop-media|disconnect|block] [--log-level error|info|debug] [--metrics-port N]
+     */
+    public static void main(String[] args) {
+        long launched = System.nanoTime();
+        int port = 9876;
+        Mode mode = Mode.THREADS;
+        int maxClients = 10000;
+        OutboundQueue.OverflowPolicy overflowPolicy = OutboundQueue.OverflowPolicy.DROP_MEDIA;
+        ServerLog.Level level = ServerLog.Level.INFO;
+        int metricsPort = ServerMetrics.DEFAULT_PORT;
+        try {
+            for (int i = 0; i < args.length; i++) {
+                String option = args[i];
+                String value = i + 1 < args.length ? args[++i] : "";
+                switch (option) {
+                    case "--port":
+                        port = Integer.parseInt(value);
+                        break;
+                    case "--mode":
+                        mode = Mode.valueOf(value.toUpperCase());
+                        break;
+                    case "--max-clients":
+                        maxClients = Integer.parseInt(value);
+                        break;
+                    case "--overflow":
+                        overflowPolicy = OutboundQueue.OverflowPolicy.valueOf(value.toUpperCase().replace('-', '_'));
+                        break;
+                    case "--log-level":
+                        level = ServerLog.Level.valueOf(value.toUpperCase());
+                        break;
+                    case "--metrics-port":
+                        metricsPort = Integer.parseInt(value);
+                        break;
+                    default:
+                        throw new IllegalArgumentException("Unknown option " + option);
+                }
+            }
+        } catch (IllegalArgumentException e) {
+            System.err.println(e.getMessage());
+            System.err.println("Usage: java TCPServerCore [--port N] [--mode threads|virtual|nio] [--max-clients N]"
+                    + " [--overflow drop-media|disconnect|block] [--log-level error|info|debug] [--metrics-port N]");
+            System.exit(2);
+        }
+
+        ServerLog log = new ServerLog(level);
+        TCPServerCore server = new TCPServerCore(port, mode, maxClients, overflowPolicy, log);
+        server.setMetricsPort(metricsPort);
+        try {
+            server.start();
+        } catch (IOException e) {
+            System.err.println("Could not start server: " + e.getMessage());
+            System.exit(1);
+        }
+        log.attachConsole(System.out);
+        System.out.println("Listening on port " + server.getPort() + " (" + mode + ", up to " + maxClients + " clients, "
+                + overflowPolicy + ") - ready in " + (System.nanoTime() - launched) / 1000000 + " ms, "
+                + ProcessHandle.current().info().startInstant()
+                        .map(started -> Duration.between(started, Instant.now()).toMillis() + " ms since JVM launch")
+                        .orElse("JVM launch time unknown"));
+
+        Runtime.getRuntime().addShutdownHook(new Thread(() -> {
+            server.stop();
+            System.out.print(log.drain());
+        }));
+    }
+}
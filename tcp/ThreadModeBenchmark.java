@@ -0,0 +1,108 @@
+import java.io.*;
+import java.lang.management.ManagementFactory;
+import java.net.*;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * ThreadModeBenchmark - Connection capacity benchmark for the TCPServer execution modes
+ * Opens N loopback connections, parks one blocking reader per connection on the chosen
+ * executor (same pattern as ClientHandler) and reports memory and threads per connection
+ *
+ * Usage: java ThreadModeBenchmark [connections] [platform|virtual]
+ */
+public class ThreadModeBenchmark {
+    public static void main(String[] args) throws Exception {
+        int connections = args.length > 0 ? Integer.parseInt(args[0]) : 2000;
+        boolean virtual = args.length > 1 && args[1].equalsIgnoreCase("virtual");
+
+        if (virtual && !VirtualThreads.isSupported()) {
+            System.out.println("Virtual threads need Java 21+, measuring pooled platform threads instead");
+        }
+
+        System.gc();
+        long heapBefore = usedHeap();
+        long rssBefore = residentSetSize();
+        int threadsBefore = Thread.activeCount();
+
+        ExecutorService executor = VirtualThreads.newPerTaskExecutor("bench-client-", virtual);
+        List<Socket> clientSockets = new ArrayList<>();
+        CountDownLatch started = new CountDownLatch(connections);
+        int connected = 0;
+        long startTime = System.nanoTime();
+
+        try (ServerSocket serverSocket = new ServerSocket(0, connections)) {
+            for (int i = 0; i < connections; i++) {
+                try {
+                    clientSockets.add(new Socket(InetAddress.getLoopbackAddress(), serverSocket.getLocalPort()));
+                    Socket accepted = serverSocket.accept();
+                    executor.execute(() -> {
+                        try (BufferedReader in = new BufferedReader(new InputStreamReader(accepted.getInputStream()))) {
+                            started.countDown();
+                            while (in.readLine() != null) {
+                                // Idle connection, block like ClientHandler waiting for the next line
+                            }
+                        } catch (IOException e) {
+                            // Connection closed at the end of the run
+                        }
+                    });
+                    connected++;
+                } catch (IOException | OutOfMemoryError e) {
+                    System.out.println("Stopped at " + connected + " connections: " + e);
+                    break;
+                }
+            }
+
+            started.await(30, TimeUnit.SECONDS);
+            long elapsedMs = (System.nanoTime() - startTime) / 1_000_000;
+
+            System.gc();
+            long heapAfter = usedHeap();
+            long rssAfter = residentSetSize();
+            int threadsAfter = Thread.activeCount();
+
+            System.out.println("=== Thread mode benchmark (" + (virtual ? "virtual" : "platform") + " threads) ===");
+            System.out.println("Connected users:       " + connected + " in " + elapsedMs + " ms");
+            System.out.println("Platform threads:      " + (threadsAfter - threadsBefore));
+            System.out.println("Heap per connection:   " + perConnection(heapAfter - heapBefore, connected));
+            if (rssBefore > 0) {
+                System.out.println("RSS per connection:    " + perConnection(rssAfter - rssBefore, connected));
+            }
+        } finally {
+            for (Socket socket : clientSockets) {
+                socket.close();
+            }
+            executor.shutdown();
+            executor.awaitTermination(5, TimeUnit.SECONDS);
+        }
+    }
+
+    private static String perConnection(long bytes, int connections) {
+        return connections == 0 ? "n/a" : (bytes / connections) + " bytes";
+    }
+
+    private static long usedHeap() {
+        return ManagementFactory.getMemoryMXBean().getHeapMemoryUsage().getUsed();
+    }
+
+    /**
+     * Resident set size from /proc (Linux only), includes thread stacks; 0 when unavailable
+     */
+    private static long residentSetSize() {
+        try {
+            for (String line : Files.readAllLines(Paths.get("/proc/self/status"))) {
+                if (line.startsWith("VmRSS:")) {
+                    return Long.parseLong(line.replaceAll("[^0-9]", "")) * 1024;
+                }
+            }
+        } catch (IOException | NumberFormatException e) {
+            // Not on Linux
+        }
+        return 0;
+    }
+}
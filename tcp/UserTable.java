@@ -0,0 +1,116 @@
+import java.util.Collection;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+/**
+ * UserTable - Connected users, by username and by interned user id
+ * Joins, leaves and name lookups go through a map as before; frames addressed by user id are
+ * routed with an array read instead of hashing and comparing a username string per message.
+ * Updates are serialized (they only happen on connect and disconnect), lookups never lock.
+ */
+public class UserTable<V> {
+    private final UserIds ids = new UserIds();
+    private final ConcurrentHashMap<String, V> byName = new ConcurrentHashMap<>();
+    private volatile AtomicReferenceArray<V> byId = new AtomicReferenceArray<>(64);
+
+    public UserIds getIds() {
+        return ids;
+    }
+
+    /**
+     * Id of a username, interning it if it never connected before
+     */
+    public int intern(String name) {
+        return ids.intern(name);
+    }
+
+    public int idOf(String name) {
+        return ids.idOf(name);
+    }
+
+    public String nameOf(int id) {
+        return ids.nameOf(id);
+    }
+
+    public V get(String name) {
+        return byName.get(name);
+    }
+
+    /**
+     * Connected user with the given id, or null
+     */
+    public V get(int id) {
+        AtomicReferenceArray<V> current = byId;
+        return id > UserIds.NONE && id < current.length() ? current.get(id) : null;
+    }
+
+    public synchronized V put(String name, V value) {
+        setById(ids.intern(name), value);
+        return byName.put(name, value);
+    }
+
+    public synchronized V putIfAbsent(String name, V value) {
+        V existing = byName.putIfAbsent(name, value);
+        if (existing == null) {
+            setById(ids.intern(name), value);
+        }
+        return existing;
+    }
+
+    public synchronized V remove(String name) {
+        V removed = byName.remove(name);
+        if (removed != null) {
+            setById(ids.idOf(name), null);
+        }
+        return removed;
+    }
+
+    /**
+     * Remove a user only if it is still mapped to the given value (not a newer reconnection)
+     */
+    public synchronized boolean remove(String name, V value) {
+        if (!byName.remove(name, value)) {
+            return false;
+        }
+        setById(ids.idOf(name), null);
+        return true;
+    }
+
+    public boolean containsKey(String name) {
+        return byName.containsKey(name);
+    }
+
+    public int size() {
+        return byName.size();
+    }
+
+    public Set<String> keySet() {
+        return byName.keySet();
+    }
+
+    public Collection<V> values() {
+        return byName.values();
+    }
+
+    /**
+     * Disconnect everyone; interned ids are kept
+     */
+    public synchronized void clear() {
+        byName.clear();
+        byId = new AtomicReferenceArray<>(byId.length());
+    }
+
+    private void setById(int id, V value) {
+        AtomicReferenceArray<V> current = byId;
+        if (id >= current.length()) {
+            AtomicReferenceArray<V> grown = new AtomicReferenceArray<>(Math.max(id + 1, current.length() * 2));
+            for (int i = 0; i < current.length(); i++) {
+                grown.set(i, current.get(i));
+            }
+            current = grown;
+            byId = grown;
+        }
+        current.set(id, value);
+    }
+}
@@ -0,0 +1,59 @@
+import java.lang.reflect.Method;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * VirtualThreads - Executor factory for per-connection tasks
+ * Uses virtual threads when the running JDK provides them (Java 21+) and falls back
+ * to a cached pool of platform threads otherwise, so the code still builds on older JDKs
+ */
+public class VirtualThreads {
+    private static final ThreadFactory VIRTUAL_FACTORY = createVirtualFactory();
+
+    /**
+     * Check whether the running JDK can create virtual threads
+     */
+    public static boolean isSupported() {
+        return VIRTUAL_FACTORY != null;
+    }
+
+    /**
+     * Create an executor that runs every submitted task on its own thread
+     * @param namePrefix thread name prefix, e.g. "tcp-client-"
+     * @param virtual true for virtual threads (if supported), false for platform threads
+     */
+    public static ExecutorService newPerTaskExecutor(String namePrefix, boolean virtual) {
+        if (virtual && VIRTUAL_FACTORY != null) {
+            try {
+                Method method = Executors.class.getMethod("newThreadPerTaskExecutor", ThreadFactory.class);
+                return (ExecutorService) method.invoke(null, namedFactory(VIRTUAL_FACTORY, namePrefix));
+            } catch (ReflectiveOperationException e) {
+                // Fall through to platform threads
+            }
+        }
+        return Executors.newCachedThreadPool(namedFactory(Executors.defaultThreadFactory(), namePrefix));
+    }
+
+    private static ThreadFactory namedFactory(ThreadFactory delegate, String namePrefix) {
+        AtomicInteger counter = new AtomicInteger();
+        return task -> {
+            Thread thread = delegate.newThread(task);
+            thread.setName(namePrefix + counter.incrementAndGet());
+            thread.setDaemon(true);
+            return thread;
+        };
+    }
+
+    private static ThreadFactory createVirtualFactory() {
+        try {
+            // Thread.ofVirtual().factory() through the public Thread.Builder interface
+            Object builder = Thread.class.getMethod("ofVirtual").invoke(null);
+            Class<?> builderType = Class.forName("java.lang.Thread$Builder");
+            return (ThreadFactory) builderType.getMethod("factory").invoke(builder);
+        } catch (ReflectiveOperationException | RuntimeException e) {
+            return null;
+        }
+    }
+}
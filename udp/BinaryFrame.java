@@ -0,0 +1,474 @@
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.Base64;
+
+/**
+ * BinaryFrame - Versioned length-prefixed binary framing for the chat protocol
+ * Media chunks carry raw payload bytes instead of Base64 text, and chat/control lines
+ * travel as TEXT frames so a binary connection uses a single framing in both directions
+ *
+ * Every binary datagram starts with the preamble MAGIC, VERSION followed by one frame.
+ * The first byte can never start a text message, so the server sniffs each datagram
+ * to tell both protocols apart. Version 2 senders also accept frames addressed by user
+ * id (FLAG_IDS); version 1 senders only ever receive frames addressed by username.
+ * Version 3 datagrams may carry several frames back to back (see DatagramBatch).
+ *
+ * Frame layout (big-endian):
+ *   int    frame length (bytes after this field)
+ *   byte   type (TEXT, IMAGE, FILE, VOICE, ACK, NACK), high bit set on retransmitted chunks,
+ *          FLAG_IDS set when users are addressed by id
+ *   long   session id
+ *   int    chunk index
+ *   int    total chunks
+ *   short  sender length, UTF-8 sender            or, with FLAG_IDS:  int sender id
+ *   short  recipient length, UTF-8 recipient          int recipient id
+ *          (empty / UserIds.NONE for broadcast)
+ *   short  name length, UTF-8 name (file name for FILE frames)
+ *   int    payload length, payload bytes
+ */
+public class BinaryFrame {
+    public static final byte MAGIC = (byte) 0xB1;
+    public static final byte VERSION = 3; // Highest framing version this side speaks
+    public static final byte MIN_VERSION = 1;
+    public static final int MAX_FRAME_LENGTH = 16 * 1024 * 1024;
+
+    public static final byte TYPE_TEXT = 1;
+    public static final byte TYPE_IMAGE = 2;
+    public static final byte TYPE_FILE = 3;
+    public static final byte TYPE_VOICE = 4;
+    public static final byte TYPE_ACK = 5; // Flow control: chunk index = cumulative ACK, payload = selective bitmap
+    public static final byte TYPE_NACK = 6; // Reliability: sender = requester, recipient = original sender, payload = missing indexes
+    public static final byte FLAG_RETRANSMIT = (byte) 0x80; // Type bit of a chunk resent in answer to a NACK
+    public static final byte FLAG_IDS = 0x40; // Type bit: sender and recipient are interned user ids (version 2)
+    public static final int MAX_NACK_INDEXES = 64; // Chunks requested per NACK, bounding the resulting burst
+
+    // Payload bytes per media chunk; fits a datagram in a typical MTU and is a multiple
+    // of 3 so each chunk Base64-encodes without padding for legacy receivers
+    public static final int CHUNK_SIZE = 1200;
+    // Most chunks a media transfer can have, that of the largest streamed file; bounds the
+    // state a receiver keeps per transfer for a chunk index taken from the wire
+    public static final int MAX_CHUNKS = FileTransfer.chunkCount(FileTransfer.MAX_STREAM_SIZE, CHUNK_SIZE);
+
+    public byte type;
+    public long sessionId;
+    public int chunkIndex;
+    public int totalChunks;
+    public String sender;
+    public String recipient;
+    public int senderId; // UserIds.NONE until known
+    public int recipientId;
+    public boolean ids; // data addresses users by id rather than by name
+    public String name;
+    public boolean retransmit; // Resent to one recipient in answer to its NACK
+    public int version = VERSION; // Preamble version of the datagram the frame was parsed from
+    public byte[] data; // Datagram bytes from index 0, preamble and length prefix included
+    public int datagramLength; // Bytes of data that are the datagram; the array may be a longer receive buffer
+    public int payloadOffset;
+    public int payloadLength;
+    public BinaryFrame next; // Next frame of the same batched datagram, or null
+    private byte[] readdressed; // data with the other addressing, shared by all recipients that need it
+    private String legacyLine; // Computed once per relayed frame, shared by all legacy recipients
+
+    /**
+     * Check whether a preamble version is one this side can read
+     */
+    public static boolean isSupported(int version) {
+        return version >= MIN_VERSION && version <= VERSION;
+    }
+
+    /**
+     * Prefix an encoded frame with the preamble, producing the datagram payload
+     */
+    public static byte[] toDatagram(byte[] frame) {
+        byte[] datagram = new byte[2 + frame.length];
+        datagram[0] = MAGIC;
+        datagram[1] = VERSION;
+        System.arraycopy(frame, 0, datagram, 2, frame.length);
+        return datagram;
+    }
+
+    /**
+     * Encode a chat/control line as a complete TEXT datagram
+     */
+    public static byte[] encodeTextDatagram(String line) {
+        return toDatagram(encodeText(line));
+    }
+
+    /**
+     * Encode UTF-8 line bytes, e.g. a relayed line still in its receive buffer, as a complete TEXT datagram
+     */
+    public static byte[] encodeTextDatagram(byte[] line, int offset, int length) {
+        return toDatagram(encode(TYPE_TEXT, 0, 0, 1, null, null, null, line, offset, length));
+    }
+
+    /**
+     * Wrap a plain text datagram from a legacy client as a version 0 TEXT frame, referencing its bytes in place
+     */
+    public static BinaryFrame ofTextDatagram(byte[] data, int length) {
+        BinaryFrame frame = new BinaryFrame();
+        frame.type = TYPE_TEXT;
+        frame.version = 0;
+        frame.data = data;
+        frame.datagramLength = length;
+        frame.payloadLength = length;
+        return frame;
+    }
+
+    /**
+     * Encode a frame, returning its bytes including the length prefix
+     */
+    public static byte[] encode(byte type, long sessionId, int chunkIndex, int totalChunks,
+                                String sender, String recipient, String name,
+                                byte[] payload, int offset, int length) {
+        return encode(type, sessionId, chunkIndex, totalChunks, utf8(sender), utf8(recipient), 0, 0,
+                name, payload, offset, length);
+    }
+
+    /**
+     * Encode a frame addressed by user id (version 2 peers only)
+     * @param recipientId UserIds.NONE for broadcast
+     */
+    public static byte[] encode(byte type, long sessionId, int chunkIndex, int totalChunks,
+                                int senderId, int recipientId, String name,
+                                byte[] payload, int offset, int length) {
+        return encode((byte) (type | FLAG_IDS), sessionId, chunkIndex, totalChunks, null, null, senderId, recipientId,
+                name, payload, offset, length);
+    }
+
+    /**
+     * @param senderBytes UTF-8 sender, or null to write the ids instead
+     */
+    private static byte[] encode(byte type, long sessionId, int chunkIndex, int totalChunks,
+                                 byte[] senderBytes, byte[] recipientBytes, int senderId, int recipientId,
+                                 String name, byte[] payload, int offset, int length) {
+        byte[] nameBytes = utf8(name);
+        int addressLength = senderBytes != null ? 2 + senderBytes.length + 2 + recipientBytes.length : 4 + 4;
+        int frameLength = 1 + 8 + 4 + 4 + addressLength + 2 + nameBytes.length + 4 + length;
+
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream(4 + frameLength);
+        try (DataOutputStream out = new DataOutputStream(bytes)) {
+            out.writeInt(frameLength);
+            out.writeByte(type);
+            out.writeLong(sessionId);
+            out.writeInt(chunkIndex);
+            out.writeInt(totalChunks);
+            if (senderBytes != null) {
+                out.writeShort(senderBytes.length);
+                out.write(senderBytes);
+                out.writeShort(recipientBytes.length);
+                out.write(recipientBytes);
+            } else {
+                out.writeInt(senderId);
+                out.writeInt(recipientId);
+            }
+            out.writeShort(nameBytes.length);
+            out.write(nameBytes);
+            out.writeInt(length);
+            out.write(payload, offset, length);
+        } catch (IOException e) {
+            throw new UncheckedIOException(e); // Cannot happen with an in-memory stream
+        }
+        return bytes.toByteArray();
+    }
+
+    /**
+     * Encode a flow-control ACK for a media transfer
+     * @param cumulative every chunk below this index has been received
+     * @param selective bit i set when chunk cumulative + 1 + i has been received (may be empty)
+     */
+    public static byte[] encodeAck(long sessionId, int cumulative, byte[] selective) {
+        return encode(TYPE_ACK, sessionId, cumulative, 0, null, null, null, selective, 0, selective.length);
+    }
+
+    /**
+     * Write a complete ACK datagram into a buffer, e.g. a pooled direct one, with the same bytes as
+     * toDatagram(encodeAck(...)) but without allocating them
+     * @param selective bit i set when chunk cumulative + 1 + i has been received
+     */
+    public static void writeAckDatagram(ByteBuffer out, long sessionId, int cumulative, long selective) {
+        out.put(MAGIC).put(VERSION);
+        out.putInt(1 + 8 + 4 + 4 + 2 + 2 + 2 + 4 + 8);
+        out.put(TYPE_ACK).putLong(sessionId).putInt(cumulative).putInt(0);
+        out.putShort((short) 0).putShort((short) 0).putShort((short) 0); // No sender, recipient or name
+        out.putInt(8).putLong(Long.reverseBytes(selective)); // Bitmap byte k holds bits 8k to 8k + 7
+    }
+
+    /**
+     * Encode a NACK asking the original sender of a transfer to resend the listed chunks
+     * @param requester user missing the chunks
+     * @param sender user who sent the transfer; the server routes the NACK to them
+     */
+    public static byte[] encodeNack(long sessionId, String requester, String sender, int[] missing) {
+        byte[] payload = nackPayload(missing);
+        return encode(TYPE_NACK, sessionId, 0, 0, requester, sender, null, payload, 0, payload.length);
+    }
+
+    /**
+     * Encode a NACK addressed by user id (version 2 peers only)
+     */
+    public static byte[] encodeNack(long sessionId, int requesterId, int senderId, int[] missing) {
+        byte[] payload = nackPayload(missing);
+        return encode(TYPE_NACK, sessionId, 0, 0, requesterId, senderId, null, payload, 0, payload.length);
+    }
+
+    private static byte[] nackPayload(int[] missing) {
+        ByteArrayOutputStream indexes = new ByteArrayOutputStream(missing.length * 4);
+        try (DataOutputStream out = new DataOutputStream(indexes)) {
+            for (int index : missing) {
+                out.writeInt(index);
+            }
+        } catch (IOException e) {
+            throw new UncheckedIOException(e); // Cannot happen with an in-memory stream
+        }
+        return indexes.toByteArray();
+    }
+
+    /**
+     * Encode a chat/control line as a TEXT frame
+     */
+    public static byte[] encodeText(String line) {
+        byte[] payload = line.getBytes(StandardCharsets.UTF_8);
+        return encode(TYPE_TEXT, 0, 0, 1, null, null, null, payload, 0, payload.length);
+    }
+
+    /**
+     * Offset just past the frame that starts at offset, where the next frame of a batched
+     * datagram starts; -1 when no complete frame starts there
+     */
+    public static int frameEnd(byte[] data, int offset, int end) {
+        if (end - offset < 4) {
+            return -1;
+        }
+        int frameLength = ((data[offset] & 0xff) << 24) | ((data[offset + 1] & 0xff) << 16)
+                | ((data[offset + 2] & 0xff) << 8) | (data[offset + 3] & 0xff);
+        return frameLength > 0 && frameLength <= end - offset - 4 ? offset + 4 + frameLength : -1;
+    }
+
+    /**
+     * Parse every frame of a received binary datagram, preamble included. A version 3 datagram
+     * may carry several: the first is parsed in place and the others are copied into datagrams
+     * of their own, so each one can still be relayed as received
+     * @return the first frame, the others chained through next
+     */
+    public static BinaryFrame parseDatagram(byte[] datagram, int length) throws IOException {
+        if (datagram[1] < DatagramBatch.MIN_VERSION) {
+            BinaryFrame frame = parse(datagram, 2, length - 2);
+            frame.version = datagram[1];
+            return frame;
+        }
+        BinaryFrame first = null;
+        BinaryFrame last = null;
+        for (int offset = 2; offset < length || first == null; ) {
+            int end = frameEnd(datagram, offset, length);
+            if (end < 0) {
+                throw new IOException("Truncated frame at offset " + offset);
+            }
+            BinaryFrame frame;
+            if (first == null) {
+                frame = parse(datagram, offset, end - offset);
+                first = frame;
+            } else {
+                byte[] own = new byte[2 + end - offset];
+                own[0] = MAGIC;
+                own[1] = datagram[1];
+                System.arraycopy(datagram, offset, own, 2, end - offset);
+                frame = parse(own, 2, own.length - 2);
+                last.next = frame;
+            }
+            frame.version = datagram[1];
+            last = frame;
+            offset = end;
+        }
+        return first;
+    }
+
+    /**
+     * Parse the header of a frame; the payload is referenced in place, not copied or decoded
+     */
+    public static BinaryFrame parse(byte[] data, int offset) throws IOException {
+        return parse(data, offset, data.length - offset);
+    }
+
+    /**
+     * Parse a frame from the first length bytes at offset, e.g. a datagram in a reused receive
+     * buffer; the frame is only valid until that buffer is overwritten
+     */
+    public static BinaryFrame parse(byte[] data, int offset, int length) throws IOException {
+        try {
+            DataInputStream in = new DataInputStream(new ByteArrayInputStream(data, offset, length));
+            BinaryFrame frame = new BinaryFrame();
+            frame.data = data;
+            frame.datagramLength = offset + length;
+            int frameLength = in.readInt();
+            if (frameLength <= 0 || frameLength > length - 4) {
+                throw new IOException("Invalid frame length: " + frameLength);
+            }
+            byte type = in.readByte();
+            frame.type = (byte) (type & ~(FLAG_RETRANSMIT | FLAG_IDS));
+            frame.retransmit = (type & FLAG_RETRANSMIT) != 0;
+            frame.ids = (type & FLAG_IDS) != 0;
+            frame.sessionId = in.readLong();
+            frame.chunkIndex = in.readInt();
+            frame.totalChunks = in.readInt();
+            if (frame.isMedia() && (frame.totalChunks <= 0 || frame.totalChunks > MAX_CHUNKS
+                    || frame.chunkIndex < 0 || frame.chunkIndex >= frame.totalChunks)) {
+                throw new IOException("Invalid chunk " + frame.chunkIndex + " of " + frame.totalChunks);
+            }
+            if (frame.ids) {
+                frame.senderId = in.readInt();
+                frame.recipientId = in.readInt();
+            } else {
+                frame.sender = readString(in);
+                frame.recipient = readString(in);
+            }
+            frame.name = readString(in);
+            frame.payloadLength = in.readInt();
+            frame.payloadOffset = offset + length - in.available();
+            if (frame.payloadLength < 0 || frame.payloadLength > in.available()) {
+                throw new IOException("Truncated frame payload");
+            }
+            return frame;
+        } catch (EOFException e) {
+            throw new IOException("Truncated frame header");
+        }
+    }
+
+    public boolean isText() {
+        return type == TYPE_TEXT;
+    }
+
+    public boolean isMedia() {
+        return type == TYPE_IMAGE || type == TYPE_FILE || type == TYPE_VOICE;
+    }
+
+    public boolean isPrivate() {
+        return recipientId != UserIds.NONE || (recipient != null && !recipient.isEmpty());
+    }
+
+    /**
+     * Fill in the addressing the frame did not carry (names from ids or ids from names), so it
+     * can be relayed to peers using either
+     * @return false when the frame carries a user id the table does not know
+     */
+    public boolean resolve(UserIds users) {
+        if (ids) {
+            sender = users.nameOf(senderId);
+            recipient = recipientId != UserIds.NONE ? users.nameOf(recipientId) : null;
+            return sender != null && (recipientId == UserIds.NONE || recipient != null);
+        }
+        senderId = users.idOf(sender);
+        recipientId = isPrivate() ? users.idOf(recipient) : UserIds.NONE;
+        return true;
+    }
+
+    /**
+     * Get the datagram addressed by id (for version 2 recipients) or by name; the other addressing
+     * is encoded at most once per frame, after resolve(). A frame whose users have no id yet stays
+     * addressed by name, which version 2 recipients read as well
+     */
+    public byte[] getDatagram(boolean withIds) {
+        if (withIds == ids || (withIds && (senderId == UserIds.NONE || (isPrivate() && recipientId == UserIds.NONE)))) {
+            return data;
+        }
+        if (readdressed == null) {
+            byte wireType = retransmit ? (byte) (type | FLAG_RETRANSMIT) : type;
+            readdressed = toDatagram(withIds
+                    ? encode(wireType, sessionId, chunkIndex, totalChunks, senderId, recipientId, name, data, payloadOffset, payloadLength)
+                    : encode(wireType, sessionId, chunkIndex, totalChunks, sender, recipient, name, data, payloadOffset, payloadLength));
+        }
+        return readdressed;
+    }
+
+    /**
+     * Number of bytes of getDatagram(withIds) that make up the datagram
+     */
+    public int getDatagramLength(boolean withIds) {
+        byte[] datagram = getDatagram(withIds);
+        return datagram == data ? datagramLength : datagram.length;
+    }
+
+    public String getText() {
+        return new String(data, payloadOffset, payloadLength, StandardCharsets.UTF_8);
+    }
+
+    /**
+     * Chunk indexes listed in a NACK payload
+     */
+    public int[] getNackIndexes() {
+        int[] indexes = new int[payloadLength / 4];
+        for (int i = 0; i < indexes.length; i++) {
+            int at = payloadOffset + i * 4;
+            indexes[i] = ((data[at] & 0xff) << 24) | ((data[at + 1] & 0xff) << 16)
+                    | ((data[at + 2] & 0xff) << 8) | (data[at + 3] & 0xff);
+        }
+        return indexes;
+    }
+
+    public byte[] getPayload() {
+        byte[] payload = new byte[payloadLength];
+        System.arraycopy(data, payloadOffset, payload, 0, payloadLength);
+        return payload;
+    }
+
+    /**
+     * Render this frame in the legacy text protocol for clients that did not negotiate binary framing
+     */
+    public String toLegacyLine() {
+        if (legacyLine != null) {
+            return legacyLine;
+        }
+        if (isText()) {
+            legacyLine = getText();
+            return legacyLine;
+        }
+
+        StringBuilder line = new StringBuilder();
+        switch (type) {
+            case TYPE_IMAGE:
+                line.append("IMGCHUNK");
+                break;
+            case TYPE_FILE:
+                line.append("FILECHUNK");
+                break;
+            default:
+                line.append("VOICECHUNK");
+                break;
+        }
+        line.append("|SESSION:").append(Long.toHexString(sessionId))
+                .append("|CHUNK:").append(chunkIndex)
+                .append("|TOTAL:").append(totalChunks);
+        if (type == TYPE_FILE) {
+            line.append("|FILENAME:").append(name);
+        }
+        if (isPrivate()) {
+            line.append("|TO:").append(recipient);
+        }
+        line.append("|FROM:").append(sender)
+                .append("|DATA:").append(Base64.getEncoder().encodeToString(getPayload()));
+        legacyLine = line.toString();
+        return legacyLine;
+    }
+
+    /**
+     * Parse a legacy hexadecimal session id, falling back to a hash for non-numeric ids
+     */
+    public static long parseSessionId(String sessionId) {
+        try {
+            return Long.parseUnsignedLong(sessionId, 16);
+        } catch (NumberFormatException e) {
+            return sessionId.hashCode();
+        }
+    }
+
+    private static byte[] utf8(String value) {
+        return value == null ? new byte[0] : value.getBytes(StandardCharsets.UTF_8);
+    }
+
+    private static String readString(DataInputStream in) throws IOException {
+        int length = in.readUnsignedShort();
+        byte[] bytes = new byte[length];
+        in.readFully(bytes);
+        return new String(bytes, StandardCharsets.UTF_8);
+    }
+}
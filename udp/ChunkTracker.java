@@ -0,0 +1,109 @@
+import java.util.Arrays;
+import java.util.BitSet;
+
+/**
+ * ChunkTracker - Tracks the chunks of one incoming media transfer and decides when to NACK the rest
+ * Missing chunks are requested again from the original sender instead of letting the transfer
+ * expire; a transfer is given up only after repeated NACKs go unanswered or it stays idle too long
+ */
+public class ChunkTracker {
+    public static final int MAX_NACKS = 8; // NACK rounds without a new chunk before the transfer is abandoned
+
+    private final long sessionId;
+    private final String sender;
+    private final int totalChunks;
+    private final long idleTimeout;
+    private final BitSet received = new BitSet();
+    private int receivedCount = 0;
+    private int highestReceived = -1;
+    private long lastActivity = System.currentTimeMillis();
+    private long lastNack = 0;
+    private int unansweredNacks = 0;
+
+    public ChunkTracker(long sessionId, String sender, int totalChunks, long idleTimeout) {
+        this.sessionId = sessionId;
+        this.sender = sender;
+        this.totalChunks = totalChunks;
+        this.idleTimeout = idleTimeout;
+    }
+
+    /**
+     * Record an arriving chunk
+     * @return false if the index is out of range or the chunk was already received
+     */
+    public boolean markReceived(int index) {
+        if (index < 0 || index >= totalChunks || received.get(index)) {
+            return false;
+        }
+        received.set(index);
+        receivedCount++;
+        highestReceived = Math.max(highestReceived, index);
+        lastActivity = System.currentTimeMillis();
+        unansweredNacks = 0;
+        return true;
+    }
+
+    /**
+     * Round trip from the last NACK to this retransmitted chunk, or -1 when it is not a clean sample
+     * (no NACK outstanding, or the NACK was repeated so the answer is ambiguous)
+     */
+    public long nackRoundTrip(long now) {
+        return lastNack > 0 && unansweredNacks == 1 ? now - lastNack : -1;
+    }
+
+    /**
+     * Missing chunk indexes to request now, or null when nothing should be requested yet.
+     * While chunks keep arriving only holes behind the newest chunk are requested; once the
+     * transfer goes quiet the missing tail is requested too. Repeated NACKs back off exponentially.
+     */
+    public int[] nextNack(long now, long timeout, int maxIndexes) {
+        if (isComplete()) {
+            return null;
+        }
+        long backoff = timeout << Math.min(unansweredNacks, 6);
+        if (now - lastNack < backoff) {
+            return null;
+        }
+        boolean idle = now - lastActivity >= backoff;
+        int limit = idle ? totalChunks : highestReceived;
+
+        int[] missing = new int[maxIndexes];
+        int count = 0;
+        for (int i = received.nextClearBit(0); i < limit && count < maxIndexes; i = received.nextClearBit(i + 1)) {
+            missing[count++] = i;
+        }
+        if (count == 0) {
+            return null;
+        }
+        lastNack = now;
+        unansweredNacks++;
+        return Arrays.copyOf(missing, count);
+    }
+
+    public boolean isComplete() {
+        return receivedCount == totalChunks;
+    }
+
+    /**
+     * Give up: the sender stopped answering NACKs, or nothing arrived for the idle timeout
+     */
+    public boolean isExpired() {
+        return unansweredNacks > MAX_NACKS || System.currentTimeMillis() - lastActivity > idleTimeout;
+    }
+
+    public long getSessionId() {
+        return sessionId;
+    }
+
+    public String getSender() {
+        return sender;
+    }
+
+    public int getTotalChunks() {
+        return totalChunks;
+    }
+
+    public int getReceivedCount() {
+        return receivedCount;
+    }
+}
@@ -0,0 +1,117 @@
+import java.nio.ByteBuffer;
+
+/**
+ * DatagramBatch - Several frames bound for one peer, coalesced into a single datagram
+ * Every frame starts with its own length, so from framing version 3 a datagram may carry frames
+ * back to back after one preamble and the receiver walks them with BinaryFrame.frameEnd. A burst
+ * of small frames (ACKs, NACKs, chat, presence and notice lines) then costs one packet and one
+ * send call instead of one each. Media chunks nearly fill a datagram on their own, so only
+ * datagrams of at most half a batch start one; anything larger flushes what is pending (keeping
+ * the order) and is sent alone. A batch holds at most MAX_BYTES, one MTU-safe datagram by
+ * default, and its owner sends it when the next frame does not fit, when its burst of sends
+ * ends, or at the latest LINGER_MILLIS after its first frame.
+ */
+public class DatagramBatch {
+    public static final byte MIN_VERSION = 3; // Framing version from which peers read batched datagrams
+    public static final int MAX_BYTES = Math.min(DatagramBufferPool.BUFFER_SIZE,
+            Integer.getInteger("chat.udpBatchBytes", DatagramBufferPool.BUFFER_SIZE)); // Largest batched datagram
+    public static final long LINGER_MILLIS = Long.getLong("chat.batchLingerMillis", 2); // Longest a batched frame waits
+
+    private final ByteBuffer buffer;
+    private int frames = 0;
+    private long startedAt; // System.nanoTime() when the first frame was added
+
+    /**
+     * @param buffer an empty buffer of at least MAX_BYTES, e.g. from a DatagramBufferPool
+     */
+    public DatagramBatch(ByteBuffer buffer) {
+        this.buffer = buffer;
+        reset();
+    }
+
+    /**
+     * Check whether a datagram is small enough to wait in a batch for more frames
+     */
+    public static boolean isSmall(int datagramLength) {
+        return datagramLength <= MAX_BYTES / 2;
+    }
+
+    /**
+     * Append the frame of an encoded datagram, its bytes after the preamble
+     * @return false when it does not fit; the batch is unchanged
+     */
+    public boolean add(byte[] datagram, int length) {
+        if (!fits(length)) {
+            return false;
+        }
+        started();
+        buffer.put(datagram, 2, length - 2);
+        return true;
+    }
+
+    /**
+     * Append the frame of the datagram in a buffer's remaining bytes; the buffer's position is
+     * kept, so the same datagram can be batched or sent for other recipients too
+     * @return false when it does not fit; the batch is unchanged
+     */
+    public boolean add(ByteBuffer datagram) {
+        if (!fits(datagram.remaining())) {
+            return false;
+        }
+        started();
+        int start = datagram.position();
+        datagram.position(start + 2);
+        buffer.put(datagram);
+        datagram.position(start);
+        return true;
+    }
+
+    public boolean isEmpty() {
+        return frames == 0;
+    }
+
+    public int getFrameCount() {
+        return frames;
+    }
+
+    /**
+     * Check whether the first frame has waited LINGER_MILLIS
+     */
+    public boolean isDue(long now) {
+        return frames > 0 && now - startedAt >= LINGER_MILLIS * 1_000_000;
+    }
+
+    /**
+     * Nanoseconds until isDue, 0 when it already is
+     */
+    public long nanosUntilDue(long now) {
+        return Math.max(0, startedAt + LINGER_MILLIS * 1_000_000 - now);
+    }
+
+    /**
+     * The batched datagram, ready to send; call reset() before adding to the batch again
+     */
+    public ByteBuffer finish() {
+        buffer.flip();
+        return buffer;
+    }
+
+    /**
+     * Empty the batch for the next burst
+     */
+    public void reset() {
+        buffer.clear();
+        buffer.put(BinaryFrame.MAGIC).put(BinaryFrame.VERSION);
+        frames = 0;
+    }
+
+    private boolean fits(int datagramLength) {
+        return datagramLength > 2 && buffer.position() + datagramLength - 2 <= MAX_BYTES;
+    }
+
+    private void started() {
+        if (frames++ == 0) {
+            startedAt = System.nanoTime();
+        }
+    }
+}
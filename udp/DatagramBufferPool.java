@@ -0,0 +1,83 @@
+import java.nio.ByteBuffer;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * DatagramBufferPool - Direct buffers for outgoing datagrams, reused instead of allocated per send
+ * A heap array passed to DatagramChannel.send is wrapped in a new ByteBuffer and copied into a
+ * native buffer on every call. A datagram fanned out to many users is instead copied once into a
+ * pooled direct buffer that is sent to each of them, and ACKs are written straight into one.
+ * Buffers hold BUFFER_SIZE bytes, a media chunk with its header in one 1500-byte Ethernet frame;
+ * larger datagrams are sent from a heap buffer as before. The free list is a bounded array queue,
+ * so taking and returning a buffer allocates nothing either.
+ */
+public class DatagramBufferPool {
+    public static final int BUFFER_SIZE = 1472; // 1500-byte MTU minus the IPv4 and UDP headers
+    public static final int MAX_POOLED = Integer.getInteger("chat.udpPooledBuffers", 256); // Free buffers kept
+
+    private final ArrayBlockingQueue<ByteBuffer> free = new ArrayBlockingQueue<>(MAX_POOLED);
+    private final LongAdder allocated = new LongAdder();
+
+    /**
+     * Take an empty buffer of BUFFER_SIZE bytes to write a datagram into
+     */
+    public ByteBuffer acquire() {
+        ByteBuffer buffer = free.poll();
+        if (buffer == null) {
+            allocated.increment();
+            buffer = ByteBuffer.allocateDirect(BUFFER_SIZE);
+        }
+        return buffer;
+    }
+
+    /**
+     * Take a buffer holding a copy of an encoded datagram, ready to send; a datagram larger than
+     * BUFFER_SIZE is wrapped instead of copied
+     */
+    public ByteBuffer acquire(byte[] datagram) {
+        return acquire(datagram, datagram.length);
+    }
+
+    /**
+     * Take a buffer holding a copy of the first length bytes of an array
+     */
+    public ByteBuffer acquire(byte[] datagram, int length) {
+        return acquire(datagram, 0, length);
+    }
+
+    /**
+     * Take a buffer holding a copy of length bytes at offset, e.g. a line relayed from its receive array
+     */
+    public ByteBuffer acquire(byte[] datagram, int offset, int length) {
+        if (length > BUFFER_SIZE) {
+            return ByteBuffer.wrap(datagram, offset, length);
+        }
+        ByteBuffer buffer = acquire();
+        buffer.put(datagram, offset, length).flip();
+        return buffer;
+    }
+
+    /**
+     * Return a buffer once every send from it finished; null and wrapped buffers are ignored
+     */
+    public void release(ByteBuffer buffer) {
+        if (buffer != null && buffer.isDirect() && buffer.capacity() == BUFFER_SIZE) {
+            buffer.clear();
+            free.offer(buffer); // Dropped when the pool is full
+        }
+    }
+
+    /**
+     * Buffers waiting to be reused
+     */
+    public int getPooled() {
+        return free.size();
+    }
+
+    /**
+     * Direct buffers allocated because the pool was empty; flat once the pool warmed up
+     */
+    public long getAllocated() {
+        return allocated.sum();
+    }
+}
@@ -5,22 +5,24 @@ import java.awt.event.MouseEvent;
 import java.io.File;
 import java.io.IOException;
 import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
 import java.awt.Desktop;
 
 /**
  * FileLinkLabel - A custom JLabel component that displays file links
  * Users can click on the link to Save or Open the file
+ * The file content stays on disk (the sent file, or the temp file a received file was streamed into)
  */
 public class FileLink extends JLabel {
-    private byte[] fileData;
+    private File file;
     private String filename;
 
-    public FileLink(String filename, byte[] fileData) {
+    public FileLink(String filename, File file) {
         this.filename = filename;
-        this.fileData = fileData;
+        this.file = file;
 
         // Create HTML link-style text
-        String sizeStr = getFileSizeString(fileData.length);
+        String sizeStr = getFileSizeString(file.length());
         setText("<html><u><font color='blue'>" + filename + " (" + sizeStr + ")</font></u></html>");
 
         // Set pointer cursor on hover
@@ -93,7 +95,7 @@ public class FileLink extends JLabel {
             if (result == JFileChooser.APPROVE_OPTION) {
                 try {
                     File saveFile = fileChooser.getSelectedFile();
-                    Files.write(saveFile.toPath(), fileData);
+                    Files.copy(file.toPath(), saveFile.toPath(), StandardCopyOption.REPLACE_EXISTING);
                     JOptionPane.showMessageDialog(
                         parentWindow,
                         "File saved successfully to:\n" + saveFile.getAbsolutePath(),
@@ -114,15 +116,9 @@ public class FileLink extends JLabel {
 
     private void openFile() {
         try {
-            // Create temporary file
-            File tempFile = Files.createTempFile("temp_", "_" + filename).toFile();
-            Files.write(tempFile.toPath(), fileData);
-
-            // Open file with default application
+            // Open file with default application, straight from where it is stored
             if (Desktop.isDesktopSupported()) {
-                Desktop.getDesktop().open(tempFile);
-                // Schedule temp file deletion on exit
-                tempFile.deleteOnExit();
+                Desktop.getDesktop().open(file);
             } else {
                 JOptionPane.showMessageDialog(
                     SwingUtilities.getWindowAncestor(this),
@@ -1,4 +1,7 @@
 import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.StandardOpenOption;
 import java.util.Base64;
 
 /**
@@ -8,6 +11,17 @@ import java.util.Base64;
 public class FileTransfer {
     public static final int CHUNK_SIZE = 400; // 400 bytes per chunk for safe UDP transmission
     public static final int MAX_FILE_SIZE = 10 * 1024 * 1024; // 10MB max file size
+    public static final long MAX_STREAM_SIZE = 8L * 1024 * 1024 * 1024; // 8GB max for streamed file transfers
+
+    /**
+     * Receives the chunks of a streamed file in order
+     */
+    public interface ChunkHandler {
+        /**
+         * @param data reused window buffer; only the first length bytes are valid, copy them if kept
+         */
+        void onChunk(int index, int totalChunks, byte[] data, int length) throws IOException, InterruptedException;
+    }
 
     /**
      * Read file from disk and return as byte array
@@ -24,6 +38,57 @@ public class FileTransfer {
         return data;
     }
 
+    /**
+     * Read a file through a FileChannel one chunk-sized window at a time, handing each chunk
+     * to the handler as soon as it is read; memory use does not depend on the file size
+     * @return the number of chunks (at least 1, so empty files still produce a chunk)
+     */
+    public static int streamFile(File file, int chunkSize, ChunkHandler handler) throws IOException, InterruptedException {
+        try (FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.READ)) {
+            long size = channel.size();
+            if (size > MAX_STREAM_SIZE) {
+                throw new IOException("File too large! Max size is " + getFileSizeString(MAX_STREAM_SIZE));
+            }
+
+            int totalChunks = chunkCount(size, chunkSize);
+            ByteBuffer window = ByteBuffer.allocate(chunkSize);
+            for (int i = 0; i < totalChunks; i++) {
+                window.clear();
+                window.limit((int) Math.min(chunkSize, size - (long) i * chunkSize));
+                while (window.hasRemaining()) {
+                    if (channel.read(window) < 0) {
+                        throw new EOFException("File changed while it was being sent");
+                    }
+                }
+                handler.onChunk(i, totalChunks, window.array(), window.position());
+            }
+            return totalChunks;
+        }
+    }
+
+    /**
+     * Read one chunk of a file again, as streamFile produced it, e.g. to resend it
+     */
+    public static byte[] readChunk(File file, int index, int chunkSize) throws IOException {
+        try (FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.READ)) {
+            long position = (long) index * chunkSize;
+            ByteBuffer chunk = ByteBuffer.allocate((int) Math.max(0, Math.min(chunkSize, channel.size() - position)));
+            while (chunk.hasRemaining()) {
+                if (channel.read(chunk, position + chunk.position()) < 0) {
+                    throw new EOFException("File changed while it was being sent");
+                }
+            }
+            return chunk.array();
+        }
+    }
+
+    /**
+     * Number of chunks streamFile produces for a file of the given size
+     */
+    public static int chunkCount(long size, int chunkSize) {
+        return (int) Math.max(1, (size + chunkSize - 1) / chunkSize);
+    }
+
     /**
      * Write byte array to file
      */
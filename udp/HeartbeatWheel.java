@@ -0,0 +1,199 @@
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.BiConsumer;
+import java.util.function.Consumer;
+
+/**
+ * HeartbeatWheel - Hashed timing wheel that expires connections whose heartbeats stopped
+ * Each connection holds a Timeout in the slot of its deadline. A heartbeat only moves the deadline
+ * forward (O(1), no clock read: the wheel keeps a clock updated once per tick), and the wheel thread
+ * looks at one slot per tick, re-filing entries whose deadline moved and expiring the rest. Expiries
+ * are capped per tick so a mass timeout is spread over the following ticks instead of one burst.
+ */
+public class HeartbeatWheel<K> {
+    public static final long TICK = 1000; // Milliseconds per slot, the expiry resolution
+    public static final int SLOTS = 512; // Power of two; one rotation covers timeouts up to SLOTS * TICK without re-filing
+    public static final int MAX_EXPIRIES_PER_TICK = Integer.getInteger("chat.maxExpiriesPerTick", 1000);
+
+    // Negotiated heartbeat parameters: clients ask for an interval with CONNECT:username|KEEPALIVE:ms
+    public static final long DEFAULT_INTERVAL = 30000;
+    public static final long MIN_INTERVAL = 5000;
+    public static final long MAX_INTERVAL = 300000;
+    public static final int MISSED_HEARTBEATS = 2; // Timeout = interval * MISSED_HEARTBEATS
+
+    /**
+     * A scheduled expiry for one connection
+     */
+    public static final class Timeout<K> {
+        private final HeartbeatWheel<K> wheel;
+        private final K key;
+        private final long timeout;
+        private volatile long deadline;
+        private volatile boolean cancelled = false;
+
+        private Timeout(HeartbeatWheel<K> wheel, K key, long timeout) {
+            this.wheel = wheel;
+            this.key = key;
+            this.timeout = timeout;
+            touch();
+        }
+
+        /**
+         * The connection is alive: push the deadline one timeout past now
+         */
+        public void touch() {
+            // The coarse clock is up to one tick behind, so round up to never expire early
+            deadline = wheel.now + timeout + TICK;
+        }
+
+        /**
+         * Stop tracking the connection; it is dropped from its slot when the wheel reaches it
+         */
+        public void cancel() {
+            cancelled = true;
+        }
+
+        public K getKey() {
+            return key;
+        }
+
+        public long getTimeout() {
+            return timeout;
+        }
+    }
+
+    private final ConcurrentLinkedQueue<Timeout<K>>[] slots;
+    private final Consumer<K> onExpire;
+    private final BiConsumer<K, RuntimeException> onError;
+    private final AtomicInteger scheduled = new AtomicInteger();
+    private volatile long now = System.currentTimeMillis(); // Coarse clock, advanced by the wheel thread
+    private long tick; // Last processed tick; wheel thread only
+    private Thread thread;
+    private volatile boolean running = false;
+
+    /**
+     * @param onExpire called on the wheel thread for each connection whose deadline passed
+     * @param onError told when onExpire failed for a connection; the wheel keeps turning
+     */
+    public HeartbeatWheel(Consumer<K> onExpire, BiConsumer<K, RuntimeException> onError) {
+        this.onExpire = onExpire;
+        this.onError = onError;
+        @SuppressWarnings({"unchecked", "rawtypes"})
+        ConcurrentLinkedQueue<Timeout<K>>[] created = new ConcurrentLinkedQueue[SLOTS]; // Generic arrays cannot be created directly
+        this.slots = created;
+        for (int i = 0; i < SLOTS; i++) {
+            slots[i] = new ConcurrentLinkedQueue<>();
+        }
+    }
+
+    /**
+     * Clamp the heartbeat interval a client asked for
+     * @param requested milliseconds as sent by the client, or null if it did not ask
+     */
+    public static long negotiateInterval(String requested) {
+        if (requested == null) {
+            return DEFAULT_INTERVAL;
+        }
+        try {
+            return Math.max(MIN_INTERVAL, Math.min(MAX_INTERVAL, Long.parseLong(requested.trim())));
+        } catch (NumberFormatException e) {
+            return DEFAULT_INTERVAL;
+        }
+    }
+
+    public void start(String name) {
+        now = System.currentTimeMillis();
+        tick = now / TICK;
+        running = true;
+        thread = new Thread(this::run, name);
+        thread.setDaemon(true);
+        thread.start();
+    }
+
+    public void stop() {
+        running = false;
+        if (thread != null) {
+            thread.interrupt();
+            try {
+                thread.join(1000);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+            thread = null;
+        }
+        for (ConcurrentLinkedQueue<Timeout<K>> slot : slots) {
+            slot.clear();
+        }
+        scheduled.set(0);
+    }
+
+    /**
+     * Start tracking a connection that must show signs of life at least every timeout milliseconds
+     */
+    public Timeout<K> schedule(K key, long timeout) {
+        Timeout<K> entry = new Timeout<>(this, key, timeout);
+        scheduled.incrementAndGet();
+        file(entry, Math.max(entry.deadline / TICK, now / TICK + 1));
+        return entry;
+    }
+
+    /**
+     * Connections currently tracked, including cancelled ones not yet reached by the wheel
+     */
+    public int getScheduled() {
+        return scheduled.get();
+    }
+
+    private void file(Timeout<K> entry, long deadlineTick) {
+        slots[(int) (deadlineTick & (SLOTS - 1))].offer(entry);
+    }
+
+    private void run() {
+        while (running) {
+            try {
+                Thread.sleep(TICK - System.currentTimeMillis() % TICK);
+            } catch (InterruptedException e) {
+                break;
+            }
+            now = System.currentTimeMillis();
+            long current = now / TICK;
+            int budget = MAX_EXPIRIES_PER_TICK;
+            // Catch up tick by tick if the thread was delayed, at most one rotation
+            for (long t = Math.max(tick + 1, current - SLOTS + 1); t <= current && running; t++) {
+                budget = expire(slots[(int) (t & (SLOTS - 1))], current, budget);
+            }
+            tick = current;
+        }
+    }
+
+    /**
+     * Process the entries filed in one slot
+     * @return the expiry budget left for this tick
+     */
+    private int expire(ConcurrentLinkedQueue<Timeout<K>> slot, long current, int budget) {
+        // Only look at what was filed before this pass; re-filed entries may land in the same slot
+        for (int pending = slot.size(); pending > 0; pending--) {
+            Timeout<K> entry = slot.poll();
+            if (entry == null) {
+                break;
+            }
+            if (entry.cancelled) {
+                scheduled.decrementAndGet();
+            } else if (entry.deadline > now) {
+                file(entry, Math.max(entry.deadline / TICK, current + 1)); // Heartbeat arrived since it was filed
+            } else if (budget <= 0) {
+                file(entry, current + 1); // Over the budget: expire it on the next tick
+            } else {
+                budget--;
+                scheduled.decrementAndGet();
+                try {
+                    onExpire.accept(entry.key);
+                } catch (RuntimeException e) {
+                    // Keep the wheel turning for everyone else
+                    onError.accept(entry.key, e);
+                }
+            }
+        }
+        return budget;
+    }
+}
@@ -0,0 +1,194 @@
+import java.io.*;
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.Base64;
+import java.util.Random;
+
+/**
+ * HotPathBenchmark - Microbenchmarks for the UDP parsing and chunk reassembly hot paths
+ * Each case runs warm-up iterations and then measured iterations of a fixed duration on this
+ * thread, and reports the mean and spread in ns/op and the bytes allocated per op
+ *
+ * Usage: java HotPathBenchmark [iterationMillis] [nameFilter]
+ */
+public class HotPathBenchmark {
+    private static final int WARMUP_ITERATIONS = 5;
+    private static final int MEASURED_ITERATIONS = 10;
+    private static volatile long sink; // Keeps results observable so the JIT cannot drop the work
+
+    private interface Operation {
+        long run() throws IOException;
+    }
+
+    public static void main(String[] args) throws Exception {
+        long iterationMillis = args.length > 0 ? Long.parseLong(args[0]) : 200;
+        String filter = args.length > 1 ? args[1] : "";
+
+        byte[] payload = new byte[BinaryFrame.CHUNK_SIZE];
+        for (int i = 0; i < payload.length; i++) {
+            payload[i] = (byte) i;
+        }
+        byte[] datagram = BinaryFrame.toDatagram(BinaryFrame.encode(BinaryFrame.TYPE_IMAGE, 0x18c2f3a4b5dL, 3, 10,
+                "alice", "bob", null, payload, 0, payload.length));
+        int[] missing = new int[BinaryFrame.MAX_NACK_INDEXES];
+        for (int i = 0; i < missing.length; i++) {
+            missing[i] = i * 3;
+        }
+        byte[] nack = BinaryFrame.toDatagram(BinaryFrame.encodeNack(0x18c2f3a4b5dL, "bob", "alice", missing));
+        String chunkMessage = "IMGCHUNK|SESSION:18c2f3a4b5d|CHUNK:3|TOTAL:10|TO:bob|FROM:alice|DATA:"
+                + Base64.getEncoder().encodeToString(Arrays.copyOf(payload, FileTransfer.CHUNK_SIZE));
+        byte[] chunkDatagram = chunkMessage.getBytes();
+        int[] arrivalOrder = shuffledChunks(1000, 42);
+        ProtocolLine line = new ProtocolLine();
+
+        UserTable<String> users = new UserTable<>(); // Routing table of a busy server
+        for (int i = 0; i < 1000; i++) {
+            users.put("user" + i, "connection " + i);
+        }
+        users.put("alice", "connection alice");
+        users.put("bob", "connection bob");
+        byte[] idDatagram = BinaryFrame.toDatagram(BinaryFrame.encode(BinaryFrame.TYPE_IMAGE, 0x18c2f3a4b5dL, 3, 10,
+                users.idOf("alice"), users.idOf("bob"), null, payload, 0, payload.length));
+
+        System.out.println("=== Hot path microbenchmarks (" + WARMUP_ITERATIONS + " warm-up + " + MEASURED_ITERATIONS
+                + " measured iterations of " + iterationMillis + " ms) ===");
+        System.out.printf("%-44s %12s %10s %16s%n", "Benchmark", "ns/op", "+/-", "alloc bytes/op");
+        Object[][] cases = {
+                {"BinaryFrame.parse (image datagram)", (Operation) () -> BinaryFrame.parse(datagram, 2).chunkIndex},
+                {"BinaryFrame.parse (id-addressed image datagram)", (Operation) () -> BinaryFrame.parse(idDatagram, 2).chunkIndex},
+                {"route by name (parse + name lookup)", (Operation) () -> users.get(BinaryFrame.parse(datagram, 2).recipient).length()},
+                {"route by id (parse + id lookup)", (Operation) () -> users.get(BinaryFrame.parse(idDatagram, 2).recipientId).length()},
+                {"BinaryFrame.parse + getNackIndexes (64)", (Operation) () -> BinaryFrame.parse(nack, 2).getNackIndexes().length},
+                {"BinaryFrame.encode + toDatagram (image)", (Operation) () -> BinaryFrame.toDatagram(BinaryFrame.encode(
+                        BinaryFrame.TYPE_IMAGE, 0x18c2f3a4b5dL, 3, 10, "alice", "bob", null, payload, 0, payload.length)).length},
+                {"text chunk split (IMGCHUNK datagram)", (Operation) () -> splitChunk(chunkDatagram)},
+                {"ProtocolLine fields (IMGCHUNK datagram)", (Operation) () -> {
+                    line.parse(chunkDatagram, 0, chunkDatagram.length, StandardCharsets.UTF_8);
+                    return line.get(ProtocolLine.Field.FROM).length() + line.get(ProtocolLine.Field.TO).length();
+                }},
+                {"ChunkTracker reassembly (1000 chunks)", (Operation) () -> reassemble(arrivalOrder)},
+        };
+        for (Object[] benchmark : cases) {
+            String name = (String) benchmark[0];
+            if (name.toLowerCase().contains(filter.toLowerCase())) {
+                measure(name, (Operation) benchmark[1], iterationMillis);
+            }
+        }
+    }
+
+    private static void measure(String name, Operation operation, long iterationMillis) throws IOException {
+        for (int i = 0; i < WARMUP_ITERATIONS; i++) {
+            iterate(operation, iterationMillis);
+        }
+        double[] nanosPerOp = new double[MEASURED_ITERATIONS];
+        long ops = 0;
+        long allocBefore = allocatedBytes();
+        for (int i = 0; i < MEASURED_ITERATIONS; i++) {
+            long[] result = iterate(operation, iterationMillis);
+            nanosPerOp[i] = (double) result[1] / result[0];
+            ops += result[0];
+        }
+        long allocated = allocatedBytes() - allocBefore;
+
+        double mean = 0;
+        for (double value : nanosPerOp) {
+            mean += value / nanosPerOp.length;
+        }
+        double variance = 0;
+        for (double value : nanosPerOp) {
+            variance += (value - mean) * (value - mean) / nanosPerOp.length;
+        }
+        System.out.printf("%-44s %12.1f %10.1f %16s%n", name, mean, Math.sqrt(variance),
+                allocBefore < 0 ? "n/a" : String.valueOf(allocated / ops));
+    }
+
+    /**
+     * Run the operation for about the given time
+     * @return {operations, elapsed nanoseconds}
+     */
+    private static long[] iterate(Operation operation, long iterationMillis) throws IOException {
+        long deadline = System.nanoTime() + iterationMillis * 1000000;
+        long start = System.nanoTime();
+        long ops = 0;
+        long result = 0;
+        long now;
+        do {
+            for (int i = 0; i < 256; i++) {
+                result += operation.run();
+            }
+            ops += 256;
+            now = System.nanoTime();
+        } while (now < deadline);
+        sink += result;
+        return new long[]{ops, now - start};
+    }
+
+    /**
+     * Bytes allocated by this thread so far, or -1 when the JVM cannot report it
+     */
+    private static long allocatedBytes() {
+        ThreadMXBean threads = ManagementFactory.getThreadMXBean();
+        if (threads instanceof com.sun.management.ThreadMXBean) {
+            return ((com.sun.management.ThreadMXBean) threads).getThreadAllocatedBytes(Thread.currentThread().getId());
+        }
+        return -1;
+    }
+
+    /**
+     * What UDPServerCore does with a text chunk datagram: decode it and split out the routing fields
+     */
+    private static long splitChunk(byte[] datagram) {
+        String message = new String(datagram);
+        String sender = null;
+        String recipient = null;
+        for (String part : message.split("\\|")) {
+            if (part.startsWith("FROM:")) {
+                sender = part.substring(5);
+            } else if (part.startsWith("TO:")) {
+                recipient = part.substring(3);
+            }
+        }
+        return sender.length() + recipient.length();
+    }
+
+    /**
+     * Receive one transfer in the given order with every 20th chunk lost, then NACK and receive the holes
+     */
+    private static long reassemble(int[] arrivalOrder) {
+        ChunkTracker tracker = new ChunkTracker(1, "alice", arrivalOrder.length, 60000);
+        for (int i = 0; i < arrivalOrder.length; i++) {
+            if (i % 20 != 0) {
+                tracker.markReceived(arrivalOrder[i]);
+            }
+        }
+        long now = 1000000;
+        int[] nack;
+        while ((nack = tracker.nextNack(now, 1, BinaryFrame.MAX_NACK_INDEXES)) != null) {
+            for (int index : nack) {
+                tracker.markReceived(index);
+            }
+            now += 1;
+        }
+        return tracker.getReceivedCount();
+    }
+
+    private static int[] shuffledChunks(int count, long seed) {
+        int[] order = new int[count];
+        for (int i = 0; i < count; i++) {
+            order[i] = i;
+        }
+        // Mostly in order, with neighbouring chunks swapped the way a reordering network would
+        Random random = new Random(seed);
+        for (int i = 1; i < count; i++) {
+            if (random.nextInt(10) == 0) {
+                int other = i - 1 - random.nextInt(Math.min(i, 8));
+                int swap = order[i];
+                order[i] = order[other];
+                order[other] = swap;
+            }
+        }
+        return order;
+    }
+}
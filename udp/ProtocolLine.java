@@ -0,0 +1,316 @@
+import java.nio.charset.Charset;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+
+/**
+ * ProtocolLine - Single-pass parser for text protocol lines, reused for every line a thread handles
+ * The message type is recognized from the first bytes, then one scan over the raw bytes records
+ * where each known field's value starts and ends. Nothing is decoded or copied while parsing:
+ * numbers are read in place, and a String is only built for a field the handler asks for, so a
+ * media chunk is routed without touching its DATA. MSG and DATA are always last and run to the
+ * end of the line, so they may contain '|'.
+ *
+ * Line formats (fields in brackets are optional):
+ *   HEARTBEAT:user   GETUSERS:user   DISCONNECT:user   CONNECT:user[|KEEPALIVE:ms]
+ *   JOIN:#room|FROM:user   LEAVE:#room|FROM:user
+ *   IMGCHUNK|SESSION:id|CHUNK:n|TOTAL:n|[TO:user|]FROM:user|DATA:base64 (FILECHUNK with FILENAME:, VOICECHUNK alike)
+ *   OFFER|SESSION:id|TYPE:t|HASH:sha256|SIZE:n|[FILENAME:name|][TO:user|]FROM:user
+ *   TO:user|FROM:user|MSG:text   FROM:user|MSG:text
+ */
+public class ProtocolLine {
+
+    /**
+     * Message types, recognized by their prefix
+     */
+    public enum Type {
+        HEARTBEAT("HEARTBEAT:"), GETUSERS("GETUSERS:"), CONNECT("CONNECT:"), DISCONNECT("DISCONNECT:"),
+        JOIN("JOIN:"), LEAVE("LEAVE:"), IMGCHUNK("IMGCHUNK|"), FILECHUNK("FILECHUNK|"), VOICECHUNK("VOICECHUNK|"),
+        OFFER("OFFER|"), TO("TO:"), FROM("FROM:"), OTHER("");
+
+        private final byte[] prefix;
+
+        Type(String prefix) {
+            this.prefix = prefix.getBytes(StandardCharsets.US_ASCII);
+        }
+
+        /**
+         * Check whether the prefix is followed by an argument (user or room name) before the fields
+         */
+        private boolean hasArgument() {
+            return this == HEARTBEAT || this == GETUSERS || this == CONNECT || this == DISCONNECT || this == JOIN || this == LEAVE;
+        }
+    }
+
+    /**
+     * Fields located by parse()
+     */
+    public enum Field {
+        SESSION("SESSION:"), CHUNK("CHUNK:"), TOTAL("TOTAL:"), FILENAME("FILENAME:"), TO("TO:"), FROM("FROM:"),
+        KEEPALIVE("KEEPALIVE:"), MSG("MSG:"), DATA("DATA:");
+
+        private final byte[] key;
+
+        Field(String key) {
+            this.key = key.getBytes(StandardCharsets.US_ASCII);
+        }
+
+        /**
+         * Check whether the value runs to the end of the line instead of the next '|'
+         */
+        private boolean isLast() {
+            return this == MSG || this == DATA;
+        }
+    }
+
+    private static final Field[] FIELDS = Field.values();
+
+    private byte[] data;
+    private int offset;
+    private int end;
+    private Charset charset;
+    private Type type = Type.OTHER;
+    private int argumentEnd; // The argument starts right after the type prefix
+    private final int[] starts = new int[FIELDS.length]; // -1 when the field is absent
+    private final int[] ends = new int[FIELDS.length];
+
+    /**
+     * Parse a line in place; the line is only referenced, so it must not change while this is in use
+     * @param length the line's length without its newline
+     * @param charset how names and text are encoded, for the Strings built by get()
+     * @return the message type, OTHER when it is not recognized
+     */
+    public Type parse(byte[] data, int offset, int length, Charset charset) {
+        this.data = data;
+        this.offset = offset;
+        this.end = offset + length;
+        this.charset = charset;
+        Arrays.fill(starts, -1);
+        type = typeOf(data, offset, end);
+
+        int pos = offset;
+        if (type == Type.OTHER) {
+            return type;
+        } else if (type.hasArgument()) {
+            pos += type.prefix.length;
+            argumentEnd = indexOfBar(pos);
+            pos = argumentEnd + 1;
+        } else if (type != Type.TO && type != Type.FROM) {
+            pos += type.prefix.length; // TO: and FROM: lines start with their first field
+        }
+
+        while (pos < end) {
+            Field field = fieldAt(pos);
+            int fieldEnd = field != null && field.isLast() ? end : indexOfBar(pos);
+            if (field != null && starts[field.ordinal()] < 0) {
+                starts[field.ordinal()] = pos + field.key.length;
+                ends[field.ordinal()] = fieldEnd;
+            }
+            pos = fieldEnd + 1;
+        }
+        return type;
+    }
+
+    public Type getType() {
+        return type;
+    }
+
+    /**
+     * Check whether this is an IMGCHUNK/FILECHUNK/VOICECHUNK line
+     */
+    public boolean isChunk() {
+        return type == Type.IMGCHUNK || type == Type.FILECHUNK || type == Type.VOICECHUNK;
+    }
+
+    public boolean has(Field field) {
+        return starts[field.ordinal()] >= 0;
+    }
+
+    /**
+     * Value of a field, or null when the line does not have it
+     */
+    public String get(Field field) {
+        int start = starts[field.ordinal()];
+        return start < 0 ? null : new String(data, start, ends[field.ordinal()] - start, charset);
+    }
+
+    /**
+     * Value of a field that names a user or room; starts with Rooms.PREFIX for a room
+     */
+    public boolean isRoom(Field field) {
+        int start = starts[field.ordinal()];
+        return start >= 0 && ends[field.ordinal()] - start > 1 && data[start] == Rooms.PREFIX;
+    }
+
+    /**
+     * Decimal value of a field, read in place
+     * @throws NumberFormatException when the field is missing or not an int
+     */
+    public int getInt(Field field) {
+        int start = starts[field.ordinal()];
+        int stop = ends[field.ordinal()];
+        if (start < 0 || start == stop) {
+            throw new NumberFormatException("Missing " + field);
+        }
+        boolean negative = data[start] == '-';
+        int pos = negative || data[start] == '+' ? start + 1 : start;
+        if (pos == stop) {
+            throw new NumberFormatException("Invalid " + field);
+        }
+        long value = 0;
+        for (; pos < stop; pos++) {
+            int digit = data[pos] - '0';
+            if (digit < 0 || digit > 9 || (value = value * 10 + digit) > Integer.MAX_VALUE + 1L) {
+                throw new NumberFormatException("Invalid " + field + ": " + get(field));
+            }
+        }
+        if (!negative && value > Integer.MAX_VALUE) {
+            throw new NumberFormatException("Invalid " + field + ": " + get(field));
+        }
+        return (int) (negative ? -value : value);
+    }
+
+    /**
+     * The SESSION field as BinaryFrame.parseSessionId reads it: hexadecimal, read in place, with
+     * non-numeric ids hashed; 0 when missing
+     */
+    public long getSessionId() {
+        int start = starts[Field.SESSION.ordinal()];
+        if (start < 0) {
+            return 0;
+        }
+        int stop = ends[Field.SESSION.ordinal()];
+        if (stop == start || stop - start > 16) {
+            return get(Field.SESSION).hashCode();
+        }
+        long value = 0;
+        for (int pos = start; pos < stop; pos++) {
+            int digit = Character.digit(data[pos], 16);
+            if (digit < 0) {
+                return get(Field.SESSION).hashCode();
+            }
+            value = (value << 4) | digit;
+        }
+        return value;
+    }
+
+    /**
+     * The user or room name after the type prefix, for the types that have one; null otherwise
+     */
+    public String getArgument() {
+        if (!type.hasArgument()) {
+            return null;
+        }
+        int start = offset + type.prefix.length;
+        return new String(data, start, argumentEnd - start, charset);
+    }
+
+    /**
+     * Start of a field's value in getData(), or -1 when the line does not have it
+     */
+    public int getStart(Field field) {
+        return starts[field.ordinal()];
+    }
+
+    /**
+     * How the line's names and text are encoded
+     */
+    public Charset getCharset() {
+        return charset;
+    }
+
+    public byte[] getData() {
+        return data;
+    }
+
+    public int getOffset() {
+        return offset;
+    }
+
+    /**
+     * Length of the line without its newline
+     */
+    public int getLength() {
+        return end - offset;
+    }
+
+    /**
+     * The whole line, decoded
+     */
+    @Override
+    public String toString() {
+        return new String(data, offset, end - offset, charset);
+    }
+
+    private static Type typeOf(byte[] data, int offset, int end) {
+        if (offset >= end) {
+            return Type.OTHER;
+        }
+        Type candidate;
+        switch (data[offset]) {
+            case 'H': candidate = Type.HEARTBEAT; break;
+            case 'G': candidate = Type.GETUSERS; break;
+            case 'C': candidate = Type.CONNECT; break;
+            case 'D': candidate = Type.DISCONNECT; break;
+            case 'J': candidate = Type.JOIN; break;
+            case 'L': candidate = Type.LEAVE; break;
+            case 'I': candidate = Type.IMGCHUNK; break;
+            case 'V': candidate = Type.VOICECHUNK; break;
+            case 'O': candidate = Type.OFFER; break;
+            case 'T': candidate = Type.TO; break;
+            case 'F':
+                if (startsWith(data, offset, end, Type.FROM.prefix)) {
+                    return Type.FROM;
+                }
+                candidate = Type.FILECHUNK;
+                break;
+            default:
+                return Type.OTHER;
+        }
+        return startsWith(data, offset, end, candidate.prefix) ? candidate : Type.OTHER;
+    }
+
+    private Field fieldAt(int pos) {
+        Field candidate;
+        switch (data[pos]) {
+            case 'S': candidate = Field.SESSION; break;
+            case 'C': candidate = Field.CHUNK; break;
+            case 'K': candidate = Field.KEEPALIVE; break;
+            case 'M': candidate = Field.MSG; break;
+            case 'D': candidate = Field.DATA; break;
+            case 'T':
+                if (startsWith(data, pos, end, Field.TO.key)) {
+                    return Field.TO;
+                }
+                candidate = Field.TOTAL;
+                break;
+            case 'F':
+                if (startsWith(data, pos, end, Field.FROM.key)) {
+                    return Field.FROM;
+                }
+                candidate = Field.FILENAME;
+                break;
+            default:
+                return null;
+        }
+        return startsWith(data, pos, end, candidate.key) ? candidate : null;
+    }
+
+    private int indexOfBar(int pos) {
+        while (pos < end && data[pos] != '|') {
+            pos++;
+        }
+        return pos;
+    }
+
+    private static boolean startsWith(byte[] data, int pos, int end, byte[] prefix) {
+        if (end - pos < prefix.length) {
+            return false;
+        }
+        for (int i = 0; i < prefix.length; i++) {
+            if (data[pos + i] != prefix[i]) {
+                return false;
+            }
+        }
+        return true;
+    }
+}
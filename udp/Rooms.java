@@ -0,0 +1,171 @@
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+/**
+ * Rooms - Named chat rooms and their members
+ * A room is addressed like a user whose name starts with '#', so chat lines and media frames reach
+ * it through the usual recipient field (and, interned in the same id space as users, by id). Each
+ * room keeps its members in a copy-on-write array: a message fans out by iterating a snapshot
+ * with no locking, and only joins and leaves copy it. Empty rooms are dropped.
+ */
+public class Rooms<V> {
+    public static final char PREFIX = '#';
+
+    /**
+     * One room: its interned id and current members
+     */
+    public static final class Room<V> {
+        private final String name;
+        private final int id;
+        private final CopyOnWriteArrayList<V> members = new CopyOnWriteArrayList<>();
+
+        private Room(String name, int id) {
+            this.name = name;
+            this.id = id;
+        }
+
+        public String getName() {
+            return name;
+        }
+
+        public int getId() {
+            return id;
+        }
+
+        /**
+         * Current members; iteration works on a snapshot and never blocks joins or leaves
+         */
+        public List<V> getMembers() {
+            return members;
+        }
+    }
+
+    private final ConcurrentHashMap<String, Room<V>> byName = new ConcurrentHashMap<>();
+    private volatile AtomicReferenceArray<Room<V>> byId = new AtomicReferenceArray<>(64);
+    private final ConcurrentHashMap<V, Set<String>> memberships = new ConcurrentHashMap<>();
+
+    /**
+     * Check whether a recipient name addresses a room
+     */
+    public static boolean isRoom(String name) {
+        return name != null && name.length() > 1 && name.charAt(0) == PREFIX;
+    }
+
+    public Room<V> get(String name) {
+        return byName.get(name);
+    }
+
+    /**
+     * Room with the given interned id, or null if it has no members
+     */
+    public Room<V> get(int id) {
+        AtomicReferenceArray<Room<V>> current = byId;
+        return id > UserIds.NONE && id < current.length() ? current.get(id) : null;
+    }
+
+    /**
+     * Add a member, creating the room if needed
+     * @param id the room name's interned id
+     * @return the room, or null if the member was already in it
+     */
+    public synchronized Room<V> join(String name, int id, V member) {
+        Room<V> room = byName.get(name);
+        if (room == null) {
+            room = new Room<>(name, id);
+            byName.put(name, room);
+            setById(id, room);
+        }
+        if (!room.members.addIfAbsent(member)) {
+            return null;
+        }
+        memberships.computeIfAbsent(member, key -> ConcurrentHashMap.newKeySet()).add(name);
+        return room;
+    }
+
+    /**
+     * Remove a member, dropping the room once it is empty
+     * @return the room, or null if the member was not in it
+     */
+    public synchronized Room<V> leave(String name, V member) {
+        Room<V> room = byName.get(name);
+        if (room == null || !room.members.remove(member)) {
+            return null;
+        }
+        Set<String> joined = memberships.get(member);
+        if (joined != null) {
+            joined.remove(name);
+            if (joined.isEmpty()) {
+                memberships.remove(member);
+            }
+        }
+        if (room.members.isEmpty()) {
+            byName.remove(name);
+            setById(room.id, null);
+        }
+        return room;
+    }
+
+    /**
+     * Remove a member from every room it joined, e.g. when it disconnects
+     * @return the rooms it left
+     */
+    public synchronized List<Room<V>> leaveAll(V member) {
+        List<Room<V>> left = new ArrayList<>();
+        Set<String> joined = memberships.get(member);
+        if (joined != null) {
+            for (String name : new ArrayList<>(joined)) {
+                Room<V> room = leave(name, member);
+                if (room != null) {
+                    left.add(room);
+                }
+            }
+        }
+        return left;
+    }
+
+    /**
+     * Check whether a member joined a room
+     */
+    public boolean isMember(String name, V member) {
+        Set<String> joined = memberships.get(member);
+        return joined != null && joined.contains(name);
+    }
+
+    public int size() {
+        return byName.size();
+    }
+
+    /**
+     * Memberships across all rooms
+     */
+    public long getMemberCount() {
+        long count = 0;
+        for (Room<V> room : byName.values()) {
+            count += room.members.size();
+        }
+        return count;
+    }
+
+    public synchronized void clear() {
+        byName.clear();
+        memberships.clear();
+        byId = new AtomicReferenceArray<>(byId.length());
+    }
+
+    private void setById(int id, Room<V> room) {
+        AtomicReferenceArray<Room<V>> current = byId;
+        if (id >= current.length()) {
+            AtomicReferenceArray<Room<V>> grown = new AtomicReferenceArray<>(Math.max(id + 1, current.length() * 2));
+            for (int i = 0; i < current.length(); i++) {
+                grown.set(i, current.get(i));
+            }
+            current = grown;
+            byId = grown;
+        }
+        current.set(id, room);
+    }
+}
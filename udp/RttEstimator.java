@@ -0,0 +1,49 @@
+/**
+ * RttEstimator - Smoothed round-trip time and retransmission timeout for one path
+ * Follows RFC 6298: SRTT/RTTVAR updated per sample, timeout = SRTT + 4 * RTTVAR,
+ * doubled on every timeout until a fresh sample arrives
+ */
+public class RttEstimator {
+    public static final long MIN_TIMEOUT = 200; // ms; keeps delayed ACKs and scheduling jitter from looking like loss
+    public static final long MAX_TIMEOUT = 5000;
+
+    private double smoothedRtt = -1; // ms, -1 until the first sample
+    private double rttVariance;
+    private long timeout;
+
+    public RttEstimator(long initialTimeout) {
+        this.timeout = initialTimeout;
+    }
+
+    /**
+     * Record one measured round trip; callers skip retransmitted chunks (Karn's algorithm)
+     */
+    public synchronized void sample(long rtt) {
+        if (smoothedRtt < 0) {
+            smoothedRtt = rtt;
+            rttVariance = rtt / 2.0;
+        } else {
+            rttVariance = 0.75 * rttVariance + 0.25 * Math.abs(smoothedRtt - rtt);
+            smoothedRtt = 0.875 * smoothedRtt + 0.125 * rtt;
+        }
+        timeout = Math.max(MIN_TIMEOUT, Math.min(MAX_TIMEOUT, (long) (smoothedRtt + 4 * rttVariance)));
+    }
+
+    /**
+     * A timeout fired: wait twice as long before the next one
+     */
+    public synchronized void backOff() {
+        timeout = Math.min(timeout * 2, MAX_TIMEOUT);
+    }
+
+    public synchronized long getTimeout() {
+        return timeout;
+    }
+
+    /**
+     * Smoothed round-trip time in ms, or -1 before the first sample
+     */
+    public synchronized long getSmoothedRtt() {
+        return (long) smoothedRtt;
+    }
+}
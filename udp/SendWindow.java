@@ -0,0 +1,182 @@
+import java.io.IOException;
+import java.util.BitSet;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.TreeMap;
+
+/**
+ * SendWindow - Sliding-window flow control for one chunked media transfer
+ * At most `window` chunks are unacknowledged at a time. The window doubles per round of ACKs
+ * up to the slow-start threshold, then grows by one chunk per round; a lost chunk (seen as a
+ * hole in the selective ACKs, or a retransmission timeout) halves it. A receiver that withholds
+ * ACKs (server backpressure) simply stalls the sender. The retransmission timeout adapts to the
+ * round-trip time measured on ACKs of chunks that were sent only once.
+ */
+public class SendWindow {
+    public static final int INITIAL_WINDOW = 4;
+    public static final int MAX_WINDOW = Integer.getInteger("chat.maxWindow", 256); // Chunks in flight per transfer
+    public static final long INITIAL_TIMEOUT = 500; // ms without an ACK before unacknowledged chunks are resent, until RTT is measured
+    public static final long STALL_TIMEOUT = 30000; // ms without an ACK before the transfer is abandoned
+    private static final int HOLE_THRESHOLD = 3; // ACKs past a missing chunk before it is resent early
+
+    /**
+     * Sends a chunk again; only needed on transports that can lose chunks
+     */
+    public interface Resender {
+        void resend(byte[] packet) throws IOException;
+    }
+
+    private final int totalChunks;
+    private final Resender resender; // null on reliable transports
+    private final BitSet acked = new BitSet();
+    private final Map<Integer, byte[]> unacked = new TreeMap<>(); // In-flight chunks kept for resending
+    private final Map<Integer, Long> sentAt = new HashMap<>(); // Send time of in-flight chunks, for RTT samples
+    private final BitSet resent = new BitSet(); // Chunks sent more than once give ambiguous RTT samples
+    private final RttEstimator rtt = new RttEstimator(INITIAL_TIMEOUT);
+    private int base = 0; // Every chunk below base is acknowledged
+    private double window = INITIAL_WINDOW;
+    private double slowStartThreshold = MAX_WINDOW;
+    private long lastAck = System.currentTimeMillis();
+    private long lastResend = 0;
+    private int resentChunks = 0;
+    private int highestAcked = -1;
+    private int acksPastHole = 0; // ACKs received while base stayed missing
+    private int recoveryBase = -1; // Base at the last early resend, to back off once per loss
+
+    public SendWindow(int totalChunks, Resender resender) {
+        this.totalChunks = totalChunks;
+        this.resender = resender;
+    }
+
+    /**
+     * Block until chunk index fits in the window, then record it as in flight
+     */
+    public synchronized void awaitSlot(int index, byte[] packet) throws IOException, InterruptedException {
+        while (index >= base + (int) window) {
+            waitForAck();
+        }
+        if (resender != null) {
+            unacked.put(index, packet);
+        }
+        sentAt.put(index, System.currentTimeMillis());
+    }
+
+    /**
+     * Block until every chunk of the transfer has been acknowledged
+     */
+    public synchronized void awaitComplete() throws IOException, InterruptedException {
+        while (base < totalChunks) {
+            waitForAck();
+        }
+    }
+
+    /**
+     * Apply an ACK: every chunk below cumulative, plus chunk cumulative + 1 + i for each bit i of selective
+     */
+    public synchronized void onAck(int cumulative, byte[] selective, int offset, int length) {
+        int newlyAcked = 0;
+        int newestAcked = -1;
+        for (int i = base; i < Math.min(cumulative, totalChunks); i++) {
+            if (!acked.get(i)) {
+                acked.set(i);
+                newestAcked = i;
+                newlyAcked++;
+            }
+        }
+        for (int bit = 0; bit < length * 8; bit++) {
+            int index = cumulative + 1 + bit;
+            if (index < totalChunks && (selective[offset + bit / 8] & (1 << (bit % 8))) != 0 && !acked.get(index)) {
+                acked.set(index);
+                highestAcked = Math.max(highestAcked, index);
+                newestAcked = Math.max(newestAcked, index);
+                newlyAcked++;
+            }
+        }
+        highestAcked = Math.max(highestAcked, Math.min(cumulative, totalChunks) - 1);
+        if (newlyAcked == 0) {
+            return;
+        }
+
+        // One RTT sample per ACK, from the newest chunk it covers
+        long now = System.currentTimeMillis();
+        Long sent = sentAt.get(newestAcked);
+        if (sent != null && !resent.get(newestAcked)) {
+            rtt.sample(now - sent);
+        }
+
+        int previousBase = base;
+        while (base < totalChunks && acked.get(base)) {
+            base++;
+        }
+        unacked.keySet().removeIf(acked::get);
+        sentAt.keySet().removeIf(acked::get);
+
+        // Chunks past base keep arriving while base does not: resend the holes without waiting for the timeout
+        acksPastHole = base == previousBase && highestAcked > base ? acksPastHole + 1 : 0;
+        if (resender != null && acksPastHole >= HOLE_THRESHOLD && recoveryBase != base) {
+            try {
+                for (Map.Entry<Integer, byte[]> chunk : unacked.entrySet()) {
+                    if (chunk.getKey() < highestAcked) {
+                        resender.resend(chunk.getValue());
+                        resent.set(chunk.getKey());
+                        resentChunks++;
+                    }
+                }
+            } catch (IOException e) {
+                // Left to the retransmission timeout
+            }
+            recoveryBase = base;
+            lastResend = now;
+            slowStartThreshold = Math.max(window / 2, 1);
+            window = slowStartThreshold;
+            acksPastHole = 0;
+        }
+
+        // Grow the window: exponentially in slow start, then by one chunk per window of ACKs
+        if (window < slowStartThreshold) {
+            window = Math.min(window + newlyAcked, MAX_WINDOW);
+        } else {
+            window = Math.min(window + (double) newlyAcked / window, MAX_WINDOW);
+        }
+        lastAck = now;
+        notifyAll();
+    }
+
+    public synchronized int getWindow() {
+        return (int) window;
+    }
+
+    public synchronized int getResentChunks() {
+        return resentChunks;
+    }
+
+    /**
+     * Smoothed round-trip time to the server in ms, or -1 before the first sample
+     */
+    public long getRoundTripTime() {
+        return rtt.getSmoothedRtt();
+    }
+
+    private void waitForAck() throws IOException, InterruptedException {
+        long timeout = rtt.getTimeout();
+        wait(timeout);
+
+        long now = System.currentTimeMillis();
+        if (now - lastAck >= STALL_TIMEOUT) {
+            throw new IOException("Transfer stalled: no acknowledgement for " + (STALL_TIMEOUT / 1000) + " seconds");
+        }
+        if (resender != null && !unacked.isEmpty()
+                && now - lastAck >= timeout && now - lastResend >= timeout) {
+            // Nothing acknowledged for a full timeout: resend what is still missing and back off
+            for (Map.Entry<Integer, byte[]> chunk : unacked.entrySet()) {
+                resender.resend(chunk.getValue());
+                resent.set(chunk.getKey());
+            }
+            resentChunks += unacked.size();
+            lastResend = now;
+            rtt.backOff();
+            slowStartThreshold = Math.max(window / 2, 1);
+            window = slowStartThreshold;
+        }
+    }
+}
@@ -0,0 +1,169 @@
+import java.io.PrintStream;
+import java.text.SimpleDateFormat;
+import java.util.Date;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+/**
+ * ServerLog - Server activity log written by I/O threads and rendered in batches
+ * Writers only claim a slot in a lock-free ring buffer; the server window (or the console
+ * in headless mode) drains it at most 1000 / REFRESH_INTERVAL times per second and shows
+ * everything in one go. High-rate DEBUG lines (chunk relays) are sampled: identical lines within
+ * one refresh are shown once with a count. Errors go through the ring like every other line.
+ */
+public class ServerLog {
+    public static final int CAPACITY = 8192; // Ring slots, a power of two; older lines are skipped if writers lap the reader
+    public static final int REFRESH_INTERVAL = Integer.getInteger("chat.logRefreshMs", 200);
+    public static final int MAX_LINES = Integer.getInteger("chat.logLines", 2000);
+    public static final int MAX_SAMPLED = 1024; // Distinct sampled lines kept between drains; more are counted as dropped
+    private static final int MASK = CAPACITY - 1;
+
+    /**
+     * How much to log: ERROR only errors, INFO also connections, chat and server events, DEBUG also every chunk relay
+     */
+    public enum Level {
+        ERROR, INFO, DEBUG
+    }
+
+    // Inner class for one published log line
+    private static final class Entry {
+        final long sequence;
+        final String message;
+
+        Entry(long sequence, String message) {
+            this.sequence = sequence;
+            this.message = message;
+        }
+    }
+
+    private final AtomicReferenceArray<Entry> slots = new AtomicReferenceArray<>(CAPACITY);
+    private final AtomicLong writeSequence = new AtomicLong();
+    private final ConcurrentHashMap<String, Long> sampled = new ConcurrentHashMap<>(); // Line -> count since the last drain
+    private long readSequence = 0; // Guarded by drain()
+    private long skipped = 0;
+    private final AtomicLong sampledDropped = new AtomicLong(); // Sampled lines that found the map full
+    private final Level level;
+
+    public ServerLog(Level level) {
+        this.level = level;
+    }
+
+    /**
+     * Log an INFO message as is; never blocks
+     */
+    public void log(String message) {
+        if (level.compareTo(Level.INFO) >= 0) {
+            publish(message);
+        }
+    }
+
+    /**
+     * Log an error at any level, timestamped now; never blocks
+     * @param line single line without timestamp or newline
+     */
+    public void error(String line) {
+        publish("[" + new SimpleDateFormat("HH:mm:ss").format(new Date()) + "] " + line + "\n");
+    }
+
+    private void publish(String message) {
+        long sequence = writeSequence.getAndIncrement();
+        slots.lazySet((int) (sequence & MASK), new Entry(sequence, message));
+    }
+
+    /**
+     * Count a high-rate DEBUG line; it is rendered once per refresh with a timestamp and how often it occurred
+     * @param line single line without timestamp or newline
+     */
+    public void sample(String line) {
+        if (level == Level.DEBUG) {
+            // Lines carry user names, so bound the distinct ones rather than the map growing per user
+            if (sampled.size() >= MAX_SAMPLED && !sampled.containsKey(line)) {
+                sampledDropped.incrementAndGet();
+                return;
+            }
+            sampled.merge(line, 1L, Long::sum);
+        }
+    }
+
+    /**
+     * Check whether sample() keeps lines, so callers can skip building them
+     */
+    public boolean isSampling() {
+        return level == Level.DEBUG;
+    }
+
+    /**
+     * Take everything logged since the last drain
+     * @return the text to display, empty when nothing was logged
+     */
+    public synchronized String drain() {
+        StringBuilder text = new StringBuilder();
+        long end = writeSequence.get();
+        if (end - readSequence > CAPACITY) {
+            skipped += end - CAPACITY - readSequence;
+            readSequence = end - CAPACITY;
+        }
+        while (readSequence < end) {
+            Entry entry = slots.get((int) (readSequence & MASK));
+            if (entry == null || entry.sequence < readSequence) {
+                break; // Slot claimed but not published yet; picked up on the next drain
+            }
+            if (entry.sequence == readSequence) {
+                text.append(entry.message);
+            } else {
+                skipped++; // Overwritten by a writer that lapped the reader
+            }
+            readSequence++;
+        }
+        if (skipped > 0) {
+            text.append("... ").append(skipped).append(" log line(s) skipped, logging faster than the display\n");
+            skipped = 0;
+        }
+
+        if (!sampled.isEmpty()) {
+            String timestamp = new SimpleDateFormat("HH:mm:ss").format(new Date());
+            for (String line : sampled.keySet()) {
+                Long count = sampled.remove(line);
+                if (count != null) {
+                    text.append("[").append(timestamp).append("] ").append(line);
+                    if (count > 1) {
+                        text.append(" (x").append(count).append(")");
+                    }
+                    text.append("\n");
+                }
+            }
+        }
+        long dropped = sampledDropped.getAndSet(0);
+        if (dropped > 0) {
+            text.append("... ").append(dropped).append(" sampled line(s) dropped, too many distinct lines\n");
+        }
+        return text.toString();
+    }
+
+    /**
+     * Print the log to a stream from now on, e.g. System.out when running headless
+     */
+    public void attachConsole(PrintStream out) {
+        Thread printer = new Thread(() -> {
+            while (true) {
+                try {
+                    Thread.sleep(REFRESH_INTERVAL);
+                } catch (InterruptedException e) {
+                    return;
+                }
+                String text = drain();
+                if (!text.isEmpty()) {
+                    out.print(text);
+                    out.flush();
+                }
+            }
+        }, "server-log");
+        printer.setDaemon(true);
+        printer.start();
+    }
+
+    public Level getLevel() {
+        return level;
+    }
+}
@@ -0,0 +1,309 @@
+import com.sun.net.httpserver.HttpServer;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.text.SimpleDateFormat;
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.List;
+import java.util.Locale;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.LongSupplier;
+
+/**
+ * ServerMetrics - Counters, histograms and gauges for the chat server hot paths
+ * Recording only touches striped LongAdders and lock-free histograms, so I/O threads never
+ * contend on a metric. The values are served in the Prometheus text format on
+ * http://127.0.0.1:port/metrics and summarized in the server log every DUMP_INTERVAL seconds.
+ */
+public class ServerMetrics {
+    public static final int DEFAULT_PORT = Integer.getInteger("chat.metricsPort", 0); // 0 disables the HTTP endpoint
+    public static final int DUMP_INTERVAL = Integer.getInteger("chat.metricsLogSeconds", 60); // 0 disables the log dump
+
+    /**
+     * Message types, as received from clients or sent to them
+     */
+    public enum MessageType {
+        CONNECT, DISCONNECT, HEARTBEAT, GETUSERS, FROM, TO, ROOM, OFFER, IMGCHUNK, FILECHUNK, VOICECHUNK, PRESENCE, NOTICE, ACK, NACK, OTHER;
+
+        /**
+         * Type of a protocol message received from a client
+         */
+        public static MessageType of(ProtocolLine message) {
+            switch (message.getType()) {
+                case HEARTBEAT: return HEARTBEAT;
+                case FROM: return FROM;
+                case TO: return message.isRoom(ProtocolLine.Field.TO) ? ROOM : TO;
+                case IMGCHUNK: return IMGCHUNK;
+                case FILECHUNK: return FILECHUNK;
+                case VOICECHUNK: return VOICECHUNK;
+                case CONNECT: return CONNECT;
+                case DISCONNECT: return DISCONNECT;
+                case GETUSERS: return GETUSERS;
+                case JOIN:
+                case LEAVE: return ROOM;
+                case OFFER: return OFFER;
+                default: return OTHER;
+            }
+        }
+
+        /**
+         * Type of a text message the server sends to a client
+         */
+        public static MessageType ofOutgoing(String message) {
+            if (message.startsWith("PRIVATE:")) return TO;
+            if (message.startsWith("ROOM")) return ROOM; // ROOM:, ROOMJOINED:, ROOMLEFT:
+            if (message.startsWith("OFFER:")) return OFFER;
+            if (message.startsWith("USERLIST:") || message.startsWith("USERJOIN:") || message.startsWith("USERLEAVE:")) return PRESENCE;
+            if (message.startsWith("*** ")) return NOTICE;
+            if (message.startsWith("KEEPALIVE:")) return HEARTBEAT;
+            if (message.startsWith("IMGCHUNK|")) return IMGCHUNK;
+            if (message.startsWith("FILECHUNK|")) return FILECHUNK;
+            if (message.startsWith("VOICECHUNK|")) return VOICECHUNK;
+            return FROM; // Broadcast chat line "user: message"
+        }
+
+        public boolean isMedia() {
+            return this == IMGCHUNK || this == FILECHUNK || this == VOICECHUNK;
+        }
+
+        /**
+         * Type of a media or ACK BinaryFrame
+         */
+        public static MessageType ofFrame(byte frameType) {
+            switch (frameType) {
+                case BinaryFrame.TYPE_IMAGE:
+                    return IMGCHUNK;
+                case BinaryFrame.TYPE_FILE:
+                    return FILECHUNK;
+                case BinaryFrame.TYPE_VOICE:
+                    return VOICECHUNK;
+                case BinaryFrame.TYPE_ACK:
+                    return ACK;
+                default:
+                    return OTHER;
+            }
+        }
+    }
+
+    // Inner class for a value read from elsewhere when the metrics are rendered
+    private static class Probe {
+        final String name;
+        final String help;
+        final String type;
+        final LongSupplier value;
+
+        Probe(String name, String help, String type, LongSupplier value) {
+            this.name = name;
+            this.help = help;
+            this.type = type;
+            this.value = value;
+        }
+    }
+
+    private static final MessageType[] TYPES = MessageType.values();
+
+    private final LongAdder[] messagesIn = newAdders();
+    private final LongAdder[] messagesOut = newAdders();
+    private final LongAdder bytesIn = new LongAdder();
+    private final LongAdder bytesOut = new LongAdder();
+    private final LongAdder heartbeatTimeouts = new LongAdder();
+    private final LatencyHistogram fanout = new LatencyHistogram(); // Recipients per relayed message
+    private final LatencyHistogram relayLatency = new LatencyHistogram(); // Microseconds from receipt to handed to every recipient
+    private final List<Probe> probes = new ArrayList<>();
+    private final long startedAt = System.currentTimeMillis();
+    private HttpServer httpServer;
+    private Thread dumpThread;
+
+    private static LongAdder[] newAdders() {
+        LongAdder[] adders = new LongAdder[TYPES.length];
+        for (int i = 0; i < adders.length; i++) {
+            adders[i] = new LongAdder();
+        }
+        return adders;
+    }
+
+    /**
+     * Count a message received from a client
+     */
+    public void received(MessageType type, int bytes) {
+        messagesIn[type.ordinal()].increment();
+        bytesIn.add(bytes);
+    }
+
+    /**
+     * Count one copy of a message sent (or queued) to a client
+     */
+    public void sent(MessageType type, int bytes) {
+        messagesOut[type.ordinal()].increment();
+        bytesOut.add(bytes);
+    }
+
+    /**
+     * Record a relayed chat message or chunk: how many recipients it went to and how long it took
+     * @param receivedAt System.nanoTime() when the message was received
+     */
+    public void relayed(int recipients, long receivedAt) {
+        fanout.record(recipients);
+        relayLatency.record((System.nanoTime() - receivedAt) / 1000);
+    }
+
+    public void heartbeatTimeout() {
+        heartbeatTimeouts.increment();
+    }
+
+    /**
+     * Expose a value that is kept elsewhere, read whenever the metrics are rendered
+     */
+    public void gauge(String name, String help, LongSupplier value) {
+        probes.add(new Probe(name, help, "gauge", value));
+    }
+
+    /**
+     * Expose a monotonically increasing count that is kept elsewhere
+     */
+    public void counter(String name, String help, LongSupplier value) {
+        probes.add(new Probe(name, help, "counter", value));
+    }
+
+    /**
+     * Serve the metrics over HTTP on the loopback interface (if httpPort > 0) and start the log dump
+     */
+    public void start(int httpPort, ServerLog log) throws IOException {
+        if (httpPort > 0) {
+            httpServer = HttpServer.create(new InetSocketAddress(InetAddress.getLoopbackAddress(), httpPort), 0);
+            httpServer.createContext("/metrics", exchange -> {
+                byte[] body = render().getBytes();
+                exchange.getResponseHeaders().set("Content-Type", "text/plain; version=0.0.4");
+                exchange.sendResponseHeaders(200, body.length);
+                try (OutputStream out = exchange.getResponseBody()) {
+                    out.write(body);
+                }
+            });
+            httpServer.start();
+            log.log("Metrics at http://" + InetAddress.getLoopbackAddress().getHostAddress() + ":"
+                    + httpServer.getAddress().getPort() + "/metrics\n");
+        }
+        if (DUMP_INTERVAL > 0) {
+            dumpThread = new Thread(() -> {
+                try {
+                    while (true) {
+                        Thread.sleep(DUMP_INTERVAL * 1000L);
+                        String timestamp = new SimpleDateFormat("HH:mm:ss").format(new Date());
+                        log.log("[" + timestamp + "] " + summary() + "\n");
+                    }
+                } catch (InterruptedException e) {
+                    // Stopped
+                }
+            }, "metrics-dump");
+            dumpThread.setDaemon(true);
+            dumpThread.start();
+        }
+    }
+
+    public void stop() {
+        if (httpServer != null) {
+            httpServer.stop(0);
+            httpServer = null;
+        }
+        if (dumpThread != null) {
+            dumpThread.interrupt();
+            dumpThread = null;
+        }
+    }
+
+    /**
+     * Port the HTTP endpoint is bound to, or 0 when it is not running
+     */
+    public int getHttpPort() {
+        return httpServer != null ? httpServer.getAddress().getPort() : 0;
+    }
+
+    /**
+     * All metrics in the Prometheus text exposition format
+     */
+    public String render() {
+        StringBuilder text = new StringBuilder();
+        header(text, "chat_messages_in_total", "Messages received from clients by type", "counter");
+        for (MessageType type : TYPES) {
+            sample(text, "chat_messages_in_total{type=\"" + type + "\"}", messagesIn[type.ordinal()].sum());
+        }
+        header(text, "chat_messages_out_total", "Message copies sent to clients by type", "counter");
+        for (MessageType type : TYPES) {
+            sample(text, "chat_messages_out_total{type=\"" + type + "\"}", messagesOut[type.ordinal()].sum());
+        }
+        header(text, "chat_bytes_in_total", "Bytes received from clients", "counter");
+        sample(text, "chat_bytes_in_total", bytesIn.sum());
+        header(text, "chat_bytes_relayed_total", "Bytes sent to clients", "counter");
+        sample(text, "chat_bytes_relayed_total", bytesOut.sum());
+        header(text, "chat_heartbeat_timeouts_total", "Users dropped for missing heartbeats", "counter");
+        sample(text, "chat_heartbeat_timeouts_total", heartbeatTimeouts.sum());
+        summary(text, "chat_fanout_recipients", "Recipients per relayed message", fanout, 1);
+        summary(text, "chat_relay_latency_seconds", "Time from receiving a message to handing it to every recipient", relayLatency, 1000000);
+        for (Probe probe : probes) {
+            header(text, probe.name, probe.help, probe.type);
+            sample(text, probe.name, probe.value.getAsLong());
+        }
+        header(text, "chat_uptime_seconds", "Seconds since the server started", "gauge");
+        sample(text, "chat_uptime_seconds", (System.currentTimeMillis() - startedAt) / 1000);
+        return text.toString();
+    }
+
+    /**
+     * One-line overview for the server log
+     */
+    public String summary() {
+        StringBuilder text = new StringBuilder("Metrics: in");
+        long inTotal = 0;
+        for (MessageType type : TYPES) {
+            long count = messagesIn[type.ordinal()].sum();
+            inTotal += count;
+            if (count > 0) {
+                text.append(' ').append(type).append('=').append(count);
+            }
+        }
+        long outTotal = 0;
+        for (LongAdder adder : messagesOut) {
+            outTotal += adder.sum();
+        }
+        text.append(" (").append(inTotal).append(" total), out ").append(outTotal)
+                .append(", relayed ").append(FileTransfer.getFileSizeString(bytesOut.sum()))
+                .append(", fan-out p99 ").append(fanout.percentile(99))
+                .append(", relay latency p50/p99 ").append(String.format("%.2f/%.2f ms",
+                        relayLatency.percentile(50) / 1000.0, relayLatency.percentile(99) / 1000.0))
+                .append(", heartbeat timeouts ").append(heartbeatTimeouts.sum());
+        for (Probe probe : probes) {
+            if (probe.type.equals("gauge")) {
+                text.append(", ").append(probe.name.replace("chat_", "")).append(' ').append(probe.value.getAsLong());
+            }
+        }
+        return text.toString();
+    }
+
+    private static void header(StringBuilder text, String name, String help, String type) {
+        text.append("# HELP ").append(name).append(' ').append(help).append('\n');
+        text.append("# TYPE ").append(name).append(' ').append(type).append('\n');
+    }
+
+    private static void sample(StringBuilder text, String name, Object value) {
+        text.append(name).append(' ').append(value).append('\n');
+    }
+
+    /**
+     * @param divisor recorded units per exported unit, e.g. 1000000 for microseconds exported as seconds
+     */
+    private static void summary(StringBuilder text, String name, String help, LatencyHistogram histogram, long divisor) {
+        header(text, name, help, "summary");
+        for (double quantile : new double[]{0.5, 0.9, 0.99, 0.999}) {
+            sample(text, name + "{quantile=\"" + quantile + "\"}", scale(histogram.percentile(quantile * 100), divisor));
+        }
+        sample(text, name + "_sum", scale(histogram.getSum(), divisor));
+        sample(text, name + "_count", histogram.getCount());
+    }
+
+    private static String scale(long value, long divisor) {
+        return divisor == 1 ? String.valueOf(value) : String.format(Locale.ROOT, "%.6f", (double) value / divisor);
+    }
+}
@@ -0,0 +1,168 @@
+import java.lang.management.GarbageCollectorMXBean;
+import java.lang.management.ManagementFactory;
+import java.net.InetSocketAddress;
+import java.net.SocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.DatagramChannel;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * UDPAllocationBenchmark - GC pressure of relaying media chunks through the UDP server
+ * Runs a UDPServerCore on loopback with one binary sender and several binary receivers, sends
+ * broadcast image chunks at a paced rate, and reports the bytes the server's pipeline threads
+ * allocate per relayed chunk (every recipient copy and the ACK included) and the collections
+ * that happened meanwhile. Allocation is read from the JVM's per-thread counters, so the load
+ * generator itself is not counted.
+ *
+ * Usage: java UDPAllocationBenchmark [chunks] [receivers] [chunksPerMillisecond]
+ */
+public class UDPAllocationBenchmark {
+    private static final int CHUNKS_PER_SESSION = 1000;
+
+    public static void main(String[] args) throws Exception {
+        int chunks = args.length > 0 ? Integer.parseInt(args[0]) : 200000;
+        int receivers = args.length > 1 ? Integer.parseInt(args[1]) : 8;
+        int perMillisecond = args.length > 2 ? Integer.parseInt(args[2]) : 20;
+
+        UDPServerCore server = new UDPServerCore(0, 1, new ServerLog(ServerLog.Level.ERROR));
+        server.setMetricsPort(0);
+        server.start();
+        SocketAddress serverAddress = new InetSocketAddress("127.0.0.1", server.getPort());
+
+        LongAdder delivered = new LongAdder();
+        List<DatagramChannel> channels = new ArrayList<>();
+        DatagramChannel sender = connect("alice", serverAddress, channels);
+        drain(sender, null);
+        while (server.getConnectedCount() < 1) {
+            Thread.sleep(10);
+        }
+        for (int i = 0; i < receivers; i++) {
+            drain(connect("user" + i, serverAddress, channels), delivered);
+        }
+        while (server.getConnectedCount() < receivers + 1) {
+            Thread.sleep(10);
+        }
+
+        byte[] payload = new byte[BinaryFrame.CHUNK_SIZE];
+        System.out.println("=== UDP relay allocation (" + chunks + " broadcast chunks of " + payload.length
+                + " bytes to " + receivers + " receivers, " + perMillisecond + " chunks/ms) ===");
+
+        // Warm up the JIT and the buffer pool, then measure a fresh run
+        relay(sender, payload, chunks / 10, perMillisecond, 1);
+        waitForDelivery(delivered, (long) (chunks / 10) * receivers);
+
+        delivered.reset();
+        long gcCount = gcCount();
+        long gcMillis = gcMillis();
+        long allocated = serverAllocatedBytes();
+        long start = System.nanoTime();
+        relay(sender, payload, chunks, perMillisecond, 1L << 32);
+        waitForDelivery(delivered, (long) chunks * receivers);
+        double seconds = (System.nanoTime() - start) / 1e9;
+        allocated = serverAllocatedBytes() - allocated;
+
+        System.out.printf("%-36s %12d%n", "chunks relayed", chunks);
+        System.out.printf("%-36s %12d (%.1f%% lost)%n", "copies delivered", delivered.sum(),
+                100.0 - 100.0 * delivered.sum() / ((double) chunks * receivers));
+        System.out.printf("%-36s %12.0f%n", "server bytes allocated per chunk", (double) allocated / chunks);
+        System.out.printf("%-36s %12.1f%n", "server MB allocated per second", allocated / 1e6 / seconds);
+        System.out.printf("%-36s %12d (%d ms)%n", "collections during the run", gcCount() - gcCount, gcMillis() - gcMillis);
+
+        for (DatagramChannel channel : channels) {
+            channel.close();
+        }
+        server.stop();
+        System.exit(0);
+    }
+
+    private static DatagramChannel connect(String name, SocketAddress server, List<DatagramChannel> channels) throws Exception {
+        DatagramChannel channel = DatagramChannel.open();
+        channel.bind(new InetSocketAddress("127.0.0.1", 0));
+        channel.connect(server);
+        channel.write(ByteBuffer.wrap(BinaryFrame.encodeTextDatagram("CONNECT:" + name + "|KEEPALIVE:600000")));
+        channels.add(channel);
+        return channel;
+    }
+
+    /**
+     * Read and count datagrams until the channel is closed; only media chunks count as delivered
+     */
+    private static Thread drain(DatagramChannel channel, LongAdder delivered) {
+        Thread thread = new Thread(() -> {
+            ByteBuffer buffer = ByteBuffer.allocateDirect(UDPPipeline.MAX_DATAGRAM);
+            try {
+                while (true) {
+                    buffer.clear();
+                    channel.receive(buffer);
+                    // Type byte after the preamble and length prefix
+                    if (delivered != null && buffer.position() > 6 && (buffer.get(6) & 0x3f) == BinaryFrame.TYPE_IMAGE) {
+                        delivered.increment();
+                    }
+                }
+            } catch (Exception e) {
+                // Closed
+            }
+        }, "drain");
+        thread.setDaemon(true);
+        thread.start();
+        return thread;
+    }
+
+    /**
+     * Send broadcast image chunks in sessions of CHUNKS_PER_SESSION, pacing to a target rate. They
+     * are addressed by id like a version 2 client's: the sender connected first, so it is user 1
+     */
+    private static void relay(DatagramChannel sender, byte[] payload, int chunks, int perMillisecond,
+                              long firstSession) throws Exception {
+        long start = System.nanoTime();
+        for (int i = 0; i < chunks; i++) {
+            long session = firstSession + i / CHUNKS_PER_SESSION;
+            byte[] datagram = BinaryFrame.toDatagram(BinaryFrame.encode(BinaryFrame.TYPE_IMAGE, session,
+                    i % CHUNKS_PER_SESSION, CHUNKS_PER_SESSION, 1, UserIds.NONE, null, payload, 0, payload.length));
+            sender.write(ByteBuffer.wrap(datagram));
+            while ((System.nanoTime() - start) / 1_000_000 < i / perMillisecond) {
+                Thread.onSpinWait();
+            }
+        }
+    }
+
+    private static void waitForDelivery(LongAdder delivered, long expected) throws InterruptedException {
+        long last = -1;
+        while (delivered.sum() < expected && delivered.sum() != last) {
+            last = delivered.sum();
+            Thread.sleep(500);
+        }
+    }
+
+    /**
+     * Bytes allocated so far by the server's receive, parse and route threads
+     */
+    private static long serverAllocatedBytes() {
+        com.sun.management.ThreadMXBean threads = (com.sun.management.ThreadMXBean) ManagementFactory.getThreadMXBean();
+        long total = 0;
+        for (Thread thread : Thread.getAllStackTraces().keySet()) {
+            if (thread.getName().startsWith("udp-")) {
+                total += threads.getThreadAllocatedBytes(thread.getId());
+            }
+        }
+        return total;
+    }
+
+    private static long gcCount() {
+        long count = 0;
+        for (GarbageCollectorMXBean gc : ManagementFactory.getGarbageCollectorMXBeans()) {
+            count += Math.max(0, gc.getCollectionCount());
+        }
+        return count;
+    }
+
+    private static long gcMillis() {
+        long millis = 0;
+        for (GarbageCollectorMXBean gc : ManagementFactory.getGarbageCollectorMXBeans()) {
+            millis += Math.max(0, gc.getCollectionTime());
+        }
+        return millis;
+    }
+}
@@ -6,14 +6,22 @@ import java.awt.*;
 import java.awt.image.BufferedImage;
 import java.net.*;
 import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.channels.*;
 import java.nio.file.Files;
 import java.text.SimpleDateFormat;
 import java.util.*;
 import java.util.Base64;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
 
 public class UDPClient extends JFrame {
     private static final String DEFAULT_SERVER = "localhost";
     private static final int DEFAULT_PORT = 9876;
+    // Heartbeat interval to ask the server for; it answers with the interval and timeout it granted
+    private static final long HEARTBEAT_INTERVAL = Long.getLong("chat.heartbeatMs", 30000);
 
     private JTextPane messageArea;
     private JTextField messageField;
@@ -21,14 +29,24 @@ public class UDPClient extends JFrame {
     private JButton sendButton, clearButton, connectButton, disconnectButton, sendImageButton, sendFileButton, recordMicButton, stopMicButton;
     private JLabel statusLabel;
     private String serverIp = DEFAULT_SERVER;
-    private DatagramSocket socket;
+    private DatagramChannel channel; // Non-blocking; the receive thread waits on the selector
+    private Selector selector;
+    private InetSocketAddress serverAddress; // Resolved once per connection, not per datagram
     private boolean isConnected = false;
     private Thread receiveThread;
     private Thread heartbeatThread;
+    private Thread flushThread;
+    private volatile boolean serverReadsBatches; // The server sent a datagram of framing version 3 or later
+    // Small datagrams waiting to share one datagram to the server; guarded by itself
+    private final DatagramBatch outgoing = new DatagramBatch(ByteBuffer.allocateDirect(DatagramBatch.MAX_BYTES));
+    private volatile long heartbeatInterval = HEARTBEAT_INTERVAL;
+    private volatile long lastSent; // When a datagram was last sent to the server, for idle-only heartbeats
     private String username;
     private DefaultListModel<UserStatus> userListModel;
     private JList<UserStatus> userList;
     private String selectedUser = "All";
+    private volatile long presenceVersion = -1; // Version of the last applied user list state
+    private volatile UserIds userIds = new UserIds(); // Ids the server assigned to usernames, from presence messages
 
     // Voice recording
     private VoiceRecorder voiceRecorder;
@@ -53,147 +71,85 @@ public class UDPClient extends JFrame {
     private static final int MAX_IMAGE_WIDTH = 150;
     private static final int MAX_IMAGE_HEIGHT = 150;
     private static final int MAX_IMAGE_SIZE = 50000; // 50KB max for UDP
+    private static final int TRANSFER_CHECK_INTERVAL = 100; // ms between NACK checks of incomplete transfers
+    private static final long RETAIN_SENT_TRANSFER = 120000; // ms a sent transfer can still be NACKed, the longest receive timeout
 
     // Image chunk reassembly
-    private Map<String, ImageChunkBuffer> imageChunks = new HashMap<>();
+    private Map<String, ChunkBuffer> imageChunks = new HashMap<>();
 
     // File chunk reassembly
-    private Map<String, FileChunkBuffer> fileChunks = new HashMap<>();
+    private Map<String, ChunkBuffer> fileChunks = new HashMap<>();
+    private final Map<Long, SendWindow> sendWindows = new ConcurrentHashMap<>(); // Outgoing transfers by session id
+    private final Map<Long, OutgoingTransfer> retransmitSources = new ConcurrentHashMap<>(); // Sent transfers recipients can NACK
+    private final AtomicLong lastSessionId = new AtomicLong();
+    private final RttEstimator nackRtt = new RttEstimator(SendWindow.INITIAL_TIMEOUT); // NACK to resent chunk, via sender and server
+    private long lastTransferCheck = 0;
 
     // Voice chunk reassembly
-    private Map<String, VoiceChunkBuffer> voiceChunks = new HashMap<>();
-
-    // Inner class for buffering voice chunks
-    private static class VoiceChunkBuffer {
-        String sender;
-        String recipient;
-        String[] chunks;
-        boolean[] received;
-        long createdTime;
-
-        VoiceChunkBuffer(int totalChunks, String sender, String recipient) {
-            this.sender = sender;
-            this.recipient = recipient;
-            this.chunks = new String[totalChunks];
-            this.received = new boolean[totalChunks];
-            this.createdTime = System.currentTimeMillis();
-        }
-
-        void setChunk(int index, String data) {
-            if (index < chunks.length) {
-                chunks[index] = data;
-                received[index] = true;
-            }
-        }
+    private Map<String, ChunkBuffer> voiceChunks = new HashMap<>();
 
-        boolean isComplete() {
-            for (boolean r : received) {
-                if (!r) return false;
-            }
-            return true;
-        }
+    // Inner class for one incoming transfer: its NACK state and its reassembly, for every media type
+    private static class ChunkBuffer {
+        final String recipient;
+        final ChunkTracker tracker;
+        final ChunkAssembler assembler;
 
-        String getCompleteData() {
-            StringBuilder sb = new StringBuilder();
-            for (String chunk : chunks) {
-                sb.append(chunk);
-            }
-            return sb.toString();
-        }
-
-        boolean isExpired() {
-            return System.currentTimeMillis() - createdTime > 120000; // 120 second timeout for voice
-        }
-    }
-
-    // Inner class for buffering file chunks
-    private static class FileChunkBuffer {
-        String sender;
-        String recipient;
-        String filename;
-        String[] chunks;
-        boolean[] received;
-        long createdTime;
-
-        FileChunkBuffer(int totalChunks, String sender, String recipient, String filename) {
-            this.sender = sender;
+        ChunkBuffer(String recipient, ChunkTracker tracker, ChunkAssembler assembler) {
             this.recipient = recipient;
-            this.filename = filename;
-            this.chunks = new String[totalChunks];
-            this.received = new boolean[totalChunks];
-            this.createdTime = System.currentTimeMillis();
+            this.tracker = tracker;
+            this.assembler = assembler;
         }
 
-        void setChunk(int index, String data) {
-            if (index < chunks.length) {
-                chunks[index] = data;
-                received[index] = true;
+        void setChunk(int index, byte[] data, int offset, int length) throws IOException {
+            if (tracker.markReceived(index)) {
+                assembler.add(index, data, offset, length);
             }
         }
 
         boolean isComplete() {
-            for (boolean r : received) {
-                if (!r) return false;
-            }
-            return true;
-        }
-
-        String getCompleteData() {
-            StringBuilder sb = new StringBuilder();
-            for (String chunk : chunks) {
-                sb.append(chunk);
-            }
-            return sb.toString();
+            return tracker.isComplete();
         }
 
-        boolean isExpired() {
-            return System.currentTimeMillis() - createdTime > 60000; // 60 second timeout
+        void discard() {
+            assembler.discard();
         }
     }
 
-    // Inner class for buffering image chunks
-    private static class ImageChunkBuffer {
-        String sender;
-        String recipient;
-        String[] chunks;
-        boolean[] received;
-        long createdTime;
-
-        ImageChunkBuffer(int totalChunks, String sender, String recipient) {
-            this.sender = sender;
+    // Inner class to keep a sent transfer available for resending the chunks recipients NACK
+    private static class OutgoingTransfer {
+        final byte type;
+        final int totalChunks;
+        final String recipient; // null for broadcast
+        final String filename;
+        final byte[] data; // In-memory transfers (image, voice)
+        final File file; // Streamed transfers: chunks are read from disk again
+        volatile long finishedTime = 0;
+
+        OutgoingTransfer(byte type, int totalChunks, String recipient, String filename, byte[] data, File file) {
+            this.type = type;
+            this.totalChunks = totalChunks;
             this.recipient = recipient;
-            this.chunks = new String[totalChunks];
-            this.received = new boolean[totalChunks];
-            this.createdTime = System.currentTimeMillis();
-        }
-
-        void setChunk(int index, String data) {
-            if (index < chunks.length) {
-                chunks[index] = data;
-                received[index] = true;
-            }
-        }
-
-        boolean isComplete() {
-            for (boolean r : received) {
-                if (!r) return false;
-            }
-            return true;
+            this.filename = filename;
+            this.data = data;
+            this.file = file;
         }
 
-        String getCompleteData() {
-            StringBuilder sb = new StringBuilder();
-            for (String chunk : chunks) {
-                sb.append(chunk);
-            }
-            return sb.toString();
+        /**
+         * Encode one chunk again, flagged as a retransmission and addressed to the user who asked for it
+         */
+        byte[] retransmitDatagram(UserIds ids, long sessionId, String sender, int index, String requester) throws IOException {
+            byte[] payload = file != null ? FileTransfer.readChunk(file, index, BinaryFrame.CHUNK_SIZE) : data;
+            int start = file != null ? 0 : index * BinaryFrame.CHUNK_SIZE;
+            int length = file != null ? payload.length : Math.min(BinaryFrame.CHUNK_SIZE, data.length - start);
+            return encodeChunk(ids, (byte) (type | BinaryFrame.FLAG_RETRANSMIT), sessionId,
+                    index, totalChunks, sender, requester, filename, payload, start, length);
         }
 
-        boolean isExpired() {
-            return System.currentTimeMillis() - createdTime > 30000; // 30 second timeout
+        boolean isExpired(long now) {
+            return finishedTime > 0 && now - finishedTime > RETAIN_SENT_TRANSFER;
         }
     }
-    
+
     public UDPClient() {
         setTitle("UDP Client");
         setSize(800, 550);
@@ -367,21 +323,26 @@ public class UDPClient extends JFrame {
     private void disconnect() {
         // Send disconnect message to server before closing connection
         if (isConnected && username != null && !username.isEmpty()) {
+            sendToServer("DISCONNECT:" + username);
             try {
-                InetAddress serverAddress = InetAddress.getByName(serverIp);
-                String disconnectMsg = "DISCONNECT:" + username;
-                byte[] sendData = disconnectMsg.getBytes();
-                DatagramPacket sendPacket = new DatagramPacket(
-                    sendData, sendData.length, serverAddress, DEFAULT_PORT);
-                socket.send(sendPacket);
-            } catch (Exception e) {
-                appendMessage("Error sending disconnect message: " + e.getMessage() + "\n");
+                synchronized (outgoing) {
+                    flushOutgoing();
+                }
+            } catch (IOException e) {
+                // Closing anyway
             }
         }
 
         isConnected = false;
-        if (socket != null && !socket.isClosed()) {
-            socket.close();
+        try {
+            if (channel != null) {
+                channel.close();
+            }
+            if (selector != null) {
+                selector.close();
+            }
+        } catch (IOException e) {
+            // Closing anyway
         }
         if (receiveThread != null && receiveThread.isAlive()) {
             try {
@@ -398,6 +359,9 @@ public class UDPClient extends JFrame {
                 e.printStackTrace();
             }
         }
+        if (flushThread != null) {
+            flushThread.interrupt();
+        }
 
         messageField.setEnabled(false);
         sendButton.setEnabled(false);
@@ -413,6 +377,18 @@ public class UDPClient extends JFrame {
 
         appendMessage("\n=== Disconnected ===\n");
     }
+
+    /**
+     * Heartbeat interval from the server's KEEPALIVE:interval|timeout, or the default if it is malformed
+     */
+    private static long grantedInterval(String response) {
+        try {
+            long interval = Long.parseLong(response.substring(10).split("\\|")[0]);
+            return interval > 0 ? interval : HEARTBEAT_INTERVAL;
+        } catch (NumberFormatException e) {
+            return HEARTBEAT_INTERVAL;
+        }
+    }
     
     private void connect() {
         // Get server IP from the text field
@@ -429,11 +405,23 @@ public class UDPClient extends JFrame {
             return;
         }
         username = username.trim();
+        presenceVersion = -1;
+        userIds = new UserIds();
 
 
         try {
-            socket = new DatagramSocket();
-            socket.setSoTimeout(5000); // 5 second timeout for receiving
+            serverAddress = new InetSocketAddress(serverIp, DEFAULT_PORT);
+            if (serverAddress.isUnresolved()) {
+                throw new UnknownHostException("Unknown host " + serverIp);
+            }
+            channel = DatagramChannel.open();
+            channel.configureBlocking(false);
+            selector = Selector.open();
+            channel.register(selector, SelectionKey.OP_READ);
+            serverReadsBatches = false;
+            synchronized (outgoing) {
+                outgoing.reset();
+            }
             isConnected = true;
 
             messageField.setEnabled(true);
@@ -455,37 +443,25 @@ public class UDPClient extends JFrame {
 
             appendMessage("=== Connected as '" + username + "' to " + serverIp + ":" + DEFAULT_PORT + " ===\n\n");
 
-            // Send connection message to server immediately
-            try {
-                InetAddress serverAddress = InetAddress.getByName(serverIp);
-                String connectMsg = "CONNECT:" + username;
-                byte[] sendData = connectMsg.getBytes();
-                DatagramPacket sendPacket = new DatagramPacket(
-                    sendData, sendData.length, serverAddress, DEFAULT_PORT);
-                socket.send(sendPacket);
-            } catch (Exception e) {
-                appendMessage("Error sending connection message: " + e.getMessage() + "\n");
-            }
+            // Send connection message to server immediately; a binary CONNECT negotiates binary framing
+            heartbeatInterval = HEARTBEAT_INTERVAL;
+            sendToServer("CONNECT:" + username + "|KEEPALIVE:" + HEARTBEAT_INTERVAL);
 
-            // Start heartbeat thread to keep connection alive
+            // Start heartbeat thread to keep connection alive; any datagram sent counts as a sign of
+            // life, so a heartbeat (the idle probe) only goes out after a full negotiated interval
+            // without traffic. Ask for a shorter interval with -Dchat.heartbeatMs behind NATs that
+            // forget idle UDP mappings quickly.
             heartbeatThread = new Thread(() -> {
                 while (isConnected) {
                     try {
-                        Thread.sleep(30000); // Send heartbeat every 30 seconds (half of server timeout)
+                        long idle = System.currentTimeMillis() - lastSent;
+                        if (idle < heartbeatInterval) {
+                            Thread.sleep(heartbeatInterval - idle);
+                            continue;
+                        }
 
                         if (isConnected) {
-                            try {
-                                InetAddress serverAddress = InetAddress.getByName(serverIp);
-                                String heartbeatMsg = "HEARTBEAT:" + username;
-                                byte[] sendData = heartbeatMsg.getBytes();
-                                DatagramPacket sendPacket = new DatagramPacket(
-                                    sendData, sendData.length, serverAddress, DEFAULT_PORT);
-                                socket.send(sendPacket);
-                            } catch (Exception e) {
-                                if (isConnected) {
-                                    appendMessage("Error sending heartbeat: " + e.getMessage() + "\n");
-                                }
-                            }
+                            sendToServer("HEARTBEAT:" + username);
                         }
                     } catch (InterruptedException e) {
                         if (isConnected) {
@@ -497,53 +473,75 @@ public class UDPClient extends JFrame {
             });
             heartbeatThread.start();
 
+            // Send what waited in the outgoing batch once its first frame lingered long enough
+            flushThread = new Thread(() -> {
+                synchronized (outgoing) {
+                    while (isConnected) {
+                        try {
+                            if (outgoing.isEmpty()) {
+                                outgoing.wait();
+                            } else if (!outgoing.isDue(System.nanoTime())) {
+                                TimeUnit.NANOSECONDS.timedWait(outgoing, outgoing.nanosUntilDue(System.nanoTime()));
+                            } else {
+                                flushOutgoing();
+                            }
+                        } catch (InterruptedException e) {
+                            break;
+                        } catch (IOException e) {
+                            if (isConnected) {
+                                appendMessage("Error sending to server: " + e.getMessage() + "\n");
+                            }
+                        }
+                    }
+                }
+            }, "udp-flush");
+            flushThread.setDaemon(true);
+            flushThread.start();
+
             // Start receive thread
             receiveThread = new Thread(() -> {
-                byte[] receiveData = new byte[1024 * 100]; // Larger buffer for images (100KB)
+                // One buffer reused for every datagram: frames are parsed in place and handlers
+                // copy what they keep, so receiving allocates nothing per datagram
+                byte[] receiveData = new byte[UDPPipeline.MAX_DATAGRAM];
+                ByteBuffer receiveBuffer = ByteBuffer.wrap(receiveData);
 
                 while (isConnected) {
                     try {
-                        DatagramPacket receivePacket = new DatagramPacket(receiveData, receiveData.length);
-                        socket.receive(receivePacket);
-
-                        String response = new String(receivePacket.getData(), 0, receivePacket.getLength());
+                        checkIncompleteTransfers();
 
-                        // Check if this is a voice chunk
-                        if (response.startsWith("VOICECHUNK|")) {
-                            handleVoiceChunk(response);
-                        }
-                        // Check if this is a file chunk
-                        else if (response.startsWith("FILECHUNK|")) {
-                            handleFileChunk(response);
+                        receiveBuffer.clear();
+                        if (channel.receive(receiveBuffer) == null) {
+                            selector.select(TRANSFER_CHECK_INTERVAL); // Wake up regularly to NACK incomplete transfers
+                            selector.selectedKeys().clear();
+                            continue;
                         }
-                        // Check if this is an image chunk
-                        else if (response.startsWith("IMGCHUNK|")) {
-                            handleImageChunk(response);
-                        }
-                        // Check if this is a user list update
-                        else if (response.startsWith("USERLIST:")) {
-                            String userListStr = response.substring(9);
-                            updateUserList(userListStr);
-                        } else if (response.startsWith("PRIVATE:")) {
-                            // Private message: PRIVATE:sender|MSG:message
-                            String[] parts = response.substring(8).split("\\|");
-                            if (parts.length >= 2) {
-                                String sender = parts[0];
-                                String msgContent = parts[1].substring(4);
-                                String timestamp = new SimpleDateFormat("HH:mm:ss").format(new Date());
-                                appendMessage("[" + timestamp + "] (private from " + sender + "):");
-                                appendMessage(msgContent + "\n\n");
-                            }
+                        int length = receiveBuffer.position();
+
+                        // Sniff the framing: binary datagrams start with the BinaryFrame preamble;
+                        // from version 3 a datagram may carry several frames back to back
+                        if (length >= 2 && receiveData[0] == BinaryFrame.MAGIC) {
+                            serverReadsBatches = receiveData[1] >= DatagramBatch.MIN_VERSION;
+                            int offset = 2;
+                            do {
+                                int end = serverReadsBatches ? BinaryFrame.frameEnd(receiveData, offset, length) : length;
+                                if (end < 0) {
+                                    throw new IOException("Truncated frame at offset " + offset);
+                                }
+                                BinaryFrame frame = BinaryFrame.parse(receiveData, offset, end - offset);
+                                // Media chunks arrive as raw binary frames
+                                if (frame.isText()) {
+                                    handleMessage(frame.getText());
+                                } else {
+                                    handleMediaFrame(frame);
+                                }
+                                offset = end;
+                            } while (offset < length);
                         } else {
-                            // Regular broadcast message
-                            String timestamp = new SimpleDateFormat("HH:mm:ss").format(new Date());
-                            appendMessage("[" + timestamp + "] " + response + "\n\n");
+                            handleMessage(new String(receiveData, 0, length));
                         }
 
-                    } catch (SocketTimeoutException e) {
-                        // Normal timeout, continue listening
-                    } catch (SocketException e) {
-                        // Socket closed, exit gracefully
+                    } catch (ClosedChannelException | ClosedSelectorException e) {
+                        // Channel closed, exit gracefully
                         if (isConnected) {
                             appendMessage("Connection lost: Socket closed\n");
                             // Trigger disconnect on UI thread
@@ -573,12 +571,69 @@ public class UDPClient extends JFrame {
             });
             receiveThread.start();
             
-        } catch (SocketException e) {
+        } catch (IOException e) {
             JOptionPane.showMessageDialog(this, "Could not connect: " + e.getMessage(), "Error", JOptionPane.ERROR_MESSAGE);
         }
     }
     
     
+    /**
+     * Handle one text message from the server
+     */
+    private void handleMessage(String response) {
+        // Check if this is a voice chunk
+        if (response.startsWith("VOICECHUNK|")) {
+            handleVoiceChunk(response);
+        }
+        // Check if this is a file chunk
+        else if (response.startsWith("FILECHUNK|")) {
+            handleFileChunk(response);
+        }
+        // Check if this is an image chunk
+        else if (response.startsWith("IMGCHUNK|")) {
+            handleImageChunk(response);
+        }
+        // Check if this is a user list update
+        else if (response.startsWith("USERLIST:")) {
+            String userListStr = response.substring(9);
+            updateUserList(userListStr);
+        }
+        // Incremental presence updates: USERJOIN:version:user / USERLEAVE:version:user
+        else if (response.startsWith("USERJOIN:") || response.startsWith("USERLEAVE:")) {
+            handlePresenceDelta(response);
+        }
+        // Heartbeat parameters granted by the server: KEEPALIVE:interval|timeout
+        else if (response.startsWith("KEEPALIVE:")) {
+            heartbeatInterval = grantedInterval(response);
+        }
+        // Room membership confirmed: ROOMJOINED:#room|member1,member2,... / ROOMLEFT:#room
+        else if (response.startsWith("ROOMJOINED:") || response.startsWith("ROOMLEFT:")) {
+            handleRoomMembership(response);
+        } else if (response.startsWith("ROOM:")) {
+            // Room message: ROOM:#room|FROM:sender|MSG:message
+            String[] parts = response.substring(5).split("\\|", 3);
+            if (parts.length >= 3) {
+                String timestamp = new SimpleDateFormat("HH:mm:ss").format(new Date());
+                appendMessage("[" + timestamp + "] [" + parts[0] + "] " + parts[1].substring(5) + ":");
+                appendMessage(parts[2].substring(4) + "\n\n");
+            }
+        } else if (response.startsWith("PRIVATE:")) {
+            // Private message: PRIVATE:sender|MSG:message
+            String[] parts = response.substring(8).split("\\|", 2);
+            if (parts.length >= 2) {
+                String sender = parts[0];
+                String msgContent = parts[1].substring(4);
+                String timestamp = new SimpleDateFormat("HH:mm:ss").format(new Date());
+                appendMessage("[" + timestamp + "] (private from " + sender + "):");
+                appendMessage(msgContent + "\n\n");
+            }
+        } else {
+            // Regular broadcast message
+            String timestamp = new SimpleDateFormat("HH:mm:ss").format(new Date());
+            appendMessage("[" + timestamp + "] " + response + "\n\n");
+        }
+    }
+
     private void sendMessage() {
         if (!isConnected) {
             JOptionPane.showMessageDialog(this, "Not connected to server!", "Error", JOptionPane.ERROR_MESSAGE);
@@ -591,27 +646,29 @@ public class UDPClient extends JFrame {
         }
 
         try {
-            InetAddress serverAddress = InetAddress.getByName(serverIp);
-
             String formattedMessage;
             String timestamp = new SimpleDateFormat("HH:mm:ss").format(new Date());
 
-            // Check if a user is selected for private messaging
+            // Room commands: /join #room, /leave #room
+            String roomCommand = roomCommand(message);
+            if (roomCommand != null) {
+                sendDatagram(BinaryFrame.encodeTextDatagram(roomCommand));
+                messageField.setText("");
+                return;
+            }
+
+            // Check if a user is selected for private messaging (or a room)
             if (selectedUser != null && !selectedUser.isEmpty() && !selectedUser.equals("All")) {
                 // Format for private message: TO:recipient|FROM:sender|MSG:message
                 formattedMessage = "TO:" + selectedUser + "|FROM:" + username + "|MSG:" + message;
-                appendMessage("[" + timestamp + "] You (private to " + selectedUser + "):");
+                appendMessage("[" + timestamp + "] You (" + privacy(selectedUser) + "to " + selectedUser + "):");
             } else {
                 // Format for broadcast: FROM:sender|MSG:message
                 formattedMessage = "FROM:" + username + "|MSG:" + message;
                 appendMessage("[" + timestamp + "] You (broadcast to all):");
             }
 
-            byte[] sendData = formattedMessage.getBytes();
-            DatagramPacket sendPacket = new DatagramPacket(
-                sendData, sendData.length, serverAddress, DEFAULT_PORT);
-
-            socket.send(sendPacket);
+            sendDatagram(BinaryFrame.encodeTextDatagram(formattedMessage));
             appendMessage(message + "\n\n");
             messageField.setText("");
 
@@ -662,8 +719,8 @@ public class UDPClient extends JFrame {
                 return;
             }
 
-            // Send image
-            sendImageData(compressedImageData);
+            // Send image from a background thread, the flow-control window may block
+            startTransfer(() -> sendImageData(compressedImageData));
 
         } catch (IOException e) {
             JOptionPane.showMessageDialog(this, "Error reading image: " + e.getMessage(), "Error", JOptionPane.ERROR_MESSAGE);
@@ -703,19 +760,16 @@ public class UDPClient extends JFrame {
 
     private void sendImageData(byte[] imageData) {
         try {
-            InetAddress serverAddress = InetAddress.getByName(serverIp);
             String timestamp = new SimpleDateFormat("HH:mm:ss").format(new Date());
 
-            // Encode image to base64
-            String imageBase64 = Base64.getEncoder().encodeToString(imageData);
-
-            // Split into chunks (500 bytes per chunk to stay well below UDP limit)
-            int chunkSize = 500;
-            int totalChunks = (imageBase64.length() + chunkSize - 1) / chunkSize;
-            String sessionId = Long.toHexString(System.currentTimeMillis()); // Unique ID for this transfer
+            // Split raw bytes into binary frame chunks, sized to fit one datagram
+            int chunkSize = BinaryFrame.CHUNK_SIZE;
+            int totalChunks = (imageData.length + chunkSize - 1) / chunkSize;
+            long sessionId = nextSessionId(); // Unique ID for this transfer
+            String recipient = (selectedUser != null && !selectedUser.isEmpty() && !selectedUser.equals("All")) ? selectedUser : null;
 
             if (selectedUser != null && !selectedUser.isEmpty() && !selectedUser.equals("All")) {
-                appendMessage("[" + timestamp + "] You (private image to " + selectedUser + ") [" + imageData.length + " bytes, " + totalChunks + " chunks]:\n");
+                appendMessage("[" + timestamp + "] You (" + privacy(selectedUser) + "image to " + selectedUser + ") [" + imageData.length + " bytes, " + totalChunks + " chunks]:\n");
             } else {
                 appendMessage("[" + timestamp + "] You (broadcast image to all) [" + imageData.length + " bytes, " + totalChunks + " chunks]:\n");
             }
@@ -809,35 +863,26 @@ public class UDPClient extends JFrame {
                 appendMessage("Error displaying sent image: " + e.getMessage() + "\n");
             }
 
-            // Send each chunk
-            for (int i = 0; i < totalChunks; i++) {
-                int start = i * chunkSize;
-                int end = Math.min(start + chunkSize, imageBase64.length());
-                String chunk = imageBase64.substring(start, end);
-
-                String formattedMessage;
-                if (selectedUser != null && !selectedUser.isEmpty() && !selectedUser.equals("All")) {
-                    // IMGCHUNK|SESSION:id|CHUNK:chunkNum|TOTAL:totalChunks|TO:recipient|FROM:sender|DATA:chunkData
-                    formattedMessage = "IMGCHUNK|SESSION:" + sessionId + "|CHUNK:" + i + "|TOTAL:" + totalChunks + "|TO:" + selectedUser + "|FROM:" + username + "|DATA:" + chunk;
-                } else {
-                    // IMGCHUNK|SESSION:id|CHUNK:chunkNum|TOTAL:totalChunks|FROM:sender|DATA:chunkData
-                    formattedMessage = "IMGCHUNK|SESSION:" + sessionId + "|CHUNK:" + i + "|TOTAL:" + totalChunks + "|FROM:" + username + "|DATA:" + chunk;
+            // Send each chunk as the flow-control window allows
+            SendWindow window = openSendWindow(sessionId,
+                    new OutgoingTransfer(BinaryFrame.TYPE_IMAGE, totalChunks, recipient, null, imageData, null));
+            try {
+                for (int i = 0; i < totalChunks; i++) {
+                    int start = i * chunkSize;
+                    int length = Math.min(chunkSize, imageData.length - start);
+                    sendChunk(window, i, encodeChunk(userIds, BinaryFrame.TYPE_IMAGE, sessionId, i, totalChunks,
+                            username, recipient, null, imageData, start, length));
                 }
-
-                byte[] sendData = formattedMessage.getBytes();
-                DatagramPacket sendPacket = new DatagramPacket(
-                        sendData, sendData.length, serverAddress, DEFAULT_PORT);
-                socket.send(sendPacket);
-
-                // Small delay between chunks to avoid network flooding
-                Thread.sleep(10);
+                window.awaitComplete();
+            } finally {
+                closeSendWindow(sessionId);
             }
         } catch (UnknownHostException e) {
-            JOptionPane.showMessageDialog(this, "Unknown host: " + e.getMessage(), "Error", JOptionPane.ERROR_MESSAGE);
+            showTransferError("Unknown host: " + e.getMessage());
         } catch (IOException e) {
-            JOptionPane.showMessageDialog(this, "Error sending image: " + e.getMessage(), "Error", JOptionPane.ERROR_MESSAGE);
+            showTransferError("Error sending image: " + e.getMessage());
         } catch (InterruptedException e) {
-            JOptionPane.showMessageDialog(this, "Image transfer interrupted: " + e.getMessage(), "Error", JOptionPane.ERROR_MESSAGE);
+            showTransferError("Image transfer interrupted: " + e.getMessage());
         }
     }
 
@@ -855,38 +900,34 @@ public class UDPClient extends JFrame {
         }
 
         File selectedFile = fileChooser.getSelectedFile();
-
-        // Read and send file
-        try {
-            byte[] fileData = FileTransfer.readFile(selectedFile);
-            sendFileData(selectedFile.getName(), fileData);
-
-        } catch (IOException e) {
-            JOptionPane.showMessageDialog(this, "Error reading file: " + e.getMessage(), "Error", JOptionPane.ERROR_MESSAGE);
+        if (selectedFile.length() > FileTransfer.MAX_STREAM_SIZE) {
+            JOptionPane.showMessageDialog(this, "File too large! Max size is " + FileTransfer.getFileSizeString(FileTransfer.MAX_STREAM_SIZE),
+                    "Error", JOptionPane.ERROR_MESSAGE);
+            return;
         }
+        String recipient = (selectedUser != null && !selectedUser.isEmpty() && !selectedUser.equals("All")) ? selectedUser : null;
+
+        // Stream the file from a background thread so large transfers do not block the UI
+        startTransfer(() -> sendFileData(selectedFile, recipient));
     }
 
-    private void sendFileData(String filename, byte[] fileData) {
+    /**
+     * Send a file chunk by chunk as it is read from disk; runs off the UI thread
+     */
+    private void sendFileData(File file, String recipient) {
+        String filename = file.getName();
         try {
-            InetAddress serverAddress = InetAddress.getByName(serverIp);
             String timestamp = new SimpleDateFormat("HH:mm:ss").format(new Date());
+            long sessionId = nextSessionId(); // Unique ID for this transfer
 
-            // Encode file to base64
-            String fileBase64 = FileTransfer.encodeToBase64(fileData);
-
-            // Split into chunks (400 bytes per chunk for safer UDP transmission)
-            int chunkSize = FileTransfer.CHUNK_SIZE;
-            int totalChunks = (fileBase64.length() + chunkSize - 1) / chunkSize;
-            String sessionId = Long.toHexString(System.currentTimeMillis()); // Unique ID for this transfer
-
-            if (selectedUser != null && !selectedUser.isEmpty() && !selectedUser.equals("All")) {
-                appendMessage("[" + timestamp + "] You (private file to " + selectedUser + "): \n");
+            if (recipient != null) {
+                appendMessage("[" + timestamp + "] You (" + privacy(recipient) + "file to " + recipient + "): \n");
             } else {
                 appendMessage("[" + timestamp + "] You (broadcast file to all): \n");
             }
 
             // Create and insert clickable file link for sent file
-            FileLink sentFileLink = new FileLink(filename, fileData);
+            FileLink sentFileLink = new FileLink(filename, file);
 
             SwingUtilities.invokeLater(() -> {
                 try {
@@ -900,41 +941,158 @@ public class UDPClient extends JFrame {
                 }
             });
 
-            // Send each chunk
-            for (int i = 0; i < totalChunks; i++) {
-                int start = i * chunkSize;
-                int end = Math.min(start + chunkSize, fileBase64.length());
-                String chunk = fileBase64.substring(start, end);
+            // Read and send one chunk-sized window at a time, as the flow-control window allows
+            SendWindow window = openSendWindow(sessionId, new OutgoingTransfer(BinaryFrame.TYPE_FILE,
+                    FileTransfer.chunkCount(file.length(), BinaryFrame.CHUNK_SIZE), recipient, filename, null, file));
+            try {
+                FileTransfer.streamFile(file, BinaryFrame.CHUNK_SIZE, (index, totalChunks, data, length) ->
+                        sendChunk(window, index, encodeChunk(userIds, BinaryFrame.TYPE_FILE, sessionId, index, totalChunks,
+                                username, recipient, filename, data, 0, length)));
+                window.awaitComplete();
+            } finally {
+                closeSendWindow(sessionId);
+            }
 
-                String formattedMessage;
-                if (selectedUser != null && !selectedUser.isEmpty() && !selectedUser.equals("All")) {
-                    // FILECHUNK|SESSION:id|CHUNK:chunkNum|TOTAL:totalChunks|FILENAME:name|TO:recipient|FROM:sender|DATA:chunkData
-                    formattedMessage = "FILECHUNK|SESSION:" + sessionId + "|CHUNK:" + i + "|TOTAL:" + totalChunks + "|FILENAME:" + filename + "|TO:" + selectedUser + "|FROM:" + username + "|DATA:" + chunk;
-                } else {
-                    // FILECHUNK|SESSION:id|CHUNK:chunkNum|TOTAL:totalChunks|FILENAME:name|FROM:sender|DATA:chunkData
-                    formattedMessage = "FILECHUNK|SESSION:" + sessionId + "|CHUNK:" + i + "|TOTAL:" + totalChunks + "|FILENAME:" + filename + "|FROM:" + username + "|DATA:" + chunk;
-                }
+            appendMessage("[File sent successfully]\n\n");
 
-                byte[] sendData = formattedMessage.getBytes();
-                DatagramPacket sendPacket = new DatagramPacket(
-                        sendData, sendData.length, serverAddress, DEFAULT_PORT);
-                socket.send(sendPacket);
+        } catch (InterruptedException e) {
+            showTransferError("File transfer interrupted: " + e.getMessage());
+        } catch (IOException e) {
+            showTransferError("Error sending file: " + e.getMessage());
+        }
+    }
 
-                // Small delay between chunks to avoid network flooding
-                Thread.sleep(10);
-            }
+    /**
+     * Encode one chunk datagram, addressed by user id once the server told us the ids of both ends,
+     * by username until then
+     * @param recipient null for broadcast
+     */
+    private static byte[] encodeChunk(UserIds ids, byte type, long sessionId, int index, int totalChunks, String sender,
+                                      String recipient, String name, byte[] data, int offset, int length) {
+        int senderId = ids.idOf(sender);
+        int recipientId = recipient != null ? ids.idOf(recipient) : UserIds.NONE;
+        if (senderId != UserIds.NONE && (recipient == null || recipientId != UserIds.NONE)) {
+            return BinaryFrame.toDatagram(BinaryFrame.encode(type, sessionId, index, totalChunks, senderId, recipientId,
+                    name, data, offset, length));
+        }
+        return BinaryFrame.toDatagram(BinaryFrame.encode(type, sessionId, index, totalChunks, sender, recipient,
+                name, data, offset, length));
+    }
 
-            appendMessage("[File sent successfully]\n\n");
+    /**
+     * Send one chunk of a transfer, blocking while the flow-control window is full
+     */
+    private void sendChunk(SendWindow window, int index, byte[] datagram) throws IOException, InterruptedException {
+        window.awaitSlot(index, datagram);
+        sendDatagram(datagram);
+    }
 
-        } catch (UnknownHostException e) {
-            JOptionPane.showMessageDialog(this, "Unknown host: " + e.getMessage(), "Error", JOptionPane.ERROR_MESSAGE);
+    private SendWindow openSendWindow(long sessionId, OutgoingTransfer transfer) {
+        SendWindow window = new SendWindow(transfer.totalChunks, this::sendDatagram); // Resends chunks lost on the way to the server
+        sendWindows.put(sessionId, window);
+        retransmitSources.put(sessionId, transfer); // Resends chunks lost on the way to recipients, when they NACK
+        return window;
+    }
+
+    /**
+     * The server has every chunk (or the transfer failed); recipients can still NACK for a while
+     */
+    private void closeSendWindow(long sessionId) {
+        sendWindows.remove(sessionId);
+        OutgoingTransfer transfer = retransmitSources.get(sessionId);
+        if (transfer != null) {
+            transfer.finishedTime = System.currentTimeMillis();
+        }
+    }
+
+    /**
+     * Resend the chunks a recipient reported missing, straight from the retransmission source
+     */
+    private void resendChunks(BinaryFrame nack) {
+        OutgoingTransfer transfer = retransmitSources.get(nack.sessionId);
+        if (transfer == null || (transfer.recipient != null && !transfer.recipient.equals(nack.sender))) {
+            return; // Expired, or a private transfer the requester was not part of
+        }
+        try {
+            for (int index : nack.getNackIndexes()) {
+                if (index >= 0 && index < transfer.totalChunks) {
+                    sendDatagram(transfer.retransmitDatagram(userIds, nack.sessionId, username, index, nack.sender));
+                }
+            }
         } catch (IOException e) {
-            JOptionPane.showMessageDialog(this, "Error sending file: " + e.getMessage(), "Error", JOptionPane.ERROR_MESSAGE);
-        } catch (InterruptedException e) {
-            JOptionPane.showMessageDialog(this, "File transfer interrupted: " + e.getMessage(), "Error", JOptionPane.ERROR_MESSAGE);
+            appendMessage("Error resending chunks to " + nack.sender + ": " + e.getMessage() + "\n");
         }
     }
 
+    /**
+     * NACK the missing chunks of incoming transfers and drop the ones that can no longer complete;
+     * runs on the receive thread, which owns the reassembly buffers
+     */
+    private void checkIncompleteTransfers() {
+        long now = System.currentTimeMillis();
+        if (now - lastTransferCheck < TRANSFER_CHECK_INTERVAL) {
+            return;
+        }
+        lastTransferCheck = now;
+        checkIncompleteTransfers(imageChunks, "image", now);
+        checkIncompleteTransfers(fileChunks, "file", now);
+        checkIncompleteTransfers(voiceChunks, "voice", now);
+
+        // Forget sent transfers that nobody can NACK anymore
+        retransmitSources.values().removeIf(transfer -> transfer.isExpired(now));
+    }
+
+    private void checkIncompleteTransfers(Map<String, ChunkBuffer> buffers, String kind, long now) {
+        Iterator<ChunkBuffer> iterator = buffers.values().iterator();
+        while (iterator.hasNext()) {
+            ChunkBuffer buffer = iterator.next();
+            ChunkTracker tracker = buffer.tracker;
+            if (tracker.isExpired()) {
+                iterator.remove();
+                buffer.discard();
+                String timestamp = new SimpleDateFormat("HH:mm:ss").format(new Date());
+                appendMessage("[" + timestamp + "] Incomplete " + kind + " from " + tracker.getSender() + " dropped ("
+                        + tracker.getReceivedCount() + "/" + tracker.getTotalChunks() + " chunks received)\n\n");
+                continue;
+            }
+
+            int[] missing = tracker.nextNack(now, nackRtt.getTimeout(), BinaryFrame.MAX_NACK_INDEXES);
+            if (missing != null) {
+                try {
+                    UserIds ids = userIds;
+                    int requesterId = ids.idOf(username);
+                    int senderId = ids.idOf(tracker.getSender());
+                    sendDatagram(BinaryFrame.toDatagram(requesterId != UserIds.NONE && senderId != UserIds.NONE
+                            ? BinaryFrame.encodeNack(tracker.getSessionId(), requesterId, senderId, missing)
+                            : BinaryFrame.encodeNack(tracker.getSessionId(), username, tracker.getSender(), missing)));
+                } catch (IOException e) {
+                    appendMessage("Error requesting missing chunks: " + e.getMessage() + "\n");
+                }
+            }
+        }
+    }
+
+    /**
+     * Session id for a new transfer, unique even when two transfers start in the same millisecond
+     */
+    private long nextSessionId() {
+        return lastSessionId.updateAndGet(last -> Math.max(last + 1, System.currentTimeMillis()));
+    }
+
+    /**
+     * Run a media transfer off the UI thread
+     */
+    private void startTransfer(Runnable transfer) {
+        Thread transferThread = new Thread(transfer, "udp-transfer");
+        transferThread.setDaemon(true);
+        transferThread.start();
+    }
+
+    private void showTransferError(String message) {
+        SwingUtilities.invokeLater(() ->
+                JOptionPane.showMessageDialog(this, message, "Error", JOptionPane.ERROR_MESSAGE));
+    }
+
     private void startVoiceRecording() {
         if (!isConnected) {
             JOptionPane.showMessageDialog(this, "Not connected to server!", "Error", JOptionPane.ERROR_MESSAGE);
@@ -973,7 +1131,7 @@ public class UDPClient extends JFrame {
 
             if (voiceData.length > 0) {
                 appendMessage("[Voice recording complete, sending...]\n");
-                sendVoiceData(voiceData);
+                startTransfer(() -> sendVoiceData(voiceData));
             } else {
                 appendMessage("[No audio recorded]\n");
             }
@@ -984,19 +1142,16 @@ public class UDPClient extends JFrame {
 
     private void sendVoiceData(byte[] voiceData) {
         try {
-            InetAddress serverAddress = InetAddress.getByName(serverIp);
             String timestamp = new SimpleDateFormat("HH:mm:ss").format(new Date());
 
-            // Encode voice to base64
-            String voiceBase64 = Base64.getEncoder().encodeToString(voiceData);
-
-            // Split into chunks (400 bytes per chunk for safer UDP transmission)
-            int chunkSize = 400;
-            int totalChunks = (voiceBase64.length() + chunkSize - 1) / chunkSize;
-            String sessionId = Long.toHexString(System.currentTimeMillis()); // Unique ID for this transfer
+            // Split raw bytes into binary frame chunks, sized to fit one datagram
+            int chunkSize = BinaryFrame.CHUNK_SIZE;
+            int totalChunks = (voiceData.length + chunkSize - 1) / chunkSize;
+            long sessionId = nextSessionId(); // Unique ID for this transfer
+            String recipient = (selectedUser != null && !selectedUser.isEmpty() && !selectedUser.equals("All")) ? selectedUser : null;
 
             if (selectedUser != null && !selectedUser.isEmpty() && !selectedUser.equals("All")) {
-                appendMessage("[" + timestamp + "] You (private voice to " + selectedUser + ") [" + voiceData.length + " bytes, " + totalChunks + " chunks]\n");
+                appendMessage("[" + timestamp + "] You (" + privacy(selectedUser) + "voice to " + selectedUser + ") [" + voiceData.length + " bytes, " + totalChunks + " chunks]\n");
             } else {
                 appendMessage("[" + timestamp + "] You (broadcast voice to all) [" + voiceData.length + " bytes, " + totalChunks + " chunks]\n");
             }
@@ -1016,38 +1171,29 @@ public class UDPClient extends JFrame {
                 }
             });
 
-            // Send each chunk
-            for (int i = 0; i < totalChunks; i++) {
-                int start = i * chunkSize;
-                int end = Math.min(start + chunkSize, voiceBase64.length());
-                String chunk = voiceBase64.substring(start, end);
-
-                String formattedMessage;
-                if (selectedUser != null && !selectedUser.isEmpty() && !selectedUser.equals("All")) {
-                    // VOICECHUNK|SESSION:id|CHUNK:chunkNum|TOTAL:totalChunks|TO:recipient|FROM:sender|DATA:chunkData
-                    formattedMessage = "VOICECHUNK|SESSION:" + sessionId + "|CHUNK:" + i + "|TOTAL:" + totalChunks + "|TO:" + selectedUser + "|FROM:" + username + "|DATA:" + chunk;
-                } else {
-                    // VOICECHUNK|SESSION:id|CHUNK:chunkNum|TOTAL:totalChunks|FROM:sender|DATA:chunkData
-                    formattedMessage = "VOICECHUNK|SESSION:" + sessionId + "|CHUNK:" + i + "|TOTAL:" + totalChunks + "|FROM:" + username + "|DATA:" + chunk;
+            // Send each chunk as the flow-control window allows
+            SendWindow window = openSendWindow(sessionId,
+                    new OutgoingTransfer(BinaryFrame.TYPE_VOICE, totalChunks, recipient, null, voiceData, null));
+            try {
+                for (int i = 0; i < totalChunks; i++) {
+                    int start = i * chunkSize;
+                    int length = Math.min(chunkSize, voiceData.length - start);
+                    sendChunk(window, i, encodeChunk(userIds, BinaryFrame.TYPE_VOICE, sessionId, i, totalChunks,
+                            username, recipient, null, voiceData, start, length));
                 }
-
-                byte[] sendData = formattedMessage.getBytes();
-                DatagramPacket sendPacket = new DatagramPacket(
-                        sendData, sendData.length, serverAddress, DEFAULT_PORT);
-                socket.send(sendPacket);
-
-                // Small delay between chunks to avoid network flooding
-                Thread.sleep(10);
+                window.awaitComplete();
+            } finally {
+                closeSendWindow(sessionId);
             }
 
             appendMessage("[Voice sent successfully]\n\n");
 
         } catch (UnknownHostException e) {
-            JOptionPane.showMessageDialog(this, "Unknown host: " + e.getMessage(), "Error", JOptionPane.ERROR_MESSAGE);
+            showTransferError("Unknown host: " + e.getMessage());
         } catch (IOException e) {
-            JOptionPane.showMessageDialog(this, "Error sending voice: " + e.getMessage(), "Error", JOptionPane.ERROR_MESSAGE);
+            showTransferError("Error sending voice: " + e.getMessage());
         } catch (InterruptedException e) {
-            JOptionPane.showMessageDialog(this, "Voice transfer interrupted: " + e.getMessage(), "Error", JOptionPane.ERROR_MESSAGE);
+            showTransferError("Voice transfer interrupted: " + e.getMessage());
         }
     }
 
@@ -1059,6 +1205,59 @@ public class UDPClient extends JFrame {
         }
     }
 
+    /**
+     * Send a text protocol message to the server as a binary TEXT datagram
+     */
+    private void sendToServer(String message) {
+        try {
+            sendDatagram(BinaryFrame.encodeTextDatagram(message));
+        } catch (IOException e) {
+            if (isConnected) {
+                appendMessage("Error sending to server: " + e.getMessage() + "\n");
+            }
+        }
+    }
+
+    /**
+     * Send a datagram to the server; once the server reads batched datagrams, small ones wait up
+     * to DatagramBatch.LINGER_MILLIS for more to share a datagram with, in the order they were sent
+     */
+    private void sendDatagram(byte[] sendData) throws IOException {
+        synchronized (outgoing) {
+            if (!outgoing.isEmpty() && outgoing.add(sendData, sendData.length)) {
+                return;
+            }
+            flushOutgoing();
+            if (serverReadsBatches && DatagramBatch.isSmall(sendData.length)) {
+                outgoing.add(sendData, sendData.length);
+                outgoing.notifyAll(); // Wake the flush thread to time the linger
+                return;
+            }
+            send(ByteBuffer.wrap(sendData));
+        }
+    }
+
+    /**
+     * Send the outgoing batch, if any; the caller holds its lock
+     */
+    private void flushOutgoing() throws IOException {
+        if (!outgoing.isEmpty()) {
+            try {
+                send(outgoing.finish());
+            } finally {
+                outgoing.reset();
+            }
+        }
+    }
+
+    private void send(ByteBuffer buffer) throws IOException {
+        // The channel is non-blocking for the receive selector; wait out a full send buffer rather than drop
+        while (channel.send(buffer, serverAddress) == 0) {
+            LockSupport.parkNanos(50_000);
+        }
+        lastSent = System.currentTimeMillis();
+    }
+
     private void appendMessage(String message) {
         SwingUtilities.invokeLater(() -> {
             try {
@@ -1071,11 +1270,19 @@ public class UDPClient extends JFrame {
     }
 
     private void updateUserList(String userListStr) {
+        // Versioned snapshot: version|user1,user2,...
+        int separator = userListStr.indexOf('|');
+        if (separator >= 0) {
+            presenceVersion = Long.parseLong(userListStr.substring(0, separator));
+            userListStr = userListStr.substring(separator + 1);
+        }
+        String userNames = learnUserIds(userListStr);
+
         SwingUtilities.invokeLater(() -> {
             // Get list of currently connected users from server
             Set<String> connectedUserNames = new HashSet<>();
-            if (!userListStr.isEmpty()) {
-                String[] users = userListStr.split(",");
+            if (!userNames.isEmpty()) {
+                String[] users = userNames.split(",");
                 for (String user : users) {
                     String trimmedUser = user.trim();
                     // Don't add the current user to the list
@@ -1088,7 +1295,7 @@ public class UDPClient extends JFrame {
             // Update existing users and mark disconnected ones
             for (int i = 0; i < userListModel.getSize(); i++) {
                 UserStatus status = userListModel.getElementAt(i);
-                if (!status.username.equals("All")) {
+                if (!status.username.equals("All") && !Rooms.isRoom(status.username)) {
                     if (!connectedUserNames.contains(status.username)) {
                         // User is no longer in the connected list, mark as disconnected
                         status.isConnected = false;
@@ -1123,6 +1330,209 @@ public class UDPClient extends JFrame {
         });
     }
 
+    private void handlePresenceDelta(String response) {
+        boolean joined = response.startsWith("USERJOIN:");
+        String body = response.substring(joined ? 9 : 10);
+        int separator = body.indexOf(':');
+        if (separator < 0) {
+            return;
+        }
+        long version = Long.parseLong(body.substring(0, separator));
+        String user = learnUserId(body.substring(separator + 1));
+
+        // Already reflected in the snapshot we hold
+        if (version <= presenceVersion) {
+            return;
+        }
+        // A delta was missed (e.g. lost datagram), ask the server for a fresh snapshot
+        if (presenceVersion >= 0 && version > presenceVersion + 1) {
+            sendToServer("GETUSERS:" + username);
+        }
+        presenceVersion = version;
+
+        if (user.equals(username)) {
+            return;
+        }
+        SwingUtilities.invokeLater(() -> {
+            boolean found = false;
+            for (int i = 0; i < userListModel.getSize(); i++) {
+                UserStatus status = userListModel.getElementAt(i);
+                if (status.username.equals(user)) {
+                    status.isConnected = joined;
+                    found = true;
+                    break;
+                }
+            }
+            if (!found && joined) {
+                userListModel.addElement(new UserStatus(user, true));
+            }
+            userList.repaint();
+        });
+    }
+
+    /**
+     * Remember the ids of comma-separated presence entries ("id=user" from servers that address
+     * users by id) and return the usernames alone
+     */
+    private String learnUserIds(String entries) {
+        if (entries.isEmpty()) {
+            return entries;
+        }
+        StringJoiner names = new StringJoiner(",");
+        for (String entry : entries.split(",")) {
+            names.add(learnUserId(entry.trim()));
+        }
+        return names.toString();
+    }
+
+    private String learnUserId(String entry) {
+        int separator = entry.indexOf('=');
+        if (separator > 0) {
+            try {
+                int id = Integer.parseInt(entry.substring(0, separator));
+                String name = entry.substring(separator + 1);
+                userIds.assign(name, id);
+                return name;
+            } catch (NumberFormatException e) {
+                // A plain username containing '='
+            }
+        }
+        return entry;
+    }
+
+    /**
+     * Turn "/join #room" or "/leave #room" into a JOIN:/LEAVE: message; null for anything else
+     */
+    private String roomCommand(String message) {
+        String[] words = message.split("\\s+");
+        if (words.length != 2 || !(words[0].equals("/join") || words[0].equals("/leave"))) {
+            return null;
+        }
+        String room = words[1].charAt(0) == Rooms.PREFIX ? words[1] : Rooms.PREFIX + words[1];
+        return (words[0].equals("/join") ? "JOIN:" : "LEAVE:") + room + "|FROM:" + username;
+    }
+
+    /**
+     * Show joined rooms in the user list so they can be selected as a recipient like a user
+     */
+    private void handleRoomMembership(String response) {
+        boolean joined = response.startsWith("ROOMJOINED:");
+        String[] parts = response.substring(joined ? 11 : 9).split("\\|", 2);
+        String room = learnUserId(parts[0]);
+        String timestamp = new SimpleDateFormat("HH:mm:ss").format(new Date());
+        if (joined) {
+            String members = parts.length > 1 ? learnUserIds(parts[1]) : "";
+            appendMessage("[" + timestamp + "] *** Joined " + room + " (" + members.replace(",", ", ") + ") ***\n\n");
+        } else {
+            appendMessage("[" + timestamp + "] *** Left " + room + " ***\n\n");
+        }
+        SwingUtilities.invokeLater(() -> {
+            for (int i = 0; i < userListModel.getSize(); i++) {
+                if (userListModel.getElementAt(i).username.equals(room)) {
+                    if (!joined) {
+                        userListModel.remove(i);
+                        if (room.equals(selectedUser)) {
+                            userList.setSelectedIndex(0);
+                            selectedUser = "All";
+                            updateSendButtonLabel();
+                        }
+                    }
+                    return;
+                }
+            }
+            if (joined) {
+                userListModel.addElement(new UserStatus(room, true));
+            }
+        });
+    }
+
+    /**
+     * "private " for a message to one user, nothing for a room (the room name says it)
+     */
+    private static String privacy(String recipient) {
+        return Rooms.isRoom(recipient) ? "" : "private ";
+    }
+
+    /**
+     * Sender of a received message, with the room it was sent to
+     */
+    private static String origin(String sender, String recipient) {
+        return Rooms.isRoom(recipient) ? sender + " in " + recipient : sender;
+    }
+
+    /**
+     * Route a binary media frame to its reassembly buffer; the payload is raw bytes, no Base64
+     */
+    private void handleMediaFrame(BinaryFrame frame) {
+        if (frame.ids && !frame.resolve(userIds)) {
+            // From a user whose join we missed: catch up on presence, the chunk is NACKed later
+            sendToServer("GETUSERS:" + username);
+            return;
+        }
+        String sessionId = Long.toHexString(frame.sessionId);
+        String recipient = frame.isPrivate() ? frame.recipient : null;
+        if (frame.retransmit) {
+            // Resent in answer to our NACK: only fills a transfer in progress, never starts one
+            ChunkTracker tracker = findIncomingTransfer(frame.type, frame.sender + "_" + sessionId);
+            if (tracker == null) {
+                return;
+            }
+            long rtt = tracker.nackRoundTrip(System.currentTimeMillis());
+            if (rtt >= 0) {
+                nackRtt.sample(rtt);
+            }
+        }
+        switch (frame.type) {
+            case BinaryFrame.TYPE_ACK:
+                // Flow control: the server acknowledged chunks of one of our transfers
+                SendWindow window = sendWindows.get(frame.sessionId);
+                if (window != null) {
+                    window.onAck(frame.chunkIndex, frame.data, frame.payloadOffset, frame.payloadLength);
+                }
+                break;
+            case BinaryFrame.TYPE_NACK:
+                // Reliability: a recipient missed chunks of one of our transfers
+                resendChunks(frame);
+                break;
+            case BinaryFrame.TYPE_IMAGE:
+                acceptImageChunk(sessionId, frame.chunkIndex, frame.totalChunks, frame.sender, recipient,
+                        frame.data, frame.payloadOffset, frame.payloadLength);
+                break;
+            case BinaryFrame.TYPE_FILE:
+                acceptFileChunk(sessionId, frame.chunkIndex, frame.totalChunks, frame.sender, recipient, frame.name,
+                        frame.data, frame.payloadOffset, frame.payloadLength);
+                break;
+            case BinaryFrame.TYPE_VOICE:
+                acceptVoiceChunk(sessionId, frame.chunkIndex, frame.totalChunks, frame.sender, recipient,
+                        frame.data, frame.payloadOffset, frame.payloadLength);
+                break;
+            default:
+                break;
+        }
+    }
+
+    /**
+     * Tracker of an incoming transfer still being reassembled, or null
+     */
+    private ChunkTracker findIncomingTransfer(byte type, String bufferKey) {
+        ChunkBuffer buffer;
+        switch (type) {
+            case BinaryFrame.TYPE_IMAGE:
+                buffer = imageChunks.get(bufferKey);
+                break;
+            case BinaryFrame.TYPE_FILE:
+                buffer = fileChunks.get(bufferKey);
+                break;
+            case BinaryFrame.TYPE_VOICE:
+                buffer = voiceChunks.get(bufferKey);
+                break;
+            default:
+                buffer = null;
+                break;
+        }
+        return buffer == null ? null : buffer.tracker;
+    }
+
     private void handleImageChunk(String response) {
         try {
             String timestamp = new SimpleDateFormat("HH:mm:ss").format(new Date());
@@ -1158,29 +1568,52 @@ public class UDPClient extends JFrame {
                 return;
             }
 
+            // Legacy text chunks are Base64; each chunk decodes on its own since senders slice on 4-char boundaries
+            byte[] decoded = Base64.getDecoder().decode(chunkData);
+            acceptImageChunk(sessionId, chunkNum, totalChunks, sender, recipient, decoded, 0, decoded.length);
+
+        } catch (Exception e) {
+            String timestamp = new SimpleDateFormat("HH:mm:ss").format(new Date());
+            appendMessage("[" + timestamp + "] Error processing image chunk: " + e.getMessage() + "\n\n");
+        }
+    }
+
+    /**
+     * Store one decoded image chunk and display the image once every chunk has arrived
+     */
+    private void acceptImageChunk(String sessionId, int chunkNum, int totalChunks, String sender,
+                                   String recipient, byte[] data, int offset, int length) {
+        try {
+            String timestamp = new SimpleDateFormat("HH:mm:ss").format(new Date());
+
             // Create buffer key (sender + sessionId)
             String bufferKey = sender + "_" + sessionId;
 
             // Get or create chunk buffer
-            ImageChunkBuffer buffer = imageChunks.get(bufferKey);
+            ChunkBuffer buffer = imageChunks.get(bufferKey);
             if (buffer == null) {
-                buffer = new ImageChunkBuffer(totalChunks, sender, recipient);
+                buffer = new ChunkBuffer(recipient, new ChunkTracker(BinaryFrame.parseSessionId(sessionId), sender, totalChunks,
+                        30000), ChunkAssembler.inMemory(totalChunks)); // 30 seconds without a chunk
                 imageChunks.put(bufferKey, buffer);
             }
+            recipient = buffer.recipient; // A resent chunk is addressed to us even when the image was broadcast
 
-            // Add chunk to buffer
-            buffer.setChunk(chunkNum, chunkData);
+            // Copy the chunk to its offset in the image
+            try {
+                buffer.setChunk(chunkNum, data, offset, length);
+            } catch (IOException e) {
+                imageChunks.remove(bufferKey);
+                buffer.discard();
+                throw e;
+            }
 
             // Check if all chunks received
             if (buffer.isComplete()) {
                 imageChunks.remove(bufferKey);
 
                 try {
-                    // Reassemble complete base64 data
-                    String completeBase64 = buffer.getCompleteData();
-
-                    // Decode base64 to get image bytes
-                    byte[] imageData = Base64.getDecoder().decode(completeBase64);
+                    // The chunks were assembled in place as they arrived
+                    byte[] imageData = buffer.assembler.getData();
 
                     // Convert bytes to BufferedImage
                     ByteArrayInputStream bais = new ByteArrayInputStream(imageData);
@@ -1202,10 +1635,10 @@ public class UDPClient extends JFrame {
                     JLabel imageLabel = new JLabel(scaledIcon);
                     imageLabel.setCursor(new Cursor(Cursor.HAND_CURSOR));
 
-                    if (recipient != null && !recipient.isEmpty()) {
+                    if (recipient != null && !recipient.isEmpty() && !Rooms.isRoom(recipient)) {
                         appendMessage("[" + timestamp + "] (private image from " + sender + ") [" + imageData.length + " bytes]:\n");
                     } else {
-                        appendMessage("[" + timestamp + "] (image from " + sender + ") [" + imageData.length + " bytes]:\n");
+                        appendMessage("[" + timestamp + "] (image from " + origin(sender, recipient) + ") [" + imageData.length + " bytes]:\n");
                     }
 
                     // Add click listener to show Save/Open dialog for image
@@ -1324,55 +1757,71 @@ public class UDPClient extends JFrame {
                 return;
             }
 
+            // Legacy text chunks are Base64; each chunk decodes on its own since senders slice on 4-char boundaries
+            byte[] decoded = Base64.getDecoder().decode(chunkData);
+            acceptFileChunk(sessionId, chunkNum, totalChunks, sender, recipient, filename, decoded, 0, decoded.length);
+
+        } catch (Exception e) {
+            String timestamp = new SimpleDateFormat("HH:mm:ss").format(new Date());
+            appendMessage("[" + timestamp + "] Error processing file chunk: " + e.getMessage() + "\n\n");
+        }
+    }
+
+    /**
+     * Store one decoded file chunk and display the file once every chunk has arrived
+     */
+    private void acceptFileChunk(String sessionId, int chunkNum, int totalChunks, String sender,
+                                   String recipient, String filename, byte[] data, int offset, int length) {
+        try {
+            String timestamp = new SimpleDateFormat("HH:mm:ss").format(new Date());
+
             // Create buffer key (sender + sessionId)
             String bufferKey = sender + "_" + sessionId;
 
             // Get or create chunk buffer
-            FileChunkBuffer buffer = fileChunks.get(bufferKey);
+            ChunkBuffer buffer = fileChunks.get(bufferKey);
             if (buffer == null) {
-                buffer = new FileChunkBuffer(totalChunks, sender, recipient, filename);
+                buffer = new ChunkBuffer(recipient, new ChunkTracker(BinaryFrame.parseSessionId(sessionId), sender, totalChunks,
+                        60000), ChunkAssembler.toTempFile(totalChunks, filename)); // 60 seconds without a chunk
                 fileChunks.put(bufferKey, buffer);
             }
+            recipient = buffer.recipient; // A resent chunk is addressed to us even when the file was broadcast
 
-            // Add chunk to buffer
-            buffer.setChunk(chunkNum, chunkData);
+            // Write chunk to the temp file at its offset
+            try {
+                buffer.setChunk(chunkNum, data, offset, length);
+            } catch (IOException e) {
+                fileChunks.remove(bufferKey);
+                buffer.discard();
+                throw e;
+            }
 
             // Check if all chunks received
             if (buffer.isComplete()) {
                 fileChunks.remove(bufferKey);
+                File file = buffer.assembler.finish();
 
-                try {
-                    // Reassemble complete base64 data
-                    String completeBase64 = buffer.getCompleteData();
+                if (recipient != null && !recipient.isEmpty() && !Rooms.isRoom(recipient)) {
+                    appendMessage("[" + timestamp + "] (private file from " + sender + "): \n");
+                } else {
+                    appendMessage("[" + timestamp + "] (file from " + origin(sender, recipient) + "): \n");
+                }
 
-                    // Decode base64 to get file bytes
-                    byte[] fileData = FileTransfer.decodeFromBase64(completeBase64);
+                // Create and insert clickable file link
+                FileLink fileLink = new FileLink(filename, file);
 
-                    if (recipient != null && !recipient.isEmpty()) {
-                        appendMessage("[" + timestamp + "] (private file from " + sender + "): \n");
-                    } else {
-                        appendMessage("[" + timestamp + "] (file from " + sender + "): \n");
+                // Insert file link into message area
+                SwingUtilities.invokeLater(() -> {
+                    try {
+                        int pos = messageArea.getDocument().getLength();
+                        messageArea.setCaretPosition(pos);
+                        messageArea.insertComponent(fileLink);
+                        messageArea.getDocument().insertString(messageArea.getDocument().getLength(), "\n\n", null);
+                        messageArea.setCaretPosition(messageArea.getDocument().getLength());
+                    } catch (Exception e) {
+                        appendMessage("Error displaying file link: " + e.getMessage() + "\n\n");
                     }
-
-                    // Create and insert clickable file link
-                    FileLink fileLink = new FileLink(filename, fileData);
-
-                    // Insert file link into message area
-                    SwingUtilities.invokeLater(() -> {
-                        try {
-                            int pos = messageArea.getDocument().getLength();
-                            messageArea.setCaretPosition(pos);
-                            messageArea.insertComponent(fileLink);
-                            messageArea.getDocument().insertString(messageArea.getDocument().getLength(), "\n\n", null);
-                            messageArea.setCaretPosition(messageArea.getDocument().getLength());
-                        } catch (Exception e) {
-                            appendMessage("Error displaying file link: " + e.getMessage() + "\n\n");
-                        }
-                    });
-
-                } catch (IllegalArgumentException e) {
-                    appendMessage("[" + timestamp + "] Error: Could not decode file data - " + e.getMessage() + "\n\n");
-                }
+                });
             }
 
         } catch (Exception e) {
@@ -1416,34 +1865,57 @@ public class UDPClient extends JFrame {
                 return;
             }
 
+            // Legacy text chunks are Base64; each chunk decodes on its own since senders slice on 4-char boundaries
+            byte[] decoded = Base64.getDecoder().decode(chunkData);
+            acceptVoiceChunk(sessionId, chunkNum, totalChunks, sender, recipient, decoded, 0, decoded.length);
+
+        } catch (Exception e) {
+            String timestamp = new SimpleDateFormat("HH:mm:ss").format(new Date());
+            appendMessage("[" + timestamp + "] Error processing voice chunk: " + e.getMessage() + "\n\n");
+        }
+    }
+
+    /**
+     * Store one decoded voice chunk and display the voice once every chunk has arrived
+     */
+    private void acceptVoiceChunk(String sessionId, int chunkNum, int totalChunks, String sender,
+                                   String recipient, byte[] data, int offset, int length) {
+        try {
+            String timestamp = new SimpleDateFormat("HH:mm:ss").format(new Date());
+
             // Create buffer key (sender + sessionId)
             String bufferKey = sender + "_" + sessionId;
 
             // Get or create chunk buffer
-            VoiceChunkBuffer buffer = voiceChunks.get(bufferKey);
+            ChunkBuffer buffer = voiceChunks.get(bufferKey);
             if (buffer == null) {
-                buffer = new VoiceChunkBuffer(totalChunks, sender, recipient);
+                buffer = new ChunkBuffer(recipient, new ChunkTracker(BinaryFrame.parseSessionId(sessionId), sender, totalChunks,
+                        120000), ChunkAssembler.inMemory(totalChunks)); // 120 seconds without a chunk
                 voiceChunks.put(bufferKey, buffer);
             }
+            recipient = buffer.recipient; // A resent chunk is addressed to us even when the voice was broadcast
 
-            // Add chunk to buffer
-            buffer.setChunk(chunkNum, chunkData);
+            // Copy the chunk to its offset in the recording
+            try {
+                buffer.setChunk(chunkNum, data, offset, length);
+            } catch (IOException e) {
+                voiceChunks.remove(bufferKey);
+                buffer.discard();
+                throw e;
+            }
 
             // Check if all chunks received
             if (buffer.isComplete()) {
                 voiceChunks.remove(bufferKey);
 
                 try {
-                    // Reassemble complete base64 data
-                    String completeBase64 = buffer.getCompleteData();
-
-                    // Decode base64 to get voice bytes
-                    byte[] voiceData = Base64.getDecoder().decode(completeBase64);
+                    // The chunks were assembled in place as they arrived
+                    byte[] voiceData = buffer.assembler.getData();
 
-                    if (recipient != null && !recipient.isEmpty()) {
+                    if (recipient != null && !recipient.isEmpty() && !Rooms.isRoom(recipient)) {
                         appendMessage("[" + timestamp + "] (private voice from " + sender + ") [" + voiceData.length + " bytes]:\n");
                     } else {
-                        appendMessage("[" + timestamp + "] (voice from " + sender + ") [" + voiceData.length + " bytes]:\n");
+                        appendMessage("[" + timestamp + "] (voice from " + origin(sender, recipient) + ") [" + voiceData.length + " bytes]:\n");
                     }
 
                     // Create and insert clickable voice link
@@ -0,0 +1,538 @@
+import java.io.*;
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadInfo;
+import java.lang.management.ThreadMXBean;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.ClosedSelectorException;
+import java.nio.channels.DatagramChannel;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.Base64;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * UDPLoadGenerator - Headless load generator for the UDP chat server
+ * Simulates many UDPClient protocol sessions (CONNECT, HEARTBEAT, broadcast FROM:, private TO:
+ * and IMGCHUNK/FILECHUNK/VOICECHUNK datagrams) against an embedded UDPServerCore, or a running
+ * server with --port, and reports throughput, loss, end-to-end delivery latency percentiles and
+ * server CPU/heap. Every session has its own socket; one selector thread receives for all of them.
+ * Messages are sent on a fixed schedule and carry their scheduled send time, so latency includes
+ * any time the generator itself fell behind instead of hiding it.
+ *
+ * Usage: java UDPLoadGenerator [--clients N] [--seconds S] [--rate msgs/s per client]
+ *        [--mix broadcast:private:media] [--chunk-bytes N] [--threads N]
+ *        [--port N] [--server-pid PID]
+ */
+public class UDPLoadGenerator {
+    private static final long HEARTBEAT_INTERVAL = 30000; // Same as UDPClient
+    private static final String[] CHUNK_TYPES = {"IMGCHUNK", "FILECHUNK", "VOICECHUNK"};
+    private static final int SETTLE_TIMEOUT = 120000; // ms to wait for the join storm to be delivered
+
+    /**
+     * Kinds of generated traffic, each with its own counters and latency histogram
+     */
+    private enum Kind {
+        BROADCAST("broadcast"), PRIVATE("private"), MEDIA("media chunk");
+
+        final String label;
+        final LongAdder sent = new LongAdder();
+        final LongAdder expected = new LongAdder(); // Copies that should be delivered
+        final LongAdder delivered = new LongAdder();
+        final LatencyHistogram latency = new LatencyHistogram(); // Microseconds
+
+        Kind(String label) {
+            this.label = label;
+        }
+    }
+
+    private final int clients;
+    private final int seconds;
+    private final double rate;
+    private final int[] mix;
+    private final String chunkData;
+    private final int threads;
+    private int port;
+    private final long serverPid;
+
+    private final long epoch = System.nanoTime(); // Send times are encoded relative to this
+    private volatile long measureStart = Long.MAX_VALUE; // Only messages scheduled after this are counted
+    private volatile boolean running = true;
+    private final List<Session> sessions = new ArrayList<>();
+    private final LongAdder otherMessages = new LongAdder(); // Presence and join/leave notices
+    private final LongAdder sendErrors = new LongAdder();
+    private final LongAdder heartbeatsSent = new LongAdder();
+    private final LongAdder heartbeatsSkipped = new LongAdder(); // The session was active, its traffic proves liveness
+    private Selector selector;
+
+    public UDPLoadGenerator(int clients, int seconds, double rate, int[] mix, int chunkBytes,
+                            int threads, int port, long serverPid) {
+        this.clients = clients;
+        this.seconds = seconds;
+        this.rate = rate;
+        this.mix = mix;
+        byte[] payload = new byte[chunkBytes];
+        new Random(42).nextBytes(payload);
+        this.chunkData = Base64.getEncoder().encodeToString(payload);
+        this.threads = threads;
+        this.port = port;
+        this.serverPid = serverPid;
+    }
+
+    // Inner class for one simulated client and its socket
+    private final class Session {
+        final int id;
+        final String name;
+        final DatagramChannel channel;
+        int chunkType;
+        volatile long lastSent = System.nanoTime();
+
+        Session(int id) throws IOException {
+            this.id = id;
+            this.name = "load" + id;
+            this.channel = DatagramChannel.open();
+            channel.connect(new InetSocketAddress(InetAddress.getLoopbackAddress(), port));
+            channel.configureBlocking(false);
+        }
+
+        void send(String message) throws IOException {
+            channel.write(ByteBuffer.wrap(message.getBytes())); // Thread-safe; a full socket buffer drops it like the network would
+            lastSent = System.nanoTime();
+        }
+
+        void close() {
+            try {
+                channel.close();
+            } catch (IOException e) {
+                // Closing anyway
+            }
+        }
+    }
+
+    public static void main(String[] args) throws Exception {
+        int clients = 1000;
+        int seconds = 10;
+        double rate = 1.0;
+        int[] mix = {10, 80, 10};
+        int chunkBytes = FileTransfer.CHUNK_SIZE;
+        int threads = UDPPipeline.DEFAULT_THREADS;
+        int port = 0;
+        long serverPid = 0;
+        try {
+            for (int i = 0; i < args.length; i++) {
+                String option = args[i];
+                String value = i + 1 < args.length ? args[++i] : "";
+                switch (option) {
+                    case "--clients":
+                        clients = Integer.parseInt(value);
+                        break;
+                    case "--seconds":
+                        seconds = Integer.parseInt(value);
+                        break;
+                    case "--rate":
+                        rate = Double.parseDouble(value);
+                        break;
+                    case "--mix":
+                        String[] weights = value.split(":");
+                        mix = new int[]{Integer.parseInt(weights[0]), Integer.parseInt(weights[1]), Integer.parseInt(weights[2])};
+                        break;
+                    case "--chunk-bytes":
+                        chunkBytes = Integer.parseInt(value);
+                        break;
+                    case "--threads":
+                        threads = Integer.parseInt(value);
+                        break;
+                    case "--port":
+                        port = Integer.parseInt(value);
+                        break;
+                    case "--server-pid":
+                        serverPid = Long.parseLong(value);
+                        break;
+                    default:
+                        throw new IllegalArgumentException("Unknown option " + option);
+                }
+            }
+            if (clients < 2) {
+                throw new IllegalArgumentException("Need at least 2 clients");
+            }
+        } catch (RuntimeException e) {
+            System.err.println(e.getMessage());
+            System.err.println("Usage: java UDPLoadGenerator [--clients N] [--seconds S] [--rate msgs/s per client]"
+                    + " [--mix broadcast:private:media] [--chunk-bytes N] [--threads N] [--port N] [--server-pid PID]");
+            System.exit(2);
+        }
+
+        new UDPLoadGenerator(clients, seconds, rate, mix, chunkBytes, threads, port, serverPid).run();
+        System.exit(0);
+    }
+
+    private void run() throws Exception {
+        UDPServerCore server = null;
+        if (port == 0) {
+            ServerLog log = new ServerLog(ServerLog.Level.ERROR);
+            log.attachConsole(System.err);
+            server = new UDPServerCore(0, threads, log);
+            server.start();
+            port = server.getPort();
+        }
+        System.out.println("=== UDP load test: " + clients + " clients, " + seconds + " s at " + rate
+                + " msg/s per client, mix " + mix[0] + ":" + mix[1] + ":" + mix[2] + " (broadcast:private:media), "
+                + (server != null ? "embedded server with " + threads + " threads per stage" : "server on port " + port) + " ===");
+
+        // Connect phase
+        selector = Selector.open();
+        Thread receiver = new Thread(this::receiveLoop, "load-receiver");
+        receiver.start();
+        long connectStart = System.nanoTime();
+        for (int i = 0; i < clients; i++) {
+            try {
+                Session session = new Session(i);
+                synchronized (this) {
+                    selector.wakeup();
+                    session.channel.register(selector, SelectionKey.OP_READ, session);
+                }
+                session.send("CONNECT:" + session.name);
+                sessions.add(session);
+            } catch (IOException e) {
+                System.out.println("Stopped connecting at " + sessions.size() + " sessions: " + e.getMessage());
+                break;
+            }
+        }
+        long connectMs = (System.nanoTime() - connectStart) / 1000000;
+        long settledMs = awaitQuiet(otherMessages, 1000, SETTLE_TIMEOUT) + connectMs;
+        System.out.println("Connected " + sessions.size() + " sessions in " + connectMs + " ms, join notices settled after " + settledMs + " ms");
+        if (sessions.size() < 2) {
+            return;
+        }
+
+        // Measurement phase
+        long[] cpuBefore = cpuTimes();
+        long presenceBefore = server != null ? server.getPresenceBytesSent() : 0;
+        long wallStart = System.nanoTime();
+        measureStart = wallStart - epoch;
+        long end = wallStart + seconds * 1000000000L;
+        int senderCount = Math.max(1, Math.min(4, Runtime.getRuntime().availableProcessors()));
+        List<Thread> senders = new ArrayList<>();
+        for (int s = 0; s < senderCount; s++) {
+            int first = s;
+            Thread sender = new Thread(() -> sendLoop(first, senderCount, end), "load-sender-" + s);
+            senders.add(sender);
+            sender.start();
+        }
+        Thread heartbeats = new Thread(() -> heartbeatLoop(end), "load-heartbeat");
+        heartbeats.start();
+
+        long peakHeap = 0;
+        while (System.nanoTime() < end) {
+            peakHeap = Math.max(peakHeap, usedHeap());
+            Thread.sleep(250);
+        }
+        for (Thread sender : senders) {
+            sender.join();
+        }
+        heartbeats.join();
+        awaitDelivered(5000);
+        long wallNanos = System.nanoTime() - wallStart;
+        long[] cpuAfter = cpuTimes();
+
+        report(wallNanos, cpuBefore, cpuAfter, peakHeap, server != null);
+        if (server != null) {
+            // Presence is event driven, so relayed media should not add to it; a file transfer of
+            // chunkCount chunks costs chunkCount times the per-chunk figure
+            long presence = server.getPresenceBytesSent() - presenceBefore;
+            long chunks = Kind.MEDIA.sent.sum();
+            System.out.printf("Presence traffic: %s for the join storm, %s during the run, %.2f bytes per media chunk%n",
+                    FileTransfer.getFileSizeString(presenceBefore), FileTransfer.getFileSizeString(presence),
+                    chunks == 0 ? 0.0 : (double) presence / chunks);
+        }
+
+        running = false;
+        selector.close();
+        receiver.join(1000);
+        for (Session session : sessions) {
+            session.close();
+        }
+        if (server != null) {
+            server.stop();
+        }
+    }
+
+    /**
+     * Send this sender's share of the sessions' messages on a fixed schedule until the end time
+     */
+    private void sendLoop(int first, int step, long end) {
+        List<Session> slice = new ArrayList<>();
+        for (int i = first; i < sessions.size(); i += step) {
+            slice.add(sessions.get(i));
+        }
+        if (slice.isEmpty()) {
+            return;
+        }
+        long interval = (long) (1000000000L / (rate * slice.size()));
+        long next = System.nanoTime();
+        int cursor = 0;
+        while (next < end) {
+            long wait = next - System.nanoTime();
+            if (wait > 0) {
+                LockSupport.parkNanos(wait);
+            }
+            sendOne(slice.get(cursor++ % slice.size()), next - epoch);
+            next += interval;
+        }
+    }
+
+    private void sendOne(Session session, long scheduled) {
+        ThreadLocalRandom random = ThreadLocalRandom.current();
+        int roll = random.nextInt(mix[0] + mix[1] + mix[2]);
+        Kind kind = roll < mix[0] ? Kind.BROADCAST : roll < mix[0] + mix[1] ? Kind.PRIVATE : Kind.MEDIA;
+        Session recipient = sessions.get(random.nextInt(sessions.size()));
+        if (recipient == session) {
+            recipient = sessions.get((session.id + 1) % sessions.size());
+        }
+
+        String message;
+        switch (kind) {
+            case BROADCAST:
+                message = "FROM:" + session.name + "|MSG:t=" + scheduled;
+                kind.expected.add(sessions.size() - 1);
+                break;
+            case PRIVATE:
+                message = "TO:" + recipient.name + "|FROM:" + session.name + "|MSG:t=" + scheduled;
+                kind.expected.increment();
+                break;
+            default:
+                // The scheduled time doubles as the session id, so the chunk can be timed on arrival
+                String type = CHUNK_TYPES[session.chunkType++ % CHUNK_TYPES.length];
+                message = type + "|SESSION:" + Long.toHexString(scheduled) + "|CHUNK:0|TOTAL:1|"
+                        + (type.equals("FILECHUNK") ? "FILENAME:load.bin|" : "")
+                        + "TO:" + recipient.name + "|FROM:" + session.name + "|DATA:" + chunkData;
+                kind.expected.increment();
+                break;
+        }
+        try {
+            session.send(message);
+            kind.sent.increment();
+        } catch (IOException e) {
+            sendErrors.increment();
+        }
+    }
+
+    /**
+     * Check every session once per HEARTBEAT_INTERVAL, spread over the interval, and send a heartbeat
+     * only to sessions that sent nothing for a whole interval, like the real client
+     */
+    private void heartbeatLoop(long end) {
+        int slots = (int) (HEARTBEAT_INTERVAL / 1000);
+        for (int tick = 0; System.nanoTime() < end; tick++) {
+            for (int i = tick % slots; i < sessions.size(); i += slots) {
+                Session session = sessions.get(i);
+                if (System.nanoTime() - session.lastSent < HEARTBEAT_INTERVAL * 1000000) {
+                    heartbeatsSkipped.increment();
+                    continue;
+                }
+                try {
+                    session.send("HEARTBEAT:" + session.name);
+                    heartbeatsSent.increment();
+                } catch (IOException e) {
+                    sendErrors.increment();
+                }
+            }
+            LockSupport.parkNanos(Math.min(1000000000L, Math.max(0, end - System.nanoTime())));
+        }
+    }
+
+    /**
+     * Receive every session's datagrams on one thread
+     */
+    private void receiveLoop() {
+        ByteBuffer buffer = ByteBuffer.allocate(UDPPipeline.MAX_DATAGRAM);
+        try {
+            while (running) {
+                selector.select();
+                synchronized (this) {
+                    // Lets the connect phase register channels between selects
+                }
+                for (SelectionKey key : selector.selectedKeys()) {
+                    DatagramChannel channel = (DatagramChannel) key.channel();
+                    buffer.clear();
+                    while (channel.receive(buffer) != null) {
+                        onMessage(new String(buffer.array(), 0, buffer.position()), System.nanoTime());
+                        buffer.clear();
+                    }
+                }
+                selector.selectedKeys().clear();
+            }
+        } catch (IOException | ClosedSelectorException e) {
+            // Stopped
+        }
+    }
+
+    private void onMessage(String message, long now) {
+        // Find the send time: "PRIVATE:sender|MSG:t=<nanos>", "sender: t=<nanos>" or the chunk's SESSION:<hex nanos>
+        Kind kind;
+        String marker;
+        if (message.startsWith("PRIVATE:")) {
+            kind = Kind.PRIVATE;
+            marker = "|MSG:t=";
+        } else if (message.startsWith("IMGCHUNK|") || message.startsWith("FILECHUNK|") || message.startsWith("VOICECHUNK|")) {
+            kind = Kind.MEDIA;
+            marker = "|SESSION:";
+        } else {
+            kind = Kind.BROADCAST;
+            marker = ": t=";
+        }
+        int timeStart = message.indexOf(marker);
+        if (timeStart < 0) {
+            otherMessages.increment();
+            return;
+        }
+        timeStart += marker.length();
+        int timeEnd = kind == Kind.MEDIA ? message.indexOf('|', timeStart) : message.length();
+        if (timeEnd < 0) {
+            otherMessages.increment();
+            return;
+        }
+        long scheduled;
+        try {
+            scheduled = Long.parseLong(message, timeStart, timeEnd, kind == Kind.MEDIA ? 16 : 10);
+        } catch (NumberFormatException e) {
+            otherMessages.increment();
+            return;
+        }
+        if (scheduled >= measureStart) {
+            kind.delivered.increment();
+            kind.latency.record((now - epoch - scheduled) / 1000);
+        }
+    }
+
+    /**
+     * Wait until a counter stops changing for quietMs
+     * @return ms waited
+     */
+    private static long awaitQuiet(LongAdder counter, long quietMs, long timeoutMs) throws InterruptedException {
+        long start = System.currentTimeMillis();
+        long last = -1;
+        long lastChange = start;
+        while (System.currentTimeMillis() - start < timeoutMs) {
+            long value = counter.sum();
+            if (value != last) {
+                last = value;
+                lastChange = System.currentTimeMillis();
+            } else if (System.currentTimeMillis() - lastChange >= quietMs) {
+                break;
+            }
+            Thread.sleep(50);
+        }
+        return System.currentTimeMillis() - start;
+    }
+
+    /**
+     * Wait for messages still in flight after the last send, up to timeoutMs
+     */
+    private void awaitDelivered(long timeoutMs) throws InterruptedException {
+        long deadline = System.currentTimeMillis() + timeoutMs;
+        while (System.currentTimeMillis() < deadline) {
+            long missing = 0;
+            for (Kind kind : Kind.values()) {
+                missing += kind.expected.sum() - kind.delivered.sum();
+            }
+            if (missing <= 0) {
+                return;
+            }
+            Thread.sleep(50);
+        }
+    }
+
+    private void report(long wallNanos, long[] cpuBefore, long[] cpuAfter, long peakHeap, boolean embedded) {
+        double wallSeconds = wallNanos / 1e9;
+        System.out.printf("%-12s %10s %12s %8s %9s %9s %9s %9s%n", "Traffic", "sent/s", "delivered/s", "lost",
+                "p50 ms", "p99 ms", "p99.9 ms", "max ms");
+        for (Kind kind : Kind.values()) {
+            long expected = kind.expected.sum();
+            long delivered = kind.delivered.sum();
+            LatencyHistogram latency = kind.latency;
+            System.out.printf("%-12s %10.0f %12.0f %7.2f%% %9.2f %9.2f %9.2f %9.2f%n", kind.label,
+                    kind.sent.sum() / wallSeconds, delivered / wallSeconds,
+                    expected == 0 ? 0.0 : 100.0 * Math.max(0, expected - delivered) / expected,
+                    latency.percentile(50) / 1000.0, latency.percentile(99) / 1000.0,
+                    latency.percentile(99.9) / 1000.0, latency.getMax() / 1000.0);
+        }
+        if (heartbeatsSent.sum() + heartbeatsSkipped.sum() > 0) {
+            System.out.println("Heartbeats: " + heartbeatsSent.sum() + " sent, " + heartbeatsSkipped.sum() + " not needed (session active)");
+        }
+        if (sendErrors.sum() > 0) {
+            System.out.println("Send errors: " + sendErrors.sum());
+        }
+
+        double cpuNanos = wallNanos; // Percentages are of one core
+        if (embedded) {
+            System.out.printf("Server CPU: %.1f%% of one core (process minus load threads, includes GC/JIT); generator CPU: %.1f%%%n",
+                    100.0 * ((cpuAfter[0] - cpuBefore[0]) - (cpuAfter[1] - cpuBefore[1])) / cpuNanos,
+                    100.0 * (cpuAfter[1] - cpuBefore[1]) / cpuNanos);
+            System.gc();
+            System.out.println("Heap: peak " + FileTransfer.getFileSizeString(peakHeap) + " during the run, "
+                    + FileTransfer.getFileSizeString(usedHeap()) + " after GC (shared with the generator)");
+        } else if (serverPid > 0 && cpuBefore[2] >= 0) {
+            System.out.printf("Server CPU: %.1f%% of one core; server RSS: %s%n",
+                    100.0 * (cpuAfter[2] - cpuBefore[2]) / cpuNanos, FileTransfer.getFileSizeString(residentSetSize(serverPid)));
+        } else {
+            System.out.println("Server CPU/memory not sampled; pass --server-pid to read them from /proc");
+        }
+    }
+
+    /**
+     * CPU nanoseconds used so far: [whole process, load generator threads, external server process or -1]
+     */
+    private long[] cpuTimes() {
+        long process = -1;
+        if (ManagementFactory.getOperatingSystemMXBean() instanceof com.sun.management.OperatingSystemMXBean) {
+            process = ((com.sun.management.OperatingSystemMXBean) ManagementFactory.getOperatingSystemMXBean()).getProcessCpuTime();
+        }
+        long load = 0;
+        ThreadMXBean threads = ManagementFactory.getThreadMXBean();
+        for (ThreadInfo info : threads.getThreadInfo(threads.getAllThreadIds())) {
+            if (info != null && info.getThreadName().startsWith("load-")) {
+                load += Math.max(0, threads.getThreadCpuTime(info.getThreadId()));
+            }
+        }
+        return new long[]{process, load, serverPid > 0 ? processCpuTime(serverPid) : -1};
+    }
+
+    /**
+     * CPU time of another process from /proc/PID/stat (Linux only, assumes 100 ticks per second), -1 when unavailable
+     */
+    private static long processCpuTime(long pid) {
+        try {
+            String stat = new String(Files.readAllBytes(Paths.get("/proc/" + pid + "/stat")));
+            String[] fields = stat.substring(stat.lastIndexOf(')') + 2).split(" ");
+            return (Long.parseLong(fields[11]) + Long.parseLong(fields[12])) * 10000000L; // utime + stime
+        } catch (IOException | RuntimeException e) {
+            return -1;
+        }
+    }
+
+    private static long residentSetSize(long pid) {
+        try {
+            for (String line : Files.readAllLines(Paths.get("/proc/" + pid + "/status"))) {
+                if (line.startsWith("VmRSS:")) {
+                    return Long.parseLong(line.replaceAll("[^0-9]", "")) * 1024;
+                }
+            }
+        } catch (IOException | NumberFormatException e) {
+            // Not on Linux
+        }
+        return 0;
+    }
+
+    private static long usedHeap() {
+        return ManagementFactory.getMemoryMXBean().getHeapMemoryUsage().getUsed();
+    }
+}
@@ -0,0 +1,450 @@
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.SocketAddress;
+import java.net.StandardSocketOptions;
+import java.nio.ByteBuffer;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.DatagramChannel;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * UDPPipeline - Multi-threaded receive pipeline for the UDP server
+ * Receiver threads read datagrams from DatagramChannels bound to one port (one channel per
+ * receiver with SO_REUSEPORT, so the kernel shards clients across them), a parse stage turns
+ * the bytes into messages and a routing stage handles them. Stages are connected by lock-free
+ * queues, and every datagram from one client address goes to the same parse and route worker,
+ * so each client's messages are still handled in order. Datagrams are copied out of the socket
+ * into recycled arrays that return to a pool once their message was routed. A route flush hook
+ * lets the router batch what it sends during a burst of messages (see DatagramBatch).
+ */
+public class UDPPipeline<T> {
+    public static final int MAX_DATAGRAM = 65507;
+    public static final int DEFAULT_THREADS = Math.max(1, Math.min(4, Runtime.getRuntime().availableProcessors()));
+    public static final int STAGE_QUEUE_CAPACITY = Integer.getInteger("chat.udpStageQueue", 16384); // Datagrams per worker before new ones are dropped
+    public static final int RECEIVE_POOL = Integer.getInteger("chat.udpReceivePool", 4096); // Recycled receive arrays kept
+
+    /**
+     * Turns a datagram into a message; runs on a parse worker
+     */
+    public interface Parser<T> {
+        /**
+         * @param datagram a recycled array holding the datagram in its first length bytes; it is
+         *        reused once the message was routed, so the message must not outlive route()
+         * @return the message, or null to drop the datagram
+         */
+        T parse(byte[] datagram, int length, InetSocketAddress from);
+    }
+
+    /**
+     * Handles a parsed message; runs on a route worker. The datagram the message was parsed from is
+     * recycled when route() returns, so anything kept must be copied
+     */
+    public interface Router<T> {
+        /**
+         * @param receivedAt System.nanoTime() when the datagram was received, to measure time spent in the pipeline
+         */
+        void route(T message, InetSocketAddress from, long receivedAt);
+    }
+
+    private final int threads;
+    private final Parser<T> parser;
+    private final Router<T> router;
+    private Runnable routeFlush; // Runs on a route worker at the end of each burst, or null
+    private long routeFlushNanos;
+    private DatagramChannel[] channels;
+    private final List<Thread> receivers = new ArrayList<>();
+    private Worker[] parseWorkers;
+    private Worker[] routeWorkers;
+    private volatile boolean running = false;
+    private boolean reusePort = false;
+
+    // Per-stage throughput counters
+    private final LongAdder received = new LongAdder();
+    private final LongAdder parsed = new LongAdder();
+    private final LongAdder routed = new LongAdder();
+    private final LongAdder malformed = new LongAdder();
+    private final LongAdder dropped = new LongAdder(); // A stage queue was full
+    private final LongAdder routeErrors = new LongAdder();
+
+    private final ArrayBlockingQueue<byte[]> freeDatagrams = new ArrayBlockingQueue<>(RECEIVE_POOL);
+
+    public UDPPipeline(int threads, Parser<T> parser, Router<T> router) {
+        this.threads = Math.max(1, threads);
+        this.parser = parser;
+        this.router = router;
+    }
+
+    /**
+     * Run flush on each route worker whenever its queue runs empty, and at least every lingerMillis
+     * while it stays busy, so what the router held back during a burst is sent; call before start()
+     */
+    public void setRouteFlush(Runnable flush, long lingerMillis) {
+        this.routeFlush = flush;
+        this.routeFlushNanos = TimeUnit.MILLISECONDS.toNanos(lingerMillis);
+    }
+
+    /**
+     * Bind the channels and start every stage
+     */
+    public void start(int port) throws IOException {
+        // Without SO_REUSEPORT all receivers would share one socket, which serializes receives
+        // anyway and could reorder a client's datagrams, so a single receiver is used instead
+        DatagramChannel first = DatagramChannel.open();
+        reusePort = threads > 1 && first.supportedOptions().contains(StandardSocketOptions.SO_REUSEPORT);
+        channels = new DatagramChannel[reusePort ? threads : 1];
+        channels[0] = first;
+        try {
+            if (reusePort) {
+                // SO_REUSEPORT would also let a second server join a port that is in use, and the
+                // kernel would split clients between the two; bind it exclusively once to be sure
+                try (DatagramChannel probe = DatagramChannel.open()) {
+                    probe.bind(new InetSocketAddress(port));
+                    port = ((InetSocketAddress) probe.getLocalAddress()).getPort();
+                }
+            }
+            for (int i = 0; i < channels.length; i++) {
+                if (i > 0) {
+                    channels[i] = DatagramChannel.open();
+                }
+                if (reusePort) {
+                    channels[i].setOption(StandardSocketOptions.SO_REUSEPORT, true);
+                }
+                channels[i].setOption(StandardSocketOptions.SO_RCVBUF, 4 * 1024 * 1024);
+                channels[i].bind(new InetSocketAddress(port));
+                port = getLocalPort(); // Port 0 picks a free port; the other shards join the same one
+            }
+        } catch (IOException e) {
+            closeChannels();
+            throw e;
+        }
+
+        running = true;
+        routeWorkers = new Worker[threads];
+        parseWorkers = new Worker[threads];
+        for (int i = 0; i < threads; i++) {
+            routeWorkers[i] = new Worker("udp-route-" + i, this::routeItem, routeFlush, routeFlushNanos);
+            parseWorkers[i] = new Worker("udp-parse-" + i, this::parseItem, null, 0);
+        }
+        for (DatagramChannel channel : channels) {
+            Thread receiver = new Thread(() -> receiveLoop(channel), "udp-receive-" + receivers.size());
+            receiver.setDaemon(true);
+            receivers.add(receiver);
+            receiver.start();
+        }
+    }
+
+    /**
+     * Close the channels and stop every stage; queued datagrams are discarded
+     */
+    public void stop() {
+        running = false;
+        closeChannels();
+        for (Thread receiver : receivers) {
+            try {
+                receiver.join(1000);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }
+        receivers.clear();
+        stopWorkers(parseWorkers);
+        stopWorkers(routeWorkers);
+    }
+
+    /**
+     * Send a datagram; safe to call from any stage
+     */
+    public void send(byte[] data, SocketAddress to) throws IOException {
+        DatagramChannel channel = channels[Math.floorMod(to.hashCode(), channels.length)];
+        channel.send(ByteBuffer.wrap(data), to);
+    }
+
+    /**
+     * Send a buffer's remaining bytes, leaving its position unchanged so the same buffer can be
+     * sent to the next recipient; safe to call from any stage
+     */
+    public void send(ByteBuffer data, SocketAddress to) throws IOException {
+        DatagramChannel channel = channels[Math.floorMod(to.hashCode(), channels.length)];
+        int start = data.position();
+        try {
+            channel.send(data, to);
+        } finally {
+            data.position(start);
+        }
+    }
+
+    public int getLocalPort() throws IOException {
+        return ((InetSocketAddress) channels[0].getLocalAddress()).getPort();
+    }
+
+    public int getReceiverCount() {
+        return channels.length;
+    }
+
+    public int getWorkerCount() {
+        return threads;
+    }
+
+    public boolean isReusePort() {
+        return reusePort;
+    }
+
+    public long getReceived() {
+        return received.sum();
+    }
+
+    public long getParsed() {
+        return parsed.sum();
+    }
+
+    public long getRouted() {
+        return routed.sum();
+    }
+
+    public long getMalformed() {
+        return malformed.sum();
+    }
+
+    public long getDropped() {
+        return dropped.sum();
+    }
+
+    public long getRouteErrors() {
+        return routeErrors.sum();
+    }
+
+    /**
+     * Datagrams and messages currently waiting in the parse and route stage queues
+     */
+    public long getQueued() {
+        return queued(parseWorkers) + queued(routeWorkers);
+    }
+
+    private static long queued(Worker[] workers) {
+        long total = 0;
+        if (workers != null) {
+            for (Worker worker : workers) {
+                total += worker.size.get();
+            }
+        }
+        return total;
+    }
+
+    private void receiveLoop(DatagramChannel channel) {
+        ByteBuffer buffer = ByteBuffer.allocateDirect(MAX_DATAGRAM);
+        while (running) {
+            try {
+                buffer.clear();
+                InetSocketAddress from = (InetSocketAddress) channel.receive(buffer);
+                long receivedAt = System.nanoTime();
+                buffer.flip();
+                int length = buffer.remaining();
+                byte[] datagram = takeDatagram(length);
+                buffer.get(datagram, 0, length);
+                received.increment();
+                if (!parseWorkers[shard(from)].offer(new Entry(datagram, datagram, length, from, receivedAt))) {
+                    recycle(datagram);
+                    dropped.increment();
+                }
+            } catch (ClosedChannelException e) {
+                break; // Stopped
+            } catch (IOException e) {
+                if (!running) {
+                    break;
+                }
+            }
+        }
+    }
+
+    private void parseItem(Entry entry) {
+        T message;
+        try {
+            message = parser.parse(entry.datagram, entry.length, entry.from);
+        } catch (RuntimeException e) {
+            message = null;
+        }
+        if (message == null) {
+            recycle(entry.datagram);
+            malformed.increment();
+            return;
+        }
+        parsed.increment();
+        if (!routeWorkers[shard(entry.from)].offer(new Entry(message, entry.datagram, entry.length, entry.from, entry.receivedAt))) {
+            recycle(entry.datagram);
+            dropped.increment();
+        }
+    }
+
+    @SuppressWarnings("unchecked")
+    private void routeItem(Entry entry) {
+        try {
+            router.route((T) entry.item, entry.from, entry.receivedAt);
+            routed.increment();
+        } catch (RuntimeException e) {
+            routeErrors.increment();
+        } finally {
+            recycle(entry.datagram);
+        }
+    }
+
+    /**
+     * An array for a received datagram: a recycled one when the datagram fits, else its exact size
+     */
+    private byte[] takeDatagram(int length) {
+        if (length > DatagramBufferPool.BUFFER_SIZE) {
+            return new byte[length];
+        }
+        byte[] datagram = freeDatagrams.poll();
+        return datagram != null ? datagram : new byte[DatagramBufferPool.BUFFER_SIZE];
+    }
+
+    private void recycle(byte[] datagram) {
+        if (datagram.length == DatagramBufferPool.BUFFER_SIZE) {
+            freeDatagrams.offer(datagram); // Dropped when the pool is full
+        }
+    }
+
+    private int shard(InetSocketAddress from) {
+        return Math.floorMod(from.hashCode(), threads);
+    }
+
+    private void closeChannels() {
+        if (channels == null) {
+            return;
+        }
+        for (DatagramChannel channel : channels) {
+            try {
+                if (channel != null) {
+                    channel.close();
+                }
+            } catch (IOException e) {
+                // Closing anyway
+            }
+        }
+    }
+
+    private void stopWorkers(Worker[] workers) {
+        if (workers == null) {
+            return;
+        }
+        for (Worker worker : workers) {
+            worker.stop();
+        }
+    }
+
+    /**
+     * Handles the items of one stage shard on its own thread
+     */
+    private interface Handler {
+        void handle(Entry entry);
+    }
+
+    // Inner class for one queued item, the datagram it came from, its client and when it was received
+    private static final class Entry {
+        final Object item; // The datagram itself in the parse stage, its message in the route stage
+        final byte[] datagram;
+        final int length;
+        final InetSocketAddress from;
+        final long receivedAt;
+
+        Entry(Object item, byte[] datagram, int length, InetSocketAddress from, long receivedAt) {
+            this.item = item;
+            this.datagram = datagram;
+            this.length = length;
+            this.from = from;
+            this.receivedAt = receivedAt;
+        }
+    }
+
+    /**
+     * One stage thread fed by a lock-free multi-producer queue; parks while the queue is empty
+     */
+    private static final class Worker implements Runnable {
+        private final ConcurrentLinkedQueue<Entry> queue = new ConcurrentLinkedQueue<>();
+        private final AtomicInteger size = new AtomicInteger();
+        private final Handler handler;
+        private final Runnable flush; // Null for stages that hold nothing back
+        private final long flushNanos;
+        private final Thread thread;
+        private volatile boolean running = true;
+        private volatile boolean parked = false;
+
+        Worker(String name, Handler handler, Runnable flush, long flushNanos) {
+            this.handler = handler;
+            this.flush = flush;
+            this.flushNanos = flushNanos;
+            this.thread = new Thread(this, name);
+            this.thread.setDaemon(true);
+            this.thread.start();
+        }
+
+        /**
+         * @return false when the queue is full and the item was dropped
+         */
+        boolean offer(Entry entry) {
+            if (size.incrementAndGet() > STAGE_QUEUE_CAPACITY) {
+                size.decrementAndGet();
+                return false;
+            }
+            queue.offer(entry);
+            if (parked) {
+                LockSupport.unpark(thread);
+            }
+            return true;
+        }
+
+        @Override
+        public void run() {
+            long burstStart = 0; // System.nanoTime() of the first item handled since the last flush, 0 if none
+            while (running) {
+                Entry entry = queue.poll();
+                if (entry == null) {
+                    // Publish parked before the final check so a concurrent offer either is seen here or unparks us
+                    parked = true;
+                    if (queue.isEmpty() && running) {
+                        LockSupport.parkNanos(TimeUnit.MILLISECONDS.toNanos(100));
+                    }
+                    parked = false;
+                    continue;
+                }
+                size.decrementAndGet();
+                handler.handle(entry);
+                if (flush != null) {
+                    long now = System.nanoTime();
+                    if (burstStart == 0) {
+                        burstStart = now;
+                    }
+                    if (queue.isEmpty() || now - burstStart >= flushNanos) {
+                        runFlush();
+                        burstStart = 0;
+                    }
+                }
+            }
+        }
+
+        private void runFlush() {
+            try {
+                flush.run();
+            } catch (RuntimeException e) {
+                // The next burst flushes again
+            }
+        }
+
+        void stop() {
+            running = false;
+            LockSupport.unpark(thread);
+            try {
+                thread.join(1000);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }
+    }
+}
@@ -0,0 +1,143 @@
+import java.io.IOException;
+import java.net.DatagramPacket;
+import java.net.DatagramSocket;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.SocketException;
+import java.nio.ByteBuffer;
+import java.nio.channels.DatagramChannel;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * UDPPipelineBenchmark - Packets-per-second benchmark for the UDPServer receive path
+ * A local load generator floods the server port with binary media chunk datagrams from several
+ * source ports; compares the original single receive thread (receive, parse and route inline)
+ * with the UDPPipeline at 1, 2 and 4 threads per stage
+ *
+ * Usage: java UDPPipelineBenchmark [seconds] [generators] [payloadBytes]
+ */
+public class UDPPipelineBenchmark {
+    private static final int[] THREADS = {1, 2, 4};
+    private static final Map<String, Long> routes = new ConcurrentHashMap<>(); // Stands in for the connected user lookup
+
+    public static void main(String[] args) throws Exception {
+        int seconds = args.length > 0 ? Integer.parseInt(args[0]) : 5;
+        int generators = args.length > 1 ? Integer.parseInt(args[1]) : 4;
+        int payloadBytes = args.length > 2 ? Integer.parseInt(args[2]) : BinaryFrame.CHUNK_SIZE;
+
+        byte[] datagram = BinaryFrame.toDatagram(BinaryFrame.encode(BinaryFrame.TYPE_FILE, 0x18c2f3a4b5dL, 3, 10,
+                "alice", null, "report.pdf", new byte[payloadBytes], 0, payloadBytes));
+        routes.put("alice", 1L);
+
+        System.out.println("=== UDP receive benchmark (" + datagram.length + " byte datagrams, " + generators
+                + " generators, " + seconds + " s per run, " + Runtime.getRuntime().availableProcessors() + " cores) ===");
+        System.out.printf("%-28s %12s %12s %12s%n", "Receive path", "sent pps", "routed pps", "lost");
+
+        report("single thread (before)", runInline(datagram, generators, seconds));
+        for (int threads : THREADS) {
+            report("pipeline x" + threads, runPipeline(threads, datagram, generators, seconds));
+        }
+    }
+
+    private static void report(String name, long[] result) {
+        long sent = result[0];
+        long routed = result[1];
+        int seconds = (int) result[2];
+        System.out.printf("%-28s %12d %12d %11.1f%%%n", name, sent / seconds, routed / seconds,
+                sent == 0 ? 0.0 : 100.0 * (sent - routed) / sent);
+    }
+
+    /**
+     * The original receive loop: one thread receives, parses and routes every datagram
+     */
+    private static long[] runInline(byte[] datagram, int generators, int seconds) throws Exception {
+        LongAdder routed = new LongAdder();
+        DatagramSocket socket = new DatagramSocket(0);
+        socket.setReceiveBufferSize(4 * 1024 * 1024);
+        Thread server = new Thread(() -> {
+            byte[] receiveData = new byte[1024 * 100];
+            while (!socket.isClosed()) {
+                try {
+                    DatagramPacket packet = new DatagramPacket(receiveData, receiveData.length);
+                    socket.receive(packet);
+                    byte[] copy = new byte[packet.getLength()];
+                    System.arraycopy(receiveData, 0, copy, 0, copy.length);
+                    route(BinaryFrame.parse(copy, 2), routed);
+                } catch (SocketException e) {
+                    break;
+                } catch (IOException e) {
+                    // Malformed, keep going
+                }
+            }
+        });
+        server.start();
+        long sent = generate(socket.getLocalPort(), datagram, generators, seconds);
+        Thread.sleep(500); // Let queued datagrams drain
+        socket.close();
+        server.join();
+        return new long[]{sent, routed.sum(), seconds};
+    }
+
+    private static long[] runPipeline(int threads, byte[] datagram, int generators, int seconds) throws Exception {
+        LongAdder routed = new LongAdder();
+        UDPPipeline<BinaryFrame> pipeline = new UDPPipeline<>(threads, (data, length, from) -> {
+            try {
+                return BinaryFrame.parse(data, 2, length - 2);
+            } catch (IOException e) {
+                return null;
+            }
+        }, (frame, from, receivedAt) -> route(frame, routed));
+        pipeline.start(0);
+        long sent = generate(pipeline.getLocalPort(), datagram, generators, seconds);
+        Thread.sleep(500); // Let queued datagrams drain
+        pipeline.stop();
+        if (threads > 1 && !pipeline.isReusePort()) {
+            System.out.println("  (SO_REUSEPORT unavailable: one receiver feeding " + threads + " workers per stage)");
+        }
+        return new long[]{sent, routed.sum(), seconds};
+    }
+
+    /**
+     * Routing stand-in: look up the sender and count the chunk
+     */
+    private static void route(BinaryFrame frame, LongAdder routed) {
+        if (routes.containsKey(frame.sender)) {
+            routed.increment();
+        }
+    }
+
+    /**
+     * Flood the port from several source ports for the given time
+     * @return the number of datagrams sent
+     */
+    private static long generate(int port, byte[] datagram, int generators, int seconds) throws InterruptedException {
+        InetSocketAddress target = new InetSocketAddress(InetAddress.getLoopbackAddress(), port);
+        long deadline = System.nanoTime() + seconds * 1_000_000_000L;
+        LongAdder sent = new LongAdder();
+        List<Thread> threads = new ArrayList<>();
+        for (int i = 0; i < generators; i++) {
+            Thread generator = new Thread(() -> {
+                try (DatagramChannel channel = DatagramChannel.open()) {
+                    ByteBuffer buffer = ByteBuffer.wrap(datagram);
+                    while (System.nanoTime() < deadline) {
+                        buffer.rewind();
+                        channel.send(buffer, target);
+                        sent.increment();
+                    }
+                } catch (IOException e) {
+                    System.out.println("Generator failed: " + e.getMessage());
+                }
+            });
+            threads.add(generator);
+            generator.start();
+        }
+        for (Thread generator : threads) {
+            generator.join();
+        }
+        return sent.sum();
+    }
+}
@@ -0,0 +1,1222 @@
+import java.net.*;
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.charset.Charset;
+import java.nio.charset.StandardCharsets;
+import java.text.SimpleDateFormat;
+import java.time.Duration;
+import java.time.Instant;
+import java.util.*;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.ToLongFunction;
+
+/**
+ * UDPServerCore - Networking engine of the UDP chat server, independent of any UI
+ * Runs the receive pipeline, tracks presence and relays chat and media; everything it has to
+ * say goes to a ServerLog. UDPServer is an optional Swing window around it, and main() runs it
+ * headless from the command line.
+ */
+public class UDPServerCore {
+    private final int port;
+    private final int threads;
+    private final ServerLog log;
+    private final ServerMetrics metrics = new ServerMetrics();
+    private int metricsPort = ServerMetrics.DEFAULT_PORT;
+    private volatile UDPPipeline<BinaryFrame> pipeline; // Receive, parse and route stages; plain text datagrams become TEXT frames
+    private final DatagramBufferPool buffers = new DatagramBufferPool(); // Outgoing datagrams, sent without a copy per recipient
+    private final ThreadLocal<ProtocolLine> lines = ThreadLocal.withInitial(ProtocolLine::new); // One parser per route worker
+    private final ThreadLocal<Map<InetSocketAddress, DatagramBatch>> routeBatches = new ThreadLocal<>(); // Per route worker, by endpoint
+    private final LongAdder batchesSent = new LongAdder(); // Datagrams carrying more than one frame
+    private final LongAdder batchedFrames = new LongAdder(); // Frames sent inside them
+    private volatile boolean isRunning = false;
+
+    // Track connected users: username and interned user id -> UserInfo
+    private final UserTable<UserInfo> connectedUsers = new UserTable<>();
+    private final Rooms<UserInfo> rooms = new Rooms<>(); // Room names share the user id space
+    private final HeartbeatWheel<UserInfo> heartbeats = new HeartbeatWheel<>(this::heartbeatExpired, this::heartbeatFailed);
+    private static final long TRANSFER_IDLE_TIMEOUT = 60000; // Forget a media transfer after a minute without chunks
+
+    // Presence is event driven: the version is bumped on every join/leave so clients can
+    // detect a missed delta and ask for a fresh snapshot with GETUSERS
+    private final AtomicLong presenceVersion = new AtomicLong();
+    private final AtomicLong presenceBytesSent = new AtomicLong();
+    private Thread monitorThread;
+
+    // Media transfers in progress, by sender and session id: drive the flow-control ACKs
+    // and suppress chunks that a sender resent after losing an ACK
+    private final Map<String, TransferState> transfers = new ConcurrentHashMap<>();
+
+    // Inner class to store the chunks received for one media transfer
+    private static class TransferState {
+        private final BitSet received = new BitSet();
+        private long lastSeen = System.currentTimeMillis();
+
+        /**
+         * Record a chunk; returns false if it had already been received
+         */
+        synchronized boolean markReceived(int index) {
+            lastSeen = System.currentTimeMillis();
+            if (received.get(index)) {
+                return false;
+            }
+            received.set(index);
+            return true;
+        }
+
+        /**
+         * Write the ACK datagram: cumulative ACK plus a selective bitmap of the next 64 chunks
+         */
+        synchronized void writeAck(long sessionId, ByteBuffer out) {
+            int cumulative = received.nextClearBit(0);
+            long selective = 0;
+            for (int bit = 0; bit < 64; bit++) {
+                if (received.get(cumulative + 1 + bit)) {
+                    selective |= 1L << bit;
+                }
+            }
+            BinaryFrame.writeAckDatagram(out, sessionId, cumulative, selective);
+        }
+
+        synchronized boolean isIdle() {
+            return System.currentTimeMillis() - lastSeen > TRANSFER_IDLE_TIMEOUT;
+        }
+    }
+
+    // Inner class to store user information
+    private static class UserInfo {
+        final int id; // Interned user id
+        String username;
+        volatile InetSocketAddress endpoint; // Where to send, built once per (re)connection rather than per datagram
+        volatile int version; // BinaryFrame version the client sends, 0 for text datagrams
+        volatile HeartbeatWheel.Timeout<UserInfo> expiry; // Set once the user is registered
+
+        UserInfo(int id, String username, InetAddress address, int port) {
+            this.id = id;
+            this.username = username;
+            this.endpoint = new InetSocketAddress(address, port);
+        }
+
+        /**
+         * Check whether the client negotiated binary framing (BinaryFrame) instead of text datagrams
+         */
+        boolean isBinary() {
+            return version > 0;
+        }
+
+        /**
+         * Check whether the client reads frames addressed by user id (BinaryFrame version 2)
+         */
+        boolean addressesById() {
+            return version >= 2;
+        }
+
+        /**
+         * Check whether the client reads several frames per datagram (BinaryFrame version 3)
+         */
+        boolean readsBatches() {
+            return version >= DatagramBatch.MIN_VERSION;
+        }
+
+        void updateLastSeen() {
+            HeartbeatWheel.Timeout<UserInfo> current = expiry;
+            if (current != null) {
+                current.touch();
+            }
+        }
+
+        void stopHeartbeat() {
+            HeartbeatWheel.Timeout<UserInfo> current = expiry;
+            if (current != null) {
+                current.cancel();
+            }
+        }
+    }
+    
+    public UDPServerCore(int port, int threads, ServerLog log) {
+        this.port = port;
+        this.threads = threads;
+        this.log = log;
+
+        metrics.gauge("chat_connected_users", "Users currently connected", connectedUsers::size);
+        metrics.gauge("chat_rooms", "Rooms with at least one member", rooms::size);
+        metrics.gauge("chat_room_members", "Memberships across all rooms", rooms::getMemberCount);
+        metrics.gauge("chat_heartbeat_timers", "Users tracked by the heartbeat wheel", heartbeats::getScheduled);
+        metrics.gauge("chat_pipeline_queued", "Datagrams waiting in the parse and route stage queues",
+                () -> pipelineCount(UDPPipeline::getQueued));
+        metrics.gauge("chat_transfers_active", "Media transfers being tracked for ACKs", transfers::size);
+        metrics.counter("chat_datagrams_received_total", "Datagrams read from the socket",
+                () -> pipelineCount(UDPPipeline::getReceived));
+        metrics.counter("chat_datagrams_malformed_total", "Datagrams that could not be parsed",
+                () -> pipelineCount(UDPPipeline::getMalformed));
+        metrics.counter("chat_datagrams_dropped_total", "Datagrams dropped because a stage queue was full",
+                () -> pipelineCount(UDPPipeline::getDropped));
+        metrics.counter("chat_route_errors_total", "Messages whose routing failed with an exception",
+                () -> pipelineCount(UDPPipeline::getRouteErrors));
+        metrics.counter("chat_presence_bytes_total", "Bytes of user list snapshots and join/leave deltas",
+                presenceBytesSent::get);
+        metrics.counter("chat_batched_datagrams_total", "Datagrams sent carrying several frames", batchesSent::sum);
+        metrics.counter("chat_batched_frames_total", "Frames sent inside batched datagrams", batchedFrames::sum);
+        metrics.gauge("chat_send_buffers_pooled", "Direct send buffers waiting to be reused", buffers::getPooled);
+        metrics.counter("chat_send_buffers_allocated_total", "Direct send buffers allocated because the pool was empty",
+                buffers::getAllocated);
+    }
+
+    private long pipelineCount(ToLongFunction<UDPPipeline<BinaryFrame>> counter) {
+        UDPPipeline<BinaryFrame> current = pipeline;
+        return current != null ? counter.applyAsLong(current) : 0;
+    }
+
+    /**
+     * Serve metrics on http://127.0.0.1:port/metrics from the next start(); 0 disables the endpoint
+     */
+    public void setMetricsPort(int metricsPort) {
+        this.metricsPort = metricsPort;
+    }
+
+    public ServerMetrics getMetrics() {
+        return metrics;
+    }
+
+    /**
+     * Bind the port and start the receive pipeline
+     */
+    public void start() throws IOException {
+        pipeline = new UDPPipeline<>(threads, this::parseDatagram, this::routeMessage);
+        pipeline.setRouteFlush(this::flushBatches, DatagramBatch.LINGER_MILLIS);
+        pipeline.start(port);
+        isRunning = true;
+        
+        appendMessage("=== Server started on port " + getPort() + " ===\n");
+        appendMessage("Receive pipeline: " + pipeline.getReceiverCount() + " receiver(s)"
+                + (pipeline.isReusePort() ? " sharded with SO_REUSEPORT" : "") + ", "
+                + pipeline.getWorkerCount() + " parse and " + pipeline.getWorkerCount() + " route worker(s)\n");
+        try {
+            metrics.start(metricsPort, log);
+        } catch (IOException e) {
+            log.error("Metrics endpoint not available on port " + metricsPort + ": " + e.getMessage());
+        }
+
+        // Heartbeat expiry runs on the wheel; the monitor thread only sweeps idle transfers
+        heartbeats.start("heartbeat-wheel");
+        monitorThread = new Thread(() -> {
+            while (isRunning) {
+                try {
+                    Thread.sleep(5000); // Check every 5 seconds
+
+                    // Forget transfers that finished or were abandoned
+                    transfers.values().removeIf(TransferState::isIdle);
+                } catch (InterruptedException e) {
+                    if (isRunning) {
+                        log.error("Monitor thread interrupted: " + e.getMessage());
+                    }
+                }
+            }
+        });
+        monitorThread.start();
+    }
+    
+    public boolean isRunning() {
+        return isRunning;
+    }
+
+    /**
+     * Port the server listens on; the bound port when it was started on port 0
+     */
+    public int getPort() {
+        try {
+            return pipeline != null ? pipeline.getLocalPort() : port;
+        } catch (IOException e) {
+            return port;
+        }
+    }
+
+    /**
+     * Bytes of user list snapshots and join/leave deltas sent this session
+     */
+    public long getPresenceBytesSent() {
+        return presenceBytesSent.get();
+    }
+
+    public int getConnectedCount() {
+        return connectedUsers.size();
+    }
+
+    /**
+     * Track a registered user's heartbeats from now on, with the interval the client asked for
+     * @param requestedInterval the client's KEEPALIVE parameter, or null to use the default without replying
+     */
+    private void startHeartbeat(UserInfo user, String requestedInterval) {
+        long interval = HeartbeatWheel.negotiateInterval(requestedInterval);
+        user.stopHeartbeat();
+        user.expiry = heartbeats.schedule(user, interval * HeartbeatWheel.MISSED_HEARTBEATS);
+        if (requestedInterval != null) {
+            try {
+                sendToUser(user, "KEEPALIVE:" + interval + "|" + user.expiry.getTimeout());
+            } catch (IOException e) {
+                log.error("Error sending heartbeat parameters to " + user.username + ": " + e.getMessage());
+            }
+        }
+    }
+
+    /**
+     * Drop a user whose heartbeats stopped; runs on the heartbeat wheel thread
+     */
+    private void heartbeatExpired(UserInfo user) {
+        // Only if the mapping still points to this user (not a newer registration)
+        if (!connectedUsers.remove(user.username, user)) {
+            return;
+        }
+        leaveAllRooms(user);
+        metrics.heartbeatTimeout();
+        String timestamp = new SimpleDateFormat("HH:mm:ss").format(new Date());
+        appendMessage("[" + timestamp + "] User '" + user.username + "' disconnected (timeout)\n");
+
+        // Notify all remaining users about the disconnection
+        String disconnectMsg = "*** " + user.username + " left the chat ***";
+        broadcastToAllUsers(disconnectMsg);
+
+        // Tell remaining clients to drop the user from their lists
+        broadcastPresence("USERLEAVE", user.username);
+    }
+
+    private void heartbeatFailed(UserInfo user, RuntimeException e) {
+        log.error("Removing '" + user.username + "' after a heartbeat timeout failed: " + e);
+    }
+
+    /**
+     * Parse stage: sniff the protocol and decode the BinaryFrame headers of one datagram; a plain
+     * text message is wrapped as a version 0 TEXT frame without decoding it
+     * @return the first frame, any others of a batched datagram chained through next, or null to drop the datagram
+     */
+    private BinaryFrame parseDatagram(byte[] datagram, int length, InetSocketAddress from) {
+        // Binary datagrams start with the BinaryFrame preamble
+        if (length >= 2 && datagram[0] == BinaryFrame.MAGIC) {
+            if (!BinaryFrame.isSupported(datagram[1])) {
+                return null; // Unsupported framing version
+            }
+            try {
+                return BinaryFrame.parseDatagram(datagram, length);
+            } catch (IOException e) {
+                log.error("Dropping malformed frame from " + from.getAddress().getHostAddress() + ":" + from.getPort() + ": " + e.getMessage());
+                return null;
+            }
+        }
+        return BinaryFrame.ofTextDatagram(datagram, length);
+    }
+
+    /**
+     * Route stage: handle the frames of one datagram; what they send to clients that read batched
+     * datagrams is held until flushBatches
+     * @param receivedAt System.nanoTime() when its datagram was received
+     */
+    private void routeMessage(BinaryFrame frame, InetSocketAddress from, long receivedAt) {
+        if (routeBatches.get() == null) {
+            routeBatches.set(new HashMap<>());
+        }
+        for (; frame != null; frame = frame.next) {
+            handleFrame(frame, from.getAddress(), from.getPort(), receivedAt);
+        }
+    }
+
+    /**
+     * Send every batch this route worker holds; runs when its burst of messages ended or its
+     * oldest batch waited DatagramBatch.LINGER_MILLIS
+     */
+    private void flushBatches() {
+        Map<InetSocketAddress, DatagramBatch> batches = routeBatches.get();
+        if (batches == null || batches.isEmpty()) {
+            return;
+        }
+        for (Map.Entry<InetSocketAddress, DatagramBatch> entry : batches.entrySet()) {
+            sendBatch(entry.getKey(), entry.getValue());
+        }
+        batches.clear();
+    }
+
+    /**
+     * Hold a datagram in its endpoint's batch
+     * @return false when it has to be sent on its own, after whatever was batched for the endpoint
+     */
+    private boolean batch(Map<InetSocketAddress, DatagramBatch> batches, InetSocketAddress endpoint, ByteBuffer datagram) {
+        DatagramBatch batch = batches.get(endpoint);
+        if (batch != null) {
+            if (batch.add(datagram)) {
+                return true;
+            }
+            batches.remove(endpoint);
+            sendBatch(endpoint, batch); // Keeps this endpoint's datagrams in order
+        }
+        if (!DatagramBatch.isSmall(datagram.remaining())) {
+            return false;
+        }
+        batch = new DatagramBatch(buffers.acquire());
+        batch.add(datagram);
+        batches.put(endpoint, batch);
+        return true;
+    }
+
+    private void sendBatch(InetSocketAddress endpoint, DatagramBatch batch) {
+        ByteBuffer datagram = batch.finish();
+        try {
+            pipeline.send(datagram, endpoint);
+            if (batch.getFrameCount() > 1) {
+                batchesSent.increment();
+                batchedFrames.add(batch.getFrameCount());
+            }
+        } catch (IOException e) {
+            log.error("Error sending to " + endpoint + ": " + e.getMessage());
+        } finally {
+            buffers.release(datagram);
+        }
+    }
+
+    /**
+     * Process one binary frame: TEXT frames go through the text protocol, media frames are relayed
+     */
+    private void handleFrame(BinaryFrame frame, InetAddress clientAddress, int clientPort, long receivedAt) {
+        if (frame.isText()) {
+            // Plain datagrams are in the platform charset, like the legacy clients that send them
+            ProtocolLine line = lines.get();
+            line.parse(frame.data, frame.payloadOffset, frame.payloadLength,
+                    frame.version == 0 ? Charset.defaultCharset() : StandardCharsets.UTF_8);
+            handleMessage(line, clientAddress, clientPort, frame.version, receivedAt);
+        } else if (frame.isMedia() && frame.retransmit) {
+            metrics.received(ServerMetrics.MessageType.ofFrame(frame.type), frame.datagramLength);
+            relayRetransmit(frame, clientAddress, clientPort);
+        } else if (frame.isMedia()) {
+            metrics.received(ServerMetrics.MessageType.ofFrame(frame.type), frame.datagramLength);
+            relayMediaFrame(frame, clientAddress, clientPort, receivedAt);
+        } else if (frame.type == BinaryFrame.TYPE_NACK) {
+            metrics.received(ServerMetrics.MessageType.NACK, frame.datagramLength);
+            forwardNack(frame, clientAddress, clientPort);
+        }
+    }
+
+    /**
+     * Route a NACK to the original sender of the transfer; legacy text senders cannot answer it
+     */
+    private void forwardNack(BinaryFrame frame, InetAddress clientAddress, int clientPort) {
+        if (!frame.resolve(connectedUsers.getIds())) {
+            return;
+        }
+        registerSender(frame.sender, clientAddress, clientPort, frame.version);
+        UserInfo senderInfo = connectedUsers.get(frame.recipientId);
+        if (senderInfo == null || !senderInfo.isBinary()) {
+            return;
+        }
+        try {
+            sendFrameToUser(senderInfo, frame);
+        } catch (IOException e) {
+            log.error("Error forwarding NACK to " + frame.recipient + ": " + e.getMessage());
+        }
+    }
+
+    /**
+     * Forward a chunk resent in answer to a NACK to the one user who asked for it; it bypasses
+     * duplicate suppression because that user missed the first copy
+     */
+    private void relayRetransmit(BinaryFrame frame, InetAddress clientAddress, int clientPort) {
+        if (!frame.resolve(connectedUsers.getIds())) {
+            return;
+        }
+        registerSender(frame.sender, clientAddress, clientPort, frame.version);
+        UserInfo recipientInfo = connectedUsers.get(frame.recipientId);
+        if (recipientInfo == null || !recipientInfo.isBinary()) {
+            return;
+        }
+        try {
+            sendFrameToUser(recipientInfo, frame);
+        } catch (IOException e) {
+            log.error("Error resending chunk to " + frame.recipient + ": " + e.getMessage());
+        }
+    }
+
+    /**
+     * Route an IMAGE/FILE/VOICE frame by its header only; the payload is never decoded, and only
+     * re-encoded (once) for recipients that address users differently than the sender
+     */
+    private void relayMediaFrame(BinaryFrame frame, InetAddress clientAddress, int clientPort, long receivedAt) {
+        if (!frame.resolve(connectedUsers.getIds())) {
+            log.error("Dropping chunk from " + clientAddress.getHostAddress() + ":" + clientPort + ": unknown user id");
+            return;
+        }
+        UserInfo senderInfo = registerSender(frame.sender, clientAddress, clientPort, frame.version);
+        frame.senderId = senderInfo.id; // Interned just now if the sender registered with this chunk
+
+        // Acknowledge every chunk, including resent duplicates whose ACK was lost; relay each chunk once
+        TransferState transfer = transfers.computeIfAbsent(frame.sender + "_" + frame.sessionId, key -> new TransferState());
+        boolean firstCopy = transfer.markReceived(frame.chunkIndex);
+        ByteBuffer ack = buffers.acquire();
+        try {
+            transfer.writeAck(frame.sessionId, ack);
+            ack.flip();
+            sendDatagram(senderInfo, ServerMetrics.MessageType.ACK, ack);
+        } catch (IOException e) {
+            log.error("Error sending ACK to " + frame.sender + ": " + e.getMessage());
+        } finally {
+            buffers.release(ack);
+        }
+        if (!firstCopy) {
+            return;
+        }
+
+        // Handle room chunk: fan out to the room's members only
+        if (frame.isPrivate() && Rooms.isRoom(frame.recipient)) {
+            sampleRelay("ROOM", frame);
+            Rooms.Room<UserInfo> room = rooms.get(frame.recipientId);
+            int recipients = 0;
+            if (room != null && rooms.isMember(room.getName(), senderInfo)) {
+                recipients = broadcastFrame(room.getMembers(), frame);
+            }
+            metrics.relayed(recipients, receivedAt);
+        }
+        // Handle private chunk: routed by the recipient's id, an array read
+        else if (frame.isPrivate()) {
+            sampleRelay("PRIVATE", frame);
+            UserInfo recipientInfo = connectedUsers.get(frame.recipientId);
+            if (recipientInfo != null) {
+                try {
+                    sendFrameToUser(recipientInfo, frame);
+                } catch (IOException e) {
+                    log.error("Error sending private chunk to " + frame.recipient + ": " + e.getMessage());
+                }
+            }
+            metrics.relayed(recipientInfo != null ? 1 : 0, receivedAt);
+        } else {
+            // Broadcast chunk to all except sender
+            sampleRelay("BROADCAST", frame);
+            metrics.relayed(broadcastFrame(connectedUsers.values(), frame), receivedAt);
+        }
+    }
+
+    /**
+     * Count a relayed chunk in the DEBUG log; the line is only built when it would be kept
+     */
+    private void sampleRelay(String scope, BinaryFrame frame) {
+        if (!log.isSampling()) {
+            return;
+        }
+        String kind = frame.type == BinaryFrame.TYPE_IMAGE ? "IMAGE"
+                : frame.type == BinaryFrame.TYPE_FILE ? "FILE" : "VOICE";
+        String details = frame.type == BinaryFrame.TYPE_FILE ? " [" + frame.name + "]" : "";
+        log.sample(scope + " " + kind + " CHUNK from " + frame.sender
+                + (frame.isPrivate() ? " to " + frame.recipient : "") + details);
+    }
+
+    /**
+     * Relay a media frame to a group of users (everyone or a room) except its sender; each wire
+     * form is copied once into a pooled buffer that is sent to every recipient reading it
+     * @return the number of recipients
+     */
+    private int broadcastFrame(Iterable<UserInfo> users, BinaryFrame frame) {
+        ServerMetrics.MessageType type = ServerMetrics.MessageType.ofFrame(frame.type);
+        ByteBuffer byId = null;
+        ByteBuffer byName = null;
+        ByteBuffer legacy = null;
+        int recipients = 0;
+        try {
+            for (UserInfo user : users) {
+                if (user.id == frame.senderId) {
+                    continue;
+                }
+                try {
+                    ByteBuffer sendData;
+                    if (!user.isBinary()) {
+                        sendData = legacy != null ? legacy : (legacy = buffers.acquire(frame.toLegacyLine().getBytes()));
+                    } else if (user.addressesById()) {
+                        sendData = byId != null ? byId : (byId = buffers.acquire(frame.getDatagram(true), frame.getDatagramLength(true)));
+                    } else {
+                        sendData = byName != null ? byName : (byName = buffers.acquire(frame.getDatagram(false), frame.getDatagramLength(false)));
+                    }
+                    sendDatagram(user, type, sendData);
+                    recipients++;
+                } catch (IOException e) {
+                    log.error("Error sending to " + user.username + ": " + e.getMessage());
+                }
+            }
+        } finally {
+            buffers.release(byId);
+            buffers.release(byName);
+            buffers.release(legacy);
+        }
+        return recipients;
+    }
+
+    /**
+     * Join a room: the joiner gets ROOMJOINED:#room|member1,member2,... and the other members a notice
+     */
+    private void joinRoom(String name, UserInfo user) {
+        Rooms.Room<UserInfo> room = rooms.join(name, connectedUsers.intern(name), user);
+        if (room == null) {
+            return; // Already a member
+        }
+        String timestamp = new SimpleDateFormat("HH:mm:ss").format(new Date());
+        appendMessage("[" + timestamp + "] User '" + user.username + "' joined " + name + "\n");
+
+        StringBuilder joined = new StringBuilder("ROOMJOINED:");
+        if (user.addressesById()) {
+            joined.append(room.getId()).append('=');
+        }
+        joined.append(name).append('|');
+        int prefixLength = joined.length();
+        for (UserInfo member : room.getMembers()) {
+            if (joined.length() > prefixLength) {
+                joined.append(',');
+            }
+            if (user.addressesById()) {
+                joined.append(member.id).append('=');
+            }
+            joined.append(member.username);
+        }
+        try {
+            sendToUser(user, joined.toString());
+        } catch (IOException e) {
+            log.error("Error sending room members to " + user.username + ": " + e.getMessage());
+        }
+        broadcast(room.getMembers(), "*** " + user.username + " joined " + name + " ***", user.username);
+    }
+
+    private void leaveRoom(String name, UserInfo user) {
+        Rooms.Room<UserInfo> room = rooms.leave(name, user);
+        if (room == null) {
+            return; // Not a member
+        }
+        String timestamp = new SimpleDateFormat("HH:mm:ss").format(new Date());
+        appendMessage("[" + timestamp + "] User '" + user.username + "' left " + name + "\n");
+        try {
+            sendToUser(user, "ROOMLEFT:" + name);
+        } catch (IOException e) {
+            log.error("Error confirming room leave to " + user.username + ": " + e.getMessage());
+        }
+        broadcast(room.getMembers(), "*** " + user.username + " left " + name + " ***", null);
+    }
+
+    /**
+     * Take a user out of every room it joined and tell the remaining members
+     */
+    private void leaveAllRooms(UserInfo user) {
+        for (Rooms.Room<UserInfo> room : rooms.leaveAll(user)) {
+            broadcast(room.getMembers(), "*** " + user.username + " left " + room.getName() + " ***", null);
+        }
+    }
+
+    /**
+     * Relay a chat line to the members of a room as ROOM:#room|FROM:sender|MSG:message;
+     * only members may post, and the datagram is encoded once for all of them
+     */
+    private void relayRoomMessage(String name, UserInfo sender, String msgContent, long receivedAt) {
+        Rooms.Room<UserInfo> room = rooms.get(name);
+        String timestamp = new SimpleDateFormat("HH:mm:ss").format(new Date());
+        if (room == null || !rooms.isMember(name, sender)) {
+            appendMessage("[" + timestamp + "] " + sender.username + " is not in room '" + name + "'\n");
+            return;
+        }
+        appendMessage("[" + timestamp + "] " + name + " " + sender.username + ": " + msgContent + "\n");
+        String roomMsg = "ROOM:" + name + "|FROM:" + sender.username + "|MSG:" + msgContent;
+        metrics.relayed(broadcast(room.getMembers(), roomMsg, sender.username), receivedAt);
+    }
+
+    /**
+     * Register a sender seen for the first time, or refresh an existing one
+     */
+    private UserInfo registerSender(String sender, InetAddress clientAddress, int clientPort, int version) {
+        UserInfo senderInfo = connectedUsers.get(sender);
+        if (senderInfo == null) {
+            senderInfo = new UserInfo(connectedUsers.intern(sender), sender, clientAddress, clientPort);
+            senderInfo.version = version;
+            UserInfo existing = connectedUsers.putIfAbsent(sender, senderInfo);
+            if (existing != null) {
+                existing.updateLastSeen(); // Registered concurrently by another route worker
+                return existing;
+            }
+            startHeartbeat(senderInfo, null);
+            String timestamp = new SimpleDateFormat("HH:mm:ss").format(new Date());
+            appendMessage("[" + timestamp + "] User '" + sender + "' connected from " +
+                    clientAddress.getHostAddress() + ":" + clientPort + "\n");
+
+            // Implicitly registered: snapshot for the user, delta for everyone else
+            sendUserList(senderInfo);
+            broadcastPresence("USERJOIN", sender);
+        } else {
+            senderInfo.updateLastSeen();
+        }
+        return senderInfo;
+    }
+
+    /**
+     * Process one parsed text protocol message, received as a plain datagram or inside a TEXT frame
+     */
+    private void handleMessage(ProtocolLine message, InetAddress clientAddress, int clientPort, int version, long receivedAt) {
+        metrics.received(ServerMetrics.MessageType.of(message), message.getLength());
+
+        switch (message.getType()) {
+            // Handle heartbeat message: HEARTBEAT:username
+            case HEARTBEAT:
+                handleHeartbeat(message.getArgument(), clientAddress, clientPort, version);
+                break;
+            // Handle user list snapshot request: GETUSERS:username
+            case GETUSERS:
+                UserInfo requester = connectedUsers.get(message.getArgument());
+                if (requester != null) {
+                    requester.updateLastSeen();
+                    sendUserList(requester);
+                }
+                break;
+            // Handle connection message: CONNECT:username[|KEEPALIVE:heartbeat interval in ms]
+            case CONNECT:
+                handleConnect(message.getArgument(), message.get(ProtocolLine.Field.KEEPALIVE), clientAddress, clientPort, version);
+                break;
+            // Handle disconnection message: DISCONNECT:username
+            case DISCONNECT:
+                handleDisconnect(message.getArgument());
+                break;
+            // Handle media chunks: IMGCHUNK|SESSION:id|CHUNK:num|TOTAL:total|[TO:recipient|]FROM:sender|DATA:chunkdata
+            // (VOICECHUNK alike, FILECHUNK with FILENAME:name before the addressing)
+            case IMGCHUNK:
+            case FILECHUNK:
+            case VOICECHUNK:
+                relayTextChunk(message, clientAddress, clientPort, version, receivedAt);
+                break;
+            // Handle room membership: JOIN:#room|FROM:username or LEAVE:#room|FROM:username
+            case JOIN:
+            case LEAVE:
+                String room = message.getArgument();
+                if (Rooms.isRoom(room) && message.has(ProtocolLine.Field.FROM)) {
+                    UserInfo userInfo = registerSender(message.get(ProtocolLine.Field.FROM), clientAddress, clientPort, version);
+                    if (message.getType() == ProtocolLine.Type.JOIN) {
+                        joinRoom(room, userInfo);
+                    } else {
+                        leaveRoom(room, userInfo);
+                    }
+                }
+                break;
+            // Parse private message format: TO:recipient|FROM:sender|MSG:message (recipient #room for a room)
+            case TO:
+                if (message.has(ProtocolLine.Field.FROM) && message.has(ProtocolLine.Field.MSG)) {
+                    relayPrivateMessage(message.get(ProtocolLine.Field.TO), message.get(ProtocolLine.Field.FROM),
+                            message.get(ProtocolLine.Field.MSG), clientAddress, clientPort, version, receivedAt);
+                }
+                break;
+            // Parse message format: FROM:username|MSG:message
+            case FROM:
+                if (message.has(ProtocolLine.Field.MSG)) {
+                    relayChatMessage(message.get(ProtocolLine.Field.FROM), message.get(ProtocolLine.Field.MSG),
+                            clientAddress, clientPort, version, receivedAt);
+                }
+                break;
+            default:
+                break;
+        }
+    }
+
+    /**
+     * Keep a user alive, or register it again when it had timed out
+     */
+    private void handleHeartbeat(String username, InetAddress clientAddress, int clientPort, int version) {
+        UserInfo userInfo = connectedUsers.get(username);
+        if (userInfo != null) {
+            // Update last seen time to keep connection alive
+            userInfo.updateLastSeen();
+            return;
+        }
+        // User not found, might have timed out - treat as reconnection
+        userInfo = new UserInfo(connectedUsers.intern(username), username, clientAddress, clientPort);
+        userInfo.version = version;
+        connectedUsers.put(username, userInfo);
+        startHeartbeat(userInfo, null);
+        String timestamp = new SimpleDateFormat("HH:mm:ss").format(new Date());
+        appendMessage("[" + timestamp + "] User '" + username + "' reconnected from " +
+                clientAddress.getHostAddress() + ":" + clientPort + "\n");
+
+        // Notify all users about the reconnection
+        String joinMsg = "*** " + username + " reconnected ***";
+        broadcastToAllUsers(joinMsg);
+
+        // Snapshot for the returning user, delta for everyone else
+        sendUserList(userInfo);
+        broadcastPresence("USERJOIN", username);
+    }
+
+    /**
+     * Register a user under the address it connected from; room names are refused
+     */
+    private void handleConnect(String username, String requestedInterval, InetAddress clientAddress, int clientPort, int version) {
+        if (Rooms.isRoom(username)) {
+            UserInfo rejected = new UserInfo(UserIds.NONE, username, clientAddress, clientPort);
+            rejected.version = version;
+            try {
+                sendToUser(rejected, "*** Usernames cannot start with " + Rooms.PREFIX + " ***");
+            } catch (IOException e) {
+                log.error("Error rejecting " + username + ": " + e.getMessage());
+            }
+            return;
+        }
+        UserInfo userInfo = connectedUsers.get(username);
+        if (userInfo == null) {
+            userInfo = new UserInfo(connectedUsers.intern(username), username, clientAddress, clientPort);
+            userInfo.version = version;
+            connectedUsers.put(username, userInfo);
+            startHeartbeat(userInfo, requestedInterval);
+            String timestamp = new SimpleDateFormat("HH:mm:ss").format(new Date());
+            appendMessage("[" + timestamp + "] User '" + username + "' connected from " +
+                    clientAddress.getHostAddress() + ":" + clientPort + "\n");
+
+            // Notify all users about the new connection
+            String joinMsg = "*** " + username + " joined the chat ***";
+            broadcastToAllUsers(joinMsg);
+
+            // Snapshot for the new user, delta for everyone else
+            sendUserList(userInfo);
+            broadcastPresence("USERJOIN", username);
+        } else {
+            // Update existing user's connection info (reconnection)
+            userInfo.endpoint = new InetSocketAddress(clientAddress, clientPort);
+            userInfo.version = version;
+            startHeartbeat(userInfo, requestedInterval);
+
+            String timestamp = new SimpleDateFormat("HH:mm:ss").format(new Date());
+            appendMessage("[" + timestamp + "] User '" + username + "' reconnected\n");
+
+            // Notify about reconnection
+            String reconnectMsg = "*** " + username + " reconnected ***";
+            broadcastToAllUsers(reconnectMsg);
+
+            // The reconnected client starts from a fresh snapshot
+            sendUserList(userInfo);
+            broadcastPresence("USERJOIN", username);
+        }
+    }
+
+    /**
+     * Drop a user that said goodbye and tell everyone else
+     */
+    private void handleDisconnect(String username) {
+        UserInfo userInfo = connectedUsers.remove(username);
+        if (userInfo != null) {
+            userInfo.stopHeartbeat();
+            leaveAllRooms(userInfo);
+            String timestamp = new SimpleDateFormat("HH:mm:ss").format(new Date());
+            appendMessage("[" + timestamp + "] User '" + username + "' disconnected\n");
+
+            // Notify all users about the disconnection
+            String leaveMsg = "*** " + username + " left the chat ***";
+            broadcastToAllUsers(leaveMsg);
+
+            // Tell remaining clients to drop the user from their lists
+            broadcastPresence("USERLEAVE", username);
+        }
+    }
+
+    /**
+     * Relay a media chunk sent as a text line; only the addressing is decoded, and recipients get
+     * the line as it arrived (wrapped in a TEXT frame for binary clients)
+     */
+    private void relayTextChunk(ProtocolLine line, InetAddress clientAddress, int clientPort, int version, long receivedAt) {
+        String sender = line.get(ProtocolLine.Field.FROM);
+        String recipient = line.get(ProtocolLine.Field.TO);
+        String filename = line.get(ProtocolLine.Field.FILENAME);
+        if (sender == null || !line.has(ProtocolLine.Field.DATA) || (line.getType() == ProtocolLine.Type.FILECHUNK && filename == null)) {
+            return;
+        }
+        // Register or update sender
+        registerSender(sender, clientAddress, clientPort, version);
+
+        String kind = line.getType() == ProtocolLine.Type.IMGCHUNK ? "IMAGE"
+                : line.getType() == ProtocolLine.Type.FILECHUNK ? "FILE" : "VOICE";
+        String details = filename != null ? " [" + filename + "]" : "";
+        if (recipient != null && !recipient.isEmpty()) {
+            // Handle private chunk
+            if (log.isSampling()) {
+                log.sample("PRIVATE " + kind + " CHUNK from " + sender + " to " + recipient + details);
+            }
+            UserInfo recipientInfo = connectedUsers.get(recipient);
+            if (recipientInfo != null) {
+                broadcastLine(Collections.singletonList(recipientInfo), line, null);
+            }
+            metrics.relayed(recipientInfo != null ? 1 : 0, receivedAt);
+        } else {
+            // Broadcast chunk to all except sender
+            if (log.isSampling()) {
+                log.sample("BROADCAST " + kind + " CHUNK from " + sender + details);
+            }
+            metrics.relayed(broadcastLine(connectedUsers.values(), line, sender), receivedAt);
+        }
+    }
+
+    /**
+     * Relay a private message to its recipient, or to a room's members when it names a room
+     */
+    private void relayPrivateMessage(String recipient, String sender, String msgContent, InetAddress clientAddress,
+                                     int clientPort, int version, long receivedAt) {
+        // Register or update sender
+        UserInfo senderInfo = registerSender(sender, clientAddress, clientPort, version);
+        if (Rooms.isRoom(recipient)) {
+            relayRoomMessage(recipient, senderInfo, msgContent, receivedAt);
+            return;
+        }
+
+        String timestamp = new SimpleDateFormat("HH:mm:ss").format(new Date());
+        appendMessage("[" + timestamp + "] PRIVATE from " + sender + " to " + recipient + ": " + msgContent + "\n");
+
+        // Send private message only to the recipient
+        UserInfo recipientInfo = connectedUsers.get(recipient);
+        if (recipientInfo != null) {
+            try {
+                String privateMsg = "PRIVATE:" + sender + "|MSG:" + msgContent;
+                sendToUser(recipientInfo, privateMsg);
+            } catch (IOException e) {
+                log.error("Error sending private message to " + recipient + ": " + e.getMessage());
+            }
+        } else {
+            appendMessage("[" + timestamp + "] Recipient '" + recipient + "' not found or offline\n");
+        }
+        metrics.relayed(recipientInfo != null ? 1 : 0, receivedAt);
+    }
+
+    /**
+     * Broadcast a chat line to every connected user except the sender
+     */
+    private void relayChatMessage(String username, String msgContent, InetAddress clientAddress, int clientPort,
+                                  int version, long receivedAt) {
+        // Register or update user
+        registerSender(username, clientAddress, clientPort, version);
+
+        String timestamp = new SimpleDateFormat("HH:mm:ss").format(new Date());
+        appendMessage("[" + timestamp + "] FROM " + username + ": " + msgContent + "\n");
+
+        // Broadcast message to all connected users except the sender
+        String broadcastMsg = username + ": " + msgContent;
+        metrics.relayed(broadcastToAllUsers(broadcastMsg, username), receivedAt);
+    }
+
+    /**
+     * Stop the pipeline and forget every user
+     */
+    public void stop() {
+        isRunning = false;
+        if (pipeline != null) {
+            pipeline.stop();
+        }
+
+        // Stop heartbeat expiry and the monitor thread
+        heartbeats.stop();
+        if (monitorThread != null && monitorThread.isAlive()) {
+            try {
+                monitorThread.join(1000);
+            } catch (InterruptedException e) {
+                e.printStackTrace();
+            }
+        }
+
+        metrics.stop();
+        appendMessage("Presence traffic this session: " + presenceBytesSent.getAndSet(0) + " bytes\n");
+        if (pipeline != null) {
+            appendMessage("Datagrams this session: " + pipeline.getReceived() + " received, " + pipeline.getParsed()
+                    + " parsed, " + pipeline.getRouted() + " routed, " + pipeline.getMalformed() + " malformed, "
+                    + pipeline.getDropped() + " dropped (queue full)\n");
+            pipeline = null;
+        }
+        appendMessage("=== Server stopped ===\n\n");
+
+        // Clear connected users
+        connectedUsers.clear();
+        rooms.clear();
+        transfers.clear();
+    }
+
+    private void broadcastToAllUsers(String message) {
+        broadcastToAllUsers(message, null);
+    }
+
+    /**
+     * @return the number of recipients
+     */
+    private int broadcastToAllUsers(String message, String excludeUser) {
+        return broadcast(connectedUsers.values(), message, excludeUser);
+    }
+
+    /**
+     * Send a text message to a group of users, e.g. everyone or a room's members
+     * @return the number of recipients
+     */
+    private int broadcast(Iterable<UserInfo> users, String message, String excludeUser) {
+        // Encode each wire format once, into a pooled buffer sent to every recipient reading it
+        ByteBuffer textData = null;
+        ByteBuffer binaryData = null;
+        ServerMetrics.MessageType type = ServerMetrics.MessageType.ofOutgoing(message);
+        int recipients = 0;
+
+        try {
+            for (UserInfo user : users) {
+                // Skip sending to the excluded user (sender)
+                if (excludeUser != null && user.username.equals(excludeUser)) {
+                    continue;
+                }
+
+                try {
+                    ByteBuffer sendData;
+                    if (user.isBinary()) {
+                        sendData = binaryData != null ? binaryData : (binaryData = buffers.acquire(BinaryFrame.encodeTextDatagram(message)));
+                    } else {
+                        sendData = textData != null ? textData : (textData = buffers.acquire(message.getBytes()));
+                    }
+                    sendDatagram(user, type, sendData);
+                    recipients++;
+                } catch (IOException e) {
+                    log.error("Error sending to " + user.username + ": " + e.getMessage());
+                }
+            }
+        } finally {
+            buffers.release(textData);
+            buffers.release(binaryData);
+        }
+        return recipients;
+    }
+
+    /**
+     * Relay a received text line to a group of users without decoding it: legacy clients get its
+     * bytes and binary clients a TEXT frame around them, each copied once into a pooled buffer
+     * @return the number of recipients
+     */
+    private int broadcastLine(Iterable<UserInfo> users, ProtocolLine line, String excludeUser) {
+        ByteBuffer textData = null;
+        ByteBuffer binaryData = null;
+        ServerMetrics.MessageType type = ServerMetrics.MessageType.of(line);
+        int recipients = 0;
+
+        try {
+            for (UserInfo user : users) {
+                if (excludeUser != null && user.username.equals(excludeUser)) {
+                    continue;
+                }
+
+                try {
+                    ByteBuffer sendData;
+                    if (user.isBinary()) {
+                        sendData = binaryData != null ? binaryData : (binaryData = buffers.acquire(encodeLine(line)));
+                    } else if (textData != null) {
+                        sendData = textData;
+                    } else if (line.getCharset().equals(Charset.defaultCharset())) {
+                        sendData = textData = buffers.acquire(line.getData(), line.getOffset(), line.getLength());
+                    } else {
+                        sendData = textData = buffers.acquire(line.toString().getBytes());
+                    }
+                    sendDatagram(user, type, sendData);
+                    recipients++;
+                } catch (IOException e) {
+                    log.error("Error sending to " + user.username + ": " + e.getMessage());
+                }
+            }
+        } finally {
+            buffers.release(textData);
+            buffers.release(binaryData);
+        }
+        return recipients;
+    }
+
+    /**
+     * TEXT datagram carrying a received line, from its bytes when they already are UTF-8
+     */
+    private static byte[] encodeLine(ProtocolLine line) {
+        if (line.getCharset().equals(StandardCharsets.UTF_8)) {
+            return BinaryFrame.encodeTextDatagram(line.getData(), line.getOffset(), line.getLength());
+        }
+        return BinaryFrame.encodeTextDatagram(line.toString());
+    }
+
+    /**
+     * Send a text protocol message to one client in the framing it negotiated
+     */
+    private void sendToUser(UserInfo user, String message) throws IOException {
+        sendDatagram(user, ServerMetrics.MessageType.ofOutgoing(message),
+                user.isBinary() ? BinaryFrame.encodeTextDatagram(message) : message.getBytes());
+    }
+
+    /**
+     * Forward a media frame: binary clients get the received datagram (as-is when they use the sender's
+     * addressing), legacy clients the text form
+     */
+    private void sendFrameToUser(UserInfo user, BinaryFrame frame) throws IOException {
+        ServerMetrics.MessageType type = frame.type == BinaryFrame.TYPE_NACK
+                ? ServerMetrics.MessageType.NACK : ServerMetrics.MessageType.ofFrame(frame.type);
+        if (user.isBinary()) {
+            boolean withIds = user.addressesById();
+            sendDatagram(user, type, frame.getDatagram(withIds), frame.getDatagramLength(withIds));
+        } else {
+            sendDatagram(user, type, frame.toLegacyLine().getBytes());
+        }
+    }
+
+    private void sendDatagram(UserInfo user, ServerMetrics.MessageType type, byte[] sendData) throws IOException {
+        sendDatagram(user, type, sendData, sendData.length);
+    }
+
+    /**
+     * Send the first length bytes of an array, e.g. a frame still in its receive buffer
+     */
+    private void sendDatagram(UserInfo user, ServerMetrics.MessageType type, byte[] sendData, int length) throws IOException {
+        ByteBuffer buffer = buffers.acquire(sendData, length);
+        try {
+            sendDatagram(user, type, buffer);
+        } finally {
+            buffers.release(buffer);
+        }
+    }
+
+    /**
+     * Send a buffer's remaining bytes; its position is kept so it can go to the next recipient too.
+     * On a route worker, small datagrams for clients that read batched datagrams are batched instead
+     */
+    private void sendDatagram(UserInfo user, ServerMetrics.MessageType type, ByteBuffer sendData) throws IOException {
+        metrics.sent(type, sendData.remaining());
+        Map<InetSocketAddress, DatagramBatch> batches = user.readsBatches() ? routeBatches.get() : null;
+        if (batches == null || !batch(batches, user.endpoint, sendData)) {
+            pipeline.send(sendData, user.endpoint);
+        }
+    }
+
+    /**
+     * Send the current user list snapshot to one client: USERLIST:version|user1,user2,...
+     * Clients that address users by id get id=user entries instead, and text clients the
+     * unversioned USERLIST:user1,user2,... they were built for
+     */
+    private void sendUserList(UserInfo user) {
+        if (!user.isBinary()) {
+            sendPresence(user, legacyUserList().getBytes());
+            return;
+        }
+        // Read the version before the names: any change racing with this snapshot arrives
+        // afterwards as a delta with a higher version, and deltas are idempotent on the client
+        long version = presenceVersion.get();
+        boolean withIds = user.addressesById();
+        StringBuilder userListBuilder = new StringBuilder("USERLIST:").append(version).append('|');
+        int prefixLength = userListBuilder.length();
+
+        for (String username : connectedUsers.keySet()) {
+            if (userListBuilder.length() > prefixLength) {
+                userListBuilder.append(",");
+            }
+            if (withIds) {
+                userListBuilder.append(connectedUsers.idOf(username)).append('=');
+            }
+            userListBuilder.append(username);
+        }
+
+        sendPresence(user, BinaryFrame.encodeTextDatagram(userListBuilder.toString()));
+    }
+
+    /**
+     * Unversioned user list for text clients, which know neither versions nor deltas: USERLIST:user1,user2,...
+     */
+    private String legacyUserList() {
+        StringBuilder userListBuilder = new StringBuilder("USERLIST:");
+        for (String username : connectedUsers.keySet()) {
+            if (userListBuilder.length() > 9) {
+                userListBuilder.append(",");
+            }
+            userListBuilder.append(username);
+        }
+        return userListBuilder.toString();
+    }
+
+    /**
+     * Announce a join/leave to every other client: USERJOIN:version:username or USERLEAVE:version:username,
+     * with id=username for clients that address users by id. Text clients get the whole unversioned
+     * list instead, as before deltas existed. Must be called after connectedUsers has been updated
+     */
+    private void broadcastPresence(String event, String username) {
+        String versionedEvent = event + ":" + presenceVersion.incrementAndGet() + ":";
+        byte[] binaryData = BinaryFrame.encodeTextDatagram(versionedEvent + username);
+        byte[] idData = BinaryFrame.encodeTextDatagram(versionedEvent + connectedUsers.idOf(username) + "=" + username);
+        byte[] legacyData = null; // Built for the first text client
+
+        for (UserInfo user : connectedUsers.values()) {
+            if (user.username.equals(username)) {
+                continue;
+            }
+            if (!user.isBinary()) {
+                if (legacyData == null) {
+                    legacyData = legacyUserList().getBytes();
+                }
+                sendPresence(user, legacyData);
+            } else {
+                sendPresence(user, user.addressesById() ? idData : binaryData);
+            }
+        }
+    }
+
+    private void sendPresence(UserInfo user, byte[] sendData) {
+        try {
+            sendDatagram(user, ServerMetrics.MessageType.PRESENCE, sendData);
+            presenceBytesSent.addAndGet(sendData.length);
+        } catch (IOException e) {
+            log.error("Error sending presence update to " + user.username + ": " + e.getMessage());
+        }
+    }
+
+    private void appendMessage(String message) {
+        log.log(message);
+    }
+    
+    /**
+     * Run the server without a window: java UDPServerCore [--port N] [--threads N] [--log-level error|info|debug]
+     * [--metrics-port N]
+     */
+    public static void main(String[] args) {
+        long launched = System.nanoTime();
+        int port = 9876;
+        int threads = UDPPipeline.DEFAULT_THREADS;
+        ServerLog.Level level = ServerLog.Level.INFO;
+        int metricsPort = ServerMetrics.DEFAULT_PORT;
+        try {
+            for (int i = 0; i < args.length; i++) {
+                String option = args[i];
+                String value = i + 1 < args.length ? args[++i] : "";
+                switch (option) {
+                    case "--port":
+                        port = Integer.parseInt(value);
+                        break;
+                    case "--threads":
+                        threads = Integer.parseInt(value);
+                        break;
+                    case "--log-level":
+                        level = ServerLog.Level.valueOf(value.toUpperCase());
+                        break;
+                    case "--metrics-port":
+                        metricsPort = Integer.parseInt(value);
+                        break;
+                    default:
+                        throw new IllegalArgumentException("Unknown option " + option);
+                }
+            }
+        } catch (IllegalArgumentException e) {
+            System.err.println(e.getMessage());
+            System.err.println("Usage: java UDPServerCore [--port N] [--threads N] [--log-level error|info|debug] [--metrics-port N]");
+            System.exit(2);
+        }
+
+        ServerLog log = new ServerLog(level);
+        UDPServerCore server = new UDPServerCore(port, threads, log);
+        server.setMetricsPort(metricsPort);
+        try {
+            server.start();
+        } catch (IOException e) {
+            System.err.println("Could not start server: " + e.getMessage());
+            System.exit(1);
+        }
+        log.attachConsole(System.out);
+        System.out.println("Listening on port " + server.getPort() + " (" + threads + " threads per stage) - ready in "
+                + (System.nanoTime() - launched) / 1000000 + " ms, "
+                + ProcessHandle.current().info().startInstant()
+                        .map(started -> Duration.between(started, Instant.now()).toMillis() + " ms since JVM launch")
+                        .orElse("JVM launch time unknown"));
+
+        Runtime.getRuntime().addShutdownHook(new Thread(() -> {
+            server.stop();
+            System.out.print(log.drain());
+        }));
+    }
+}
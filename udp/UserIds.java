@@ -0,0 +1,81 @@
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+/**
+ * UserIds - Compact integer ids for usernames
+ * The server interns each username to a small id the first time it connects and keeps it for its
+ * lifetime, so a reconnecting user keeps the id peers already know. Clients learn the ids from the
+ * server's presence messages. Id to name is an array read; name to id is only needed when a
+ * transfer starts or a peer still addresses users by name.
+ */
+public class UserIds {
+    public static final int NONE = 0; // No user: broadcast recipient, or an id not known yet
+    public static final int MAX_ID = 1 << 20; // Bounds the arrays against ids from a misbehaving peer
+
+    private final ConcurrentHashMap<String, Integer> ids = new ConcurrentHashMap<>();
+    private volatile AtomicReferenceArray<String> names = new AtomicReferenceArray<>(64);
+    private int nextId = 1; // Guarded by this
+
+    /**
+     * Id of a username, assigning the next free id the first time it is seen
+     */
+    public int intern(String name) {
+        Integer id = ids.get(name);
+        if (id != null) {
+            return id;
+        }
+        synchronized (this) {
+            id = ids.get(name);
+            if (id == null) {
+                id = nextId++;
+                store(id, name);
+                ids.put(name, id);
+            }
+            return id;
+        }
+    }
+
+    /**
+     * Record an id assigned elsewhere (by the server); out-of-range ids are ignored
+     */
+    public synchronized void assign(String name, int id) {
+        if (id <= NONE || id > MAX_ID) {
+            return;
+        }
+        String previous = names.length() > id ? names.get(id) : null;
+        if (previous != null && !previous.equals(name)) {
+            ids.remove(previous, id);
+        }
+        store(id, name);
+        ids.put(name, id);
+    }
+
+    /**
+     * Id of a username, or NONE if it was never interned or assigned
+     */
+    public int idOf(String name) {
+        Integer id = name != null ? ids.get(name) : null;
+        return id != null ? id : NONE;
+    }
+
+    /**
+     * Username of an id, or null if it is unknown
+     */
+    public String nameOf(int id) {
+        AtomicReferenceArray<String> current = names;
+        return id > NONE && id < current.length() ? current.get(id) : null;
+    }
+
+    private void store(int id, String name) {
+        AtomicReferenceArray<String> current = names;
+        if (id >= current.length()) {
+            AtomicReferenceArray<String> grown = new AtomicReferenceArray<>(Math.max(id + 1, current.length() * 2));
+            for (int i = 0; i < current.length(); i++) {
+                grown.set(i, current.get(i));
+            }
+            current = grown;
+            names = grown;
+        }
+        current.set(id, name);
+    }
+}